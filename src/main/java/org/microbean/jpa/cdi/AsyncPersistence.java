@@ -0,0 +1,539 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.util.List;
+import java.util.Objects;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.util.function.Function;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.TypedQuery;
+
+import javax.transaction.TransactionManager;
+
+/**
+ * An asynchronous facade over an {@link EntityManagerFactory} whose
+ * operations each run on a bounded {@link Executor}, with an {@link
+ * EntityManager} and a transaction of their own, and report their
+ * outcomes as {@link CompletionStage}s.
+ *
+ * <p>At most a fixed number of operations may be in flight (running
+ * or queued) at any time.  By default, an operation submitted when
+ * that limit has been reached is rejected at once: the returned
+ * {@link CompletionStage} completes exceptionally with a {@link
+ * RejectedExecutionException}, and the caller, which may itself be
+ * handling a request on a thread it must not tie up, never blocks.
+ * Callers may instead opt in to waiting, for up to a configurable
+ * submission timeout, for an operation to complete and make
+ * room.</p>
+ *
+ * <p>Because every operation uses its own {@link EntityManager},
+ * entities returned by operations are always detached.</p>
+ *
+ * <p>The {@link JpaExtension} makes an instance of this class
+ * available, qualified with the {@linkplain
+ * javax.inject.Named name} of the relevant persistence unit, for
+ * every persistence unit it discovers.</p>
+ *
+ * <p>Instances of this class are safe for concurrent use by multiple
+ * threads.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see #inTransactionAsync(Function)
+ */
+public class AsyncPersistence implements AutoCloseable {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  /**
+   * The name of the persistence unit property whose value, if
+   * present, will be used as the number of threads used by the
+   * {@link AsyncPersistence} associated with that persistence unit.
+   */
+  public static final String THREADS_PROPERTY_NAME = "org.microbean.jpa.cdi.async.threads";
+
+  /**
+   * The name of the persistence unit property whose value, if
+   * present, will be used as the number of operations that may be
+   * queued, in addition to those that are running, by the {@link
+   * AsyncPersistence} associated with that persistence unit.
+   *
+   * @see #DEFAULT_QUEUE_CAPACITY
+   */
+  public static final String QUEUE_CAPACITY_PROPERTY_NAME = "org.microbean.jpa.cdi.async.queueCapacity";
+
+  /**
+   * The name of the persistence unit property whose value, if
+   * present, will be used as the number of milliseconds a caller
+   * will wait for queue space before its operation is rejected by the
+   * {@link AsyncPersistence} associated with that persistence unit.
+   *
+   * <p>A value greater than {@code 0} opts in to blocking
+   * callers.</p>
+   *
+   * @see #DEFAULT_SUBMIT_TIMEOUT_MILLIS
+   */
+  public static final String SUBMIT_TIMEOUT_PROPERTY_NAME = "org.microbean.jpa.cdi.async.submitTimeoutMillis";
+
+  /**
+   * The name of the persistence unit property whose value, if
+   * present, will be used as the number of milliseconds that {@link
+   * #close()} will wait for operations that have already been
+   * submitted to the {@link AsyncPersistence} associated with that
+   * persistence unit to complete.
+   *
+   * @see #DEFAULT_CLOSE_TIMEOUT_MILLIS
+   */
+  public static final String CLOSE_TIMEOUT_PROPERTY_NAME = "org.microbean.jpa.cdi.async.closeTimeoutMillis";
+
+  /**
+   * The default number of operations that may be queued ({@value}).
+   */
+  public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+  /**
+   * The default number of milliseconds a caller will wait for queue
+   * space ({@value}), which means that operations are rejected
+   * without blocking when there is none.
+   */
+  public static final long DEFAULT_SUBMIT_TIMEOUT_MILLIS = 0L;
+
+  /**
+   * The default number of milliseconds that {@link #close()} will
+   * wait for submitted operations to complete ({@value}).
+   */
+  public static final long DEFAULT_CLOSE_TIMEOUT_MILLIS = 30000L;
+
+  private static final Logger logger = Logger.getLogger(AsyncPersistence.class.getName());
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final EntityManagerFactory entityManagerFactory;
+
+  private final TransactionManager transactionManager;
+
+  private final Executor executor;
+
+  private final boolean ownsExecutor;
+
+  private final Semaphore permits;
+
+  private final long submitTimeoutMillis;
+
+  private final long closeTimeoutMillis;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link AsyncPersistence} that runs operations on
+   * an {@link Executor} of its own.
+   *
+   * @param name a name used to identify this {@link
+   * AsyncPersistence}'s threads; may be {@code null}
+   *
+   * @param entityManagerFactory the {@link EntityManagerFactory}
+   * from which {@link EntityManager}s will be created; must not be
+   * {@code null}
+   *
+   * @param transactionManager the {@link TransactionManager} to use
+   * to demarcate JTA transactions; may be {@code null} in which case
+   * resource-local transactions will be used instead
+   *
+   * @param threads the number of threads to use; must be greater than
+   * {@code 0}
+   *
+   * @param queueCapacity the number of operations that may wait for
+   * a thread; must not be negative
+   *
+   * @param submitTimeoutMillis the number of milliseconds a caller
+   * will wait for queue space before its operation is rejected; must
+   * not be negative; {@code 0} means that operations are rejected
+   * without blocking
+   *
+   * @param closeTimeoutMillis the number of milliseconds {@link
+   * #close()} will wait for operations that have already been
+   * submitted to complete; must not be negative
+   *
+   * @exception NullPointerException if {@code entityManagerFactory}
+   * is {@code null}
+   *
+   * @exception IllegalArgumentException if {@code threads} is less
+   * than {@code 1} or if {@code queueCapacity}, {@code
+   * submitTimeoutMillis} or {@code closeTimeoutMillis} is negative
+   */
+  public AsyncPersistence(final String name,
+                          final EntityManagerFactory entityManagerFactory,
+                          final TransactionManager transactionManager,
+                          final int threads,
+                          final int queueCapacity,
+                          final long submitTimeoutMillis,
+                          final long closeTimeoutMillis) {
+    this(entityManagerFactory,
+         transactionManager,
+         createExecutor(name, threads, queueCapacity),
+         true,
+         threads + queueCapacity,
+         submitTimeoutMillis,
+         closeTimeoutMillis);
+  }
+
+  /**
+   * Creates a new {@link AsyncPersistence} that runs operations on
+   * the supplied {@link Executor}.
+   *
+   * <p>The supplied {@link Executor} is not shut down by the {@link
+   * #close()} method.</p>
+   *
+   * @param entityManagerFactory the {@link EntityManagerFactory}
+   * from which {@link EntityManager}s will be created; must not be
+   * {@code null}
+   *
+   * @param transactionManager the {@link TransactionManager} to use
+   * to demarcate JTA transactions; may be {@code null} in which case
+   * resource-local transactions will be used instead
+   *
+   * @param executor the {@link Executor} to run operations on; must
+   * not be {@code null}
+   *
+   * @param maxInFlight the maximum number of operations that may be
+   * running or queued at any time; must be greater than {@code 0}
+   *
+   * @param submitTimeoutMillis the number of milliseconds a caller
+   * will wait for an operation to complete before its own operation
+   * is rejected; must not be negative; {@code 0} means that
+   * operations are rejected without blocking
+   *
+   * @exception NullPointerException if {@code entityManagerFactory}
+   * or {@code executor} is {@code null}
+   *
+   * @exception IllegalArgumentException if {@code maxInFlight} is
+   * less than {@code 1} or if {@code submitTimeoutMillis} is negative
+   */
+  public AsyncPersistence(final EntityManagerFactory entityManagerFactory,
+                          final TransactionManager transactionManager,
+                          final Executor executor,
+                          final int maxInFlight,
+                          final long submitTimeoutMillis) {
+    this(entityManagerFactory, transactionManager, executor, false, maxInFlight, submitTimeoutMillis, 0L);
+  }
+
+  private AsyncPersistence(final EntityManagerFactory entityManagerFactory,
+                           final TransactionManager transactionManager,
+                           final Executor executor,
+                           final boolean ownsExecutor,
+                           final int maxInFlight,
+                           final long submitTimeoutMillis,
+                           final long closeTimeoutMillis) {
+    super();
+    Objects.requireNonNull(entityManagerFactory);
+    Objects.requireNonNull(executor);
+    if (maxInFlight < 1) {
+      throw new IllegalArgumentException("maxInFlight < 1: " + maxInFlight);
+    }
+    if (submitTimeoutMillis < 0L) {
+      throw new IllegalArgumentException("submitTimeoutMillis < 0: " + submitTimeoutMillis);
+    }
+    if (closeTimeoutMillis < 0L) {
+      throw new IllegalArgumentException("closeTimeoutMillis < 0: " + closeTimeoutMillis);
+    }
+    this.entityManagerFactory = entityManagerFactory;
+    this.transactionManager = transactionManager;
+    this.executor = executor;
+    this.ownsExecutor = ownsExecutor;
+    this.permits = new Semaphore(maxInFlight);
+    this.submitTimeoutMillis = submitTimeoutMillis;
+    this.closeTimeoutMillis = closeTimeoutMillis;
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Asynchronously {@linkplain EntityManager#find(Class, Object)
+   * finds} the entity of the supplied type with the supplied primary
+   * key.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param <T> the type of the entity
+   *
+   * @param entityClass the type of the entity; must not be {@code
+   * null}
+   *
+   * @param primaryKey the primary key; must not be {@code null}
+   *
+   * @return a non-{@code null} {@link CompletionStage} that will
+   * complete with the (detached) entity, or with {@code null} if it
+   * does not exist
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   *
+   * @see EntityManager#find(Class, Object)
+   */
+  public <T> CompletionStage<T> findAsync(final Class<T> entityClass, final Object primaryKey) {
+    Objects.requireNonNull(entityClass);
+    Objects.requireNonNull(primaryKey);
+    return this.inTransactionAsync(entityManager -> entityManager.find(entityClass, primaryKey));
+  }
+
+  /**
+   * Asynchronously executes the supplied JPQL query and returns its
+   * results.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param <T> the type of the results
+   *
+   * @param jpql the JPQL query; must not be {@code null}
+   *
+   * @param resultClass the type of the results; must not be {@code
+   * null}
+   *
+   * @return a non-{@code null} {@link CompletionStage} that will
+   * complete with a {@link List} of results
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   *
+   * @see #queryAsync(Function)
+   */
+  public <T> CompletionStage<List<T>> queryAsync(final String jpql, final Class<T> resultClass) {
+    Objects.requireNonNull(jpql);
+    Objects.requireNonNull(resultClass);
+    return this.queryAsync(entityManager -> entityManager.createQuery(jpql, resultClass));
+  }
+
+  /**
+   * Asynchronously creates a {@link TypedQuery} using the supplied
+   * {@link Function}, executes it and returns its results.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param <T> the type of the results
+   *
+   * @param queryFunction a {@link Function} that creates a {@link
+   * TypedQuery}, including setting any parameters, from an {@link
+   * EntityManager}; must not be {@code null}
+   *
+   * @return a non-{@code null} {@link CompletionStage} that will
+   * complete with a {@link List} of results
+   *
+   * @exception NullPointerException if {@code queryFunction} is
+   * {@code null}
+   */
+  public <T> CompletionStage<List<T>> queryAsync(final Function<? super EntityManager, ? extends TypedQuery<T>> queryFunction) {
+    Objects.requireNonNull(queryFunction);
+    return this.inTransactionAsync(entityManager -> queryFunction.apply(entityManager).getResultList());
+  }
+
+  /**
+   * Asynchronously applies the supplied {@link Function} to a new
+   * {@link EntityManager} inside a new transaction, which is
+   * committed if the {@link Function} completes normally and rolled
+   * back otherwise.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * <p>If the maximum number of operations is already in flight,
+   * the returned {@link CompletionStage} completes exceptionally with
+   * a {@link RejectedExecutionException}, immediately if the
+   * configured submission timeout is {@code 0} (the default) and
+   * otherwise once this method has blocked for that long without any
+   * operation completing.</p>
+   *
+   * @param <T> the type of the result
+   *
+   * @param work the {@link Function} to apply; must not be {@code
+   * null}
+   *
+   * @return a non-{@code null} {@link CompletionStage} that will
+   * complete with the result of applying {@code work}
+   *
+   * @exception NullPointerException if {@code work} is {@code null}
+   */
+  public <T> CompletionStage<T> inTransactionAsync(final Function<? super EntityManager, ? extends T> work) {
+    Objects.requireNonNull(work);
+    final CompletableFuture<T> returnValue = new CompletableFuture<>();
+    final boolean acquired;
+    if (this.submitTimeoutMillis == 0L) {
+      acquired = this.permits.tryAcquire();
+    } else {
+      try {
+        acquired = this.permits.tryAcquire(this.submitTimeoutMillis, TimeUnit.MILLISECONDS);
+      } catch (final InterruptedException interruptedException) {
+        Thread.currentThread().interrupt();
+        returnValue.completeExceptionally(interruptedException);
+        return returnValue;
+      }
+    }
+    if (!acquired) {
+      returnValue.completeExceptionally(new RejectedExecutionException(this.submitTimeoutMillis == 0L ?
+                                                                      "No queue space" :
+                                                                      "Timed out after " + this.submitTimeoutMillis +
+                                                                      " ms waiting for queue space"));
+      return returnValue;
+    }
+    try {
+      this.executor.execute(() -> {
+          T result = null;
+          Throwable failure = null;
+          try {
+            final EntityManager entityManager = this.entityManagerFactory.createEntityManager();
+            try {
+              result = Transactions.inTransaction(entityManager, this.transactionManager, work);
+            } finally {
+              entityManager.close();
+            }
+          } catch (final Throwable throwable) {
+            failure = throwable;
+          } finally {
+            // Release the permit before completing, so that a caller
+            // who submits another operation as soon as this one
+            // completes finds room for it.
+            this.permits.release();
+          }
+          if (failure == null) {
+            returnValue.complete(result);
+          } else {
+            returnValue.completeExceptionally(failure);
+          }
+        });
+    } catch (final RejectedExecutionException rejectedExecutionException) {
+      this.permits.release();
+      returnValue.completeExceptionally(rejectedExecutionException);
+    }
+    return returnValue;
+  }
+
+  /**
+   * Returns the number of operations that may currently be submitted
+   * without blocking.
+   *
+   * @return the number of available slots; never negative
+   */
+  public final int getAvailableSlots() {
+    return this.permits.availablePermits();
+  }
+
+  /**
+   * Shuts down this {@link AsyncPersistence}'s {@link Executor} if it
+   * was created by this {@link AsyncPersistence}, and waits for up to
+   * the configured close timeout for operations that have already
+   * been submitted to complete.
+   *
+   * <p>Operations still running after that are interrupted, and
+   * operations still queued are abandoned; their {@link
+   * CompletionStage}s never complete.</p>
+   */
+  @Override
+  public void close() {
+    if (this.ownsExecutor && this.executor instanceof ExecutorService) {
+      final ExecutorService executorService = (ExecutorService)this.executor;
+      executorService.shutdown();
+      boolean terminated = false;
+      try {
+        terminated = executorService.awaitTermination(this.closeTimeoutMillis, TimeUnit.MILLISECONDS);
+      } catch (final InterruptedException interruptedException) {
+        Thread.currentThread().interrupt();
+      }
+      if (!terminated) {
+        final List<Runnable> abandoned = executorService.shutdownNow();
+        if (logger.isLoggable(Level.WARNING)) {
+          logger.logp(Level.WARNING,
+                      AsyncPersistence.class.getName(),
+                      "close",
+                      "Operations were still running after {0} ms; abandoned {1} queued operations",
+                      new Object[] { Long.valueOf(this.closeTimeoutMillis), Integer.valueOf(abandoned.size()) });
+        }
+      }
+    }
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  private static final ExecutorService createExecutor(final String name, final int threads, final int queueCapacity) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads < 1: " + threads);
+    }
+    if (queueCapacity < 0) {
+      throw new IllegalArgumentException("queueCapacity < 0: " + queueCapacity);
+    }
+    final String prefix = AsyncPersistence.class.getSimpleName() + "-" + (name == null ? "" : name) + "-";
+    final AtomicInteger threadNumber = new AtomicInteger();
+    final ThreadFactory threadFactory = runnable -> {
+      final Thread thread = new Thread(runnable, prefix + threadNumber.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+    // The in-flight Semaphore admits at most threads + queueCapacity
+    // operations, but a permit is released while its thread is still
+    // finishing its task, so every admitted operation may have to
+    // wait in the queue.  Sizing the queue for all of them means that
+    // rejections here only happen after shutdown.
+    final ThreadPoolExecutor returnValue =
+      new ThreadPoolExecutor(threads,
+                             threads,
+                             60L,
+                             TimeUnit.SECONDS,
+                             new ArrayBlockingQueue<>(threads + queueCapacity),
+                             threadFactory,
+                             new ThreadPoolExecutor.AbortPolicy());
+    returnValue.allowCoreThreadTimeOut(true);
+    return returnValue;
+  }
+
+}
@@ -0,0 +1,62 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import javax.interceptor.InterceptorBinding;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * An {@link InterceptorBinding} indicating that the annotated method,
+ * or every business method of the annotated class, is batch code
+ * that does not hold on to the entities it has already processed.
+ *
+ * <p>While such a method is executing on a given thread, the
+ * persistence contexts of {@link javax.persistence.EntityManager}s
+ * created from {@link javax.persistence.EntityManagerFactory} beans
+ * added by the {@link JpaExtension} are {@linkplain
+ * javax.persistence.EntityManager#flush() flushed} and {@linkplain
+ * javax.persistence.EntityManager#clear() cleared} automatically when
+ * they grow past the threshold named by the {@value
+ * PersistenceContextGuard#CLEAR_THRESHOLD_PROPERTY_NAME} persistence
+ * unit property.</p>
+ *
+ * <p>Entities obtained before such a clear are detached, so changes
+ * made to them afterwards are not written.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see BatchInterceptor
+ *
+ * @see PersistenceContextGuard
+ */
+@Documented
+@Inherited
+@InterceptorBinding
+@Retention(RUNTIME)
+@Target({ METHOD, TYPE })
+public @interface Batch {
+
+}
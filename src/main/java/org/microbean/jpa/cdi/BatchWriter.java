@@ -0,0 +1,423 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import javax.transaction.TransactionManager;
+
+/**
+ * A writer that {@linkplain EntityManager#persist(Object) persists}
+ * large numbers of entities efficiently by {@linkplain
+ * EntityManager#flush() flushing} and {@linkplain
+ * EntityManager#clear() clearing} its persistence context every
+ * {@code batchSize} entities.
+ *
+ * <p>If a JTA transaction is active on the calling thread when
+ * {@link #write(Iterable)} is invoked, all entities are written as
+ * part of that transaction.  Otherwise every {@code batchSize}
+ * entities are written in a transaction of their own.</p>
+ *
+ * <p>Flushing in batches only pays off if the persistence provider
+ * sends the resulting {@code INSERT} statements to the database
+ * using JDBC batching; see {@link #addJdbcBatchingProperties(Map,
+ * Map, int)} and {@link #JDBC_BATCHING_PROPERTY_NAME}.</p>
+ *
+ * <p>The {@link JpaExtension} makes an instance of this class
+ * available, qualified with the {@linkplain
+ * javax.inject.Named name} of the relevant persistence unit, for
+ * every persistence unit it discovers.</p>
+ *
+ * <p>Instances of this class are safe for concurrent use by multiple
+ * threads.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see #write(Iterable)
+ */
+public class BatchWriter {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  /**
+   * The name of the persistence unit property whose value, if
+   * present, will be used as the batch size of the {@link
+   * BatchWriter} associated with that persistence unit and as the
+   * provider's JDBC batch size.
+   *
+   * @see #DEFAULT_BATCH_SIZE
+   */
+  public static final String BATCH_SIZE_PROPERTY_NAME = "org.microbean.jpa.cdi.batch.size";
+
+  /**
+   * The name of the persistence unit property that, if set to {@code
+   * true}, causes the {@link JpaExtension} to turn on the persistence
+   * provider's JDBC batch writing for that persistence unit, as
+   * described by {@link #addJdbcBatchingProperties(Map, Map, int)}.
+   *
+   * <p>JDBC batch writing is off unless this property is set, since
+   * it changes how and when some drivers report failures, such as
+   * constraint violations, and the generated keys and update counts
+   * they return.</p>
+   */
+  public static final String JDBC_BATCHING_PROPERTY_NAME = "org.microbean.jpa.cdi.batch.jdbcBatching";
+
+  /**
+   * The default batch size ({@value}).
+   */
+  public static final int DEFAULT_BATCH_SIZE = 500;
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final EntityManagerFactory entityManagerFactory;
+
+  private final TransactionManager transactionManager;
+
+  private final int batchSize;
+
+  private final LongAdder totalRows;
+
+  private final LongAdder totalNanos;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link BatchWriter}.
+   *
+   * @param entityManagerFactory the {@link EntityManagerFactory}
+   * from which {@link EntityManager}s will be created; must not be
+   * {@code null}
+   *
+   * @param transactionManager the {@link TransactionManager} to use
+   * to demarcate JTA transactions; may be {@code null} in which case
+   * resource-local transactions will be used instead
+   *
+   * @param batchSize the number of entities after which the
+   * persistence context will be flushed and cleared; must be greater
+   * than {@code 0}
+   *
+   * @exception NullPointerException if {@code entityManagerFactory}
+   * is {@code null}
+   *
+   * @exception IllegalArgumentException if {@code batchSize} is less
+   * than {@code 1}
+   */
+  public BatchWriter(final EntityManagerFactory entityManagerFactory,
+                     final TransactionManager transactionManager,
+                     final int batchSize) {
+    super();
+    Objects.requireNonNull(entityManagerFactory);
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("batchSize < 1: " + batchSize);
+    }
+    this.entityManagerFactory = entityManagerFactory;
+    this.transactionManager = transactionManager;
+    this.batchSize = batchSize;
+    this.totalRows = new LongAdder();
+    this.totalNanos = new LongAdder();
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns the number of entities after which this {@link
+   * BatchWriter} flushes and clears its persistence context.
+   *
+   * @return the batch size; always greater than {@code 0}
+   */
+  public final int getBatchSize() {
+    return this.batchSize;
+  }
+
+  /**
+   * Returns the {@link EntityManagerFactory} whose persistence unit
+   * this {@link BatchWriter} writes to.
+   *
+   * @return the {@link EntityManagerFactory}; never {@code null}
+   */
+  public final EntityManagerFactory getEntityManagerFactory() {
+    return this.entityManagerFactory;
+  }
+
+  /**
+   * Persists every entity produced by the supplied {@link Iterable}
+   * and returns a {@link Result} describing the work done.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * <p>The supplied {@link Iterable} is iterated exactly once, so it
+   * may lazily produce its entities.</p>
+   *
+   * <p>If a JTA transaction is active on the calling thread, then
+   * all entities are persisted within it, and the persistence
+   * context is flushed and cleared every {@linkplain #getBatchSize()
+   * batch size} entities.  Otherwise each batch is persisted in its
+   * own transaction, and a failure leaves the batches that were
+   * already committed in place.</p>
+   *
+   * @param entities an {@link Iterable} of entities to persist; must
+   * not be {@code null}
+   *
+   * @return a non-{@code null} {@link Result}
+   *
+   * @exception NullPointerException if {@code entities} is {@code
+   * null}
+   *
+   * @exception javax.persistence.PersistenceException if an error
+   * occurs
+   */
+  public Result write(final Iterable<?> entities) {
+    Objects.requireNonNull(entities);
+    final long start = System.nanoTime();
+    long count = 0L;
+    final EntityManager entityManager = this.entityManagerFactory.createEntityManager();
+    assert entityManager != null;
+    try {
+      final Iterator<?> iterator = entities.iterator();
+      if (Transactions.isActive(this.transactionManager)) {
+        entityManager.joinTransaction();
+        while (iterator.hasNext()) {
+          count += this.persistBatch(entityManager, iterator);
+        }
+      } else {
+        while (iterator.hasNext()) {
+          count += Transactions.inTransaction(entityManager,
+                                              this.transactionManager,
+                                              em -> Integer.valueOf(this.persistBatch(em, iterator))).intValue();
+        }
+      }
+    } finally {
+      entityManager.close();
+    }
+    final long elapsedNanos = System.nanoTime() - start;
+    this.totalRows.add(count);
+    this.totalNanos.add(elapsedNanos);
+    return new Result(count, elapsedNanos);
+  }
+
+  private final int persistBatch(final EntityManager entityManager, final Iterator<?> iterator) {
+    assert entityManager != null;
+    assert iterator != null;
+    int count = 0;
+    while (count < this.batchSize && iterator.hasNext()) {
+      entityManager.persist(iterator.next());
+      count++;
+    }
+    entityManager.flush();
+    entityManager.clear();
+    return count;
+  }
+
+  /**
+   * Returns the total number of entities this {@link BatchWriter}
+   * has written over its lifetime.
+   *
+   * @return the total number of entities written
+   */
+  public final long getTotalRows() {
+    return this.totalRows.sum();
+  }
+
+  /**
+   * Returns the average number of rows per second this {@link
+   * BatchWriter} has written over its lifetime.
+   *
+   * @return the average number of rows written per second, or {@code
+   * 0} if nothing has been written yet
+   */
+  public final double getRowsPerSecond() {
+    return rowsPerSecond(this.totalRows.sum(), this.totalNanos.sum());
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * If the supplied {@code unitProperties} set the {@linkplain
+   * #JDBC_BATCHING_PROPERTY_NAME JDBC batching property} to {@code
+   * true}, adds properties to the supplied {@code target} {@link Map}
+   * that turn on JDBC batch writing with the {@linkplain
+   * #BATCH_SIZE_PROPERTY_NAME unit's batch size}, as described by
+   * {@link #addJdbcBatchingProperties(Map, Map, int)}.
+   *
+   * @param target the {@link Map} to add properties to; must not be
+   * {@code null}
+   *
+   * @param unitProperties the properties of the persistence unit as
+   * defined by its {@code persistence.xml}; may be {@code null}
+   *
+   * @exception NullPointerException if {@code target} is {@code
+   * null}
+   *
+   * @exception IllegalArgumentException if the unit's batch size is
+   * less than {@code 1}
+   */
+  static final void addJdbcBatchingProperties(final Map<? super String, Object> target, final Map<?, ?> unitProperties) {
+    Objects.requireNonNull(target);
+    if (UnitProperties.getBoolean(unitProperties, JDBC_BATCHING_PROPERTY_NAME, false)) {
+      addJdbcBatchingProperties(target,
+                                unitProperties,
+                                UnitProperties.getInt(unitProperties, BATCH_SIZE_PROPERTY_NAME, DEFAULT_BATCH_SIZE));
+    }
+  }
+
+  /**
+   * Adds properties to the supplied {@code target} {@link Map} that
+   * turn on JDBC batch writing with the supplied {@code batchSize} in
+   * the EclipseLink and Hibernate persistence providers, unless the
+   * supplied {@code unitProperties} already configure batch writing
+   * for the provider in question.
+   *
+   * @param target the {@link Map} to add properties to; must not be
+   * {@code null}
+   *
+   * @param unitProperties the properties of the persistence unit as
+   * defined by its {@code persistence.xml}; may be {@code null}
+   *
+   * @param batchSize the JDBC batch size to use; must be greater than
+   * {@code 0}
+   *
+   * @exception NullPointerException if {@code target} is {@code
+   * null}
+   *
+   * @exception IllegalArgumentException if {@code batchSize} is less
+   * than {@code 1}
+   *
+   * @see javax.persistence.spi.PersistenceProvider#createContainerEntityManagerFactory(javax.persistence.spi.PersistenceUnitInfo,
+   * Map)
+   */
+  public static final void addJdbcBatchingProperties(final Map<? super String, Object> target,
+                                                     final Map<?, ?> unitProperties,
+                                                     final int batchSize) {
+    Objects.requireNonNull(target);
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("batchSize < 1: " + batchSize);
+    }
+    final String batchSizeString = String.valueOf(batchSize);
+    if (unitProperties == null || !unitProperties.containsKey("eclipselink.jdbc.batch-writing")) {
+      target.put("eclipselink.jdbc.batch-writing", "JDBC");
+      target.put("eclipselink.jdbc.batch-writing.size", batchSizeString);
+    }
+    if (unitProperties == null || !unitProperties.containsKey("hibernate.jdbc.batch_size")) {
+      target.put("hibernate.jdbc.batch_size", batchSizeString);
+      target.put("hibernate.order_inserts", "true");
+    }
+  }
+
+  private static final double rowsPerSecond(final long rows, final long nanos) {
+    return nanos <= 0L ? 0.0 : rows / (nanos / (double)TimeUnit.SECONDS.toNanos(1L));
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * An immutable description of the work done by a single
+   * invocation of the {@link BatchWriter#write(Iterable)} method.
+   *
+   * @author <a href="https://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   *
+   * @see BatchWriter#write(Iterable)
+   */
+  public static final class Result {
+
+    private final long rows;
+
+    private final long elapsedNanos;
+
+    private Result(final long rows, final long elapsedNanos) {
+      super();
+      this.rows = rows;
+      this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Returns the number of entities that were written.
+     *
+     * @return the number of entities that were written
+     */
+    public final long getRows() {
+      return this.rows;
+    }
+
+    /**
+     * Returns the time, in nanoseconds, that writing took.
+     *
+     * @return the time, in nanoseconds, that writing took
+     */
+    public final long getElapsedNanos() {
+      return this.elapsedNanos;
+    }
+
+    /**
+     * Returns the throughput, in rows per second.
+     *
+     * @return the throughput, in rows per second
+     */
+    public final double getRowsPerSecond() {
+      return rowsPerSecond(this.rows, this.elapsedNanos);
+    }
+
+    /**
+     * Returns a {@link String} representation of this {@link Result}.
+     *
+     * <p>This method never returns {@code null}.</p>
+     *
+     * @return a non-{@code null} {@link String}
+     */
+    @Override
+    public final String toString() {
+      return this.rows + " rows in " + TimeUnit.NANOSECONDS.toMillis(this.elapsedNanos) + " ms (" +
+        Math.round(this.getRowsPerSecond()) + " rows/s)";
+    }
+
+  }
+
+}
@@ -28,6 +28,8 @@ import javax.enterprise.inject.spi.BeanManager;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
+import javax.persistence.spi.PersistenceUnitInfo;
+
 import javax.sql.DataSource;
 
 /**
@@ -35,6 +37,14 @@ import javax.sql.DataSource;
  * that uses a {@link BeanManager} to look up relevant {@link
  * DataSource}s.
  *
+ * <p>If a {@link ConnectionLeaks} bean qualified with the
+ * {@linkplain javax.inject.Named name} of the persistence unit on
+ * whose behalf a {@link DataSource} is {@linkplain
+ * #getDataSource(PersistenceUnitInfo, boolean, boolean, String)
+ * requested} exists, the {@link DataSource} is {@linkplain
+ * ConnectionLeaks#wrap(DataSource) wrapped} by it so that {@link
+ * java.sql.Connection}s held for too long are reported.</p>
+ *
  * @author <a href="https://about.me/lairdnelson"
  * target="_parent">Laird Nelson</a>
  *
@@ -163,4 +173,68 @@ class BeanManagerBackedDataSourceProvider implements PersistenceUnitInfoBean.Dat
     }
     return returnValue;
   }
+
+  /**
+   * Supplies a {@link DataSource} according to rules defined by the
+   * JPA specification and portions of the Java EE specification on
+   * behalf of the persistence unit described by the supplied {@link
+   * PersistenceUnitInfo}, {@linkplain
+   * ConnectionLeaks#wrap(DataSource) tracking} the {@link
+   * java.sql.Connection}s it hands out if a {@link ConnectionLeaks}
+   * bean for that persistence unit exists.
+   *
+   * <p>Implementations of this method are permitted to return
+   * {@code null}.</p>
+   *
+   * @param persistenceUnitInfo the {@link PersistenceUnitInfo}
+   * describing the persistence unit that will use the {@link
+   * DataSource}; must not be {@code null}
+   *
+   * @param jta if {@code true}, the {@link DataSource} that is
+   * returned may be enrolled in JTA-compliant transactions
+   *
+   * @param useDefaultJta if {@code true}, and if the {@code jta}
+   * parameter value is {@code true}, the supplied {@code
+   * dataSourceName} may be ignored and a default {@link DataSource}
+   * eligible for enrolling in JTA-compliant transactions will be
+   * returned if possible
+   *
+   * @param dataSourceName the name of the {@link DataSource} to
+   * return; may be {@code null}; ignored if both {@code jta} and
+   * {@code useDefaultJta} are {@code true}
+   *
+   * @return an appropriate {@link DataSource}, or {@code null}
+   *
+   * @exception NullPointerException if {@code persistenceUnitInfo}
+   * is {@code null}
+   *
+   * @exception IllegalStateException if this {@link
+   * BeanManagerBackedDataSourceProvider} was created with a {@code
+   * null} {@link BeanManager}
+   *
+   * @see #getDataSource(boolean, boolean, String)
+   *
+   * @see ConnectionLeaks
+   */
+  @Override
+  public DataSource getDataSource(final PersistenceUnitInfo persistenceUnitInfo,
+                                  final boolean jta,
+                                  final boolean useDefaultJta,
+                                  final String dataSourceName) {
+    Objects.requireNonNull(persistenceUnitInfo);
+    DataSource returnValue = this.getDataSource(jta, useDefaultJta, dataSourceName);
+    if (returnValue != null) {
+      String persistenceUnitName = persistenceUnitInfo.getPersistenceUnitName();
+      if (persistenceUnitName == null) {
+        persistenceUnitName = "";
+      }
+      final ConnectionLeaks connectionLeaks =
+        JpaExtension.getReference(this.beanManager, ConnectionLeaks.class, NamedLiteral.of(persistenceUnitName));
+      if (connectionLeaks != null) {
+        returnValue = connectionLeaks.wrap(returnValue);
+      }
+    }
+    return returnValue;
+  }
+
 }
@@ -0,0 +1,1115 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+
+import java.math.BigDecimal;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import java.util.function.Function;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.persistence.AttributeConverter;
+import javax.persistence.Column;
+import javax.persistence.Convert;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.JoinColumn;
+import javax.persistence.JoinColumns;
+import javax.persistence.MapsId;
+import javax.persistence.OneToOne;
+import javax.persistence.PersistenceException;
+import javax.persistence.PersistenceUnitUtil;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.IdentifiableType;
+import javax.persistence.metamodel.Metamodel;
+import javax.persistence.metamodel.SingularAttribute;
+import javax.persistence.metamodel.Type;
+
+import javax.sql.DataSource;
+
+/**
+ * A loader that writes large numbers of entities straight to the
+ * {@link DataSource} of a persistence unit using multi-row {@code
+ * INSERT} (or {@code MERGE}) statements sent in JDBC batches,
+ * bypassing the persistence context altogether.
+ *
+ * <p>Even when {@linkplain BatchWriter batched}, {@link
+ * EntityManager#persist(Object)} pays for change tracking, flush
+ * ordering and one row per statement for every entity.  A {@link
+ * BulkLoader} instead derives the table and columns of an entity
+ * class once, from the {@link EntityManagerFactory}'s {@link
+ * Metamodel} and the standard mapping annotations on the members it
+ * reports, and then binds {@value #DEFAULT_ROWS_PER_STATEMENT} (by
+ * default) entities into each statement, committing every {@value
+ * #DEFAULT_COMMIT_INTERVAL} (by default) entities.</p>
+ *
+ * <p>Table and column names are taken from the persistence provider's
+ * own mapping (EclipseLink's {@code ClassDescriptor} or Hibernate's
+ * {@code AbstractEntityPersister}) when the provider is one of those,
+ * so they reflect mapping files, naming strategies and provider
+ * defaults.  With any other provider they are derived from {@link
+ * Table}, {@link Column} and {@link JoinColumn} annotations and the
+ * specification's defaults, and overrides made in mapping files are
+ * not seen.</p>
+ *
+ * <p>Entities with a single basic identifier, basic attributes,
+ * {@linkplain javax.persistence.Version version} attributes and
+ * owning single-column {@link javax.persistence.ManyToOne} or {@link
+ * OneToOne} associations are supported.  Collection-valued
+ * attributes are not written.  Embedded attributes, composite
+ * identifiers, secondary tables and entity inheritance hierarchies
+ * are rejected with an {@link IllegalArgumentException}.  {@link
+ * Convert} annotations naming an {@link AttributeConverter} are
+ * honored; auto-applied converters are not.</p>
+ *
+ * <p>Identifiers are handled as follows:</p>
+ *
+ * <ul>
+ *
+ * <li>An identifier already present on an entity is written as
+ * is.</li>
+ *
+ * <li>An identifier {@linkplain GeneratedValue generated} with the
+ * {@link GenerationType#IDENTITY IDENTITY} strategy is left to the
+ * database; it is not written, and it is not read back into the
+ * entity.</li>
+ *
+ * <li>Any other missing generated identifier is obtained from the
+ * persistence provider itself, by {@linkplain
+ * EntityManager#persist(Object) persisting} the entity in a
+ * throwaway persistence context that is then {@linkplain
+ * EntityManager#clear() cleared} without being flushed, so that
+ * identifiers come from the same sequence or table, with the same
+ * preallocation, that the provider uses.</li>
+ *
+ * </ul>
+ *
+ * <p>An unset numeric version is written as {@code 1}.  Because the
+ * persistence provider never sees the rows this class writes, the
+ * {@linkplain javax.persistence.Cache shared cache} entries of an
+ * entity class are {@linkplain javax.persistence.Cache#evict(Class)
+ * evicted} after it is loaded.</p>
+ *
+ * <p>{@linkplain Mode#MERGE Merging} is supported on H2, PostgreSQL
+ * and MySQL (and MariaDB), using {@code MERGE ... KEY}, {@code INSERT
+ * ... ON CONFLICT} and {@code INSERT ... ON DUPLICATE KEY UPDATE}
+ * respectively.  On PostgreSQL, a single statement may not mention
+ * the same identifier twice.</p>
+ *
+ * <p>Each {@code load} uses a connection of its own in local
+ * transactions, so it must not be expected to participate in a JTA
+ * transaction.  A failure rolls back the chunk being written and
+ * leaves chunks that were already committed in place.</p>
+ *
+ * <p>The {@link JpaExtension} makes an instance of this class
+ * available, qualified with the {@linkplain
+ * javax.inject.Named name} of the relevant persistence unit, for
+ * every persistence unit it discovers, using the unit's non-JTA
+ * {@link DataSource} if it has one.</p>
+ *
+ * <p>Instances of this class are safe for concurrent use by multiple
+ * threads.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see #load(Class, Iterator, Mode)
+ *
+ * @see BatchWriter
+ */
+public class BulkLoader {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  /**
+   * The name of the persistence unit property whose value, if
+   * present, will be used as the number of rows bound into each
+   * statement by the {@link BulkLoader} associated with that
+   * persistence unit.
+   *
+   * @see #DEFAULT_ROWS_PER_STATEMENT
+   */
+  public static final String ROWS_PER_STATEMENT_PROPERTY_NAME = "org.microbean.jpa.cdi.bulkLoader.rowsPerStatement";
+
+  /**
+   * The name of the persistence unit property whose value, if
+   * present, will be used as the number of rows after which the
+   * {@link BulkLoader} associated with that persistence unit commits.
+   *
+   * @see #DEFAULT_COMMIT_INTERVAL
+   */
+  public static final String COMMIT_INTERVAL_PROPERTY_NAME = "org.microbean.jpa.cdi.bulkLoader.commitInterval";
+
+  /**
+   * The default number of rows bound into each statement ({@value}).
+   */
+  public static final int DEFAULT_ROWS_PER_STATEMENT = 100;
+
+  /**
+   * The default number of rows after which a commit happens
+   * ({@value}).
+   */
+  public static final int DEFAULT_COMMIT_INTERVAL = 10000;
+
+  // The PostgreSQL wire protocol allows at most 32767 bind
+  // parameters per statement; other databases allow at least as
+  // many.
+  private static final int MAX_PARAMETERS = 32767;
+
+  private static final Logger logger = Logger.getLogger(BulkLoader.class.getName());
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final EntityManagerFactory entityManagerFactory;
+
+  private final DataSource dataSource;
+
+  private final int rowsPerStatement;
+
+  private final int commitInterval;
+
+  private final ConcurrentMap<Class<?>, Mapping> mappings;
+
+  private final LongAdder totalRows;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link BulkLoader}.
+   *
+   * @param entityManagerFactory the {@link EntityManagerFactory}
+   * whose {@link Metamodel} describes the entities to load; must not
+   * be {@code null}
+   *
+   * @param dataSource the {@link DataSource} to which rows will be
+   * written; must not be {@code null}; normally the {@linkplain
+   * javax.persistence.spi.PersistenceUnitInfo#getNonJtaDataSource()
+   * non-JTA <code>DataSource</code>} of the persistence unit
+   *
+   * @param rowsPerStatement the number of rows to bind into each
+   * statement; must be greater than {@code 0}; reduced if necessary
+   * so that no statement has more than 32767 parameters
+   *
+   * @param commitInterval the number of rows after which to commit;
+   * must be greater than {@code 0}
+   *
+   * @exception NullPointerException if {@code entityManagerFactory}
+   * or {@code dataSource} is {@code null}
+   *
+   * @exception IllegalArgumentException if {@code rowsPerStatement}
+   * or {@code commitInterval} is less than {@code 1}
+   */
+  public BulkLoader(final EntityManagerFactory entityManagerFactory,
+                    final DataSource dataSource,
+                    final int rowsPerStatement,
+                    final int commitInterval) {
+    super();
+    Objects.requireNonNull(entityManagerFactory);
+    Objects.requireNonNull(dataSource);
+    if (rowsPerStatement < 1) {
+      throw new IllegalArgumentException("rowsPerStatement < 1: " + rowsPerStatement);
+    }
+    if (commitInterval < 1) {
+      throw new IllegalArgumentException("commitInterval < 1: " + commitInterval);
+    }
+    this.entityManagerFactory = entityManagerFactory;
+    this.dataSource = dataSource;
+    this.rowsPerStatement = rowsPerStatement;
+    this.commitInterval = commitInterval;
+    this.mappings = new ConcurrentHashMap<>();
+    this.totalRows = new LongAdder();
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns the number of rows this {@link BulkLoader} binds into
+   * each statement, before any reduction made to respect parameter
+   * limits.
+   *
+   * @return the number of rows per statement; always greater than
+   * {@code 0}
+   */
+  public final int getRowsPerStatement() {
+    return this.rowsPerStatement;
+  }
+
+  /**
+   * Returns the number of rows after which this {@link BulkLoader}
+   * commits.
+   *
+   * @return the commit interval; always greater than {@code 0}
+   */
+  public final int getCommitInterval() {
+    return this.commitInterval;
+  }
+
+  /**
+   * Returns the total number of rows this {@link BulkLoader} has
+   * written over its lifetime.
+   *
+   * @return the total number of rows written
+   */
+  public final long getTotalRows() {
+    return this.totalRows.sum();
+  }
+
+  /**
+   * Inserts a row for every entity produced by the supplied {@link
+   * Iterable} and returns the number of rows written.
+   *
+   * @param <T> the entity type
+   *
+   * @param entityClass the entity class; must not be {@code null}
+   *
+   * @param entities the entities to insert; must not be {@code null};
+   * iterated exactly once
+   *
+   * @return the number of rows written
+   *
+   * @exception NullPointerException if any parameter is {@code null}
+   *
+   * @exception IllegalArgumentException if {@code entityClass} is not
+   * an entity class of the persistence unit or is mapped in a way
+   * this class does not support
+   *
+   * @exception SQLException if a database error occurs
+   *
+   * @see #load(Class, Iterator, Mode)
+   */
+  public <T> long insert(final Class<T> entityClass, final Iterable<? extends T> entities) throws SQLException {
+    Objects.requireNonNull(entities);
+    return this.load(entityClass, entities.iterator(), Mode.INSERT);
+  }
+
+  /**
+   * Inserts or replaces a row for every entity produced by the
+   * supplied {@link Iterable} and returns the number of entities
+   * written.
+   *
+   * @param <T> the entity type
+   *
+   * @param entityClass the entity class; must not be {@code null}
+   *
+   * @param entities the entities to merge; must not be {@code null};
+   * iterated exactly once
+   *
+   * @return the number of entities written
+   *
+   * @exception NullPointerException if any parameter is {@code null}
+   *
+   * @exception IllegalArgumentException if {@code entityClass} is not
+   * an entity class of the persistence unit, is mapped in a way this
+   * class does not support or has an identifier generated by the
+   * database
+   *
+   * @exception SQLFeatureNotSupportedException if the database does
+   * not support merging
+   *
+   * @exception SQLException if a database error occurs
+   *
+   * @see #load(Class, Iterator, Mode)
+   */
+  public <T> long merge(final Class<T> entityClass, final Iterable<? extends T> entities) throws SQLException {
+    Objects.requireNonNull(entities);
+    return this.load(entityClass, entities.iterator(), Mode.MERGE);
+  }
+
+  /**
+   * Writes a row for every entity produced by the supplied {@link
+   * Iterator}, using the supplied {@link Mode}, and returns the
+   * number of entities written.
+   *
+   * <p>Entities are consumed in chunks of {@linkplain
+   * #getCommitInterval() commit interval} entities.  Each chunk is
+   * written with multi-row statements of {@linkplain
+   * #getRowsPerStatement() rows per statement} rows, sent in a single
+   * JDBC batch, and committed.  Only one chunk of entities is
+   * referenced at any time, so the {@link Iterator} may lazily
+   * produce any number of entities.</p>
+   *
+   * @param <T> the entity type
+   *
+   * @param entityClass the entity class; must not be {@code null}
+   *
+   * @param entities the entities to write; must not be {@code null}
+   *
+   * @param mode the {@link Mode} to use; must not be {@code null}
+   *
+   * @return the number of entities written
+   *
+   * @exception NullPointerException if any parameter is {@code null}
+   *
+   * @exception IllegalArgumentException if {@code entityClass} is not
+   * an entity class of the persistence unit or is mapped in a way
+   * this class does not support, or if {@code mode} is {@link
+   * Mode#MERGE} and identifiers of {@code entityClass} are generated
+   * by the database
+   *
+   * @exception SQLFeatureNotSupportedException if {@code mode} is
+   * {@link Mode#MERGE} and the database does not support merging
+   *
+   * @exception SQLException if a database error occurs
+   */
+  public <T> long load(final Class<T> entityClass, final Iterator<? extends T> entities, final Mode mode) throws SQLException {
+    Objects.requireNonNull(entityClass);
+    Objects.requireNonNull(entities);
+    Objects.requireNonNull(mode);
+    final Mapping mapping = this.mappings.computeIfAbsent(entityClass, this::createMapping);
+    if (mode == Mode.MERGE && mapping.identity) {
+      throw new IllegalArgumentException("Identifiers of " + entityClass.getName() + " are generated by the database");
+    }
+    final int rowsPerStatement = Math.max(1, Math.min(this.rowsPerStatement, MAX_PARAMETERS / mapping.columns.size()));
+    final List<T> chunk = new ArrayList<>(Math.min(this.commitInterval, 10000));
+    long count = 0L;
+    try (final Connection connection = this.dataSource.getConnection()) {
+      final Dialect dialect = Dialect.of(connection.getMetaData().getDatabaseProductName());
+      if (mode == Mode.MERGE && dialect == Dialect.OTHER) {
+        throw new SQLFeatureNotSupportedException("MERGE is not supported on " + connection.getMetaData().getDatabaseProductName());
+      }
+      final boolean autoCommit = connection.getAutoCommit();
+      if (autoCommit) {
+        connection.setAutoCommit(false);
+      }
+      try {
+        while (entities.hasNext()) {
+          chunk.clear();
+          while (chunk.size() < this.commitInterval && entities.hasNext()) {
+            chunk.add(entities.next());
+          }
+          this.assignIdentifiers(mapping, chunk);
+          write(connection, mapping, mapping.sql(mode, dialect, rowsPerStatement), rowsPerStatement, chunk, 0);
+          final int remainder = chunk.size() % rowsPerStatement;
+          if (remainder > 0) {
+            write(connection, mapping, mapping.sql(mode, dialect, remainder), remainder, chunk, chunk.size() - remainder);
+          }
+          connection.commit();
+          count += chunk.size();
+        }
+      } catch (final SQLException | RuntimeException exception) {
+        try {
+          connection.rollback();
+        } catch (final SQLException rollbackException) {
+          exception.addSuppressed(rollbackException);
+        }
+        throw exception;
+      } finally {
+        chunk.clear();
+        this.totalRows.add(count);
+        if (count > 0L) {
+          this.entityManagerFactory.getCache().evict(entityClass);
+        }
+        if (autoCommit) {
+          connection.setAutoCommit(true);
+        }
+      }
+    }
+    return count;
+  }
+
+  private final void assignIdentifiers(final Mapping mapping, final List<?> chunk) {
+    assert mapping != null;
+    assert chunk != null;
+    if (!mapping.generated || mapping.identity) {
+      return;
+    }
+    EntityManager entityManager = null;
+    try {
+      for (final Object entity : chunk) {
+        if (mapping.isUnassigned(entity)) {
+          if (entityManager == null) {
+            entityManager = this.entityManagerFactory.createEntityManager();
+          }
+          entityManager.persist(entity);
+          if (mapping.isUnassigned(entity)) {
+            throw new IllegalStateException("The persistence provider did not assign an identifier to " + entity +
+                                            " when it was persisted");
+          }
+        }
+      }
+    } finally {
+      if (entityManager != null) {
+        // Nothing is ever flushed; the entities were persisted only
+        // so that the provider would assign their identifiers.
+        entityManager.clear();
+        entityManager.close();
+      }
+    }
+  }
+
+  private final Mapping createMapping(final Class<?> entityClass) {
+    assert entityClass != null;
+    final Metamodel metamodel = this.entityManagerFactory.getMetamodel();
+    final EntityType<?> entityType = metamodel.entity(entityClass);
+    if (entityType.getSupertype() instanceof EntityType) {
+      throw new IllegalArgumentException("Entity inheritance is not supported: " + entityClass.getName());
+    }
+    for (final EntityType<?> other : metamodel.getEntities()) {
+      final IdentifiableType<?> supertype = other.getSupertype();
+      if (supertype != null && entityClass.equals(supertype.getJavaType())) {
+        throw new IllegalArgumentException("Entity inheritance is not supported: " + entityClass.getName());
+      }
+    }
+    final ProviderNames names = ProviderNames.of(this.entityManagerFactory, entityType);
+    final SingularAttribute<?, ?> idAttribute = getIdAttribute(entityType);
+    final AnnotatedElement idElement = getAnnotatedElement(idAttribute);
+    final GeneratedValue generatedValue = idElement.getAnnotation(GeneratedValue.class);
+    final boolean identity = generatedValue != null && generatedValue.strategy() == GenerationType.IDENTITY;
+    final List<ColumnMapping> columns = new ArrayList<>();
+    for (final Attribute<?, ?> attribute : entityType.getAttributes()) {
+      if (attribute.isCollection() || (attribute == idAttribute && identity)) {
+        continue;
+      }
+      final AnnotatedElement element = getAnnotatedElement(attribute);
+      switch (attribute.getPersistentAttributeType()) {
+      case BASIC:
+        final Column column = element.getAnnotation(Column.class);
+        if (column != null) {
+          if (!column.table().isEmpty()) {
+            throw new IllegalArgumentException("Secondary tables are not supported: " + attribute);
+          }
+          if (!column.insertable()) {
+            continue;
+          }
+        }
+        final Class<?> javaType = attribute.getJavaType();
+        final boolean version = ((SingularAttribute<?, ?>)attribute).isVersion();
+        columns.add(new ColumnMapping(getColumnName(names, attribute),
+                               (Member)element,
+                               version ? initialVersion(javaType) : getConverter(element, javaType),
+                               getSqlType(element, javaType)));
+        break;
+      case MANY_TO_ONE:
+      case ONE_TO_ONE:
+        final OneToOne oneToOne = element.getAnnotation(OneToOne.class);
+        if (oneToOne != null && !oneToOne.mappedBy().isEmpty()) {
+          continue;
+        }
+        if (element.isAnnotationPresent(MapsId.class) || element.isAnnotationPresent(JoinColumns.class)) {
+          throw new IllegalArgumentException("Derived identifiers and composite join columns are not supported: " + attribute);
+        }
+        final JoinColumn joinColumn = element.getAnnotation(JoinColumn.class);
+        if (joinColumn != null && !joinColumn.insertable()) {
+          continue;
+        }
+        final EntityType<?> targetType = metamodel.entity(attribute.getJavaType());
+        final SingularAttribute<?, ?> targetIdAttribute = getIdAttribute(targetType);
+        final String name;
+        if (names != null && names.getColumnName(attribute.getName()) != null) {
+          name = names.getColumnName(attribute.getName());
+        } else if (joinColumn == null || joinColumn.name().isEmpty()) {
+          name = attribute.getName() + "_" + getColumnName(targetIdAttribute);
+        } else {
+          name = joinColumn.name();
+        }
+        final PersistenceUnitUtil persistenceUnitUtil = this.entityManagerFactory.getPersistenceUnitUtil();
+        columns.add(new ColumnMapping(name,
+                               (Member)element,
+                               target -> target == null ? null : persistenceUnitUtil.getIdentifier(target),
+                               getSqlType(getAnnotatedElement(targetIdAttribute), targetIdAttribute.getJavaType())));
+        break;
+      default:
+        throw new IllegalArgumentException("Unsupported attribute: " + attribute.getName() + " (" +
+                                           attribute.getPersistentAttributeType() + ")");
+      }
+    }
+    if (columns.isEmpty()) {
+      throw new IllegalArgumentException("No insertable columns: " + entityClass.getName());
+    }
+    return new Mapping(names == null ? getTableName(entityType) : names.tableName,
+                       Collections.unmodifiableList(columns),
+                       identity ? null : getColumnName(names, idAttribute),
+                       (Member)idElement,
+                       idAttribute.getJavaType().isPrimitive(),
+                       generatedValue != null,
+                       identity);
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  private static final void write(final Connection connection,
+                                  final Mapping mapping,
+                                  final String sql,
+                                  final int rowsPerStatement,
+                                  final List<?> chunk,
+                                  final int start)
+    throws SQLException {
+    assert connection != null;
+    assert mapping != null;
+    assert sql != null;
+    assert rowsPerStatement > 0;
+    assert chunk != null;
+    final int end = start + ((chunk.size() - start) / rowsPerStatement) * rowsPerStatement;
+    if (end > start) {
+      try (final PreparedStatement statement = connection.prepareStatement(sql)) {
+        for (int row = start; row < end; row += rowsPerStatement) {
+          int index = 1;
+          for (int i = row; i < row + rowsPerStatement; i++) {
+            final Object entity = chunk.get(i);
+            for (final ColumnMapping column : mapping.columns) {
+              final Object value = column.getValue(entity);
+              if (value == null) {
+                statement.setNull(index, column.sqlType);
+              } else {
+                statement.setObject(index, value);
+              }
+              index++;
+            }
+          }
+          statement.addBatch();
+        }
+        statement.executeBatch();
+      }
+    }
+  }
+
+  private static final Object get(final Member member, final Object entity) {
+    assert member != null;
+    try {
+      if (member instanceof Field) {
+        return ((Field)member).get(entity);
+      }
+      return ((Method)member).invoke(entity);
+    } catch (final IllegalAccessException illegalAccessException) {
+      throw new IllegalStateException(illegalAccessException.getMessage(), illegalAccessException);
+    } catch (final InvocationTargetException invocationTargetException) {
+      final Throwable cause = invocationTargetException.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      } else if (cause instanceof Error) {
+        throw (Error)cause;
+      }
+      throw new IllegalStateException(cause.getMessage(), cause);
+    }
+  }
+
+
+  private static final SingularAttribute<?, ?> getIdAttribute(final EntityType<?> entityType) {
+    assert entityType != null;
+    final Type<?> idType = entityType.getIdType();
+    if (!entityType.hasSingleIdAttribute() || idType == null || idType.getPersistenceType() != Type.PersistenceType.BASIC) {
+      throw new IllegalArgumentException("Composite identifiers are not supported: " + entityType.getName());
+    }
+    return entityType.getId(idType.getJavaType());
+  }
+
+  private static final AnnotatedElement getAnnotatedElement(final Attribute<?, ?> attribute) {
+    assert attribute != null;
+    final Member member = attribute.getJavaMember();
+    if (!(member instanceof Field || member instanceof Method)) {
+      throw new IllegalArgumentException("Unsupported attribute: " + attribute.getName() + " (" + member + ")");
+    }
+    ((java.lang.reflect.AccessibleObject)member).setAccessible(true);
+    return (AnnotatedElement)member;
+  }
+
+  private static final String getTableName(final EntityType<?> entityType) {
+    assert entityType != null;
+    final Table table = entityType.getJavaType().getAnnotation(Table.class);
+    if (table == null || table.name().isEmpty()) {
+      return entityType.getName();
+    }
+    return table.schema().isEmpty() ? table.name() : table.schema() + "." + table.name();
+  }
+
+  private static final String getColumnName(final ProviderNames names, final Attribute<?, ?> attribute) {
+    assert attribute != null;
+    final String name = names == null ? null : names.getColumnName(attribute.getName());
+    return name == null ? getColumnName(attribute) : name;
+  }
+
+  private static final String getColumnName(final Attribute<?, ?> attribute) {
+    assert attribute != null;
+    final Column column = getAnnotatedElement(attribute).getAnnotation(Column.class);
+    return column == null || column.name().isEmpty() ? attribute.getName() : column.name();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static final Function<Object, Object> getConverter(final AnnotatedElement element, final Class<?> javaType) {
+    assert element != null;
+    assert javaType != null;
+    final Convert convert = element.getAnnotation(Convert.class);
+    if (convert != null && !convert.disableConversion() && AttributeConverter.class.isAssignableFrom(convert.converter())) {
+      final AttributeConverter<Object, Object> converter;
+      try {
+        converter = (AttributeConverter<Object, Object>)convert.converter().getDeclaredConstructor().newInstance();
+      } catch (final ReflectiveOperationException reflectiveOperationException) {
+        throw new IllegalArgumentException(reflectiveOperationException.getMessage(), reflectiveOperationException);
+      }
+      return converter::convertToDatabaseColumn;
+    }
+    if (javaType.isEnum()) {
+      final Enumerated enumerated = element.getAnnotation(Enumerated.class);
+      if (enumerated != null && enumerated.value() == EnumType.STRING) {
+        return value -> value == null ? null : ((Enum<?>)value).name();
+      }
+      return value -> value == null ? null : Integer.valueOf(((Enum<?>)value).ordinal());
+    }
+    final Temporal temporal = element.getAnnotation(Temporal.class);
+    if (temporal != null) {
+      final TemporalType temporalType = temporal.value();
+      return value -> {
+        if (value == null) {
+          return null;
+        }
+        final long time = value instanceof Calendar ? ((Calendar)value).getTimeInMillis() : ((Date)value).getTime();
+        switch (temporalType) {
+        case DATE:
+          return new java.sql.Date(time);
+        case TIME:
+          return new Time(time);
+        default:
+          return new Timestamp(time);
+        }
+      };
+    }
+    if (javaType == char.class || javaType == Character.class) {
+      return value -> value == null ? null : value.toString();
+    }
+    return Function.identity();
+  }
+
+  private static final Function<Object, Object> initialVersion(final Class<?> javaType) {
+    assert javaType != null;
+    if (javaType == Timestamp.class) {
+      return value -> value == null ? new Timestamp(System.currentTimeMillis()) : value;
+    }
+    final Number one;
+    if (javaType == int.class || javaType == Integer.class) {
+      one = Integer.valueOf(1);
+    } else if (javaType == short.class || javaType == Short.class) {
+      one = Short.valueOf((short)1);
+    } else {
+      one = Long.valueOf(1L);
+    }
+    return value -> value == null || ((Number)value).longValue() == 0L ? one : value;
+  }
+
+  private static final int getSqlType(final AnnotatedElement element, final Class<?> javaType) {
+    assert element != null;
+    assert javaType != null;
+    if (element.isAnnotationPresent(Convert.class)) {
+      return Types.OTHER;
+    } else if (javaType.isEnum()) {
+      final Enumerated enumerated = element.getAnnotation(Enumerated.class);
+      return enumerated != null && enumerated.value() == EnumType.STRING ? Types.VARCHAR : Types.INTEGER;
+    } else if (javaType == String.class || javaType == char.class || javaType == Character.class) {
+      return Types.VARCHAR;
+    } else if (javaType == Long.class || javaType == long.class) {
+      return Types.BIGINT;
+    } else if (javaType == Integer.class || javaType == int.class) {
+      return Types.INTEGER;
+    } else if (javaType == Short.class || javaType == short.class) {
+      return Types.SMALLINT;
+    } else if (javaType == Boolean.class || javaType == boolean.class) {
+      return Types.BOOLEAN;
+    } else if (javaType == Double.class || javaType == double.class) {
+      return Types.DOUBLE;
+    } else if (javaType == Float.class || javaType == float.class) {
+      return Types.REAL;
+    } else if (javaType == BigDecimal.class) {
+      return Types.NUMERIC;
+    } else if (javaType == byte[].class) {
+      return Types.VARBINARY;
+    } else if (Date.class.isAssignableFrom(javaType) || Calendar.class.isAssignableFrom(javaType)) {
+      final Temporal temporal = element.getAnnotation(Temporal.class);
+      if (temporal != null && temporal.value() == TemporalType.DATE) {
+        return Types.DATE;
+      } else if (temporal != null && temporal.value() == TemporalType.TIME) {
+        return Types.TIME;
+      }
+      return Types.TIMESTAMP;
+    }
+    return Types.OTHER;
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * A description of how a {@link BulkLoader} writes rows.
+   *
+   * @author <a href="https://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   *
+   * @see BulkLoader#load(Class, Iterator, Mode)
+   */
+  public enum Mode {
+
+    /**
+     * Rows are inserted; an existing row with the same identifier
+     * causes a failure.
+     */
+    INSERT,
+
+    /**
+     * Rows are inserted, or replace any existing row with the same
+     * identifier.
+     */
+    MERGE
+
+  }
+
+  private enum Dialect {
+
+    H2,
+
+    POSTGRESQL,
+
+    MYSQL,
+
+    OTHER;
+
+    private static final Dialect of(final String databaseProductName) {
+      if (databaseProductName == null) {
+        return OTHER;
+      }
+      switch (databaseProductName) {
+      case "H2":
+        return H2;
+      case "PostgreSQL":
+        return POSTGRESQL;
+      case "MySQL":
+      case "MariaDB":
+        return MYSQL;
+      default:
+        return OTHER;
+      }
+    }
+
+  }
+
+  private static final class Mapping {
+
+    private final String tableName;
+
+    private final List<ColumnMapping> columns;
+
+    private final String idColumnName;
+
+    private final Member idMember;
+
+    private final boolean primitiveId;
+
+    private final boolean generated;
+
+    private final boolean identity;
+
+    private Mapping(final String tableName,
+                    final List<ColumnMapping> columns,
+                    final String idColumnName,
+                    final Member idMember,
+                    final boolean primitiveId,
+                    final boolean generated,
+                    final boolean identity) {
+      super();
+      this.tableName = tableName;
+      this.columns = columns;
+      this.idColumnName = idColumnName;
+      this.idMember = idMember;
+      this.primitiveId = primitiveId;
+      this.generated = generated;
+      this.identity = identity;
+    }
+
+    private final boolean isUnassigned(final Object entity) {
+      final Object id = get(this.idMember, entity);
+      return id == null || (this.primitiveId && id instanceof Number && ((Number)id).longValue() == 0L);
+    }
+
+    private final String sql(final Mode mode, final Dialect dialect, final int rows) {
+      assert mode != null;
+      assert dialect != null;
+      assert rows > 0;
+      final boolean merge = mode == Mode.MERGE;
+      final StringBuilder sb = new StringBuilder(merge && dialect == Dialect.H2 ? "MERGE INTO " : "INSERT INTO ");
+      sb.append(this.tableName).append(" (");
+      final StringBuilder row = new StringBuilder("(");
+      for (int i = 0; i < this.columns.size(); i++) {
+        if (i > 0) {
+          sb.append(", ");
+          row.append(", ");
+        }
+        sb.append(this.columns.get(i).name);
+        row.append('?');
+      }
+      row.append(')');
+      sb.append(')');
+      if (merge && dialect == Dialect.H2) {
+        sb.append(" KEY (").append(this.idColumnName).append(')');
+      }
+      sb.append(" VALUES ");
+      for (int i = 0; i < rows; i++) {
+        if (i > 0) {
+          sb.append(", ");
+        }
+        sb.append(row);
+      }
+      if (merge) {
+        final List<String> updates = new ArrayList<>();
+        for (final ColumnMapping column : this.columns) {
+          if (!column.name.equals(this.idColumnName)) {
+            switch (dialect) {
+            case POSTGRESQL:
+              updates.add(column.name + " = EXCLUDED." + column.name);
+              break;
+            case MYSQL:
+              updates.add(column.name + " = VALUES(" + column.name + ")");
+              break;
+            default:
+              break;
+            }
+          }
+        }
+        switch (dialect) {
+        case POSTGRESQL:
+          sb.append(" ON CONFLICT (").append(this.idColumnName).append(") DO ");
+          sb.append(updates.isEmpty() ? "NOTHING" : "UPDATE SET " + String.join(", ", updates));
+          break;
+        case MYSQL:
+          sb.append(" ON DUPLICATE KEY UPDATE ");
+          sb.append(updates.isEmpty() ? this.idColumnName + " = " + this.idColumnName : String.join(", ", updates));
+          break;
+        default:
+          break;
+        }
+      }
+      return sb.toString();
+    }
+
+  }
+
+  /**
+   * The table and column names a persistence provider actually uses
+   * for an entity class.
+   */
+  private static final class ProviderNames {
+
+    private final String tableName;
+
+    private final Map<String, String> columnNames;
+
+    private ProviderNames(final String tableName, final Map<String, String> columnNames) {
+      super();
+      this.tableName = Objects.requireNonNull(tableName);
+      this.columnNames = columnNames;
+    }
+
+    private final String getColumnName(final String attributeName) {
+      return this.columnNames.get(attributeName);
+    }
+
+    /**
+     * Returns the {@link ProviderNames} of the supplied {@link
+     * EntityType} as the persistence provider behind the supplied
+     * {@link EntityManagerFactory} maps it, or {@code null} if the
+     * provider is not one this class knows how to ask.
+     */
+    private static final ProviderNames of(final EntityManagerFactory entityManagerFactory, final EntityType<?> entityType) {
+      assert entityManagerFactory != null;
+      assert entityType != null;
+      final Class<?> entityClass = entityType.getJavaType();
+      final ClassLoader classLoader = entityClass.getClassLoader();
+      final EntityManager entityManager = entityManagerFactory.createEntityManager();
+      try {
+        // The EntityManager may be one of this project's proxies, so
+        // ask it to unwrap to each provider's session type rather than
+        // inspecting its class.
+        final Object eclipseLinkSession = unwrap(entityManager, "org.eclipse.persistence.sessions.Session", classLoader);
+        if (eclipseLinkSession != null) {
+          return ofEclipseLink(eclipseLinkSession, entityType, classLoader);
+        }
+        final Object hibernateSession = unwrap(entityManager, "org.hibernate.Session", classLoader);
+        if (hibernateSession != null) {
+          return ofHibernate(hibernateSession, entityType, classLoader);
+        }
+      } catch (final ReflectiveOperationException reflectiveOperationException) {
+        if (logger.isLoggable(Level.FINE)) {
+          logger.logp(Level.FINE, ProviderNames.class.getName(), "of", reflectiveOperationException.getMessage(), reflectiveOperationException);
+        }
+      } finally {
+        entityManager.close();
+      }
+      return null;
+    }
+
+    private static final ProviderNames ofEclipseLink(final Object session, final EntityType<?> entityType, final ClassLoader classLoader)
+      throws ReflectiveOperationException {
+      final Class<?> sessionClass = Class.forName("org.eclipse.persistence.sessions.Session", false, classLoader);
+      final Class<?> descriptorClass = Class.forName("org.eclipse.persistence.descriptors.ClassDescriptor", false, classLoader);
+      final Class<?> mappingClass = Class.forName("org.eclipse.persistence.mappings.DatabaseMapping", false, classLoader);
+      final Class<?> tableClass = Class.forName("org.eclipse.persistence.internal.helper.DatabaseTable", false, classLoader);
+      final Class<?> fieldClass = Class.forName("org.eclipse.persistence.internal.helper.DatabaseField", false, classLoader);
+      final Object descriptor = sessionClass.getMethod("getClassDescriptor", Class.class).invoke(session, entityType.getJavaType());
+      if (descriptor == null) {
+        return null;
+      }
+      final List<?> tables = (List<?>)descriptorClass.getMethod("getTables").invoke(descriptor);
+      if (tables == null || tables.isEmpty()) {
+        return null;
+      } else if (tables.size() > 1) {
+        throw new IllegalArgumentException("Secondary tables are not supported: " + entityType.getName());
+      }
+      final Method getMappingForAttributeName = descriptorClass.getMethod("getMappingForAttributeName", String.class);
+      final Method getFields = mappingClass.getMethod("getFields");
+      final Method getName = fieldClass.getMethod("getName");
+      final Map<String, String> columnNames = new HashMap<>();
+      for (final Attribute<?, ?> attribute : entityType.getAttributes()) {
+        final Object mapping = getMappingForAttributeName.invoke(descriptor, attribute.getName());
+        if (mapping != null) {
+          final List<?> fields = (List<?>)getFields.invoke(mapping);
+          if (fields != null && fields.size() == 1) {
+            columnNames.put(attribute.getName(), (String)getName.invoke(fields.get(0)));
+          }
+        }
+      }
+      return new ProviderNames((String)tableClass.getMethod("getQualifiedName").invoke(tables.get(0)), columnNames);
+    }
+
+    private static final ProviderNames ofHibernate(final Object session, final EntityType<?> entityType, final ClassLoader classLoader)
+      throws ReflectiveOperationException {
+      final Class<?> sessionClass = Class.forName("org.hibernate.Session", false, classLoader);
+      final Class<?> sessionFactoryClass = Class.forName("org.hibernate.engine.spi.SessionFactoryImplementor", false, classLoader);
+      final Class<?> metamodelClass = Class.forName("org.hibernate.metamodel.spi.MetamodelImplementor", false, classLoader);
+      final Class<?> persisterClass = Class.forName("org.hibernate.persister.entity.AbstractEntityPersister", false, classLoader);
+      final Object sessionFactory = sessionClass.getMethod("getSessionFactory").invoke(session);
+      final Object metamodel = sessionFactoryClass.getMethod("getMetamodel").invoke(sessionFactory);
+      final Object persister = metamodelClass.getMethod("entityPersister", Class.class).invoke(metamodel, entityType.getJavaType());
+      if (!persisterClass.isInstance(persister)) {
+        return null;
+      }
+      final Method getPropertyColumnNames = persisterClass.getMethod("getPropertyColumnNames", String.class);
+      final Map<String, String> columnNames = new HashMap<>();
+      for (final Attribute<?, ?> attribute : entityType.getAttributes()) {
+        final String[] names;
+        if (attribute instanceof SingularAttribute && ((SingularAttribute<?, ?>)attribute).isId()) {
+          names = (String[])persisterClass.getMethod("getIdentifierColumnNames").invoke(persister);
+        } else if (attribute.isCollection()) {
+          continue;
+        } else {
+          names = (String[])getPropertyColumnNames.invoke(persister, attribute.getName());
+        }
+        if (names != null && names.length == 1) {
+          columnNames.put(attribute.getName(), names[0]);
+        }
+      }
+      return new ProviderNames((String)persisterClass.getMethod("getTableName").invoke(persister), columnNames);
+    }
+
+    private static final Object unwrap(final EntityManager entityManager, final String className, final ClassLoader classLoader) {
+      final Class<?> type;
+      try {
+        type = Class.forName(className, false, classLoader);
+      } catch (final ClassNotFoundException classNotFoundException) {
+        return null;
+      }
+      try {
+        return entityManager.unwrap(type);
+      } catch (final PersistenceException | IllegalArgumentException exception) {
+        return null;
+      }
+    }
+
+  }
+
+  private static final class ColumnMapping {
+
+    private final String name;
+
+    private final Member member;
+
+    private final Function<Object, Object> converter;
+
+    private final int sqlType;
+
+    private ColumnMapping(final String name, final Member member, final Function<Object, Object> converter, final int sqlType) {
+      super();
+      this.name = name;
+      this.member = member;
+      this.converter = converter;
+      this.sqlType = sqlType;
+    }
+
+    private final Object getValue(final Object entity) {
+      return this.converter.apply(get(this.member, entity));
+    }
+
+  }
+
+}
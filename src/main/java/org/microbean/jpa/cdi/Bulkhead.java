@@ -0,0 +1,565 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.lang.management.ManagementFactory;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+
+import java.lang.reflect.Method;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * An admission limit, or bulkhead, that caps the number of {@link
+ * EntityManager}s that may be open at once against a persistence
+ * unit, queues a bounded number of excess callers for a bounded
+ * time, and rejects further callers immediately.
+ *
+ * <p>When a database slows down, request threads would otherwise
+ * pile onto its connection pool and drag down the latency of every
+ * persistence unit in the JVM.  Giving each persistence unit its own
+ * {@link Bulkhead} keeps a slow unit (a reporting unit, say) from
+ * starving a fast one.</p>
+ *
+ * <p>The {@link JpaExtension} creates a {@link Bulkhead} for every
+ * persistence unit whose properties include a property named {@value
+ * #MAX_CONCURRENT_PROPERTY_NAME}, makes it available as a bean
+ * qualified with the {@linkplain javax.inject.Named name} of the
+ * persistence unit, registers it as a {@link BulkheadMXBean} and
+ * {@linkplain #wrap(EntityManagerFactory) applies it} to the
+ * persistence unit's {@link EntityManagerFactory}.</p>
+ *
+ * <p>An {@link EntityManager} created by a {@linkplain
+ * #wrap(EntityManagerFactory) wrapped} {@link EntityManagerFactory}
+ * that becomes unreachable without ever being {@linkplain
+ * EntityManager#close() closed} would otherwise hold its permit
+ * forever.  Such a permit is reclaimed, and the abandoned {@link
+ * EntityManager} closed, the next time a caller {@linkplain
+ * #acquire() asks for a permit} after the garbage collector has
+ * noticed it.</p>
+ *
+ * <p>Instances of this class are safe for concurrent use by multiple
+ * threads.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see #acquire()
+ *
+ * @see #wrap(EntityManagerFactory)
+ *
+ * @see BulkheadMXBean
+ */
+public class Bulkhead implements AutoCloseable, BulkheadMXBean {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  /**
+   * The name of the persistence unit property whose value, if
+   * present, is the maximum number of {@link EntityManager}s that may
+   * be open at once against that persistence unit.
+   */
+  public static final String MAX_CONCURRENT_PROPERTY_NAME = "org.microbean.jpa.cdi.bulkhead.maxConcurrent";
+
+  /**
+   * The name of the persistence unit property whose value is the
+   * maximum number of callers that may wait for an {@link
+   * EntityManager} at once.
+   *
+   * <p>If this property is absent, the value of the {@value
+   * #MAX_CONCURRENT_PROPERTY_NAME} property is used.</p>
+   */
+  public static final String MAX_QUEUED_PROPERTY_NAME = "org.microbean.jpa.cdi.bulkhead.maxQueued";
+
+  /**
+   * The name of the persistence unit property whose value is the
+   * maximum number of milliseconds a caller will wait for an {@link
+   * EntityManager}.
+   *
+   * @see #DEFAULT_TIMEOUT_MILLIS
+   */
+  public static final String TIMEOUT_PROPERTY_NAME = "org.microbean.jpa.cdi.bulkhead.timeoutMillis";
+
+  /**
+   * The default maximum number of milliseconds a caller will wait
+   * for a permit ({@value}).
+   */
+  public static final long DEFAULT_TIMEOUT_MILLIS = 1000L;
+
+  private static final Logger logger = Logger.getLogger(Bulkhead.class.getName());
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final String name;
+
+  private final int maxConcurrent;
+
+  private final int maxQueued;
+
+  private final long timeoutNanos;
+
+  private final Semaphore semaphore;
+
+  private final AtomicInteger queueDepth;
+
+  private final LongAdder acquiredCount;
+
+  private final LongAdder rejectedCount;
+
+  private final LongAdder totalWaitNanos;
+
+  private final LongAccumulator maxWaitNanos;
+
+  private final LongAdder reclaimedCount;
+
+  private final ReferenceQueue<EntityManager> abandoned;
+
+  // Keeps each Permit reachable until its EntityManager is closed or
+  // its permit is reclaimed.
+  private final Set<Permit> permits;
+
+  private volatile ObjectName objectName;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link Bulkhead}.
+   *
+   * @param name the name of this {@link Bulkhead}, usually the name
+   * of a persistence unit; must not be {@code null}
+   *
+   * @param maxConcurrent the maximum number of permits that may be
+   * held at once; must be greater than {@code 0}
+   *
+   * @param maxQueued the maximum number of callers that may wait for
+   * a permit at once; must not be negative
+   *
+   * @param timeoutMillis the maximum number of milliseconds a caller
+   * will wait for a permit; must not be negative
+   *
+   * @exception NullPointerException if {@code name} is {@code null}
+   *
+   * @exception IllegalArgumentException if any {@code int} or {@code
+   * long} parameter is out of range
+   */
+  public Bulkhead(final String name, final int maxConcurrent, final int maxQueued, final long timeoutMillis) {
+    super();
+    this.name = Objects.requireNonNull(name);
+    if (maxConcurrent < 1) {
+      throw new IllegalArgumentException("maxConcurrent < 1: " + maxConcurrent);
+    }
+    if (maxQueued < 0) {
+      throw new IllegalArgumentException("maxQueued < 0: " + maxQueued);
+    }
+    if (timeoutMillis < 0L) {
+      throw new IllegalArgumentException("timeoutMillis < 0: " + timeoutMillis);
+    }
+    this.maxConcurrent = maxConcurrent;
+    this.maxQueued = maxQueued;
+    this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    this.semaphore = new Semaphore(maxConcurrent, true);
+    this.queueDepth = new AtomicInteger();
+    this.acquiredCount = new LongAdder();
+    this.rejectedCount = new LongAdder();
+    this.totalWaitNanos = new LongAdder();
+    this.maxWaitNanos = new LongAccumulator(Math::max, 0L);
+    this.reclaimedCount = new LongAdder();
+    this.abandoned = new ReferenceQueue<>();
+    this.permits = ConcurrentHashMap.newKeySet();
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns the name of this {@link Bulkhead}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return the non-{@code null} name of this {@link Bulkhead}
+   */
+  public final String getName() {
+    return this.name;
+  }
+
+  /**
+   * Acquires a permit, waiting if necessary and if the queue is not
+   * full.
+   *
+   * <p>Every successful invocation of this method must be balanced
+   * by an invocation of the {@link #release()} method.</p>
+   *
+   * <p>Before waiting, and once more before giving up, this method
+   * reclaims the permits of any {@link EntityManager}s that were
+   * abandoned without being closed.</p>
+   *
+   * @exception RejectedExecutionException if the queue was full, if
+   * no permit became available in time or if the calling thread was
+   * interrupted while waiting
+   *
+   * @see #release()
+   */
+  public final void acquire() {
+    this.reclaim();
+    if (this.semaphore.tryAcquire()) {
+      this.acquiredCount.increment();
+      return;
+    }
+    if (this.queueDepth.incrementAndGet() > this.maxQueued) {
+      this.queueDepth.decrementAndGet();
+      this.rejectedCount.increment();
+      throw new RejectedExecutionException(this.name + ": bulkhead queue full (" + this.maxQueued + " waiting)");
+    }
+    final long start = System.nanoTime();
+    final boolean acquired;
+    try {
+      acquired = this.semaphore.tryAcquire(this.timeoutNanos, TimeUnit.NANOSECONDS);
+    } catch (final InterruptedException interruptedException) {
+      Thread.currentThread().interrupt();
+      this.rejectedCount.increment();
+      throw new RejectedExecutionException(this.name + ": interrupted while waiting for bulkhead", interruptedException);
+    } finally {
+      this.queueDepth.decrementAndGet();
+    }
+    if (!acquired && !(this.reclaim() > 0 && this.semaphore.tryAcquire())) {
+      this.rejectedCount.increment();
+      throw new RejectedExecutionException(this.name + ": timed out after " +
+                                           TimeUnit.NANOSECONDS.toMillis(this.timeoutNanos) +
+                                           " ms waiting for bulkhead");
+    }
+    final long waitNanos = System.nanoTime() - start;
+    this.acquiredCount.increment();
+    this.totalWaitNanos.add(waitNanos);
+    this.maxWaitNanos.accumulate(waitNanos);
+  }
+
+  /**
+   * Releases a permit acquired by the {@link #acquire()} method.
+   *
+   * @see #acquire()
+   */
+  public final void release() {
+    this.semaphore.release();
+  }
+
+  /**
+   * Returns an {@link EntityManagerFactory} that {@linkplain
+   * #acquire() acquires} a permit from this {@link Bulkhead} before
+   * creating each {@link EntityManager} and {@linkplain #release()
+   * releases} it when that {@link EntityManager} is {@linkplain
+   * EntityManager#close() closed}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param entityManagerFactory the {@link EntityManagerFactory} to
+   * wrap; must not be {@code null}
+   *
+   * @return a non-{@code null} {@link EntityManagerFactory}
+   *
+   * @exception NullPointerException if {@code entityManagerFactory}
+   * is {@code null}
+   */
+  public EntityManagerFactory wrap(final EntityManagerFactory entityManagerFactory) {
+    Objects.requireNonNull(entityManagerFactory);
+    return Proxies.newProxyInstance(Bulkhead.class.getClassLoader(),
+                                    EntityManagerFactory.class,
+                                    (proxy, method, arguments) -> {
+                                      if ("createEntityManager".equals(method.getName())) {
+                                        return this.createEntityManager(entityManagerFactory, method, arguments);
+                                      }
+                                      return Proxies.invoke(entityManagerFactory, method, arguments);
+                                    });
+  }
+
+  private final EntityManager createEntityManager(final EntityManagerFactory entityManagerFactory,
+                                                  final Method method,
+                                                  final Object[] arguments)
+    throws Throwable {
+    this.acquire();
+    final EntityManager entityManager;
+    try {
+      entityManager = (EntityManager)Proxies.invoke(entityManagerFactory, method, arguments);
+    } catch (final Throwable throwable) {
+      this.release();
+      throw throwable;
+    }
+    final AtomicBoolean released = new AtomicBoolean();
+    final EntityManager returnValue =
+      Proxies.newProxyInstance(Bulkhead.class.getClassLoader(),
+                               EntityManager.class,
+                               (proxy, m, a) -> {
+                                 if ("close".equals(m.getName())) {
+                                   try {
+                                     return Proxies.invoke(entityManager, m, a);
+                                   } finally {
+                                     if (released.compareAndSet(false, true)) {
+                                       this.release();
+                                     }
+                                   }
+                                 }
+                                 return Proxies.invoke(entityManager, m, a);
+                               });
+    // The Permit refers to the underlying EntityManager and its
+    // released flag, but not to the proxy, so that the proxy can
+    // become unreachable while the Permit is still registered.
+    final Permit permit = new Permit(returnValue, this.abandoned, entityManager, released);
+    this.permits.add(permit);
+    return returnValue;
+  }
+
+  /**
+   * Releases the permits of any {@link EntityManager}s {@linkplain
+   * #wrap(EntityManagerFactory) created by this <code>Bulkhead</code>}
+   * that the garbage collector has found to be unreachable without
+   * their having been {@linkplain EntityManager#close() closed}, closes
+   * those {@link EntityManager}s, and returns the number of permits
+   * reclaimed.
+   *
+   * @return the number of permits reclaimed; never negative
+   *
+   * @see #getReclaimedCount()
+   */
+  final int reclaim() {
+    int reclaimed = 0;
+    Permit permit;
+    while ((permit = (Permit)this.abandoned.poll()) != null) {
+      this.permits.remove(permit);
+      if (permit.released.compareAndSet(false, true)) {
+        try {
+          if (permit.entityManager.isOpen()) {
+            permit.entityManager.close();
+          }
+        } catch (final RuntimeException runtimeException) {
+          if (logger.isLoggable(Level.FINE)) {
+            logger.logp(Level.FINE, Bulkhead.class.getName(), "reclaim", runtimeException.getMessage(), runtimeException);
+          }
+        } finally {
+          this.release();
+        }
+        this.reclaimedCount.increment();
+        reclaimed++;
+      }
+    }
+    if (reclaimed > 0 && logger.isLoggable(Level.WARNING)) {
+      logger.logp(Level.WARNING, Bulkhead.class.getName(), "reclaim",
+                  this.name + ": reclaimed the permits of " + reclaimed + " EntityManager(s) that were never closed");
+    }
+    return reclaimed;
+  }
+
+  /**
+   * Registers this {@link Bulkhead} with the {@linkplain
+   * ManagementFactory#getPlatformMBeanServer() platform MBean server}
+   * under an {@link ObjectName} of the form {@code
+   * org.microbean.jpa.cdi:type=Bulkhead,name=<name>}.
+   *
+   * @exception IllegalStateException if registration failed
+   *
+   * @see #close()
+   */
+  public final void register() {
+    final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    try {
+      final ObjectName objectName =
+        new ObjectName("org.microbean.jpa.cdi:type=Bulkhead,name=" + ObjectName.quote(this.name));
+      mBeanServer.registerMBean(this, objectName);
+      this.objectName = objectName;
+    } catch (final JMException jmException) {
+      throw new IllegalStateException(jmException.getMessage(), jmException);
+    }
+  }
+
+  /**
+   * Unregisters this {@link Bulkhead} from the {@linkplain
+   * ManagementFactory#getPlatformMBeanServer() platform MBean server}
+   * if it was {@linkplain #register() registered}.
+   *
+   * @see #register()
+   */
+  @Override
+  public void close() {
+    final ObjectName objectName = this.objectName;
+    if (objectName != null) {
+      this.objectName = null;
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (final JMException jmException) {
+        // Already unregistered by someone else; nothing to do.
+      }
+    }
+  }
+
+  @Override
+  public final int getMaxConcurrent() {
+    return this.maxConcurrent;
+  }
+
+  @Override
+  public final int getMaxQueued() {
+    return this.maxQueued;
+  }
+
+  @Override
+  public final int getActive() {
+    return this.maxConcurrent - this.semaphore.availablePermits();
+  }
+
+  @Override
+  public final int getQueueDepth() {
+    return this.queueDepth.get();
+  }
+
+  @Override
+  public final long getAcquiredCount() {
+    return this.acquiredCount.sum();
+  }
+
+  @Override
+  public final long getRejectedCount() {
+    return this.rejectedCount.sum();
+  }
+
+  @Override
+  public final double getAverageWaitMillis() {
+    final long acquiredCount = this.acquiredCount.sum();
+    return acquiredCount <= 0L ? 0.0 : this.totalWaitNanos.sum() / (double)acquiredCount / 1000000.0;
+  }
+
+  @Override
+  public final long getMaxWaitMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(this.maxWaitNanos.get());
+  }
+
+  @Override
+  public final long getReclaimedCount() {
+    return this.reclaimedCount.sum();
+  }
+
+  /**
+   * Returns a {@link String} representation of this {@link Bulkhead}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link String}
+   */
+  @Override
+  public String toString() {
+    return "Bulkhead[" + this.name + ": active=" + this.getActive() + "/" + this.maxConcurrent +
+      ", queued=" + this.getQueueDepth() + "/" + this.maxQueued + ", rejected=" + this.getRejectedCount() + "]";
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Creates a new {@link Bulkhead} configured from the supplied
+   * persistence unit properties, or returns {@code null} if they do
+   * not contain a property named {@value
+   * #MAX_CONCURRENT_PROPERTY_NAME}.
+   *
+   * @param name the name of the persistence unit; must not be {@code
+   * null}
+   *
+   * @param unitProperties the properties of the persistence unit; may
+   * be {@code null}
+   *
+   * @return a new {@link Bulkhead}, or {@code null}
+   *
+   * @exception NullPointerException if {@code name} is {@code null}
+   *
+   * @exception IllegalArgumentException if a property value is
+   * malformed or out of range
+   */
+  static final Bulkhead fromProperties(final String name, final Map<?, ?> unitProperties) {
+    Objects.requireNonNull(name);
+    final int maxConcurrent = UnitProperties.getInt(unitProperties, MAX_CONCURRENT_PROPERTY_NAME, 0);
+    if (maxConcurrent <= 0) {
+      return null;
+    }
+    return new Bulkhead(name,
+                        maxConcurrent,
+                        UnitProperties.getInt(unitProperties, MAX_QUEUED_PROPERTY_NAME, maxConcurrent),
+                        UnitProperties.getLong(unitProperties, TIMEOUT_PROPERTY_NAME, DEFAULT_TIMEOUT_MILLIS));
+  }
+
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  private static final class Permit extends PhantomReference<EntityManager> {
+
+    private final EntityManager entityManager;
+
+    private final AtomicBoolean released;
+
+    private Permit(final EntityManager proxy,
+                   final ReferenceQueue<? super EntityManager> queue,
+                   final EntityManager entityManager,
+                   final AtomicBoolean released) {
+      super(proxy, queue);
+      this.entityManager = entityManager;
+      this.released = released;
+    }
+
+  }
+
+}
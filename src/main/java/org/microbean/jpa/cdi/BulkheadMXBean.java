@@ -0,0 +1,107 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+/**
+ * A management interface exposing the metrics of a {@link Bulkhead}.
+ *
+ * <p>A {@link Bulkhead} created by the {@link JpaExtension} is
+ * registered with the {@linkplain
+ * java.lang.management.ManagementFactory#getPlatformMBeanServer()
+ * platform MBean server} under an {@link javax.management.ObjectName}
+ * of the form {@code
+ * org.microbean.jpa.cdi:type=Bulkhead,name=<persistenceUnitName>}.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see Bulkhead
+ */
+public interface BulkheadMXBean {
+
+  /**
+   * Returns the maximum number of permits that may be held at once.
+   *
+   * @return the maximum number of permits that may be held at once
+   */
+  public int getMaxConcurrent();
+
+  /**
+   * Returns the maximum number of callers that may wait for a permit
+   * at once.
+   *
+   * @return the maximum number of callers that may wait for a permit
+   * at once
+   */
+  public int getMaxQueued();
+
+  /**
+   * Returns the number of permits currently held.
+   *
+   * @return the number of permits currently held
+   */
+  public int getActive();
+
+  /**
+   * Returns the number of callers currently waiting for a permit.
+   *
+   * @return the number of callers currently waiting for a permit
+   */
+  public int getQueueDepth();
+
+  /**
+   * Returns the total number of permits granted.
+   *
+   * @return the total number of permits granted
+   */
+  public long getAcquiredCount();
+
+  /**
+   * Returns the total number of callers that were rejected because
+   * the queue was full, because they timed out or because they were
+   * interrupted while waiting.
+   *
+   * @return the total number of rejected callers
+   */
+  public long getRejectedCount();
+
+  /**
+   * Returns the average time, in milliseconds, that callers who were
+   * granted a permit waited for it.
+   *
+   * @return the average wait time in milliseconds
+   */
+  public double getAverageWaitMillis();
+
+  /**
+   * Returns the longest time, in milliseconds, that a caller who was
+   * granted a permit waited for it.
+   *
+   * @return the maximum wait time in milliseconds
+   */
+  public long getMaxWaitMillis();
+
+  /**
+   * Returns the total number of permits reclaimed from {@link
+   * javax.persistence.EntityManager}s that were abandoned without
+   * being closed.
+   *
+   * @return the total number of reclaimed permits
+   */
+  public long getReclaimedCount();
+
+}
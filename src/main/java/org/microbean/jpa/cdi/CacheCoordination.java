@@ -0,0 +1,1183 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.lang.reflect.Method;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.persistence.Cache;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.PersistenceException;
+import javax.persistence.Query;
+
+import javax.persistence.criteria.CriteriaDelete;
+import javax.persistence.criteria.CriteriaUpdate;
+
+import javax.persistence.metamodel.EntityType;
+
+import javax.persistence.spi.PersistenceUnitInfo;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+/**
+ * Keeps the {@linkplain EntityManagerFactory#getCache() shared
+ * caches} of a persistence unit's {@link EntityManagerFactory}
+ * instances on several nodes consistent by publishing, after each
+ * committed transaction, an invalidation message naming the entities
+ * that transaction updated or removed, and by evicting the entities
+ * named by messages received from other nodes.
+ *
+ * <p>Messages are compact: one message (or, if a transport limits
+ * their size, as few as possible) per transaction, grouping the
+ * identifiers of changed entities by entity class.  Identifiers of
+ * type {@link Long}, {@link Integer}, {@link Short}, {@link String}
+ * and {@link UUID} are sent as such; for entity classes with other
+ * identifier types, such as embedded identifiers, the whole entity
+ * class is evicted.  Messages never contain entity state and are
+ * never deserialized with Java serialization.</p>
+ *
+ * <p>Messages travel over a {@link CacheInvalidationTransport}
+ * selected by the {@value #TRANSPORT_PROPERTY_NAME} persistence unit
+ * property, whose value is one of:</p>
+ *
+ * <dl>
+ *
+ * <dt>{@code loopback}</dt>
+ *
+ * <dd>a {@link LoopbackCacheInvalidationTransport} on the channel
+ * named by the {@value #CHANNEL_PROPERTY_NAME} property, which
+ * defaults to the name of the persistence unit;</dd>
+ *
+ * <dt>{@code udp} or {@code tcp}</dt>
+ *
+ * <dd>a {@link UdpCacheInvalidationTransport} or {@link
+ * TcpCacheInvalidationTransport} bound to the address named by the
+ * {@value #BIND_ADDRESS_PROPERTY_NAME} property and sending to the
+ * comma-separated addresses named by the {@value
+ * #PEERS_PROPERTY_NAME} property; each address is of the form {@code
+ * host:port}, or just {@code port} for the loopback interface;
+ * or</dd>
+ *
+ * <dt>the name of a class</dt>
+ *
+ * <dd>that implements {@link CacheInvalidationTransport} and has a
+ * {@code public} zero-argument constructor.</dd>
+ *
+ * </dl>
+ *
+ * <p>Changed entities are recorded by a {@link
+ * CacheInvalidationListener} that this class {@linkplain
+ * #apply(PersistenceUnitInfo) adds} to the persistence unit as a
+ * default entity listener.  They are published when a resource-local
+ * {@linkplain EntityManager#getTransaction() transaction} of an
+ * {@link EntityManager} created by a {@linkplain
+ * #wrap(EntityManagerFactory, TransactionManager) wrapped} {@link
+ * EntityManagerFactory} commits, or when a JTA transaction in which
+ * such an {@link EntityManager} was used commits.  Changes are
+ * recorded separately for each persistence unit and each
+ * transaction.  A change is attributed to the persistence unit of the
+ * {@link EntityManager} whose method, or whose {@link Query}'s or
+ * {@link EntityTransaction}'s method, caused it to be flushed, so two
+ * persistence units that map the same entity class each publish only
+ * their own changes.  Changes flushed within a resource-local
+ * transaction are kept with that {@link EntityTransaction} until it
+ * commits or rolls back.  Changes flushed within a JTA transaction
+ * are kept with that transaction and published by a {@link
+ * Synchronization} registered with it, on whichever thread completes
+ * it.  Changes that a transaction manager flushes while completing a
+ * transaction, when no {@link EntityManager} method is executing,
+ * are attributed to every persistence unit one of whose {@link
+ * EntityManager}s took part in that transaction.</p>
+ *
+ * <p>Bulk updates and deletions bypass entity listeners.  When a
+ * {@link Query} created by such an {@link EntityManager} {@linkplain
+ * Query#executeUpdate() executes an update}, the whole entity class
+ * it targets is evicted on the other nodes once its transaction
+ * commits.  The target is known for JPQL {@code UPDATE} and {@code
+ * DELETE} statements and for {@link CriteriaUpdate} and {@link
+ * CriteriaDelete} queries; for native and named queries, every
+ * entity class of the persistence unit is evicted.  Changes made by
+ * stored procedures, or by other means than the {@link
+ * EntityManager}, are not published.</p>
+ *
+ * <p>The {@link JpaExtension} adds an instance of this class as a
+ * bean for each persistence unit that sets the {@value
+ * #TRANSPORT_PROPERTY_NAME} property, and applies it to the
+ * persistence unit's {@link EntityManagerFactory}.</p>
+ *
+ * <p>Instances of this class are safe for concurrent use by multiple
+ * threads.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see CacheInvalidationTransport
+ *
+ * @see CacheInvalidationListener
+ */
+public class CacheCoordination implements AutoCloseable {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  /**
+   * The name of the persistence unit property whose value, if
+   * present, selects the {@link CacheInvalidationTransport} over
+   * which invalidation messages will be exchanged.
+   */
+  public static final String TRANSPORT_PROPERTY_NAME = "org.microbean.jpa.cdi.cacheCoordination.transport";
+
+  /**
+   * The name of the persistence unit property whose value is the
+   * name of the channel used by a {@link
+   * LoopbackCacheInvalidationTransport}.
+   */
+  public static final String CHANNEL_PROPERTY_NAME = "org.microbean.jpa.cdi.cacheCoordination.channel";
+
+  /**
+   * The name of the persistence unit property whose value is the
+   * address, of the form {@code host:port} or {@code port}, on which
+   * a UDP or TCP transport receives messages.
+   */
+  public static final String BIND_ADDRESS_PROPERTY_NAME = "org.microbean.jpa.cdi.cacheCoordination.bindAddress";
+
+  /**
+   * The name of the persistence unit property whose value is a
+   * comma-separated list of the addresses, each of the form {@code
+   * host:port} or {@code port}, to which a UDP or TCP transport sends
+   * messages.
+   */
+  public static final String PEERS_PROPERTY_NAME = "org.microbean.jpa.cdi.cacheCoordination.peers";
+
+  /**
+   * The name of the mapping file, present in this project's jar file,
+   * that declares {@link CacheInvalidationListener} as a default
+   * entity listener ({@value}).
+   */
+  public static final String MAPPING_FILE_NAME = "META-INF/microbean-jpa-cdi-cache-coordination.xml";
+
+  private static final int MAGIC = 0x4D4A4349;
+
+  private static final byte VERSION = 1;
+
+  // Magic number, version, node identifier and entity class count.
+  private static final int HEADER_SIZE = 4 + 1 + 16 + 4;
+
+  // Identifiers that would take more room are not sent; their entity
+  // class is evicted instead.
+  private static final int MAX_ID_SIZE = 1024;
+
+  private static final byte ID_LONG = 1;
+
+  private static final byte ID_INTEGER = 2;
+
+  private static final byte ID_SHORT = 3;
+
+  private static final byte ID_STRING = 4;
+
+  private static final byte ID_UUID = 5;
+
+  private static final Logger logger = Logger.getLogger(CacheCoordination.class.getName());
+
+  // The instances whose EntityManagerFactory instances are open, to
+  // which CacheInvalidationListener reports changed entities that
+  // were flushed when no EntityManager method was executing.
+  private static final Set<CacheCoordination> coordinations = new CopyOnWriteArraySet<>();
+
+  // The coordinated EntityManager, if any, one of whose methods (or
+  // whose Query's or EntityTransaction's methods) is executing on the
+  // current thread.
+  private static final ThreadLocal<Invocation> currentInvocation = new ThreadLocal<>();
+
+  private static final Pattern BULK_STATEMENT_PATTERN =
+    Pattern.compile("^\\s*(?:update|delete\\s+from)\\s+([A-Za-z_$][A-Za-z0-9_$.]*)", Pattern.CASE_INSENSITIVE);
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final String name;
+
+  private final CacheInvalidationTransport transport;
+
+  private final UUID nodeId;
+
+  private final AtomicReference<EntityManagerFactory> entityManagerFactory;
+
+  private volatile Map<String, Class<?>> entityClasses;
+
+  private volatile Map<String, Class<?>> entityNames;
+
+  private volatile TransactionManager transactionManager;
+
+  // Changes flushed within JTA transactions, keyed by transaction.
+  private final ConcurrentMap<Transaction, List<Object>> transactionChanges;
+
+  // Changes flushed within resource-local transactions, keyed by
+  // transaction.
+  private final ConcurrentMap<EntityTransaction, List<Object>> localTransactionChanges;
+
+  private final LongAdder publishedMessageCount;
+
+  private final LongAdder receivedMessageCount;
+
+  private final LongAdder evictionCount;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link CacheCoordination}.
+   *
+   * @param name the name of the persistence unit; must not be {@code
+   * null}
+   *
+   * @param transport the {@link CacheInvalidationTransport} over
+   * which invalidation messages will be exchanged; must not be {@code
+   * null}; will be {@linkplain CacheInvalidationTransport#start(java.util.function.Consumer)
+   * started} by the {@link #wrap(EntityManagerFactory,
+   * TransactionManager)} method and {@linkplain #close() closed} by
+   * this {@link CacheCoordination}
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   */
+  public CacheCoordination(final String name, final CacheInvalidationTransport transport) {
+    super();
+    this.name = Objects.requireNonNull(name);
+    this.transport = Objects.requireNonNull(transport);
+    this.nodeId = UUID.randomUUID();
+    this.entityManagerFactory = new AtomicReference<>();
+    this.entityClasses = Collections.emptyMap();
+    this.entityNames = Collections.emptyMap();
+    this.transactionChanges = new ConcurrentHashMap<>();
+    this.localTransactionChanges = new ConcurrentHashMap<>();
+    this.publishedMessageCount = new LongAdder();
+    this.receivedMessageCount = new LongAdder();
+    this.evictionCount = new LongAdder();
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns the name of the persistence unit this {@link
+   * CacheCoordination} serves.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return the non-{@code null} name of the persistence unit
+   */
+  public final String getName() {
+    return this.name;
+  }
+
+  /**
+   * Returns the number of invalidation messages this {@link
+   * CacheCoordination} has sent.
+   *
+   * @return the number of invalidation messages sent
+   */
+  public final long getPublishedMessageCount() {
+    return this.publishedMessageCount.sum();
+  }
+
+  /**
+   * Returns the number of invalidation messages from other nodes
+   * this {@link CacheCoordination} has processed.
+   *
+   * @return the number of invalidation messages received
+   */
+  public final long getReceivedMessageCount() {
+    return this.receivedMessageCount.sum();
+  }
+
+  /**
+   * Returns the number of evictions this {@link CacheCoordination}
+   * has performed in response to messages from other nodes.
+   *
+   * @return the number of evictions
+   */
+  public final long getEvictionCount() {
+    return this.evictionCount.sum();
+  }
+
+  /**
+   * Returns a {@link PersistenceUnitInfo} that is identical to the
+   * supplied one except that its {@linkplain
+   * PersistenceUnitInfo#getMappingFileNames() mapping file names}
+   * include {@value #MAPPING_FILE_NAME}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param persistenceUnitInfo the {@link PersistenceUnitInfo}; must
+   * not be {@code null}
+   *
+   * @return a non-{@code null} {@link PersistenceUnitInfo}
+   *
+   * @exception NullPointerException if {@code persistenceUnitInfo} is
+   * {@code null}
+   */
+  public PersistenceUnitInfo apply(final PersistenceUnitInfo persistenceUnitInfo) {
+    Objects.requireNonNull(persistenceUnitInfo);
+    return Proxies.newProxyInstance(CacheCoordination.class.getClassLoader(),
+                                    PersistenceUnitInfo.class,
+                                    (proxy, method, arguments) -> {
+                                      if ("getMappingFileNames".equals(method.getName())) {
+                                        final List<String> returnValue = new ArrayList<>();
+                                        final Collection<? extends String> mappingFileNames =
+                                          persistenceUnitInfo.getMappingFileNames();
+                                        if (mappingFileNames != null) {
+                                          returnValue.addAll(mappingFileNames);
+                                        }
+                                        if (!returnValue.contains(MAPPING_FILE_NAME)) {
+                                          returnValue.add(MAPPING_FILE_NAME);
+                                        }
+                                        return returnValue;
+                                      }
+                                      return Proxies.invoke(persistenceUnitInfo, method, arguments);
+                                    });
+  }
+
+  /**
+   * Starts this {@link CacheCoordination}'s {@link
+   * CacheInvalidationTransport}, evicting entities from the shared
+   * cache of the supplied {@link EntityManagerFactory} as messages
+   * arrive, and returns an {@link EntityManagerFactory} whose {@link
+   * EntityManager}s publish the entities they change when their
+   * transactions commit.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param entityManagerFactory an {@link EntityManagerFactory}
+   * created from a {@link PersistenceUnitInfo} returned by the {@link
+   * #apply(PersistenceUnitInfo)} method; must not be {@code null}
+   *
+   * @param transactionManager the {@link TransactionManager} whose
+   * transactions the {@link EntityManager}s will join; may be {@code
+   * null} if the persistence unit uses resource-local transactions
+   *
+   * @return a non-{@code null} {@link EntityManagerFactory}
+   *
+   * @exception NullPointerException if {@code entityManagerFactory}
+   * is {@code null}
+   *
+   * @exception IllegalStateException if this method has already been
+   * invoked
+   *
+   * @exception PersistenceException if the {@link
+   * CacheInvalidationTransport} could not be started
+   */
+  public EntityManagerFactory wrap(final EntityManagerFactory entityManagerFactory,
+                                   final TransactionManager transactionManager) {
+    Objects.requireNonNull(entityManagerFactory);
+    if (!this.entityManagerFactory.compareAndSet(null, entityManagerFactory)) {
+      throw new IllegalStateException("Already applied to " + this.entityManagerFactory.get());
+    }
+    final Map<String, Class<?>> entityClasses = new HashMap<>();
+    final Map<String, Class<?>> entityNames = new HashMap<>();
+    for (final EntityType<?> entityType : entityManagerFactory.getMetamodel().getEntities()) {
+      final Class<?> javaType = entityType.getJavaType();
+      if (javaType != null) {
+        entityClasses.put(javaType.getName(), javaType);
+        entityNames.put(entityType.getName(), javaType);
+      }
+    }
+    this.entityClasses = Collections.unmodifiableMap(entityClasses);
+    this.entityNames = Collections.unmodifiableMap(entityNames);
+    this.transactionManager = transactionManager;
+    try {
+      this.transport.start(this::receive);
+    } catch (final IOException ioException) {
+      throw new PersistenceException(ioException.getMessage(), ioException);
+    }
+    coordinations.add(this);
+    return Proxies.newProxyInstance(CacheCoordination.class.getClassLoader(),
+                                    EntityManagerFactory.class,
+                                    (proxy, method, arguments) -> {
+                                      final Object returnValue = Proxies.invoke(entityManagerFactory, method, arguments);
+                                      if (returnValue instanceof EntityManager) {
+                                        return this.coordinate((EntityManager)returnValue);
+                                      }
+                                      return returnValue;
+                                    });
+  }
+
+  private final EntityManager coordinate(final EntityManager entityManager) {
+    assert entityManager != null;
+    final Invocation invocation = new Invocation(this, entityManager);
+    return Proxies.newProxyInstance(CacheCoordination.class.getClassLoader(),
+                                    EntityManager.class,
+                                    (proxy, method, arguments) -> {
+                                      final String methodName = method.getName();
+                                      if ("close".equals(methodName)) {
+                                        this.forget(entityManager);
+                                      }
+                                      this.enlist();
+                                      final Object returnValue = invocation.invoke(entityManager, method, arguments);
+                                      if ("getTransaction".equals(methodName)) {
+                                        return this.coordinate(invocation, (EntityTransaction)returnValue);
+                                      } else if (returnValue instanceof Query) {
+                                        return this.coordinate(invocation,
+                                                               (Query)returnValue,
+                                                               method.getReturnType(),
+                                                               this.getBulkTargets(arguments));
+                                      }
+                                      return returnValue;
+                                    });
+  }
+
+  private final EntityTransaction coordinate(final Invocation invocation, final EntityTransaction entityTransaction) {
+    assert invocation != null;
+    assert entityTransaction != null;
+    return Proxies.newProxyInstance(CacheCoordination.class.getClassLoader(),
+                                    EntityTransaction.class,
+                                    (proxy, method, arguments) -> {
+                                      switch (method.getName()) {
+                                      case "begin":
+                                        this.localTransactionChanges.remove(entityTransaction);
+                                        return invocation.invoke(entityTransaction, method, arguments);
+                                      case "commit":
+                                        final Object returnValue;
+                                        try {
+                                          returnValue = invocation.invoke(entityTransaction, method, arguments);
+                                        } catch (final Throwable throwable) {
+                                          this.localTransactionChanges.remove(entityTransaction);
+                                          throw throwable;
+                                        }
+                                        final List<Object> changed = this.localTransactionChanges.remove(entityTransaction);
+                                        if (changed != null) {
+                                          this.publish(changed);
+                                        }
+                                        return returnValue;
+                                      case "rollback":
+                                        try {
+                                          return invocation.invoke(entityTransaction, method, arguments);
+                                        } finally {
+                                          this.localTransactionChanges.remove(entityTransaction);
+                                        }
+                                      default:
+                                        return invocation.invoke(entityTransaction, method, arguments);
+                                      }
+                                    });
+  }
+
+  private final Query coordinate(final Invocation invocation,
+                                 final Query query,
+                                 final Class<?> queryType,
+                                 final Collection<? extends Class<?>> bulkTargets) {
+    assert invocation != null;
+    assert query != null;
+    final Class<?> queryInterface =
+      queryType != null && queryType.isInterface() && Query.class.isAssignableFrom(queryType) ? queryType : Query.class;
+    return (Query)Proxies.newProxyInstance(CacheCoordination.class.getClassLoader(),
+                                           queryInterface,
+                                           (proxy, method, arguments) -> {
+                                             final Object returnValue = invocation.invoke(query, method, arguments);
+                                             if (returnValue == query) {
+                                               // A fluent setter; keep the caller on the proxy.
+                                               return proxy;
+                                             }
+                                             if ("executeUpdate".equals(method.getName())) {
+                                               final Collection<? extends Class<?>> entityClasses =
+                                                 bulkTargets == null ? this.entityClasses.values() : bulkTargets;
+                                               for (final Class<?> entityClass : entityClasses) {
+                                                 this.record(new Eviction(entityClass), invocation.entityManager);
+                                               }
+                                             }
+                                             return returnValue;
+                                           });
+  }
+
+  /**
+   * Returns the entity classes that a bulk update or deletion created
+   * from the supplied arguments of an {@link EntityManager} method
+   * could affect, or {@code null} if they cannot be determined.
+   */
+  private final Collection<? extends Class<?>> getBulkTargets(final Object[] arguments) {
+    if (arguments == null || arguments.length == 0) {
+      return null;
+    }
+    final Object argument = arguments[0];
+    Class<?> returnValue = null;
+    if (argument instanceof String) {
+      final Matcher matcher = BULK_STATEMENT_PATTERN.matcher((String)argument);
+      if (matcher.find()) {
+        final String entityName = matcher.group(1);
+        returnValue = this.entityNames.get(entityName);
+        if (returnValue == null) {
+          returnValue = this.entityClasses.get(entityName);
+        }
+      }
+    } else if (argument instanceof CriteriaUpdate) {
+      returnValue = ((CriteriaUpdate<?>)argument).getRoot().getJavaType();
+    } else if (argument instanceof CriteriaDelete) {
+      returnValue = ((CriteriaDelete<?>)argument).getRoot().getJavaType();
+    }
+    return returnValue == null ? null : Collections.singleton(returnValue);
+  }
+
+  /**
+   * Ensures that changes flushed within the current JTA transaction,
+   * if any, are recorded for this {@link CacheCoordination}'s
+   * persistence unit even if they are flushed by the transaction
+   * manager while it completes the transaction.
+   */
+  private final void enlist() {
+    if (this.transactionManager != null) {
+      final Transaction transaction = this.getTransaction();
+      if (transaction != null) {
+        this.getTransactionChanges(transaction);
+      }
+    }
+  }
+
+  /**
+   * Discards the changes recorded within the resource-local
+   * transaction, if any, of the supplied {@link EntityManager}, which
+   * is being closed.
+   */
+  private final void forget(final EntityManager entityManager) {
+    assert entityManager != null;
+    try {
+      this.localTransactionChanges.remove(entityManager.getTransaction());
+    } catch (final IllegalStateException jtaEntityManager) {
+      // A JTA EntityManager has no EntityTransaction.
+    }
+  }
+
+  /**
+   * Records the supplied change, which is either a changed entity of
+   * this {@link CacheCoordination}'s persistence unit or an {@link
+   * Eviction}, within the transaction of the supplied {@link
+   * EntityManager}, or within the current JTA transaction if this
+   * {@link CacheCoordination}'s persistence unit took part in it.
+   *
+   * @param change the change; must not be {@code null}
+   *
+   * @param entityManager the {@link EntityManager} that flushed the
+   * change; may be {@code null} if it was flushed by a transaction
+   * manager completing a JTA transaction
+   */
+  private final void record(final Object change, final EntityManager entityManager) {
+    assert change != null;
+    final List<Object> changed = this.getChanges(entityManager);
+    if (changed != null) {
+      synchronized (changed) {
+        changed.add(change);
+      }
+    }
+  }
+
+  private final List<Object> getChanges(final EntityManager entityManager) {
+    if (entityManager != null) {
+      try {
+        final EntityTransaction entityTransaction = entityManager.getTransaction();
+        if (entityTransaction.isActive()) {
+          return this.localTransactionChanges.computeIfAbsent(entityTransaction, t -> new ArrayList<>());
+        }
+      } catch (final IllegalStateException jtaEntityManager) {
+        // A JTA EntityManager has no EntityTransaction.
+      }
+    }
+    final Transaction transaction = this.getTransaction();
+    if (transaction == null) {
+      return null;
+    }
+    return entityManager == null ? this.transactionChanges.get(transaction) : this.getTransactionChanges(transaction);
+  }
+
+  private final Transaction getTransaction() {
+    final TransactionManager transactionManager = this.transactionManager;
+    if (transactionManager == null) {
+      return null;
+    }
+    try {
+      return transactionManager.getTransaction();
+    } catch (final SystemException systemException) {
+      throw new PersistenceException(systemException.getMessage(), systemException);
+    }
+  }
+
+  /**
+   * Returns the changes recorded within the supplied JTA transaction,
+   * registering a {@link Synchronization} that publishes or discards
+   * them, on whichever thread completes it, the first time, or
+   * {@code null} if the transaction can no longer commit.
+   */
+  private final List<Object> getTransactionChanges(final Transaction transaction) {
+    assert transaction != null;
+    List<Object> changed = this.transactionChanges.get(transaction);
+    if (changed == null) {
+      changed = new ArrayList<>();
+      final List<Object> existing = this.transactionChanges.putIfAbsent(transaction, changed);
+      if (existing == null) {
+        final List<Object> newChanges = changed;
+        try {
+          transaction.registerSynchronization(new Synchronization() {
+              @Override
+              public final void beforeCompletion() {
+                // Changes are recorded as the provider flushes.
+              }
+
+              @Override
+              public final void afterCompletion(final int status) {
+                transactionChanges.remove(transaction);
+                if (status == Status.STATUS_COMMITTED) {
+                  publish(newChanges);
+                }
+              }
+            });
+        } catch (final RollbackException | IllegalStateException exception) {
+          // The transaction will not commit, so there is nothing to
+          // publish.
+          this.transactionChanges.remove(transaction);
+          return null;
+        } catch (final SystemException systemException) {
+          this.transactionChanges.remove(transaction);
+          throw new PersistenceException(systemException.getMessage(), systemException);
+        }
+      } else {
+        changed = existing;
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Removes the supplied changes to entities of this {@link
+   * CacheCoordination}'s persistence unit and returns their
+   * identifiers, grouped by entity class name.
+   *
+   * <p>A {@code null} value indicates that all entities of the
+   * corresponding class should be evicted.</p>
+   */
+  private final Map<String, Set<Object>> drain(final List<Object> changed) {
+    final List<Object> entities;
+    synchronized (changed) {
+      if (changed.isEmpty()) {
+        return Collections.emptyMap();
+      }
+      entities = new ArrayList<>(changed);
+      changed.clear();
+    }
+    final EntityManagerFactory entityManagerFactory = this.entityManagerFactory.get();
+    final Map<String, Set<Object>> returnValue = new LinkedHashMap<>();
+    final Set<String> evictAll = new LinkedHashSet<>();
+    for (final Object entity : entities) {
+      if (entity instanceof Eviction) {
+        evictAll.add(((Eviction)entity).entityClass.getName());
+        continue;
+      }
+      final Class<?> entityClass = this.getEntityClass(entity.getClass());
+      if (entityClass != null) {
+        final String entityClassName = entityClass.getName();
+        Object id;
+        try {
+          id = entityManagerFactory.getPersistenceUnitUtil().getIdentifier(entity);
+        } catch (final RuntimeException runtimeException) {
+          id = null;
+        }
+        if (id == null) {
+          evictAll.add(entityClassName);
+        } else {
+          returnValue.computeIfAbsent(entityClassName, n -> new LinkedHashSet<>()).add(id);
+        }
+      }
+    }
+    for (final String entityClassName : evictAll) {
+      returnValue.put(entityClassName, null);
+    }
+    return returnValue;
+  }
+
+  private final Class<?> getEntityClass(final Class<?> c) {
+    final Map<String, Class<?>> entityClasses = this.entityClasses;
+    for (Class<?> cls = c; cls != null && cls != Object.class; cls = cls.getSuperclass()) {
+      if (entityClasses.get(cls.getName()) == cls) {
+        return cls;
+      }
+    }
+    return null;
+  }
+
+  private final void publish(final List<Object> changed) {
+    final Map<String, Set<Object>> changes = this.drain(changed);
+    if (!changes.isEmpty()) {
+      try {
+        for (final byte[] message : encode(this.nodeId, changes, this.transport.getMaxMessageSize())) {
+          this.transport.send(message);
+          this.publishedMessageCount.increment();
+        }
+      } catch (final IOException | RuntimeException exception) {
+        // The transaction has already committed, so failing it is not
+        // an option.
+        if (logger.isLoggable(Level.WARNING)) {
+          logger.log(Level.WARNING, "Could not publish cache invalidations for persistence unit " + this.name, exception);
+        }
+      }
+    }
+  }
+
+  private final void receive(final byte[] message) {
+    final EntityManagerFactory entityManagerFactory = this.entityManagerFactory.get();
+    if (entityManagerFactory == null || !entityManagerFactory.isOpen()) {
+      return;
+    }
+    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(message));
+    try {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a cache invalidation message");
+      }
+      final byte version = in.readByte();
+      if (version != VERSION) {
+        throw new IOException("Unsupported version: " + version);
+      }
+      if (this.nodeId.equals(new UUID(in.readLong(), in.readLong()))) {
+        return;
+      }
+      this.receivedMessageCount.increment();
+      final Cache cache = entityManagerFactory.getCache();
+      final Map<String, Class<?>> entityClasses = this.entityClasses;
+      final int entityClassCount = in.readInt();
+      for (int i = 0; i < entityClassCount; i++) {
+        final Class<?> entityClass = entityClasses.get(in.readUTF());
+        final int idCount = in.readInt();
+        if (idCount < 0) {
+          if (entityClass != null) {
+            cache.evict(entityClass);
+            this.evictionCount.increment();
+          }
+        } else {
+          for (int j = 0; j < idCount; j++) {
+            final Object id = readId(in);
+            if (entityClass != null) {
+              cache.evict(entityClass, id);
+              this.evictionCount.increment();
+            }
+          }
+        }
+      }
+    } catch (final IOException ioException) {
+      if (logger.isLoggable(Level.WARNING)) {
+        logger.log(Level.WARNING, "Discarding malformed cache invalidation message for persistence unit " + this.name, ioException);
+      }
+    }
+  }
+
+  /**
+   * Closes this {@link CacheCoordination}'s {@link
+   * CacheInvalidationTransport}.
+   */
+  @Override
+  public void close() {
+    coordinations.remove(this);
+    try {
+      this.transport.close();
+    } catch (final IOException ioException) {
+      if (logger.isLoggable(Level.WARNING)) {
+        logger.log(Level.WARNING, "Could not close " + this.transport, ioException);
+      }
+    }
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Records that the supplied entity was changed within the current
+   * transaction, on behalf of the {@link CacheCoordination} of the
+   * persistence unit whose {@link EntityManager} flushed it.
+   *
+   * <p>If no coordinated {@link EntityManager} method is executing,
+   * the entity was flushed by a transaction manager completing a JTA
+   * transaction, and the change is recorded on behalf of every {@link
+   * CacheCoordination} whose persistence unit includes its class and
+   * took part in that transaction.</p>
+   *
+   * @param entity the entity; may be {@code null} in which case no
+   * action will be taken
+   *
+   * @see CacheInvalidationListener
+   */
+  static final void changed(final Object entity) {
+    if (entity != null) {
+      final Invocation invocation = currentInvocation.get();
+      if (invocation == null) {
+        for (final CacheCoordination coordination : coordinations) {
+          if (coordination.getEntityClass(entity.getClass()) != null) {
+            coordination.record(entity, null);
+          }
+        }
+      } else if (invocation.coordination.getEntityClass(entity.getClass()) != null) {
+        invocation.coordination.record(entity, invocation.entityManager);
+      }
+    }
+  }
+
+  /**
+   * Creates a new {@link CacheCoordination} configured from the
+   * properties of the supplied {@link PersistenceUnitInfo}, or
+   * returns {@code null} if they do not contain a property named
+   * {@value #TRANSPORT_PROPERTY_NAME}.
+   *
+   * @param name the name of the persistence unit; must not be {@code
+   * null}
+   *
+   * @param persistenceUnitInfo the {@link PersistenceUnitInfo}; must
+   * not be {@code null}
+   *
+   * @return a new {@link CacheCoordination}, or {@code null}
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   *
+   * @exception IllegalArgumentException if a property value is
+   * malformed
+   */
+  static final CacheCoordination fromProperties(final String name, final PersistenceUnitInfo persistenceUnitInfo) {
+    Objects.requireNonNull(name);
+    final Map<?, ?> unitProperties = persistenceUnitInfo.getProperties();
+    final String transportName = UnitProperties.getString(unitProperties, TRANSPORT_PROPERTY_NAME, null);
+    if (transportName == null || transportName.trim().isEmpty()) {
+      return null;
+    }
+    final CacheInvalidationTransport transport;
+    switch (transportName.trim()) {
+    case "loopback":
+      transport = new LoopbackCacheInvalidationTransport(UnitProperties.getString(unitProperties, CHANNEL_PROPERTY_NAME, name));
+      break;
+    case "udp":
+      transport = new UdpCacheInvalidationTransport(getBindAddress(unitProperties), getPeers(unitProperties));
+      break;
+    case "tcp":
+      transport = new TcpCacheInvalidationTransport(getBindAddress(unitProperties), getPeers(unitProperties));
+      break;
+    default:
+      ClassLoader classLoader = persistenceUnitInfo.getClassLoader();
+      if (classLoader == null) {
+        classLoader = Thread.currentThread().getContextClassLoader();
+      }
+      try {
+        transport = Class.forName(transportName.trim(), true, classLoader)
+          .asSubclass(CacheInvalidationTransport.class)
+          .getConstructor()
+          .newInstance();
+      } catch (final ReflectiveOperationException | ClassCastException exception) {
+        throw new IllegalArgumentException(TRANSPORT_PROPERTY_NAME + ": " + transportName, exception);
+      }
+      break;
+    }
+    return new CacheCoordination(name, transport);
+  }
+
+  private static final InetSocketAddress getBindAddress(final Map<?, ?> unitProperties) {
+    final String bindAddress = UnitProperties.getString(unitProperties, BIND_ADDRESS_PROPERTY_NAME, null);
+    if (bindAddress == null) {
+      throw new IllegalArgumentException("Missing property: " + BIND_ADDRESS_PROPERTY_NAME);
+    }
+    return parseAddress(BIND_ADDRESS_PROPERTY_NAME, bindAddress);
+  }
+
+  private static final List<InetSocketAddress> getPeers(final Map<?, ?> unitProperties) {
+    final List<InetSocketAddress> returnValue = new ArrayList<>();
+    final String peers = UnitProperties.getString(unitProperties, PEERS_PROPERTY_NAME, null);
+    if (peers != null) {
+      for (final String peer : peers.split(",")) {
+        if (!peer.trim().isEmpty()) {
+          returnValue.add(parseAddress(PEERS_PROPERTY_NAME, peer));
+        }
+      }
+    }
+    return returnValue;
+  }
+
+  private static final InetSocketAddress parseAddress(final String propertyName, final String address) {
+    assert propertyName != null;
+    assert address != null;
+    final String trimmedAddress = address.trim();
+    final int colonIndex = trimmedAddress.lastIndexOf(':');
+    try {
+      if (colonIndex < 0) {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(trimmedAddress));
+      }
+      return new InetSocketAddress(trimmedAddress.substring(0, colonIndex), Integer.parseInt(trimmedAddress.substring(colonIndex + 1)));
+    } catch (final IllegalArgumentException illegalArgumentException) {
+      throw new IllegalArgumentException(propertyName + ": " + address, illegalArgumentException);
+    }
+  }
+
+  /**
+   * Encodes the supplied changes as one or more messages, none of
+   * which is longer than {@code maxMessageSize} bytes unless a single
+   * entity class name requires it.
+   */
+  private static final List<byte[]> encode(final UUID nodeId,
+                                           final Map<String, Set<Object>> changes,
+                                           final int maxMessageSize)
+    throws IOException {
+    assert nodeId != null;
+    assert changes != null;
+    final List<byte[]> returnValue = new ArrayList<>();
+    final List<byte[]> entries = new ArrayList<>();
+    int size = HEADER_SIZE;
+    for (final Map.Entry<String, Set<Object>> change : changes.entrySet()) {
+      for (final byte[] entry : encodeEntries(change.getKey(), change.getValue(), maxMessageSize - HEADER_SIZE)) {
+        if (!entries.isEmpty() && size + entry.length > maxMessageSize) {
+          returnValue.add(encodeMessage(nodeId, entries));
+          entries.clear();
+          size = HEADER_SIZE;
+        }
+        entries.add(entry);
+        size += entry.length;
+      }
+    }
+    if (!entries.isEmpty()) {
+      returnValue.add(encodeMessage(nodeId, entries));
+    }
+    return returnValue;
+  }
+
+  private static final List<byte[]> encodeEntries(final String entityClassName, final Set<Object> ids, final int budget)
+    throws IOException {
+    assert entityClassName != null;
+    final List<byte[]> encodedIds = new ArrayList<>();
+    if (ids != null) {
+      for (final Object id : ids) {
+        final byte[] encodedId = encodeId(id);
+        if (encodedId == null) {
+          encodedIds.clear();
+          break;
+        }
+        encodedIds.add(encodedId);
+      }
+    }
+    final List<byte[]> returnValue = new ArrayList<>();
+    final ByteArrayOutputStream name = new ByteArrayOutputStream();
+    new DataOutputStream(name).writeUTF(entityClassName);
+    if (encodedIds.isEmpty()) {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      final DataOutputStream out = new DataOutputStream(bytes);
+      name.writeTo(out);
+      out.writeInt(-1);
+      returnValue.add(bytes.toByteArray());
+    } else {
+      final int entryHeaderSize = name.size() + 4;
+      int start = 0;
+      while (start < encodedIds.size()) {
+        int size = entryHeaderSize;
+        int end = start;
+        do {
+          size += encodedIds.get(end).length;
+          end++;
+        } while (end < encodedIds.size() && size + encodedIds.get(end).length <= budget);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(size);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        name.writeTo(out);
+        out.writeInt(end - start);
+        for (int i = start; i < end; i++) {
+          out.write(encodedIds.get(i));
+        }
+        returnValue.add(bytes.toByteArray());
+        start = end;
+      }
+    }
+    return returnValue;
+  }
+
+  private static final byte[] encodeMessage(final UUID nodeId, final List<byte[]> entries) throws IOException {
+    assert nodeId != null;
+    assert entries != null;
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(MAGIC);
+    out.writeByte(VERSION);
+    out.writeLong(nodeId.getMostSignificantBits());
+    out.writeLong(nodeId.getLeastSignificantBits());
+    out.writeInt(entries.size());
+    for (final byte[] entry : entries) {
+      out.write(entry);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Returns the encoded form of the supplied identifier, or {@code
+   * null} if it cannot be sent.
+   */
+  private static final byte[] encodeId(final Object id) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(17);
+    final DataOutputStream out = new DataOutputStream(bytes);
+    if (id instanceof Long) {
+      out.writeByte(ID_LONG);
+      out.writeLong(((Long)id).longValue());
+    } else if (id instanceof Integer) {
+      out.writeByte(ID_INTEGER);
+      out.writeInt(((Integer)id).intValue());
+    } else if (id instanceof Short) {
+      out.writeByte(ID_SHORT);
+      out.writeShort(((Short)id).shortValue());
+    } else if (id instanceof String && ((String)id).length() <= MAX_ID_SIZE / 3) {
+      out.writeByte(ID_STRING);
+      out.writeUTF((String)id);
+    } else if (id instanceof UUID) {
+      out.writeByte(ID_UUID);
+      out.writeLong(((UUID)id).getMostSignificantBits());
+      out.writeLong(((UUID)id).getLeastSignificantBits());
+    } else {
+      return null;
+    }
+    return bytes.toByteArray();
+  }
+
+  private static final Object readId(final DataInputStream in) throws IOException {
+    final byte type = in.readByte();
+    switch (type) {
+    case ID_LONG:
+      return Long.valueOf(in.readLong());
+    case ID_INTEGER:
+      return Integer.valueOf(in.readInt());
+    case ID_SHORT:
+      return Short.valueOf(in.readShort());
+    case ID_STRING:
+      return in.readUTF();
+    case ID_UUID:
+      return new UUID(in.readLong(), in.readLong());
+    default:
+      throw new IOException("Unknown identifier type: " + type);
+    }
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * A request, recorded among the changes of a transaction, to evict
+   * every entity of an entity class, made when a bulk update or
+   * deletion that bypassed entity listeners may have changed them.
+   *
+   * @author <a href="https://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   */
+  private static final class Eviction {
+
+    private final Class<?> entityClass;
+
+    private Eviction(final Class<?> entityClass) {
+      super();
+      this.entityClass = entityClass;
+    }
+
+  }
+
+  /**
+   * A coordinated {@link EntityManager} and the {@link
+   * CacheCoordination} of its persistence unit, which is made {@code
+   * current} while a method of the {@link EntityManager}, or of one of
+   * its {@link Query} or {@link EntityTransaction} objects, executes
+   * so that the entities it flushes are attributed to that
+   * persistence unit.
+   *
+   * @author <a href="https://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   */
+  private static final class Invocation {
+
+    private final CacheCoordination coordination;
+
+    private final EntityManager entityManager;
+
+    private Invocation(final CacheCoordination coordination, final EntityManager entityManager) {
+      super();
+      this.coordination = coordination;
+      this.entityManager = entityManager;
+    }
+
+    private final Object invoke(final Object target, final Method method, final Object[] arguments) throws Throwable {
+      final Invocation prior = currentInvocation.get();
+      currentInvocation.set(this);
+      try {
+        return Proxies.invoke(target, method, arguments);
+      } finally {
+        if (prior == null) {
+          currentInvocation.remove();
+        } else {
+          currentInvocation.set(prior);
+        }
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,76 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+/**
+ * A default entity listener that records entities that were updated
+ * or removed so that a {@link CacheCoordination} can publish their
+ * invalidation once the transaction that changed them commits.
+ *
+ * <p>A {@link CacheCoordination} installs this listener by adding the
+ * {@value CacheCoordination#MAPPING_FILE_NAME} mapping file to its
+ * persistence unit.  Persistence units whose own mapping files
+ * declare {@code persistence-unit-defaults} may instead list this
+ * class among their default entity listeners.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see CacheCoordination
+ */
+public class CacheInvalidationListener {
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link CacheInvalidationListener}.
+   */
+  public CacheInvalidationListener() {
+    super();
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Records that the supplied entity was updated.
+   *
+   * @param entity the entity; may be {@code null} in which case no
+   * action will be taken
+   */
+  public void postUpdate(final Object entity) {
+    CacheCoordination.changed(entity);
+  }
+
+  /**
+   * Records that the supplied entity was removed.
+   *
+   * @param entity the entity; may be {@code null} in which case no
+   * action will be taken
+   */
+  public void postRemove(final Object entity) {
+    CacheCoordination.changed(entity);
+  }
+
+}
@@ -0,0 +1,110 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.io.IOException;
+
+import java.util.function.Consumer;
+
+/**
+ * A means of exchanging cache invalidation messages between the
+ * nodes that share a database.
+ *
+ * <p>A {@link CacheCoordination} {@linkplain #send(byte[]) sends} a
+ * message through its {@link CacheInvalidationTransport} after each
+ * committed transaction that changed cached entities, and evicts the
+ * entities named by each message that the transport {@linkplain
+ * #start(Consumer) delivers} to it.  Messages are opaque to
+ * transports.  A transport may deliver a node's own messages back to
+ * it; they are ignored.</p>
+ *
+ * <p>This project provides {@linkplain LoopbackCacheInvalidationTransport
+ * in-JVM}, {@linkplain UdpCacheInvalidationTransport UDP} and
+ * {@linkplain TcpCacheInvalidationTransport TCP} implementations.
+ * Other implementations are selected by naming a class that
+ * implements this interface and has a {@code public} zero-argument
+ * constructor as the value of the {@value
+ * CacheCoordination#TRANSPORT_PROPERTY_NAME} persistence unit
+ * property.</p>
+ *
+ * <p>Implementations must be safe for concurrent use by multiple
+ * threads.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see CacheCoordination
+ */
+public interface CacheInvalidationTransport extends AutoCloseable {
+
+  /**
+   * Starts delivering messages received by this {@link
+   * CacheInvalidationTransport} to the supplied {@link Consumer}.
+   *
+   * <p>This method is invoked at most once.  The {@link Consumer} may
+   * be invoked on any thread.</p>
+   *
+   * @param receiver the {@link Consumer} that will receive messages;
+   * must not be {@code null}
+   *
+   * @exception NullPointerException if {@code receiver} is {@code
+   * null}
+   *
+   * @exception IOException if this {@link
+   * CacheInvalidationTransport} could not be started
+   */
+  public void start(final Consumer<? super byte[]> receiver) throws IOException;
+
+  /**
+   * Sends the supplied message to all other nodes.
+   *
+   * @param message the message; must not be {@code null}; its length
+   * will not exceed the value returned by the {@link
+   * #getMaxMessageSize()} method
+   *
+   * @exception NullPointerException if {@code message} is {@code
+   * null}
+   *
+   * @exception IOException if the message could not be sent to at
+   * least one node
+   */
+  public void send(final byte[] message) throws IOException;
+
+  /**
+   * Returns the maximum length, in bytes, of a message that this
+   * {@link CacheInvalidationTransport} can {@linkplain #send(byte[])
+   * send}.
+   *
+   * <p>The default implementation returns {@link Integer#MAX_VALUE}.</p>
+   *
+   * @return the maximum length of a message; always greater than
+   * {@code 0}
+   */
+  public default int getMaxMessageSize() {
+    return Integer.MAX_VALUE;
+  }
+
+  /**
+   * Stops this {@link CacheInvalidationTransport} and releases its
+   * resources.
+   *
+   * @exception IOException if an error occurs
+   */
+  @Override
+  public void close() throws IOException;
+
+}
@@ -0,0 +1,385 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.lang.management.ManagementFactory;
+
+import java.sql.SQLException;
+import java.sql.SQLTransactionRollbackException;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Objects;
+import java.util.Set;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import javax.persistence.OptimisticLockException;
+import javax.persistence.PessimisticLockException;
+
+/**
+ * Retries operations that fail because of a write conflict, and
+ * records retries and give-ups for a single persistence unit.
+ *
+ * <p>A failure is considered a write conflict if it, or any of its
+ * causes, is</p>
+ *
+ * <ul>
+ *
+ * <li>an {@link OptimisticLockException} or a {@link
+ * PessimisticLockException},</li>
+ *
+ * <li>a provider-specific exception whose class, or one of whose
+ * superclasses, is named {@code OptimisticLockException}, {@code
+ * StaleStateException} or {@code StaleObjectStateException}, or</li>
+ *
+ * <li>a {@link SQLTransactionRollbackException}, or an {@link
+ * SQLException} whose {@linkplain SQLException#getSQLState() SQL
+ * state} is {@code 40001} (serialization failure, also reported by
+ * several databases, including H2, on deadlock) or {@code 40P01}
+ * (deadlock detected).</li>
+ *
+ * </ul>
+ *
+ * <p>Between attempts, the calling thread sleeps for a random
+ * duration between half of and all of an exponentially growing
+ * bound, so that contending callers do not retry in lockstep.</p>
+ *
+ * <p>The {@link JpaExtension} adds an instance of this class as a
+ * bean for each persistence unit, {@linkplain #register() registers}
+ * it when it is first used and {@linkplain #close() unregisters} it
+ * when it is destroyed.</p>
+ *
+ * <p>Instances of this class are safe for concurrent use by multiple
+ * threads.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see #call(Callable, int, long, long)
+ *
+ * @see RetryOnConflict
+ */
+public final class ConflictRetries implements AutoCloseable, ConflictRetriesMXBean {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  /**
+   * The default maximum number of attempts ({@value}).
+   */
+  public static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+  /**
+   * The default upper bound, in milliseconds, of the delay before
+   * the first retry ({@value}).
+   */
+  public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 10L;
+
+  /**
+   * The default maximum delay, in milliseconds, between two attempts
+   * ({@value}).
+   */
+  public static final long DEFAULT_MAX_BACKOFF_MILLIS = 1000L;
+
+  private static final Logger logger = Logger.getLogger(ConflictRetries.class.getName());
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final String name;
+
+  private final LongAdder retryCount;
+
+  private final LongAdder recoveredCount;
+
+  private final LongAdder giveUpCount;
+
+  private volatile ObjectName objectName;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link ConflictRetries}.
+   *
+   * @param name the name of the persistence unit against which
+   * retries and give-ups are reported; must not be {@code null}
+   *
+   * @exception NullPointerException if {@code name} is {@code null}
+   */
+  public ConflictRetries(final String name) {
+    super();
+    this.name = Objects.requireNonNull(name);
+    this.retryCount = new LongAdder();
+    this.recoveredCount = new LongAdder();
+    this.giveUpCount = new LongAdder();
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns the name of the persistence unit this {@link
+   * ConflictRetries} reports against.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return the name of the persistence unit; never {@code null}
+   */
+  public final String getName() {
+    return this.name;
+  }
+
+  @Override
+  public final long getRetryCount() {
+    return this.retryCount.sum();
+  }
+
+  @Override
+  public final long getRecoveredCount() {
+    return this.recoveredCount.sum();
+  }
+
+  @Override
+  public final long getGiveUpCount() {
+    return this.giveUpCount.sum();
+  }
+
+  /**
+   * Invokes the supplied {@link Callable} up to {@code maxAttempts}
+   * times, until it completes without a {@linkplain
+   * #isConflict(Throwable) write conflict}, and returns its result.
+   *
+   * <p>Exceptions that are not write conflicts are rethrown
+   * immediately.  If the last permitted attempt fails with a write
+   * conflict, that failure is rethrown.  If the calling thread is
+   * interrupted while waiting to retry, the most recent failure is
+   * rethrown and the thread's interrupt status is restored.</p>
+   *
+   * @param <T> the type of the result
+   *
+   * @param callable the operation to perform; must not be {@code
+   * null}; must be safe to invoke more than once
+   *
+   * @param maxAttempts the maximum number of attempts; values less
+   * than {@code 1} are treated as {@code 1}
+   *
+   * @param initialBackoffMillis the upper bound, in milliseconds, of
+   * the delay before the first retry
+   *
+   * @param maxBackoffMillis the maximum delay, in milliseconds,
+   * between two attempts
+   *
+   * @return the result of the first successful invocation of {@code
+   * callable}
+   *
+   * @exception NullPointerException if {@code callable} is {@code
+   * null}
+   *
+   * @exception Exception if {@code callable} failed
+   */
+  public final <T> T call(final Callable<? extends T> callable,
+                          final int maxAttempts,
+                          final long initialBackoffMillis,
+                          final long maxBackoffMillis)
+    throws Exception {
+    Objects.requireNonNull(callable);
+    for (int attempt = 1; ; attempt++) {
+      final T returnValue;
+      try {
+        returnValue = callable.call();
+      } catch (final Exception exception) {
+        if (!isConflict(exception)) {
+          throw exception;
+        }
+        if (attempt >= maxAttempts) {
+          this.giveUpCount.increment();
+          if (logger.isLoggable(Level.WARNING)) {
+            logger.log(Level.WARNING,
+                       "Giving up after " + attempt + " attempt(s) on write conflict in persistence unit " + this.name,
+                       exception);
+          }
+          throw exception;
+        }
+        final long backoffMillis = backoffMillis(attempt, initialBackoffMillis, maxBackoffMillis);
+        if (logger.isLoggable(Level.FINE)) {
+          logger.log(Level.FINE,
+                     "Retrying in " + backoffMillis + " ms after write conflict on attempt " + attempt +
+                     " in persistence unit " + this.name,
+                     exception);
+        }
+        this.retryCount.increment();
+        if (backoffMillis > 0L) {
+          try {
+            Thread.sleep(backoffMillis);
+          } catch (final InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+            exception.addSuppressed(interruptedException);
+            throw exception;
+          }
+        }
+        continue;
+      }
+      if (attempt > 1) {
+        this.recoveredCount.increment();
+      }
+      return returnValue;
+    }
+  }
+
+  /**
+   * Registers this {@link ConflictRetries} with the {@linkplain
+   * ManagementFactory#getPlatformMBeanServer() platform MBean server}
+   * under an {@link ObjectName} of the form {@code
+   * org.microbean.jpa.cdi:type=ConflictRetries,name=<name>}.
+   *
+   * @exception IllegalStateException if registration failed
+   *
+   * @see #close()
+   */
+  public final void register() {
+    final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    try {
+      final ObjectName objectName =
+        new ObjectName("org.microbean.jpa.cdi:type=ConflictRetries,name=" + ObjectName.quote(this.name));
+      mBeanServer.registerMBean(this, objectName);
+      this.objectName = objectName;
+    } catch (final JMException jmException) {
+      throw new IllegalStateException(jmException.getMessage(), jmException);
+    }
+  }
+
+  /**
+   * Unregisters this {@link ConflictRetries} from the {@linkplain
+   * ManagementFactory#getPlatformMBeanServer() platform MBean server}
+   * if it was {@linkplain #register() registered}.
+   *
+   * @see #register()
+   */
+  @Override
+  public void close() {
+    final ObjectName objectName = this.objectName;
+    if (objectName != null) {
+      this.objectName = null;
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (final JMException jmException) {
+        // Already unregistered by someone else; nothing to do.
+      }
+    }
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Returns {@code true} if the supplied {@link Throwable}, or any of
+   * its causes, indicates a write conflict that retrying the failed
+   * operation from the start may resolve.
+   *
+   * @param throwable the {@link Throwable} to inspect; may be {@code
+   * null} in which case {@code false} will be returned
+   *
+   * @return {@code true} if {@code throwable} indicates a write
+   * conflict
+   */
+  public static final boolean isConflict(Throwable throwable) {
+    final Set<Throwable> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+    while (throwable != null && seen.add(throwable)) {
+      if (throwable instanceof OptimisticLockException ||
+          throwable instanceof PessimisticLockException ||
+          throwable instanceof SQLTransactionRollbackException) {
+        return true;
+      }
+      if (throwable instanceof SQLException) {
+        final String sqlState = ((SQLException)throwable).getSQLState();
+        if ("40001".equals(sqlState) || "40P01".equals(sqlState)) {
+          return true;
+        }
+      }
+      for (Class<?> c = throwable.getClass(); c != null; c = c.getSuperclass()) {
+        switch (c.getSimpleName()) {
+        case "OptimisticLockException":
+        case "StaleStateException":
+        case "StaleObjectStateException":
+          return true;
+        default:
+          break;
+        }
+      }
+      throwable = throwable.getCause();
+    }
+    return false;
+  }
+
+  /**
+   * Returns the number of milliseconds to wait before the retry that
+   * follows the supplied attempt.
+   *
+   * <p>The returned value lies between half of and all of {@code
+   * min(maxBackoffMillis, initialBackoffMillis * 2^(attempt - 1))}.</p>
+   *
+   * @param attempt the number of the attempt that just failed,
+   * starting at {@code 1}
+   *
+   * @param initialBackoffMillis the upper bound of the delay after the
+   * first attempt
+   *
+   * @param maxBackoffMillis the maximum delay
+   *
+   * @return a non-negative number of milliseconds
+   */
+  static final long backoffMillis(final int attempt, final long initialBackoffMillis, final long maxBackoffMillis) {
+    if (initialBackoffMillis <= 0L || maxBackoffMillis <= 0L) {
+      return 0L;
+    }
+    final int shift = Math.max(0, Math.min(attempt - 1, 62));
+    long bound = initialBackoffMillis << shift;
+    if (bound <= 0L || (bound >> shift) != initialBackoffMillis || bound > maxBackoffMillis) {
+      bound = maxBackoffMillis;
+    }
+    final long half = bound / 2L;
+    return half + ThreadLocalRandom.current().nextLong(bound - half + 1L);
+  }
+
+}
@@ -0,0 +1,61 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+/**
+ * A management interface exposing the write conflict retry metrics
+ * of a persistence unit.
+ *
+ * <p>The {@link ConflictRetries} bean for a given persistence unit
+ * is registered with the {@linkplain
+ * java.lang.management.ManagementFactory#getPlatformMBeanServer()
+ * platform MBean server} under an {@link javax.management.ObjectName}
+ * of the form {@code
+ * org.microbean.jpa.cdi:type=ConflictRetries,name=<persistenceUnitName>}.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see ConflictRetries
+ */
+public interface ConflictRetriesMXBean {
+
+  /**
+   * Returns the total number of times an operation was retried
+   * because of a write conflict.
+   *
+   * @return the total number of retries
+   */
+  public long getRetryCount();
+
+  /**
+   * Returns the total number of operations that succeeded after at
+   * least one retry.
+   *
+   * @return the total number of recovered operations
+   */
+  public long getRecoveredCount();
+
+  /**
+   * Returns the total number of operations that failed because of a
+   * write conflict on their last permitted attempt.
+   *
+   * @return the total number of operations given up on
+   */
+  public long getGiveUpCount();
+
+}
@@ -0,0 +1,227 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import javax.transaction.Status;
+
+/**
+ * An immutable report that a JDBC {@link java.sql.Connection} has
+ * been checked out of a persistence unit's {@link
+ * javax.sql.DataSource} for longer than a {@linkplain
+ * ConnectionLeaks#THRESHOLD_PROPERTY_NAME threshold} without being
+ * {@linkplain java.sql.Connection#close() closed}.
+ *
+ * <p>A {@link ConnectionLeaks} fires an instance of this class as a
+ * CDI event, qualified with the {@linkplain javax.inject.Named name}
+ * of the persistence unit, at most once per checkout.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see ConnectionLeaks
+ */
+public final class ConnectionLeak {
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final String persistenceUnitName;
+
+  private final long heldMillis;
+
+  private final long thresholdMillis;
+
+  private final String threadName;
+
+  private final int transactionStatus;
+
+  private final StackTraceElement[] allocationStackTrace;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link ConnectionLeak}.
+   *
+   * @param persistenceUnitName the name of the persistence unit; may
+   * be {@code null}
+   *
+   * @param heldMillis the number of milliseconds the {@link
+   * java.sql.Connection} has been checked out
+   *
+   * @param thresholdMillis the threshold that was crossed
+   *
+   * @param threadName the name of the {@link Thread} that checked the
+   * {@link java.sql.Connection} out; may be {@code null}
+   *
+   * @param transactionStatus the current {@linkplain Status status}
+   * of the JTA transaction that was active when the {@link
+   * java.sql.Connection} was checked out
+   *
+   * @param allocationStackTrace the stack trace of the checkout, if
+   * it was sampled; may be {@code null}; copied
+   */
+  public ConnectionLeak(final String persistenceUnitName,
+                        final long heldMillis,
+                        final long thresholdMillis,
+                        final String threadName,
+                        final int transactionStatus,
+                        final StackTraceElement[] allocationStackTrace) {
+    super();
+    this.persistenceUnitName = persistenceUnitName;
+    this.heldMillis = heldMillis;
+    this.thresholdMillis = thresholdMillis;
+    this.threadName = threadName;
+    this.transactionStatus = transactionStatus;
+    this.allocationStackTrace = allocationStackTrace == null ? null : allocationStackTrace.clone();
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns the name of the persistence unit, or {@code null}.
+   *
+   * @return the name of the persistence unit, or {@code null}
+   */
+  public final String getPersistenceUnitName() {
+    return this.persistenceUnitName;
+  }
+
+  /**
+   * Returns the number of milliseconds the {@link
+   * java.sql.Connection} had been checked out when the leak was
+   * detected.
+   *
+   * @return the number of milliseconds the {@link
+   * java.sql.Connection} had been held
+   */
+  public final long getHeldMillis() {
+    return this.heldMillis;
+  }
+
+  /**
+   * Returns the threshold, in milliseconds, that was crossed.
+   *
+   * @return the threshold that was crossed
+   */
+  public final long getThresholdMillis() {
+    return this.thresholdMillis;
+  }
+
+  /**
+   * Returns the name of the {@link Thread} that checked the {@link
+   * java.sql.Connection} out, or {@code null}.
+   *
+   * @return the name of the checkout {@link Thread}, or {@code null}
+   */
+  public final String getThreadName() {
+    return this.threadName;
+  }
+
+  /**
+   * Returns the {@linkplain Status status}, at the time the leak was
+   * detected, of the JTA transaction that was active on the checkout
+   * {@link Thread} when the {@link java.sql.Connection} was checked
+   * out.
+   *
+   * <p>{@link Status#STATUS_NO_TRANSACTION} is returned if there was
+   * no such transaction, including when the persistence unit does
+   * not use JTA.  A status of {@link Status#STATUS_COMMITTED} or
+   * {@link Status#STATUS_ROLLEDBACK} indicates that the {@link
+   * java.sql.Connection} outlived the transaction that enlisted
+   * it.</p>
+   *
+   * @return a {@link Status} constant
+   *
+   * @see #getTransactionStatusName()
+   */
+  public final int getTransactionStatus() {
+    return this.transactionStatus;
+  }
+
+  /**
+   * Returns the name of the {@link Status} constant returned by the
+   * {@link #getTransactionStatus()} method, without its {@code
+   * STATUS_} prefix.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} name such as {@code ACTIVE}
+   */
+  public final String getTransactionStatusName() {
+    switch (this.transactionStatus) {
+    case Status.STATUS_ACTIVE:
+      return "ACTIVE";
+    case Status.STATUS_MARKED_ROLLBACK:
+      return "MARKED_ROLLBACK";
+    case Status.STATUS_PREPARED:
+      return "PREPARED";
+    case Status.STATUS_COMMITTED:
+      return "COMMITTED";
+    case Status.STATUS_ROLLEDBACK:
+      return "ROLLEDBACK";
+    case Status.STATUS_NO_TRANSACTION:
+      return "NO_TRANSACTION";
+    case Status.STATUS_PREPARING:
+      return "PREPARING";
+    case Status.STATUS_COMMITTING:
+      return "COMMITTING";
+    case Status.STATUS_ROLLING_BACK:
+      return "ROLLING_BACK";
+    default:
+      return "UNKNOWN";
+    }
+  }
+
+  /**
+   * Returns a copy of the stack trace of the {@link Thread} that
+   * checked the {@link java.sql.Connection} out, as of the checkout,
+   * or {@code null} if that checkout was not {@linkplain
+   * ConnectionLeaks#STACK_TRACE_SAMPLING_PROPERTY_NAME sampled}.
+   *
+   * @return a stack trace, or {@code null}
+   */
+  public final StackTraceElement[] getAllocationStackTrace() {
+    return this.allocationStackTrace == null ? null : this.allocationStackTrace.clone();
+  }
+
+  /**
+   * Returns a {@link String} representation of this {@link
+   * ConnectionLeak}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link String}
+   */
+  @Override
+  public final String toString() {
+    return "Persistence unit " + this.persistenceUnitName + ": connection held for " + this.heldMillis +
+      " ms (threshold " + this.thresholdMillis + " ms) by thread " + this.threadName +
+      " (transaction " + this.getTransactionStatusName() + ")";
+  }
+
+}
@@ -0,0 +1,508 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.lang.management.ManagementFactory;
+
+import java.sql.Connection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import java.util.function.Consumer;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import javax.sql.DataSource;
+
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+/**
+ * A detector of JDBC {@link Connection}s that are checked out of a
+ * persistence unit's {@link DataSource}s and held for longer than a
+ * threshold without being {@linkplain Connection#close() closed}.
+ *
+ * <p>Every {@link Connection} handed out by a {@linkplain
+ * #wrap(DataSource) wrapped} {@link DataSource} is tracked from
+ * checkout until it is closed.  A background thread periodically
+ * looks for {@link Connection}s held past the threshold and reports
+ * each of them once, as a {@link ConnectionLeak} naming the
+ * persistence unit, the checkout thread and the status of the JTA
+ * transaction that was active at checkout, both by logging a warning
+ * and by handing it to a listener.</p>
+ *
+ * <p>Capturing a stack trace is by far the most expensive part of
+ * tracking a checkout, so only one checkout in {@code n}, chosen at
+ * random, records the stack trace of its caller, where {@code n} is
+ * the value of the persistence unit property named {@value
+ * #STACK_TRACE_SAMPLING_PROPERTY_NAME} ({@value
+ * #DEFAULT_STACK_TRACE_SAMPLING} by default).  A persistent leak is usually
+ * reproduced often enough that a sampled stack trace soon shows
+ * where it comes from.</p>
+ *
+ * <p>The checkout path never blocks and never contends on a shared
+ * lock or counter: open checkouts are kept in a number of concurrent
+ * sets, or stripes, at least as large as the number of processors,
+ * and a checkout uses the stripe selected by the identifier of its
+ * {@link Thread}.  The checkout and leak counts are {@link
+ * LongAdder}s.</p>
+ *
+ * <p>The {@link JpaExtension} creates a {@link ConnectionLeaks} for
+ * every persistence unit whose properties include a positive value
+ * for the property named {@value #THRESHOLD_PROPERTY_NAME}, makes it
+ * available as a bean qualified with the {@linkplain
+ * javax.inject.Named name} of the persistence unit, registers it as
+ * a {@link ConnectionLeaksMXBean} and fires the {@link
+ * ConnectionLeak}s it detects as CDI events qualified the same way.
+ * The {@link DataSource}s that the persistence unit obtains from
+ * {@link DataSource} beans are then {@linkplain #wrap(DataSource)
+ * wrapped} by this class.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see ConnectionLeak
+ *
+ * @see ConnectionLeaksMXBean
+ */
+public class ConnectionLeaks implements AutoCloseable, ConnectionLeaksMXBean {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  /**
+   * The name of the persistence unit property whose value is the
+   * number of milliseconds a {@link Connection} may be held before it
+   * is reported as leaked; a value of {@code 0} or less, the default,
+   * disables leak detection.
+   */
+  public static final String THRESHOLD_PROPERTY_NAME = "org.microbean.jpa.cdi.connectionLeaks.thresholdMillis";
+
+  /**
+   * The name of the persistence unit property whose value, {@code
+   * n}, causes one checkout in {@code n} to capture the stack trace
+   * of its caller; a value of {@code 1} captures every stack trace
+   * and a value of {@code 0} or less captures none.
+   *
+   * @see #DEFAULT_STACK_TRACE_SAMPLING
+   */
+  public static final String STACK_TRACE_SAMPLING_PROPERTY_NAME = "org.microbean.jpa.cdi.connectionLeaks.stackTraceSampling";
+
+  /**
+   * The default value of the persistence unit property named {@value
+   * #STACK_TRACE_SAMPLING_PROPERTY_NAME}.
+   */
+  public static final int DEFAULT_STACK_TRACE_SAMPLING = 100;
+
+  private static final Logger logger = Logger.getLogger(ConnectionLeaks.class.getName());
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final String name;
+
+  private final long thresholdMillis;
+
+  private final long thresholdNanos;
+
+  private final int stackTraceSampling;
+
+  private final TransactionManager transactionManager;
+
+  private final Consumer<? super ConnectionLeak> listener;
+
+  private final List<Set<Checkout>> stripes;
+
+  private final LongAdder checkouts;
+
+  private final LongAdder leaks;
+
+  private final ScheduledThreadPoolExecutor reaper;
+
+  private volatile ObjectName objectName;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link ConnectionLeaks} and starts the thread that
+   * looks for leaked {@link Connection}s.
+   *
+   * @param name the name of the persistence unit; must not be {@code
+   * null}
+   *
+   * @param thresholdMillis the number of milliseconds a {@link
+   * Connection} may be held before it is reported as leaked; must be
+   * greater than {@code 0}
+   *
+   * @param stackTraceSampling the number of checkouts, one of which,
+   * at random, captures the stack trace of its caller; if {@code 0}
+   * or less, no stack traces are captured
+   *
+   * @param transactionManager the {@link TransactionManager} from
+   * which the transaction active at checkout is determined; may be
+   * {@code null} if the persistence unit does not use JTA
+   *
+   * @param listener a {@link Consumer} to which {@link
+   * ConnectionLeak}s are handed; may be {@code null}
+   *
+   * @exception NullPointerException if {@code name} is {@code null}
+   *
+   * @exception IllegalArgumentException if {@code thresholdMillis} is
+   * less than or equal to {@code 0}
+   */
+  public ConnectionLeaks(final String name,
+                         final long thresholdMillis,
+                         final int stackTraceSampling,
+                         final TransactionManager transactionManager,
+                         final Consumer<? super ConnectionLeak> listener) {
+    super();
+    this.name = Objects.requireNonNull(name);
+    if (thresholdMillis <= 0L) {
+      throw new IllegalArgumentException("thresholdMillis <= 0: " + thresholdMillis);
+    }
+    this.thresholdMillis = thresholdMillis;
+    this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+    this.stackTraceSampling = Math.max(0, stackTraceSampling);
+    this.transactionManager = transactionManager;
+    this.listener = listener;
+    int stripeCount = 1;
+    while (stripeCount < Runtime.getRuntime().availableProcessors()) {
+      stripeCount <<= 1;
+    }
+    final List<Set<Checkout>> stripes = new ArrayList<>(stripeCount);
+    for (int i = 0; i < stripeCount; i++) {
+      stripes.add(ConcurrentHashMap.newKeySet());
+    }
+    this.stripes = Collections.unmodifiableList(stripes);
+    this.checkouts = new LongAdder();
+    this.leaks = new LongAdder();
+    this.reaper = new ScheduledThreadPoolExecutor(1, runnable -> {
+        final Thread thread = new Thread(runnable, "microbean-jpa-cdi-connection-leaks-" + name);
+        thread.setDaemon(true);
+        return thread;
+      });
+    final long periodMillis = Math.max(1L, thresholdMillis / 2L);
+    this.reaper.scheduleWithFixedDelay(this::scan, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  @Override
+  public final long getThresholdMillis() {
+    return this.thresholdMillis;
+  }
+
+  @Override
+  public final long getCheckoutCount() {
+    return this.checkouts.sum();
+  }
+
+  @Override
+  public final int getOpenConnectionCount() {
+    int returnValue = 0;
+    for (final Set<Checkout> stripe : this.stripes) {
+      returnValue += stripe.size();
+    }
+    return returnValue;
+  }
+
+  @Override
+  public final long getLeakCount() {
+    return this.leaks.sum();
+  }
+
+  @Override
+  public final int getOutstandingLeakCount() {
+    int returnValue = 0;
+    for (final Set<Checkout> stripe : this.stripes) {
+      for (final Checkout checkout : stripe) {
+        if (checkout.reported) {
+          returnValue++;
+        }
+      }
+    }
+    return returnValue;
+  }
+
+  /**
+   * Returns a {@link DataSource} whose {@link Connection}s are
+   * tracked by this {@link ConnectionLeaks} from checkout until they
+   * are {@linkplain Connection#close() closed}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param dataSource the {@link DataSource} to wrap; must not be
+   * {@code null}
+   *
+   * @return a non-{@code null} {@link DataSource}
+   *
+   * @exception NullPointerException if {@code dataSource} is {@code
+   * null}
+   */
+  public DataSource wrap(final DataSource dataSource) {
+    Objects.requireNonNull(dataSource);
+    return Proxies.newProxyInstance(ConnectionLeaks.class.getClassLoader(),
+                                    DataSource.class,
+                                    (proxy, method, arguments) -> {
+                                      final Object returnValue = Proxies.invoke(dataSource, method, arguments);
+                                      if (returnValue instanceof Connection && "getConnection".equals(method.getName())) {
+                                        return this.track((Connection)returnValue);
+                                      }
+                                      return returnValue;
+                                    });
+  }
+
+  private final Connection track(final Connection connection) {
+    assert connection != null;
+    final Thread thread = Thread.currentThread();
+    final Throwable allocationSite;
+    if (this.stackTraceSampling > 0 && ThreadLocalRandom.current().nextInt(this.stackTraceSampling) == 0) {
+      allocationSite = new Throwable("Connection checked out by thread " + thread.getName());
+    } else {
+      allocationSite = null;
+    }
+    final Checkout checkout = new Checkout(this.stripes.get((int)thread.getId() & (this.stripes.size() - 1)),
+                                           System.nanoTime(),
+                                           thread.getName(),
+                                           this.getTransaction(),
+                                           allocationSite);
+    checkout.stripe.add(checkout);
+    this.checkouts.increment();
+    return Proxies.newProxyInstance(ConnectionLeaks.class.getClassLoader(),
+                                    Connection.class,
+                                    (proxy, method, arguments) -> {
+                                      if ("close".equals(method.getName()) && method.getParameterCount() == 0) {
+                                        try {
+                                          return Proxies.invoke(connection, method, arguments);
+                                        } finally {
+                                          this.release(checkout);
+                                        }
+                                      }
+                                      return Proxies.invoke(connection, method, arguments);
+                                    });
+  }
+
+  private final Transaction getTransaction() {
+    if (this.transactionManager == null) {
+      return null;
+    }
+    try {
+      return this.transactionManager.getTransaction();
+    } catch (final SystemException | RuntimeException exception) {
+      return null;
+    }
+  }
+
+  private final void release(final Checkout checkout) {
+    assert checkout != null;
+    if (checkout.stripe.remove(checkout) && checkout.reported && logger.isLoggable(Level.INFO)) {
+      logger.log(Level.INFO,
+                 "Persistence unit " + this.name + ": leaked connection checked out by thread " + checkout.threadName +
+                 " was closed after " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - checkout.nanoTime) + " ms");
+    }
+  }
+
+  /**
+   * Reports every {@link Connection} that has been held for longer
+   * than the threshold and has not already been reported, and
+   * returns the number of {@link Connection}s so reported.
+   *
+   * <p>This method is called periodically by a background thread and
+   * does not normally need to be called directly.</p>
+   *
+   * @return the number of newly reported leaks
+   */
+  public final synchronized int scan() {
+    int returnValue = 0;
+    final long now = System.nanoTime();
+    for (final Set<Checkout> stripe : this.stripes) {
+      for (final Checkout checkout : stripe) {
+        final long heldNanos = now - checkout.nanoTime;
+        if (!checkout.reported && heldNanos >= this.thresholdNanos) {
+          checkout.reported = true;
+          this.leaks.increment();
+          returnValue++;
+          this.report(new ConnectionLeak(this.name,
+                                         TimeUnit.NANOSECONDS.toMillis(heldNanos),
+                                         this.thresholdMillis,
+                                         checkout.threadName,
+                                         getStatus(checkout.transaction),
+                                         checkout.allocationSite == null ? null : checkout.allocationSite.getStackTrace()),
+                      checkout.allocationSite);
+        }
+      }
+    }
+    return returnValue;
+  }
+
+  private final void report(final ConnectionLeak leak, final Throwable allocationSite) {
+    assert leak != null;
+    if (logger.isLoggable(Level.WARNING)) {
+      logger.log(Level.WARNING, leak.toString(), allocationSite);
+    }
+    if (this.listener != null) {
+      try {
+        this.listener.accept(leak);
+      } catch (final RuntimeException exception) {
+        if (logger.isLoggable(Level.WARNING)) {
+          logger.log(Level.WARNING, "Could not deliver " + leak, exception);
+        }
+      }
+    }
+  }
+
+  /**
+   * Registers this {@link ConnectionLeaks} with the {@linkplain
+   * ManagementFactory#getPlatformMBeanServer() platform MBean server}
+   * under an {@link ObjectName} of the form {@code
+   * org.microbean.jpa.cdi:type=ConnectionLeaks,name=<persistenceUnitName>}.
+   *
+   * @exception IllegalStateException if registration fails
+   *
+   * @see #close()
+   */
+  public final void register() {
+    final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    try {
+      final ObjectName objectName =
+        new ObjectName("org.microbean.jpa.cdi:type=ConnectionLeaks,name=" + ObjectName.quote(this.name));
+      mBeanServer.registerMBean(this, objectName);
+      this.objectName = objectName;
+    } catch (final JMException jmException) {
+      throw new IllegalStateException(jmException.getMessage(), jmException);
+    }
+  }
+
+  /**
+   * Stops the thread that looks for leaked {@link Connection}s and
+   * unregisters this {@link ConnectionLeaks} from the {@linkplain
+   * ManagementFactory#getPlatformMBeanServer() platform MBean server}
+   * if it was {@linkplain #register() registered}.
+   *
+   * <p>{@link Connection}s already handed out continue to work.</p>
+   *
+   * @see #register()
+   */
+  @Override
+  public void close() {
+    this.reaper.shutdownNow();
+    final ObjectName objectName = this.objectName;
+    if (objectName != null) {
+      this.objectName = null;
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (final JMException jmException) {
+        // Already unregistered by someone else; nothing to do.
+      }
+    }
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  private static final int getStatus(final Transaction transaction) {
+    if (transaction == null) {
+      return Status.STATUS_NO_TRANSACTION;
+    }
+    try {
+      return transaction.getStatus();
+    } catch (final SystemException | RuntimeException exception) {
+      return Status.STATUS_UNKNOWN;
+    }
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * A record of a {@link Connection} checkout.
+   *
+   * <p>Instances of this class use identity equality so that they
+   * may be kept in a concurrent set without a key.</p>
+   *
+   * @author <a href="https://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   */
+  private static final class Checkout {
+
+    private final Set<Checkout> stripe;
+
+    private final long nanoTime;
+
+    private final String threadName;
+
+    private final Transaction transaction;
+
+    private final Throwable allocationSite;
+
+    // Only written by scan(), which is synchronized.
+    private volatile boolean reported;
+
+    private Checkout(final Set<Checkout> stripe,
+                     final long nanoTime,
+                     final String threadName,
+                     final Transaction transaction,
+                     final Throwable allocationSite) {
+      super();
+      this.stripe = stripe;
+      this.nanoTime = nanoTime;
+      this.threadName = threadName;
+      this.transaction = transaction;
+      this.allocationSite = allocationSite;
+    }
+
+  }
+
+}
@@ -0,0 +1,77 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+/**
+ * A management interface exposing the metrics of a {@link
+ * ConnectionLeaks}.
+ *
+ * <p>A {@link ConnectionLeaks} created by the {@link JpaExtension}
+ * is registered with the {@linkplain
+ * java.lang.management.ManagementFactory#getPlatformMBeanServer()
+ * platform MBean server} under an {@link javax.management.ObjectName}
+ * of the form {@code
+ * org.microbean.jpa.cdi:type=ConnectionLeaks,name=<persistenceUnitName>}.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see ConnectionLeaks
+ */
+public interface ConnectionLeaksMXBean {
+
+  /**
+   * Returns the number of milliseconds a {@link java.sql.Connection}
+   * may be held before it is reported as leaked.
+   *
+   * @return the leak threshold in milliseconds
+   */
+  public long getThresholdMillis();
+
+  /**
+   * Returns the total number of {@link java.sql.Connection}s checked
+   * out.
+   *
+   * @return the total number of checkouts
+   */
+  public long getCheckoutCount();
+
+  /**
+   * Returns the number of {@link java.sql.Connection}s currently
+   * checked out and not yet closed.
+   *
+   * @return the number of open {@link java.sql.Connection}s
+   */
+  public int getOpenConnectionCount();
+
+  /**
+   * Returns the total number of {@link java.sql.Connection}s that
+   * have been reported as leaked.
+   *
+   * @return the total number of leaks reported
+   */
+  public long getLeakCount();
+
+  /**
+   * Returns the number of {@link java.sql.Connection}s reported as
+   * leaked that are still checked out.
+   *
+   * @return the number of outstanding leaks
+   */
+  public int getOutstandingLeakCount();
+
+}
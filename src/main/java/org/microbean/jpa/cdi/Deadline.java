@@ -0,0 +1,212 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.util.Objects;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An immutable point in time by which the work done on behalf of a
+ * request must be complete.
+ *
+ * <p>An application typically creates a {@link Deadline} when a
+ * request arrives, using {@link #after(long, TimeUnit)}, and
+ * {@linkplain #makeCurrent() makes it current} on the thread that
+ * services the request.  {@link Deadlines} then turns the time
+ * remaining into query timeouts, and cancels statements that are
+ * still running when it expires.</p>
+ *
+ * <p>Deadlines nest, but a nested deadline can only shorten the
+ * current one, never extend it.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see Deadlines
+ */
+public final class Deadline {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  private static final ThreadLocal<Deadline> current = new ThreadLocal<>();
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  // In System.nanoTime() terms.
+  private final long nanoTime;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  private Deadline(final long nanoTime) {
+    super();
+    this.nanoTime = nanoTime;
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns the time remaining until this {@link Deadline} expires,
+   * in nanoseconds, which is zero or negative if it has expired.
+   *
+   * @return the time remaining in nanoseconds
+   */
+  public final long remainingNanos() {
+    return this.nanoTime - System.nanoTime();
+  }
+
+  /**
+   * Returns the time remaining until this {@link Deadline} expires,
+   * in the supplied {@link TimeUnit}, rounded up, or {@code 0} if it
+   * has expired.
+   *
+   * @param unit the {@link TimeUnit}; must not be {@code null}
+   *
+   * @return the time remaining, never negative
+   *
+   * @exception NullPointerException if {@code unit} is {@code null}
+   */
+  public final long remaining(final TimeUnit unit) {
+    Objects.requireNonNull(unit);
+    final long remainingNanos = this.remainingNanos();
+    if (remainingNanos <= 0L) {
+      return 0L;
+    }
+    final long nanosPerUnit = unit.toNanos(1L);
+    return (remainingNanos + nanosPerUnit - 1L) / nanosPerUnit;
+  }
+
+  /**
+   * Returns {@code true} if this {@link Deadline} has expired.
+   *
+   * @return {@code true} if this {@link Deadline} has expired
+   */
+  public final boolean isExpired() {
+    return this.remainingNanos() <= 0L;
+  }
+
+  /**
+   * Makes this {@link Deadline}, or the {@linkplain #current()
+   * current} one if it expires earlier, the current one on the
+   * calling thread until the returned {@link Scope} is {@linkplain
+   * Scope#close() closed}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link Scope} that restores the
+   * previously current {@link Deadline} when closed
+   */
+  public final Scope makeCurrent() {
+    final Deadline previous = current.get();
+    if (previous == null || this.nanoTime - previous.nanoTime < 0L) {
+      current.set(this);
+    }
+    return () -> {
+      if (previous == null) {
+        current.remove();
+      } else {
+        current.set(previous);
+      }
+    };
+  }
+
+  @Override
+  public final String toString() {
+    return "Deadline[" + TimeUnit.NANOSECONDS.toMillis(this.remainingNanos()) + " ms remaining]";
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Returns a new {@link Deadline} that expires after the supplied
+   * duration.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param duration the duration; may be zero or negative, in which
+   * case the {@link Deadline} has already expired
+   *
+   * @param unit the {@link TimeUnit} of {@code duration}; must not be
+   * {@code null}
+   *
+   * @return a non-{@code null} {@link Deadline}
+   *
+   * @exception NullPointerException if {@code unit} is {@code null}
+   */
+  public static final Deadline after(final long duration, final TimeUnit unit) {
+    Objects.requireNonNull(unit);
+    return new Deadline(System.nanoTime() + unit.toNanos(duration));
+  }
+
+  /**
+   * Returns the {@link Deadline} current on the calling thread, or
+   * {@code null} if there is none.
+   *
+   * @return the current {@link Deadline}, or {@code null}
+   */
+  public static final Deadline current() {
+    return current.get();
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * An {@link AutoCloseable} that restores the {@link Deadline} that
+   * was current before it was created.
+   *
+   * @author <a href="https://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   *
+   * @see Deadline#makeCurrent()
+   */
+  @FunctionalInterface
+  public interface Scope extends AutoCloseable {
+
+    /**
+     * Restores the {@link Deadline} that was current before this
+     * {@link Scope} was created.
+     */
+    @Override
+    public void close();
+
+  }
+
+}
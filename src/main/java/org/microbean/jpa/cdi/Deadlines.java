@@ -0,0 +1,581 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.lang.management.ManagementFactory;
+
+import java.lang.reflect.Method;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.LockModeType;
+import javax.persistence.Query;
+import javax.persistence.QueryTimeoutException;
+import javax.persistence.StoredProcedureQuery;
+import javax.persistence.TypedQuery;
+
+import javax.persistence.spi.PersistenceUnitInfo;
+
+import javax.sql.DataSource;
+
+/**
+ * An enforcer of {@linkplain Deadline#current() current} {@link
+ * Deadline}s for the work done against a persistence unit.
+ *
+ * <p>Whenever a {@link Deadline} is current on the thread that
+ * executes a query or a statement:</p>
+ *
+ * <ul>
+ *
+ * <li>queries created by {@link EntityManager}s obtained from an
+ * {@linkplain #wrap(EntityManagerFactory) wrapped}
+ * <code>EntityManagerFactory</code>, and their {@linkplain
+ * EntityManager#find(Class, Object) finds}, carry a {@value
+ * #QUERY_TIMEOUT_HINT} hint no longer than the time remaining;</li>
+ *
+ * <li>statements created on connections obtained from a {@linkplain
+ * #wrap(DataSource) wrapped} {@link DataSource} have their
+ * {@linkplain Statement#setQueryTimeout(int) query timeout} lowered
+ * to the time remaining, rounded up to the next second, and are
+ * {@linkplain Statement#cancel() cancelled} the moment the {@link
+ * Deadline} expires if they are still running; and</li>
+ *
+ * <li>queries and statements whose {@link Deadline} has already
+ * expired are not executed at all, but fail with a {@link
+ * QueryTimeoutException} or {@link SQLTimeoutException}
+ * respectively.</li>
+ *
+ * </ul>
+ *
+ * <p>Abandoned work therefore stops holding connections soon after
+ * its caller has given up, which matters most when the database is
+ * overloaded.</p>
+ *
+ * <p>The {@link JpaExtension} creates a {@link Deadlines} for every
+ * persistence unit whose properties include a property named {@value
+ * #ENABLED_PROPERTY_NAME} whose value is {@code true}, makes it
+ * available as a bean qualified with the {@linkplain
+ * javax.inject.Named name} of the persistence unit, registers it as
+ * a {@link DeadlinesMXBean} and applies it to the persistence unit's
+ * {@link DataSource}s and {@link EntityManagerFactory}.</p>
+ *
+ * <p>Instances of this class are safe for concurrent use by multiple
+ * threads.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see Deadline
+ *
+ * @see DeadlinesMXBean
+ */
+public class Deadlines implements AutoCloseable, DeadlinesMXBean {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  /**
+   * The name of the persistence unit property that, if set to {@code
+   * true}, causes {@link Deadline}s to be enforced for that
+   * persistence unit.
+   */
+  public static final String ENABLED_PROPERTY_NAME = "org.microbean.jpa.cdi.deadlines.enabled";
+
+  /**
+   * The standard query timeout hint, whose value is in milliseconds
+   * ({@value}).
+   */
+  public static final String QUERY_TIMEOUT_HINT = "javax.persistence.query.timeout";
+
+  private static final Logger logger = Logger.getLogger(Deadlines.class.getName());
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final String name;
+
+  private final ScheduledThreadPoolExecutor canceller;
+
+  private final LongAdder expired;
+
+  private final LongAdder timeouts;
+
+  private final LongAdder cancellations;
+
+  private volatile ObjectName objectName;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link Deadlines}.
+   *
+   * @param name the name of the persistence unit; must not be {@code
+   * null}
+   *
+   * @exception NullPointerException if {@code name} is {@code null}
+   */
+  public Deadlines(final String name) {
+    super();
+    this.name = Objects.requireNonNull(name);
+    this.canceller = new ScheduledThreadPoolExecutor(1, runnable -> {
+        final Thread thread = new Thread(runnable, "microbean-jpa-cdi-deadlines-" + name);
+        thread.setDaemon(true);
+        return thread;
+      });
+    this.canceller.setRemoveOnCancelPolicy(true);
+    this.expired = new LongAdder();
+    this.timeouts = new LongAdder();
+    this.cancellations = new LongAdder();
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns the name of the persistence unit this {@link Deadlines}
+   * enforces {@link Deadline}s for.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return the non-{@code null} name of the persistence unit
+   */
+  public final String getName() {
+    return this.name;
+  }
+
+  @Override
+  public final long getExpiredCount() {
+    return this.expired.sum();
+  }
+
+  @Override
+  public final long getTimeoutCount() {
+    return this.timeouts.sum();
+  }
+
+  @Override
+  public final long getCancellationCount() {
+    return this.cancellations.sum();
+  }
+
+  /**
+   * Adds {@code javax.persistence.jtaDataSource} and {@code
+   * javax.persistence.nonJtaDataSource} properties to the supplied
+   * {@link Map} whose values {@linkplain #wrap(DataSource) wrap} the
+   * {@link DataSource}s already present in it or, if there are none,
+   * those of the supplied {@link PersistenceUnitInfo}.
+   *
+   * @param properties the {@link Map} of properties that will be
+   * supplied to the {@link
+   * javax.persistence.spi.PersistenceProvider#createContainerEntityManagerFactory(PersistenceUnitInfo,
+   * Map)} method; must not be {@code null}
+   *
+   * @param persistenceUnitInfo the {@link PersistenceUnitInfo}; must
+   * not be {@code null}
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   */
+  public void apply(final Map<? super String, Object> properties, final PersistenceUnitInfo persistenceUnitInfo) {
+    Objects.requireNonNull(properties);
+    Objects.requireNonNull(persistenceUnitInfo);
+    Object jtaDataSource = properties.get("javax.persistence.jtaDataSource");
+    if (!(jtaDataSource instanceof DataSource)) {
+      jtaDataSource = persistenceUnitInfo.getJtaDataSource();
+    }
+    if (jtaDataSource != null) {
+      properties.put("javax.persistence.jtaDataSource", this.wrap((DataSource)jtaDataSource));
+    }
+    Object nonJtaDataSource = properties.get("javax.persistence.nonJtaDataSource");
+    if (!(nonJtaDataSource instanceof DataSource)) {
+      nonJtaDataSource = persistenceUnitInfo.getNonJtaDataSource();
+    }
+    if (nonJtaDataSource != null) {
+      properties.put("javax.persistence.nonJtaDataSource", this.wrap((DataSource)nonJtaDataSource));
+    }
+  }
+
+  /**
+   * Returns a {@link DataSource} whose {@link Connection}s create
+   * statements that honor the {@linkplain Deadline#current() current}
+   * {@link Deadline}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param dataSource the {@link DataSource} to wrap; must not be
+   * {@code null}
+   *
+   * @return a non-{@code null} {@link DataSource}
+   *
+   * @exception NullPointerException if {@code dataSource} is {@code
+   * null}
+   */
+  public DataSource wrap(final DataSource dataSource) {
+    Objects.requireNonNull(dataSource);
+    return Proxies.newProxyInstance(Deadlines.class.getClassLoader(),
+                                    DataSource.class,
+                                    (proxy, method, arguments) -> {
+                                      final Object returnValue = Proxies.invoke(dataSource, method, arguments);
+                                      if (returnValue instanceof Connection && "getConnection".equals(method.getName())) {
+                                        return this.enforce((Connection)returnValue);
+                                      }
+                                      return returnValue;
+                                    });
+  }
+
+  private final Connection enforce(final Connection connection) {
+    assert connection != null;
+    return Proxies.newProxyInstance(Deadlines.class.getClassLoader(),
+                                    Connection.class,
+                                    (proxy, method, arguments) -> {
+                                      final Object returnValue = Proxies.invoke(connection, method, arguments);
+                                      if (returnValue instanceof Statement) {
+                                        return this.enforce((Statement)returnValue, method.getReturnType());
+                                      }
+                                      return returnValue;
+                                    });
+  }
+
+  private final Statement enforce(final Statement statement, final Class<?> interfaceType) {
+    assert statement != null;
+    assert Statement.class.isAssignableFrom(interfaceType);
+    return (Statement)Proxies.newProxyInstance(Deadlines.class.getClassLoader(),
+                                               interfaceType,
+                                               (proxy, method, arguments) -> {
+                                                 final Deadline deadline = Deadline.current();
+                                                 if (deadline == null || !method.getName().startsWith("execute")) {
+                                                   return Proxies.invoke(statement, method, arguments);
+                                                 }
+                                                 return this.execute(statement, method, arguments, deadline);
+                                               });
+  }
+
+  private final Object execute(final Statement statement,
+                               final Method method,
+                               final Object[] arguments,
+                               final Deadline deadline)
+    throws Throwable {
+    assert statement != null;
+    assert method != null;
+    assert deadline != null;
+    final long remainingNanos = deadline.remainingNanos();
+    if (remainingNanos <= 0L) {
+      this.expired.increment();
+      throw new SQLTimeoutException("Deadline expired before the statement was executed");
+    }
+    final int originalQueryTimeout = statement.getQueryTimeout();
+    final int queryTimeout = (int)Math.min(Integer.MAX_VALUE, deadline.remaining(TimeUnit.SECONDS));
+    if (originalQueryTimeout <= 0 || queryTimeout < originalQueryTimeout) {
+      statement.setQueryTimeout(queryTimeout);
+    }
+    final AtomicBoolean cancelled = new AtomicBoolean();
+    final ScheduledFuture<?> cancellation = this.canceller.schedule(() -> {
+        cancelled.set(true);
+        try {
+          statement.cancel();
+          this.cancellations.increment();
+        } catch (final SQLException sqlException) {
+          if (logger.isLoggable(Level.FINE)) {
+            logger.logp(Level.FINE, Deadlines.class.getName(), "execute", sqlException.getMessage(), sqlException);
+          }
+        }
+      }, remainingNanos, TimeUnit.NANOSECONDS);
+    try {
+      return Proxies.invoke(statement, method, arguments);
+    } catch (final SQLException sqlException) {
+      if (cancelled.get() || sqlException instanceof SQLTimeoutException) {
+        this.timeouts.increment();
+        if (!(sqlException instanceof SQLTimeoutException)) {
+          throw new SQLTimeoutException("Deadline expired while the statement was executing",
+                                        sqlException.getSQLState(),
+                                        sqlException.getErrorCode(),
+                                        sqlException);
+        }
+      }
+      throw sqlException;
+    } finally {
+      cancellation.cancel(false);
+      if (!statement.isClosed() && statement.getQueryTimeout() != originalQueryTimeout) {
+        statement.setQueryTimeout(originalQueryTimeout);
+      }
+    }
+  }
+
+  /**
+   * Returns an {@link EntityManagerFactory} whose {@link
+   * EntityManager}s apply a {@value #QUERY_TIMEOUT_HINT} hint derived
+   * from the {@linkplain Deadline#current() current} {@link Deadline}
+   * to their queries and finds.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param entityManagerFactory the {@link EntityManagerFactory} to
+   * wrap; must not be {@code null}
+   *
+   * @return a non-{@code null} {@link EntityManagerFactory}
+   *
+   * @exception NullPointerException if {@code entityManagerFactory}
+   * is {@code null}
+   */
+  public EntityManagerFactory wrap(final EntityManagerFactory entityManagerFactory) {
+    Objects.requireNonNull(entityManagerFactory);
+    return Proxies.newProxyInstance(Deadlines.class.getClassLoader(),
+                                    EntityManagerFactory.class,
+                                    (proxy, method, arguments) -> {
+                                      final Object returnValue = Proxies.invoke(entityManagerFactory, method, arguments);
+                                      if (returnValue instanceof EntityManager) {
+                                        return this.enforce((EntityManager)returnValue);
+                                      }
+                                      return returnValue;
+                                    });
+  }
+
+  private final EntityManager enforce(final EntityManager entityManager) {
+    assert entityManager != null;
+    return Proxies.newProxyInstance(Deadlines.class.getClassLoader(),
+                                    EntityManager.class,
+                                    (proxy, method, arguments) -> {
+                                      switch (method.getName()) {
+                                      case "find":
+                                        final Deadline deadline = Deadline.current();
+                                        return deadline == null ?
+                                          Proxies.invoke(entityManager, method, arguments) :
+                                          this.find(entityManager, method, arguments, deadline);
+                                      case "createQuery":
+                                      case "createNamedQuery":
+                                      case "createNativeQuery":
+                                      case "createStoredProcedureQuery":
+                                      case "createNamedStoredProcedureQuery":
+                                        final Query query = (Query)Proxies.invoke(entityManager, method, arguments);
+                                        return query == null ? null : this.enforce(query, method.getReturnType());
+                                      default:
+                                        return Proxies.invoke(entityManager, method, arguments);
+                                      }
+                                    });
+  }
+
+  private final Object find(final EntityManager entityManager,
+                            final Method method,
+                            final Object[] arguments,
+                            final Deadline deadline) {
+    assert entityManager != null;
+    assert method != null;
+    assert arguments != null;
+    assert deadline != null;
+    final Class<?>[] parameterTypes = method.getParameterTypes();
+    @SuppressWarnings("unchecked")
+    final Map<String, Object> suppliedProperties =
+      Map.class.equals(parameterTypes[parameterTypes.length - 1]) ? (Map<String, Object>)arguments[arguments.length - 1] : null;
+    final Map<String, Object> properties = suppliedProperties == null ? new HashMap<>() : new HashMap<>(suppliedProperties);
+    properties.put(QUERY_TIMEOUT_HINT, this.timeoutHint(toMillis(properties.get(QUERY_TIMEOUT_HINT)), deadline));
+    if (parameterTypes.length >= 3 && LockModeType.class.equals(parameterTypes[2])) {
+      return entityManager.find((Class<?>)arguments[0], arguments[1], (LockModeType)arguments[2], properties);
+    }
+    return entityManager.find((Class<?>)arguments[0], arguments[1], properties);
+  }
+
+  private final Query enforce(final Query query, final Class<?> interfaceType) {
+    assert query != null;
+    final Class<?> proxyType;
+    if (query instanceof StoredProcedureQuery) {
+      proxyType = StoredProcedureQuery.class;
+    } else if (query instanceof TypedQuery && TypedQuery.class.isAssignableFrom(interfaceType)) {
+      proxyType = TypedQuery.class;
+    } else {
+      proxyType = Query.class;
+    }
+    // The timeout the application asked for, in milliseconds, or 0;
+    // restored on executions without a deadline.
+    final long[] requestedTimeout = new long[] { toMillis(query.getHints().get(QUERY_TIMEOUT_HINT)) };
+    final boolean[] overridden = new boolean[1];
+    return (Query)Proxies.newProxyInstance(Deadlines.class.getClassLoader(),
+                                           proxyType,
+                                           (proxy, method, arguments) -> {
+                                             switch (method.getName()) {
+                                             case "setHint":
+                                               if (QUERY_TIMEOUT_HINT.equals(arguments[0])) {
+                                                 requestedTimeout[0] = toMillis(arguments[1]);
+                                                 overridden[0] = false;
+                                               }
+                                               break;
+                                             case "getResultList":
+                                             case "getResultStream":
+                                             case "getSingleResult":
+                                             case "executeUpdate":
+                                             case "execute":
+                                               final Deadline deadline = Deadline.current();
+                                               if (deadline != null) {
+                                                 query.setHint(QUERY_TIMEOUT_HINT, this.timeoutHint(requestedTimeout[0], deadline));
+                                                 overridden[0] = true;
+                                               } else if (overridden[0]) {
+                                                 query.setHint(QUERY_TIMEOUT_HINT, Integer.valueOf((int)requestedTimeout[0]));
+                                                 overridden[0] = false;
+                                               }
+                                               break;
+                                             default:
+                                               break;
+                                             }
+                                             final Object returnValue = Proxies.invoke(query, method, arguments);
+                                             // Keep fluent setters on the enforcing query.
+                                             return returnValue == query ? proxy : returnValue;
+                                           });
+  }
+
+  /**
+   * Returns the value of a {@value #QUERY_TIMEOUT_HINT} hint that is
+   * no longer than the supplied requested timeout (if it is
+   * positive) or the time remaining until the supplied {@link
+   * Deadline}.
+   *
+   * @exception QueryTimeoutException if {@code deadline} has expired
+   */
+  private final Integer timeoutHint(final long requestedTimeoutMillis, final Deadline deadline) {
+    assert deadline != null;
+    final long remainingMillis = deadline.remaining(TimeUnit.MILLISECONDS);
+    if (remainingMillis <= 0L) {
+      this.expired.increment();
+      throw new QueryTimeoutException("Deadline expired before the query was executed");
+    }
+    final long timeoutMillis =
+      requestedTimeoutMillis > 0L ? Math.min(requestedTimeoutMillis, remainingMillis) : remainingMillis;
+    return Integer.valueOf((int)Math.min(Integer.MAX_VALUE, timeoutMillis));
+  }
+
+  /**
+   * Registers this {@link Deadlines} with the {@linkplain
+   * ManagementFactory#getPlatformMBeanServer() platform MBean server}
+   * under an {@link ObjectName} of the form {@code
+   * org.microbean.jpa.cdi:type=Deadlines,name=<name>}.
+   *
+   * @exception IllegalStateException if registration failed
+   *
+   * @see #close()
+   */
+  public final void register() {
+    final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    try {
+      final ObjectName objectName =
+        new ObjectName("org.microbean.jpa.cdi:type=Deadlines,name=" + ObjectName.quote(this.name));
+      mBeanServer.registerMBean(this, objectName);
+      this.objectName = objectName;
+    } catch (final JMException jmException) {
+      throw new IllegalStateException(jmException.getMessage(), jmException);
+    }
+  }
+
+  /**
+   * Stops the thread that cancels statements and unregisters this
+   * {@link Deadlines} from the {@linkplain
+   * ManagementFactory#getPlatformMBeanServer() platform MBean server}
+   * if it was {@linkplain #register() registered}.
+   *
+   * @see #register()
+   */
+  @Override
+  public void close() {
+    this.canceller.shutdownNow();
+    final ObjectName objectName = this.objectName;
+    if (objectName != null) {
+      this.objectName = null;
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (final JMException jmException) {
+        // Already unregistered by someone else; nothing to do.
+      }
+    }
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Creates and returns a new {@link Deadlines} for the persistence
+   * unit with the supplied name, or {@code null} if the persistence
+   * unit property named {@value #ENABLED_PROPERTY_NAME} is not {@code
+   * true}.
+   *
+   * @param name the name of the persistence unit; must not be {@code
+   * null}
+   *
+   * @param unitProperties the properties of the persistence unit; may
+   * be {@code null}
+   *
+   * @return a new {@link Deadlines}, or {@code null}
+   *
+   * @exception NullPointerException if {@code name} is {@code null}
+   */
+  static final Deadlines fromProperties(final String name, final Map<?, ?> unitProperties) {
+    Objects.requireNonNull(name);
+    if (!UnitProperties.getBoolean(unitProperties, ENABLED_PROPERTY_NAME, false)) {
+      return null;
+    }
+    return new Deadlines(name);
+  }
+
+  private static final long toMillis(final Object hintValue) {
+    if (hintValue instanceof Number) {
+      return ((Number)hintValue).longValue();
+    } else if (hintValue instanceof String) {
+      try {
+        return Long.parseLong(((String)hintValue).trim());
+      } catch (final NumberFormatException numberFormatException) {
+        return 0L;
+      }
+    }
+    return 0L;
+  }
+
+}
@@ -0,0 +1,62 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+/**
+ * A management interface exposing the metrics of a {@link
+ * Deadlines}.
+ *
+ * <p>A {@link Deadlines} created by the {@link JpaExtension} is
+ * registered with the {@linkplain
+ * java.lang.management.ManagementFactory#getPlatformMBeanServer()
+ * platform MBean server} under an {@link javax.management.ObjectName}
+ * of the form {@code
+ * org.microbean.jpa.cdi:type=Deadlines,name=<persistenceUnitName>}.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see Deadlines
+ */
+public interface DeadlinesMXBean {
+
+  /**
+   * Returns the total number of queries and statements that were
+   * refused because their {@link Deadline} had already expired.
+   *
+   * @return the total number of refused queries and statements
+   */
+  public long getExpiredCount();
+
+  /**
+   * Returns the total number of statements that failed because
+   * their {@link Deadline} expired while they were running.
+   *
+   * @return the total number of statements that timed out
+   */
+  public long getTimeoutCount();
+
+  /**
+   * Returns the total number of statements that were {@linkplain
+   * java.sql.Statement#cancel() cancelled} because their {@link
+   * Deadline} expired while they were running.
+   *
+   * @return the total number of cancelled statements
+   */
+  public long getCancellationCount();
+
+}
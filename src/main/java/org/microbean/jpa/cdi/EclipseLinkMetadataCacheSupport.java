@@ -0,0 +1,104 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.nio.file.Path;
+
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A {@link MetadataCacheSupport} that configures EclipseLink's
+ * project cache, which serializes the processed mapping project to a
+ * file and reads it back on later deployments instead of processing
+ * annotations and mapping files.
+ *
+ * <p>This implementation sets the {@value #PROJECT_CACHE} property to
+ * {@code java-serialization} and the {@value #FILE_LOCATION} property
+ * to the cache file.  EclipseLink writes the file itself the first
+ * time a persistence unit is deployed without it.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see MetadataCache
+ */
+public final class EclipseLinkMetadataCacheSupport implements MetadataCacheSupport {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  /**
+   * The name of the EclipseLink property that selects the kind of
+   * project cache ({@value}).
+   */
+  public static final String PROJECT_CACHE = "eclipselink.project-cache";
+
+  /**
+   * The name of the EclipseLink property whose value is the location
+   * of a serialized project cache ({@value}).
+   */
+  public static final String FILE_LOCATION = "eclipselink.project-cache.java-serialization.file-location";
+
+  private static final String ECLIPSELINK_PACKAGE_PREFIX = "org.eclipse.persistence.";
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link EclipseLinkMetadataCacheSupport}.
+   */
+  public EclipseLinkMetadataCacheSupport() {
+    super();
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  @Override
+  public final boolean supports(final String persistenceProviderClassName) {
+    return persistenceProviderClassName != null && persistenceProviderClassName.startsWith(ECLIPSELINK_PACKAGE_PREFIX);
+  }
+
+  /**
+   * Returns {@code .ser}.
+   *
+   * @return {@code .ser}
+   */
+  @Override
+  public final String getFileSuffix() {
+    return ".ser";
+  }
+
+  @Override
+  public final void apply(final Path cacheFile, final Map<String, Object> properties) {
+    Objects.requireNonNull(cacheFile);
+    Objects.requireNonNull(properties);
+    properties.put(PROJECT_CACHE, "java-serialization");
+    properties.put(FILE_LOCATION, cacheFile.toAbsolutePath().toString());
+  }
+
+}
@@ -0,0 +1,794 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import java.util.function.Function;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+import javax.persistence.PersistenceUnitUtil;
+
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.EntityType;
+
+import javax.sql.DataSource;
+
+/**
+ * A source of entity identifiers drawn in large blocks from a database
+ * sequence and shared by every {@link EntityManagerFactory} that uses
+ * the same database and sequence.
+ *
+ * <p>Each value a sequence returns reserves a block of identifiers:
+ * the value {@code v} of a sequence that increments by the block size
+ * {@code n} reserves {@code v - n + 1} through {@code v}, which is
+ * how EclipseLink and Hibernate's pooled optimizer interpret such
+ * sequences too.  An {@link IdAllocator} hands out identifiers from
+ * one block per stripe, with as many stripes as there are processors,
+ * so that threads rarely contend for the same block and never wait
+ * for a lock.  It keeps as many spare blocks as it has stripes,
+ * reserving more on a background thread whenever a stripe takes one,
+ * so that a database round trip is only made on the thread that
+ * wants an identifier when the spare blocks have run out.
+ * Identifiers are therefore unique but neither contiguous nor
+ * ordered, and any identifiers left in blocks when the JVM exits are
+ * never used.</p>
+ *
+ * <p>{@link IdAllocator}s are shared: {@link #get(DataSource, String,
+ * int)} returns the same {@link IdAllocator} for every {@link
+ * DataSource} connected to the same database URL as the same user,
+ * so that several {@link EntityManagerFactory} instances (for
+ * example, those of {@linkplain TenantPersistenceUnits tenants} that
+ * share a schema) share blocks instead of each reserving its
+ * own.</p>
+ *
+ * <p>The {@link JpaExtension} {@linkplain
+ * #wrap(EntityManagerFactory, DataSource, int) wraps} the {@link
+ * EntityManagerFactory} of every persistence unit whose properties
+ * include a property named {@value #ENABLED_PROPERTY_NAME} whose value
+ * is {@code true}, so that entities whose identifier attribute is
+ * annotated with {@link PooledId} are assigned identifiers from an
+ * {@link IdAllocator} when they are {@linkplain
+ * EntityManager#persist(Object) persisted} or {@linkplain
+ * EntityManager#merge(Object) merged}.  The block size is the value
+ * of the {@value #BLOCK_SIZE_PROPERTY_NAME} property and must match
+ * the increment of the sequences involved.</p>
+ *
+ * <p>Identifiers are assigned before the persistence provider sees
+ * the entity, to the entity itself and to the new entities reachable
+ * from it through loaded relationships, so that entities persisted
+ * or merged by cascading receive identifiers too.  A new entity that
+ * is instead added to a relationship of an entity that is already
+ * managed, and that is persisted only when the persistence provider
+ * cascades at flush time, never passes through an {@link
+ * EntityManager} method and so is not assigned an identifier; such
+ * entities must be persisted explicitly.  Relationships held by
+ * embeddable attributes are not followed.</p>
+ *
+ * <p>Instances of this class are safe for concurrent use by multiple
+ * threads.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see PooledId
+ *
+ * @see #next()
+ */
+public final class IdAllocator {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  /**
+   * The name of the persistence unit property that, if set to {@code
+   * true}, causes {@link PooledId}-annotated identifiers to be
+   * assigned by {@link IdAllocator}s.
+   */
+  public static final String ENABLED_PROPERTY_NAME = "org.microbean.jpa.cdi.idAllocator.enabled";
+
+  /**
+   * The name of the persistence unit property whose value is the
+   * number of identifiers each sequence value reserves.
+   *
+   * @see #DEFAULT_BLOCK_SIZE
+   */
+  public static final String BLOCK_SIZE_PROPERTY_NAME = "org.microbean.jpa.cdi.idAllocator.blockSize";
+
+  /**
+   * The default number of identifiers each sequence value reserves
+   * ({@value}).
+   */
+  public static final int DEFAULT_BLOCK_SIZE = 1000;
+
+  private static final ConcurrentMap<List<String>, IdAllocator> allocators = new ConcurrentHashMap<>();
+
+  private static final ClassValue<IdAttribute> idAttributes = new ClassValue<IdAttribute>() {
+      @Override
+      protected final IdAttribute computeValue(final Class<?> entityClass) {
+        return IdAttribute.of(entityClass);
+      }
+    };
+
+  private static final Executor reservationExecutor = Executors.newCachedThreadPool(runnable -> {
+      final Thread thread = new Thread(runnable, "microbean-jpa-cdi-id-allocator");
+      thread.setDaemon(true);
+      return thread;
+    });
+
+  private static final Logger logger = Logger.getLogger(IdAllocator.class.getName());
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final String sequenceName;
+
+  private final int blockSize;
+
+  private final AtomicReferenceArray<Block> stripes;
+
+  private final ConcurrentLinkedQueue<Block> spares;
+
+  // The number of blocks in spares; ConcurrentLinkedQueue's own size()
+  // is linear.
+  private final AtomicInteger spareCount;
+
+  private final AtomicBoolean reserving;
+
+  private final LongAdder reservations;
+
+  private final DataSource dataSource;
+
+  private final List<DataSource> dataSources;
+
+  private volatile String nextValueSql;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new, unshared {@link IdAllocator}.
+   *
+   * <p>Most users will want to use the {@link #get(DataSource, String,
+   * int)} method instead.</p>
+   *
+   * @param dataSource the {@link DataSource} from which sequence
+   * values are obtained; must not be {@code null}
+   *
+   * @param sequenceName the name of the sequence; must not be {@code
+   * null}
+   *
+   * @param blockSize the number of identifiers each sequence value
+   * reserves, which must be the sequence's increment; must be greater
+   * than {@code 0}
+   *
+   * @param stripes the number of blocks identifiers are handed out
+   * from concurrently; must be greater than {@code 0}
+   *
+   * @exception NullPointerException if {@code dataSource} or {@code
+   * sequenceName} is {@code null}
+   *
+   * @exception IllegalArgumentException if {@code blockSize} or
+   * {@code stripes} is less than {@code 1}
+   */
+  public IdAllocator(final DataSource dataSource, final String sequenceName, final int blockSize, final int stripes) {
+    super();
+    this.dataSource = Objects.requireNonNull(dataSource);
+    this.dataSources = new CopyOnWriteArrayList<>();
+    this.sequenceName = Objects.requireNonNull(sequenceName);
+    if (blockSize < 1) {
+      throw new IllegalArgumentException("blockSize < 1: " + blockSize);
+    }
+    if (stripes < 1) {
+      throw new IllegalArgumentException("stripes < 1: " + stripes);
+    }
+    this.blockSize = blockSize;
+    this.stripes = new AtomicReferenceArray<>(stripes);
+    this.spares = new ConcurrentLinkedQueue<>();
+    this.spareCount = new AtomicInteger();
+    this.reserving = new AtomicBoolean();
+    this.reservations = new LongAdder();
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns the name of the sequence this {@link IdAllocator} draws
+   * on.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return the non-{@code null} name of the sequence
+   */
+  public final String getSequenceName() {
+    return this.sequenceName;
+  }
+
+  /**
+   * Returns the number of identifiers each sequence value reserves.
+   *
+   * @return the block size; always greater than {@code 0}
+   */
+  public final int getBlockSize() {
+    return this.blockSize;
+  }
+
+  /**
+   * Returns the number of sequence values, and hence database round
+   * trips, this {@link IdAllocator} has reserved so far.
+   *
+   * @return the number of reservations; never negative
+   */
+  public final long getReservationCount() {
+    return this.reservations.sum();
+  }
+
+  /**
+   * Returns a new identifier.
+   *
+   * <p>This method does not block unless no spare block has been
+   * reserved in time, in which case it reserves one on the calling
+   * thread.</p>
+   *
+   * @return a new identifier
+   *
+   * @exception PersistenceException if a block could not be reserved
+   */
+  public long next() {
+    final int index = (int)(Thread.currentThread().getId() % this.stripes.length());
+    while (true) {
+      final Block block = this.stripes.get(index);
+      if (block != null) {
+        final long id = block.next.getAndIncrement();
+        if (id < block.limit) {
+          return id;
+        }
+      }
+      Block replacement = this.spares.poll();
+      if (replacement == null) {
+        try {
+          replacement = this.reserve();
+        } catch (final SQLException sqlException) {
+          throw new PersistenceException(sqlException.getMessage(), sqlException);
+        }
+      } else {
+        this.spareCount.decrementAndGet();
+      }
+      this.prefetch();
+      if (!this.stripes.compareAndSet(index, block, replacement)) {
+        // Another thread replaced the exhausted block first; keep ours
+        // for later.
+        this.spares.offer(replacement);
+        this.spareCount.incrementAndGet();
+      }
+    }
+  }
+
+  private final void prefetch() {
+    if (this.spareCount.get() < this.stripes.length() && this.reserving.compareAndSet(false, true)) {
+      try {
+        reservationExecutor.execute(() -> {
+            try {
+              while (this.spareCount.get() < this.stripes.length()) {
+                this.spares.offer(this.reserve());
+                this.spareCount.incrementAndGet();
+              }
+            } catch (final SQLException | RuntimeException exception) {
+              // The next thread to run out will try again, on its own
+              // thread if need be.
+              if (logger.isLoggable(Level.WARNING)) {
+                logger.logp(Level.WARNING, IdAllocator.class.getName(), "prefetch", exception.getMessage(), exception);
+              }
+            } finally {
+              this.reserving.set(false);
+            }
+          });
+      } catch (final RejectedExecutionException rejectedExecutionException) {
+        this.reserving.set(false);
+      }
+    }
+  }
+
+  /**
+   * Releases one use of the supplied {@link DataSource} obtained by
+   * the {@link #get(DataSource, String, int)} method, so that this
+   * {@link IdAllocator} no longer obtains sequence values from it
+   * once every such use has been released.
+   *
+   * @param dataSource the {@link DataSource}; may be {@code null} in
+   * which case no action will be taken
+   *
+   * @see #get(DataSource, String, int)
+   */
+  public final void release(final DataSource dataSource) {
+    if (dataSource != null) {
+      this.dataSources.remove(dataSource);
+    }
+  }
+
+  private final DataSource getDataSource() {
+    // The earliest DataSource still in use, or, if every use has been
+    // released, the one this IdAllocator was created with.
+    final Iterator<DataSource> iterator = this.dataSources.iterator();
+    return iterator.hasNext() ? iterator.next() : this.dataSource;
+  }
+
+  private final Block reserve() throws SQLException {
+    try (final Connection connection = this.getDataSource().getConnection()) {
+      String sql = this.nextValueSql;
+      if (sql == null) {
+        sql = nextValueSql(connection.getMetaData().getDatabaseProductName(), this.sequenceName);
+        this.nextValueSql = sql;
+      }
+      final long value;
+      try (final Statement statement = connection.createStatement();
+           final ResultSet resultSet = statement.executeQuery(sql)) {
+        if (!resultSet.next()) {
+          throw new SQLException("No value returned by " + sql);
+        }
+        value = resultSet.getLong(1);
+      }
+      if (!connection.getAutoCommit()) {
+        connection.commit();
+      }
+      this.reservations.increment();
+      return new Block(value - this.blockSize + 1L, value + 1L);
+    }
+  }
+
+  @Override
+  public final String toString() {
+    return "IdAllocator [" + this.sequenceName + ", blockSize=" + this.blockSize + "]";
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Returns the shared {@link IdAllocator} for the database to which
+   * the supplied {@link DataSource} connects and the sequence with
+   * the supplied name, creating it if necessary.
+   *
+   * <p>Databases are identified by the {@linkplain
+   * DatabaseMetaData#getURL() URL} and {@linkplain
+   * DatabaseMetaData#getUserName() user name} reported by one of the
+   * {@link DataSource}'s connections.  Each invocation records a use
+   * of the supplied {@link DataSource}, which should be {@linkplain
+   * #release(DataSource) released} when it is no longer usable.  The
+   * shared {@link IdAllocator} obtains sequence values from the
+   * earliest supplied {@link DataSource} whose uses have not all been
+   * released, so that a later caller never replaces the {@link
+   * DataSource} of earlier ones.</p>
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param dataSource the {@link DataSource}; must not be {@code null}
+   *
+   * @param sequenceName the name of the sequence; must not be {@code
+   * null}
+   *
+   * @param blockSize the number of identifiers each sequence value
+   * reserves; must be greater than {@code 0}
+   *
+   * @return a non-{@code null} {@link IdAllocator}
+   *
+   * @exception NullPointerException if {@code dataSource} or {@code
+   * sequenceName} is {@code null}
+   *
+   * @exception IllegalArgumentException if {@code blockSize} is less
+   * than {@code 1} or differs from the block size of the existing
+   * shared {@link IdAllocator}
+   *
+   * @exception PersistenceException if the database could not be
+   * identified
+   */
+  public static final IdAllocator get(final DataSource dataSource, final String sequenceName, final int blockSize) {
+    Objects.requireNonNull(dataSource);
+    Objects.requireNonNull(sequenceName);
+    final List<String> key;
+    try (final Connection connection = dataSource.getConnection()) {
+      final DatabaseMetaData metaData = connection.getMetaData();
+      key = Arrays.asList(metaData.getURL(), metaData.getUserName(), sequenceName);
+    } catch (final SQLException sqlException) {
+      throw new PersistenceException(sqlException.getMessage(), sqlException);
+    }
+    final IdAllocator returnValue =
+      allocators.computeIfAbsent(key, k -> new IdAllocator(dataSource, sequenceName, blockSize, Runtime.getRuntime().availableProcessors()));
+    if (returnValue.blockSize != blockSize) {
+      throw new IllegalArgumentException("blockSize != " + returnValue.blockSize + ": " + blockSize);
+    }
+    returnValue.dataSources.add(dataSource);
+    return returnValue;
+  }
+
+  /**
+   * Returns an {@link EntityManagerFactory} whose {@link
+   * EntityManager}s assign identifiers from shared {@link
+   * IdAllocator}s to the {@link PooledId}-annotated attributes of the
+   * entities {@linkplain EntityManager#persist(Object) persisted} or
+   * {@linkplain EntityManager#merge(Object) merged} through them, or
+   * reachable from those entities as described in the {@linkplain
+   * IdAllocator class documentation}, whose values are {@code null}
+   * or {@code 0}.
+   *
+   * <p>The uses of the supplied {@link DataSource} recorded with the
+   * shared {@link IdAllocator}s are {@linkplain #release(DataSource)
+   * released} when the returned {@link EntityManagerFactory} is
+   * {@linkplain EntityManagerFactory#close() closed}.</p>
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param entityManagerFactory the {@link EntityManagerFactory} to
+   * wrap; must not be {@code null}
+   *
+   * @param dataSource the {@link DataSource} from which sequence
+   * values are obtained; must not be {@code null}
+   *
+   * @param blockSize the number of identifiers each sequence value
+   * reserves; must be greater than {@code 0}
+   *
+   * @return a non-{@code null} {@link EntityManagerFactory}
+   *
+   * @exception NullPointerException if {@code entityManagerFactory}
+   * or {@code dataSource} is {@code null}
+   *
+   * @exception IllegalArgumentException if {@code blockSize} is less
+   * than {@code 1}, or if an entity class of the persistence unit has
+   * a {@link PooledId}-annotated attribute of an unsupported type
+   *
+   * @see #get(DataSource, String, int)
+   */
+  public static final EntityManagerFactory wrap(final EntityManagerFactory entityManagerFactory,
+                                                final DataSource dataSource,
+                                                final int blockSize) {
+    Objects.requireNonNull(entityManagerFactory);
+    Objects.requireNonNull(dataSource);
+    if (blockSize < 1) {
+      throw new IllegalArgumentException("blockSize < 1: " + blockSize);
+    }
+    boolean pooledIds = false;
+    for (final EntityType<?> entityType : entityManagerFactory.getMetamodel().getEntities()) {
+      final Class<?> javaType = entityType.getJavaType();
+      if (javaType != null && idAttributes.get(javaType) != IdAttribute.NONE) {
+        pooledIds = true;
+        break;
+      }
+    }
+    if (!pooledIds) {
+      return entityManagerFactory;
+    }
+    // Resolved lazily, since identifying the database requires a
+    // connection.
+    final ConcurrentMap<String, IdAllocator> unitAllocators = new ConcurrentHashMap<>();
+    final Function<String, IdAllocator> allocatorFunction =
+      sequenceName -> unitAllocators.computeIfAbsent(sequenceName, n -> get(dataSource, n, blockSize));
+    return Proxies.newProxyInstance(IdAllocator.class.getClassLoader(),
+                                    EntityManagerFactory.class,
+                                    (proxy, method, arguments) -> {
+                                      if ("close".equals(method.getName())) {
+                                        try {
+                                          return Proxies.invoke(entityManagerFactory, method, arguments);
+                                        } finally {
+                                          for (final IdAllocator allocator : unitAllocators.values()) {
+                                            allocator.release(dataSource);
+                                          }
+                                          unitAllocators.clear();
+                                        }
+                                      }
+                                      final Object returnValue = Proxies.invoke(entityManagerFactory, method, arguments);
+                                      if (returnValue instanceof EntityManager) {
+                                        return assigning((EntityManager)returnValue, allocatorFunction);
+                                      }
+                                      return returnValue;
+                                    });
+  }
+
+  private static final EntityManager assigning(final EntityManager entityManager,
+                                               final Function<? super String, ? extends IdAllocator> allocatorFunction) {
+    assert entityManager != null;
+    assert allocatorFunction != null;
+    return Proxies.newProxyInstance(IdAllocator.class.getClassLoader(),
+                                    EntityManager.class,
+                                    (proxy, method, arguments) -> {
+                                      switch (method.getName()) {
+                                      case "persist":
+                                      case "merge":
+                                        if (arguments != null && arguments.length == 1) {
+                                          assign(entityManager,
+                                                 arguments[0],
+                                                 allocatorFunction,
+                                                 Collections.newSetFromMap(new IdentityHashMap<>()));
+                                        }
+                                        break;
+                                      default:
+                                        break;
+                                      }
+                                      return Proxies.invoke(entityManager, method, arguments);
+                                    });
+  }
+
+  /**
+   * Assigns identifiers to the supplied entity, if it is new and its
+   * {@link PooledId}-annotated attribute is unassigned, and to the
+   * entities reachable from it through loaded relationships.
+   *
+   * <p>Entities that the supplied {@link EntityManager} already
+   * manages already have identifiers, so relationships are not
+   * followed through them; nor are unloaded relationships, which
+   * would otherwise be loaded.</p>
+   */
+  private static final void assign(final EntityManager entityManager,
+                                   final Object entity,
+                                   final Function<? super String, ? extends IdAllocator> allocatorFunction,
+                                   final Set<Object> visited)
+    throws ReflectiveOperationException {
+    if (entity == null || !visited.add(entity)) {
+      return;
+    }
+    final EntityType<?> entityType;
+    try {
+      entityType = entityManager.getMetamodel().entity(entity.getClass());
+    } catch (final IllegalArgumentException notAnEntity) {
+      // Not an entity class (or a persistence provider's proxy
+      // class); the persistence provider will reject it if need be.
+      return;
+    }
+    if (entityManager.contains(entity)) {
+      return;
+    }
+    final IdAttribute idAttribute = idAttributes.get(entity.getClass());
+    if (idAttribute != IdAttribute.NONE && idAttribute.isUnassigned(entity)) {
+      idAttribute.assign(entity, allocatorFunction.apply(idAttribute.sequenceName).next());
+    }
+    final PersistenceUnitUtil persistenceUnitUtil = entityManager.getEntityManagerFactory().getPersistenceUnitUtil();
+    for (final Attribute<?, ?> attribute : entityType.getAttributes()) {
+      if (attribute.isAssociation() && persistenceUnitUtil.isLoaded(entity, attribute.getName())) {
+        final Object value = get(attribute.getJavaMember(), entity);
+        if (value instanceof Collection) {
+          for (final Object element : (Collection<?>)value) {
+            assign(entityManager, element, allocatorFunction, visited);
+          }
+        } else if (value instanceof Map) {
+          for (final Object element : ((Map<?, ?>)value).values()) {
+            assign(entityManager, element, allocatorFunction, visited);
+          }
+        } else {
+          assign(entityManager, value, allocatorFunction, visited);
+        }
+      }
+    }
+  }
+
+  private static final Object get(final Member member, final Object entity) throws ReflectiveOperationException {
+    if (member instanceof Field) {
+      final Field field = (Field)member;
+      IdAttribute.setAccessible(field);
+      return field.get(entity);
+    } else if (member instanceof Method) {
+      final Method getter = (Method)member;
+      IdAttribute.setAccessible(getter);
+      return getter.invoke(entity);
+    } else {
+      return null;
+    }
+  }
+
+  private static final String nextValueSql(final String databaseProductName, final String sequenceName) {
+    assert sequenceName != null;
+    final String productName = databaseProductName == null ? "" : databaseProductName;
+    if (productName.startsWith("PostgreSQL")) {
+      return "SELECT nextval('" + sequenceName + "')";
+    } else if (productName.startsWith("Oracle")) {
+      return "SELECT " + sequenceName + ".NEXTVAL FROM DUAL";
+    } else if (productName.startsWith("Apache Derby") || productName.startsWith("DB2")) {
+      return "VALUES NEXT VALUE FOR " + sequenceName;
+    } else {
+      // H2, HSQLDB, SQL Server and others following SQL:2003.
+      return "SELECT NEXT VALUE FOR " + sequenceName;
+    }
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * A reserved range of identifiers.
+   *
+   * @author <a href="https://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   */
+  private static final class Block {
+
+    private final AtomicLong next;
+
+    // Exclusive.
+    private final long limit;
+
+    private Block(final long first, final long limit) {
+      super();
+      this.next = new AtomicLong(first);
+      this.limit = limit;
+    }
+
+  }
+
+  /**
+   * The {@link PooledId}-annotated identifier attribute of an entity
+   * class.
+   *
+   * @author <a href="https://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   */
+  private static final class IdAttribute {
+
+    private static final IdAttribute NONE = new IdAttribute(null, null, null, null, null);
+
+    private final String sequenceName;
+
+    private final Class<?> type;
+
+    private final Field field;
+
+    private final Method getter;
+
+    private final Method setter;
+
+    private IdAttribute(final String sequenceName,
+                        final Class<?> type,
+                        final Field field,
+                        final Method getter,
+                        final Method setter) {
+      super();
+      this.sequenceName = sequenceName;
+      this.type = type;
+      this.field = field;
+      this.getter = getter;
+      this.setter = setter;
+    }
+
+    private final boolean isUnassigned(final Object entity) throws ReflectiveOperationException {
+      final Object value = this.field == null ? this.getter.invoke(entity) : this.field.get(entity);
+      return value == null || ((Number)value).longValue() == 0L;
+    }
+
+    private final void assign(final Object entity, final long id) throws ReflectiveOperationException {
+      final Object value;
+      if (Long.class.equals(this.type) || long.class.equals(this.type)) {
+        value = Long.valueOf(id);
+      } else {
+        value = Integer.valueOf(Math.toIntExact(id));
+      }
+      if (this.field == null) {
+        this.setter.invoke(entity, value);
+      } else {
+        this.field.set(entity, value);
+      }
+    }
+
+    private static final IdAttribute of(final Class<?> entityClass) {
+      Class<?> c = entityClass;
+      while (c != null && !Object.class.equals(c)) {
+        for (final Field field : c.getDeclaredFields()) {
+          final PooledId pooledId = field.getAnnotation(PooledId.class);
+          if (pooledId != null) {
+            checkType(field.getType(), field);
+            setAccessible(field);
+            return new IdAttribute(pooledId.sequenceName(), field.getType(), field, null, null);
+          }
+        }
+        for (final Method getter : c.getDeclaredMethods()) {
+          final PooledId pooledId = getter.getAnnotation(PooledId.class);
+          if (pooledId != null) {
+            final Class<?> type = getter.getReturnType();
+            checkType(type, getter);
+            final String getterName = getter.getName();
+            final String propertyName;
+            if (getterName.startsWith("get")) {
+              propertyName = getterName.substring(3);
+            } else if (getterName.startsWith("is")) {
+              propertyName = getterName.substring(2);
+            } else {
+              throw new IllegalArgumentException(getter + " is not a getter");
+            }
+            final Method setter;
+            try {
+              setter = c.getDeclaredMethod("set" + propertyName, type);
+            } catch (final NoSuchMethodException noSuchMethodException) {
+              throw new IllegalArgumentException("No setter for " + getter, noSuchMethodException);
+            }
+            setAccessible(getter);
+            setAccessible(setter);
+            return new IdAttribute(pooledId.sequenceName(), type, null, getter, setter);
+          }
+        }
+        c = c.getSuperclass();
+      }
+      return NONE;
+    }
+
+    private static final void checkType(final Class<?> type, final Object member) {
+      if (!Long.class.equals(type) && !long.class.equals(type) && !Integer.class.equals(type) && !int.class.equals(type)) {
+        throw new IllegalArgumentException(member + " is annotated with @PooledId but is of type " + type.getName());
+      }
+    }
+
+    private static final void setAccessible(final AccessibleObject accessibleObject) {
+      if (!accessibleObject.isAccessible()) {
+        accessibleObject.setAccessible(true);
+      }
+    }
+
+  }
+
+}
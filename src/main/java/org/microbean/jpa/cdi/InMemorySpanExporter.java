@@ -0,0 +1,175 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A {@link SpanExporter} that keeps the most recently ended {@link
+ * Span}s in memory so that they can be inspected, for example by
+ * tests, without a trace collector.
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see Tracing
+ */
+public class InMemorySpanExporter implements SpanExporter {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  /**
+   * The default maximum number of {@link Span}s retained ({@value}).
+   */
+  public static final int DEFAULT_CAPACITY = 10000;
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final int capacity;
+
+  // Guarded by itself.
+  private final Deque<Span> spans;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link InMemorySpanExporter} that retains at most
+   * {@value #DEFAULT_CAPACITY} {@link Span}s.
+   */
+  public InMemorySpanExporter() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Creates a new {@link InMemorySpanExporter}.
+   *
+   * @param capacity the maximum number of {@link Span}s retained;
+   * once it is reached, the oldest {@link Span} is discarded as each
+   * new one is exported; must be greater than {@code 0}
+   *
+   * @exception IllegalArgumentException if {@code capacity} is less
+   * than {@code 1}
+   */
+  public InMemorySpanExporter(final int capacity) {
+    super();
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity < 1: " + capacity);
+    }
+    this.capacity = capacity;
+    this.spans = new ArrayDeque<>();
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  @Override
+  public void export(final Span span) {
+    Objects.requireNonNull(span);
+    synchronized (this.spans) {
+      if (this.spans.size() >= this.capacity) {
+        this.spans.removeFirst();
+      }
+      this.spans.addLast(span);
+    }
+  }
+
+  /**
+   * Returns the retained {@link Span}s in the order in which they
+   * ended.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link List} of {@link Span}s
+   */
+  public final List<Span> getFinishedSpans() {
+    synchronized (this.spans) {
+      return new ArrayList<>(this.spans);
+    }
+  }
+
+  /**
+   * Returns the retained {@link Span}s with the supplied name in the
+   * order in which they ended.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param name the name of the {@link Span}s to return; may be
+   * {@code null}
+   *
+   * @return a non-{@code null} {@link List} of {@link Span}s
+   */
+  public final List<Span> getFinishedSpans(final String name) {
+    final List<Span> returnValue = new ArrayList<>();
+    for (final Span span : this.getFinishedSpans()) {
+      if (span.getName().equals(name)) {
+        returnValue.add(span);
+      }
+    }
+    return returnValue;
+  }
+
+  /**
+   * Returns the retained {@link Span}s whose parent is identified by
+   * the supplied {@link SpanContext} in the order in which they
+   * ended.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param parent the {@link SpanContext} of the parent; may be
+   * {@code null} in which case root {@link Span}s are returned
+   *
+   * @return a non-{@code null} {@link List} of {@link Span}s
+   */
+  public final List<Span> getChildren(final SpanContext parent) {
+    final List<Span> returnValue = new ArrayList<>();
+    for (final Span span : this.getFinishedSpans()) {
+      if (Objects.equals(span.getParent(), parent)) {
+        returnValue.add(span);
+      }
+    }
+    return returnValue;
+  }
+
+  /**
+   * Discards all retained {@link Span}s.
+   */
+  public final void reset() {
+    synchronized (this.spans) {
+      this.spans.clear();
+    }
+  }
+
+}
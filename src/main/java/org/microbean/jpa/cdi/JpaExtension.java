@@ -20,19 +20,30 @@ import java.io.BufferedInputStream;
 import java.io.InputStream;
 import java.io.IOException;
 
+import java.lang.annotation.Annotation;
+
 import java.net.URL;
 import java.net.URLClassLoader;
 
+import java.nio.file.Paths;
+
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Objects;
 import java.util.ServiceLoader; // for javadoc only
 import java.util.Set;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
 import javax.annotation.Priority;
@@ -49,6 +60,7 @@ import javax.enterprise.inject.spi.AfterBeanDiscovery;
 import javax.enterprise.inject.spi.AnnotatedType;
 import javax.enterprise.inject.spi.Bean;
 import javax.enterprise.inject.spi.BeanManager;
+import javax.enterprise.inject.spi.BeforeShutdown;
 import javax.enterprise.inject.spi.CDI;
 import javax.enterprise.inject.spi.Extension;
 import javax.enterprise.inject.spi.ProcessAnnotatedType;
@@ -59,17 +71,24 @@ import javax.inject.Singleton;
 import javax.persistence.Converter;
 import javax.persistence.Embeddable;
 import javax.persistence.Entity;
+import javax.persistence.EntityManagerFactory;
 import javax.persistence.MappedSuperclass;
 import javax.persistence.PersistenceUnit;
+import javax.persistence.Table;
+
+import javax.persistence.metamodel.EntityType;
 
 import javax.persistence.spi.PersistenceProvider;
 import javax.persistence.spi.PersistenceProviderResolver;
 import javax.persistence.spi.PersistenceProviderResolverHolder;
 
 import javax.persistence.spi.PersistenceUnitInfo;
+import javax.persistence.spi.PersistenceUnitTransactionType;
 
 import javax.sql.DataSource;
 
+import javax.transaction.TransactionManager;
+
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Unmarshaller;
@@ -89,6 +108,22 @@ import static javax.interceptor.Interceptor.Priority.LIBRARY_AFTER;
  * <a href="https://javaee.github.io/tutorial/partpersist.html#BNBPY"
  * target="_parent">JPA</a> into CDI.
  *
+ * <p>For every persistence unit it discovers, this extension adds a
+ * {@link PersistenceUnitInfo} bean, an {@link EntityManagerFactory}
+ * bean (unless one already exists) and beans for the helpers in this
+ * package that operate on that {@link EntityManagerFactory}, such as
+ * {@link ResultStreamer}, {@link BatchWriter}, {@link BulkLoader}, {@link
+ * AsyncPersistence} and {@link TenantPersistenceUnits}.  Each such bean is qualified with a {@link
+ * javax.inject.Named Named} qualifier whose value is the name of the
+ * persistence unit.</p>
+ *
+ * <p>Persistence unit properties whose names begin with {@code
+ * org.microbean.jpa.cdi.} configure these helpers and the {@link
+ * EntityManagerFactory} itself.  For example, setting {@value
+ * Bulkhead#MAX_CONCURRENT_PROPERTY_NAME} adds a {@link Bulkhead}
+ * bean and limits the number of {@link javax.persistence.EntityManager}s
+ * that may be open at once against the persistence unit.</p>
+ *
  * @author <a href="https://about.me/lairdnelson"
  * target="_parent">Laird Nelson</a>
  *
@@ -124,6 +159,16 @@ public class JpaExtension implements Extension {
    */
   private final Map<String, Set<Class<?>>> unlistedManagedClassesByPersistenceUnitNames;
 
+  /**
+   * Whether this {@link JpaExtension} has {@linkplain
+   * ReadOnlyMode#enable() enabled} read-only mode, and so must
+   * {@linkplain ReadOnlyMode#disable() disable} it again when its
+   * container shuts down.
+   *
+   * <p>This field is never {@code null}.</p>
+   */
+  private final AtomicBoolean readOnlyEnabled;
+
 
   /*
    * Constructors.
@@ -136,6 +181,7 @@ public class JpaExtension implements Extension {
   public JpaExtension() {
     super();
     this.unlistedManagedClassesByPersistenceUnitNames = new HashMap<>();
+    this.readOnlyEnabled = new AtomicBoolean();
   }
 
 
@@ -185,6 +231,18 @@ public class JpaExtension implements Extension {
     }
   }
 
+  private final void discoverReadOnly(@Observes @WithAnnotations(ReadOnly.class) final ProcessAnnotatedType<?> event) {
+    if (event != null) {
+      final AnnotatedType<?> annotatedType = event.getAnnotatedType();
+      // The interceptor itself bears the binding but does not use it.
+      if (annotatedType != null &&
+          !ReadOnlyInterceptor.class.equals(annotatedType.getJavaClass()) &&
+          this.readOnlyEnabled.compareAndSet(false, true)) {
+        ReadOnlyMode.enable();
+      }
+    }
+  }
+
   private final void afterBeanDiscovery(@Observes @Priority(LIBRARY_AFTER) final AfterBeanDiscovery event, final BeanManager beanManager)
     throws IOException, JAXBException, ReflectiveOperationException, XMLStreamException {
     if (event != null && beanManager != null) {
@@ -238,65 +296,789 @@ public class JpaExtension implements Extension {
       // PersistenceProviders (if applicable).
       final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
       assert classLoader != null;
-      final Enumeration<URL> urls = classLoader.getResources("META-INF/persistence.xml");
-      if (urls != null && urls.hasMoreElements()) {
-        final Supplier<? extends ClassLoader> tempClassLoaderSupplier;
-        if (classLoader instanceof URLClassLoader) {
-          tempClassLoaderSupplier = () -> new URLClassLoader(((URLClassLoader)classLoader).getURLs());
-        } else {
-          tempClassLoaderSupplier = () -> classLoader;
+      // Normally we'd let CDI instantiate this guy but we are
+      // forbidden from getting references at this stage in the
+      // lifecycle.  Instantiating this provider by hand is fine as
+      // there is no state retained.
+      final PersistenceUnitInfoBean.DataSourceProvider dataSourceProvider = new BeanManagerBackedDataSourceProvider(beanManager);
+      final Collection<? extends PersistenceUnitInfo> persistenceUnitInfos =
+        readPersistenceUnitInfos(classLoader, this.unlistedManagedClassesByPersistenceUnitNames, dataSourceProvider);
+      for (final PersistenceUnitInfo persistenceUnitInfo : persistenceUnitInfos) {
+        assert persistenceUnitInfo != null;
+
+        String persistenceUnitName = persistenceUnitInfo.getPersistenceUnitName();
+        if (persistenceUnitName == null) {
+          persistenceUnitName = "";
+        }
+
+        event.addBean()
+          .types(Collections.singleton(PersistenceUnitInfo.class))
+          .scope(Singleton.class)
+          .addQualifiers(NamedLiteral.of(persistenceUnitName))
+          .createWith(cc -> persistenceUnitInfo);
+
+        maybeAddPersistenceProviderBean(event, persistenceUnitInfo, providers);
+
+        // Add a bean for the EntityManagerFactory backing this
+        // persistence unit unless the user has supplied one
+        // already.  It is created lazily, i.e. on first use.
+        final Set<Bean<?>> entityManagerFactoryBeans =
+          beanManager.getBeans(EntityManagerFactory.class, NamedLiteral.of(persistenceUnitName));
+        if (entityManagerFactoryBeans == null || entityManagerFactoryBeans.isEmpty()) {
+          event.<EntityManagerFactory>addBean()
+            .types(Collections.singleton(EntityManagerFactory.class))
+            .scope(Singleton.class)
+            .addQualifiers(NamedLiteral.of(persistenceUnitName))
+            .createWith(cc -> createEntityManagerFactory(beanManager, persistenceUnitInfo))
+            .destroyWith((emf, cc) -> {
+                if (emf.isOpen()) {
+                  emf.close();
+                }
+              });
+        }
+
+        addPersistenceUnitHelperBeans(event, beanManager, persistenceUnitName, persistenceUnitInfo);
+
+      }
+    }
+  }
+
+  private final void beforeShutdown(@Observes final BeforeShutdown event) {
+    if (event != null && this.readOnlyEnabled.compareAndSet(true, false)) {
+      ReadOnlyMode.disable();
+    }
+  }
+
+  /**
+   * Discovers all {@code META-INF/persistence.xml} resources visible
+   * to the supplied {@link ClassLoader}, parses them and returns a
+   * {@link Collection} of {@link PersistenceUnitInfo} instances
+   * representing the persistence units they describe.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * <p>This method does not require a running CDI container, and so
+   * may also be used at build time; see {@link
+   * NativeImageConfigurationGenerator}.</p>
+   *
+   * @param classLoader the {@link ClassLoader} used to find {@code
+   * META-INF/persistence.xml} resources and to load persistence unit
+   * classes; must not be {@code null}
+   *
+   * @param unlistedClasses a {@link Map} of managed classes indexed
+   * by persistence unit name whose values might not be explicitly
+   * listed in any persistence unit; may be {@code null}
+   *
+   * @param dataSourceProvider a {@link
+   * PersistenceUnitInfoBean.DataSourceProvider}; must not be {@code
+   * null}
+   *
+   * @return a non-{@code null} {@link Collection} of {@link
+   * PersistenceUnitInfo} instances
+   *
+   * @exception NullPointerException if {@code classLoader} or {@code
+   * dataSourceProvider} is {@code null}
+   *
+   * @exception IOException if a {@code META-INF/persistence.xml}
+   * resource could not be read
+   *
+   * @exception JAXBException if a {@code META-INF/persistence.xml}
+   * resource could not be parsed
+   *
+   * @exception XMLStreamException if a {@code META-INF/persistence.xml}
+   * resource could not be parsed
+   */
+  static final Collection<? extends PersistenceUnitInfo> readPersistenceUnitInfos(final ClassLoader classLoader,
+                                                                                  final Map<? extends String, ? extends Set<? extends Class<?>>> unlistedClasses,
+                                                                                  final PersistenceUnitInfoBean.DataSourceProvider dataSourceProvider)
+    throws IOException, JAXBException, XMLStreamException {
+    Objects.requireNonNull(classLoader);
+    Objects.requireNonNull(dataSourceProvider);
+    final Collection<PersistenceUnitInfo> returnValue = new ArrayList<>();
+    final Enumeration<URL> urls = classLoader.getResources("META-INF/persistence.xml");
+    if (urls != null && urls.hasMoreElements()) {
+      final Supplier<? extends ClassLoader> tempClassLoaderSupplier;
+      if (classLoader instanceof URLClassLoader) {
+        tempClassLoaderSupplier = () -> new URLClassLoader(((URLClassLoader)classLoader).getURLs());
+      } else {
+        tempClassLoaderSupplier = () -> classLoader;
+      }
+      // We use StAX for XML loading because it is the same strategy
+      // used by CDI implementations.  If the end user wants to
+      // customize the StAX implementation then we want that
+      // customization to apply here as well.
+      final XMLInputFactory xmlInputFactory = XMLInputFactory.newFactory();
+      assert xmlInputFactory != null;
+      final Unmarshaller unmarshaller =
+        JAXBContext.newInstance(JAXB_GENERATED_PACKAGE_NAME).createUnmarshaller();
+      assert unmarshaller != null;
+      while (urls.hasMoreElements()) {
+        final URL url = urls.nextElement();
+        assert url != null;
+        try (final InputStream inputStream = new BufferedInputStream(url.openStream())) {
+          final XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(inputStream);
+          assert reader != null;
+          returnValue.addAll(PersistenceUnitInfoBean.fromPersistence((Persistence)unmarshaller.unmarshal(reader),
+                                                                     classLoader,
+                                                                     tempClassLoaderSupplier,
+                                                                     new URL(url, ".."), // e.g. META-INF/..
+                                                                     unlistedClasses,
+                                                                     dataSourceProvider));
         }
-        // We use StAX for XML loading because it is the same strategy
-        // used by CDI implementations.  If the end user wants to
-        // customize the StAX implementation then we want that
-        // customization to apply here as well.
-        final XMLInputFactory xmlInputFactory = XMLInputFactory.newFactory();
-        assert xmlInputFactory != null;
-        final Unmarshaller unmarshaller =
-          JAXBContext.newInstance(JAXB_GENERATED_PACKAGE_NAME).createUnmarshaller();
-        assert unmarshaller != null;
-        // Normally we'd let CDI instantiate this guy but we are
-        // forbidden from getting references at this stage in the
-        // lifecycle.  Instantiating this provider by hand is fine as
-        // there is no state retained.
-        final PersistenceUnitInfoBean.DataSourceProvider dataSourceProvider = new BeanManagerBackedDataSourceProvider(beanManager);
-        while (urls.hasMoreElements()) {
-          final URL url = urls.nextElement();
-          assert url != null;
-          Collection<? extends PersistenceUnitInfo> persistenceUnitInfos = null;
-          try (final InputStream inputStream = new BufferedInputStream(url.openStream())) {
-            final XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(inputStream);
-            assert reader != null;
-            persistenceUnitInfos =
-              PersistenceUnitInfoBean.fromPersistence((Persistence)unmarshaller.unmarshal(reader),
-                                                      classLoader,
-                                                      tempClassLoaderSupplier,
-                                                      new URL(url, ".."), // e.g. META-INF/..
-                                                      this.unlistedManagedClassesByPersistenceUnitNames,
-                                                      dataSourceProvider);
+      }
+    }
+    return returnValue;
+  }
+
+  /**
+   * Adds beans, qualified with the supplied {@code
+   * persistenceUnitName}, for the helper objects this extension
+   * offers on top of a persistence unit's {@link
+   * EntityManagerFactory}.
+   *
+   * @param event the {@link AfterBeanDiscovery} event; must not be
+   * {@code null}
+   *
+   * @param beanManager the {@link BeanManager} in effect; must not be
+   * {@code null}
+   *
+   * @param persistenceUnitName the name of the persistence unit; must
+   * not be {@code null}
+   *
+   * @param persistenceUnitInfo the {@link PersistenceUnitInfo}
+   * describing the persistence unit; must not be {@code null}
+   *
+   * @exception NullPointerException if any parameter is {@code null}
+   */
+  private static final void addPersistenceUnitHelperBeans(final AfterBeanDiscovery event,
+                                                          final BeanManager beanManager,
+                                                          final String persistenceUnitName,
+                                                          final PersistenceUnitInfo persistenceUnitInfo) {
+    Objects.requireNonNull(event);
+    Objects.requireNonNull(beanManager);
+    Objects.requireNonNull(persistenceUnitName);
+    final Map<?, ?> properties = persistenceUnitInfo.getProperties();
+
+    event.addBean()
+      .types(Collections.singleton(ResultStreamer.class))
+      .scope(Singleton.class)
+      .addQualifiers(NamedLiteral.of(persistenceUnitName))
+      .createWith(cc -> new ResultStreamer(getEntityManagerFactory(beanManager, persistenceUnitName),
+                                           UnitProperties.getInt(properties,
+                                                                 ResultStreamer.FETCH_SIZE_PROPERTY_NAME,
+                                                                 ResultStreamer.DEFAULT_FETCH_SIZE),
+                                           UnitProperties.getInt(properties,
+                                                                 ResultStreamer.CLEAR_INTERVAL_PROPERTY_NAME,
+                                                                 ResultStreamer.DEFAULT_CLEAR_INTERVAL)));
+
+    event.addBean()
+      .types(Collections.singleton(BatchWriter.class))
+      .scope(Singleton.class)
+      .addQualifiers(NamedLiteral.of(persistenceUnitName))
+      .createWith(cc -> new BatchWriter(getEntityManagerFactory(beanManager, persistenceUnitName),
+                                        getTransactionManager(beanManager, persistenceUnitInfo),
+                                        UnitProperties.getInt(properties,
+                                                              BatchWriter.BATCH_SIZE_PROPERTY_NAME,
+                                                              BatchWriter.DEFAULT_BATCH_SIZE)));
+
+    event.<BulkLoader>addBean()
+      .types(Collections.singleton(BulkLoader.class))
+      .scope(Singleton.class)
+      .addQualifiers(NamedLiteral.of(persistenceUnitName))
+      .createWith(cc -> {
+          // Data sources may themselves be beans, so they are not
+          // resolved until the BulkLoader is first needed.
+          DataSource dataSource = persistenceUnitInfo.getNonJtaDataSource();
+          if (dataSource == null) {
+            dataSource = persistenceUnitInfo.getJtaDataSource();
+          }
+          if (dataSource == null) {
+            throw new IllegalStateException("Persistence unit " + persistenceUnitName + " has no DataSource");
           }
-          if (persistenceUnitInfos != null && !persistenceUnitInfos.isEmpty()) {
-            for (final PersistenceUnitInfo persistenceUnitInfo : persistenceUnitInfos) {
-              assert persistenceUnitInfo != null;
+          return new BulkLoader(getEntityManagerFactory(beanManager, persistenceUnitName),
+                                dataSource,
+                                UnitProperties.getInt(properties,
+                                                      BulkLoader.ROWS_PER_STATEMENT_PROPERTY_NAME,
+                                                      BulkLoader.DEFAULT_ROWS_PER_STATEMENT),
+                                UnitProperties.getInt(properties,
+                                                      BulkLoader.COMMIT_INTERVAL_PROPERTY_NAME,
+                                                      BulkLoader.DEFAULT_COMMIT_INTERVAL));
+        });
 
-              String persistenceUnitName = persistenceUnitInfo.getPersistenceUnitName();
-              if (persistenceUnitName == null) {
-                persistenceUnitName = "";
-              }
+    event.<AsyncPersistence>addBean()
+      .types(Collections.singleton(AsyncPersistence.class))
+      .scope(Singleton.class)
+      .addQualifiers(NamedLiteral.of(persistenceUnitName))
+      .createWith(cc -> new AsyncPersistence(persistenceUnitName,
+                                             getEntityManagerFactory(beanManager, persistenceUnitName),
+                                             getTransactionManager(beanManager, persistenceUnitInfo),
+                                             UnitProperties.getInt(properties,
+                                                                   AsyncPersistence.THREADS_PROPERTY_NAME,
+                                                                   Runtime.getRuntime().availableProcessors()),
+                                             UnitProperties.getInt(properties,
+                                                                   AsyncPersistence.QUEUE_CAPACITY_PROPERTY_NAME,
+                                                                   AsyncPersistence.DEFAULT_QUEUE_CAPACITY),
+                                             UnitProperties.getLong(properties,
+                                                                    AsyncPersistence.SUBMIT_TIMEOUT_PROPERTY_NAME,
+                                                                    AsyncPersistence.DEFAULT_SUBMIT_TIMEOUT_MILLIS),
+                                             UnitProperties.getLong(properties,
+                                                                    AsyncPersistence.CLOSE_TIMEOUT_PROPERTY_NAME,
+                                                                    AsyncPersistence.DEFAULT_CLOSE_TIMEOUT_MILLIS)))
+      .destroyWith((asyncPersistence, cc) -> asyncPersistence.close());
+
+    if (UnitProperties.getBoolean(properties, WriteBehind.ENABLED_PROPERTY_NAME, false)) {
+      final String spillDirectory = UnitProperties.getString(properties, WriteBehind.SPILL_DIRECTORY_PROPERTY_NAME, null);
+      event.<WriteBehind>addBean()
+        .types(Collections.singleton(WriteBehind.class))
+        .scope(Singleton.class)
+        .addQualifiers(NamedLiteral.of(persistenceUnitName))
+        .createWith(cc -> {
+            final WriteBehind writeBehind;
+            try {
+              writeBehind =
+                new WriteBehind(persistenceUnitName,
+                                new BatchWriter(getEntityManagerFactory(beanManager, persistenceUnitName),
+                                                getTransactionManager(beanManager, persistenceUnitInfo),
+                                                UnitProperties.getInt(properties,
+                                                                      BatchWriter.BATCH_SIZE_PROPERTY_NAME,
+                                                                      BatchWriter.DEFAULT_BATCH_SIZE)),
+                                UnitProperties.getInt(properties,
+                                                      WriteBehind.CAPACITY_PROPERTY_NAME,
+                                                      WriteBehind.DEFAULT_CAPACITY),
+                                UnitProperties.getInt(properties,
+                                                      WriteBehind.THREADS_PROPERTY_NAME,
+                                                      WriteBehind.DEFAULT_THREADS),
+                                UnitProperties.getLong(properties,
+                                                       WriteBehind.LINGER_PROPERTY_NAME,
+                                                       WriteBehind.DEFAULT_LINGER_MILLIS),
+                                UnitProperties.getLong(properties,
+                                                       WriteBehind.DRAIN_TIMEOUT_PROPERTY_NAME,
+                                                       WriteBehind.DEFAULT_DRAIN_TIMEOUT_MILLIS),
+                                spillDirectory == null ? null : Paths.get(spillDirectory));
+            } catch (final IOException ioException) {
+              throw new CreationException(ioException.getMessage(), ioException);
+            }
+            writeBehind.register();
+            return writeBehind;
+          })
+        .destroyWith((writeBehind, cc) -> writeBehind.close());
+    }
+
+    if (persistenceUnitInfo instanceof PersistenceUnitInfoBean) {
+      final PersistenceUnitInfoBean template = (PersistenceUnitInfoBean)persistenceUnitInfo;
+      event.<TenantPersistenceUnits>addBean()
+        .types(Collections.singleton(TenantPersistenceUnits.class))
+        .scope(Singleton.class)
+        .addQualifiers(NamedLiteral.of(persistenceUnitName))
+        .createWith(cc -> new TenantPersistenceUnits(template,
+                                                     pui -> createEntityManagerFactory(beanManager, pui),
+                                                     UnitProperties.getInt(properties,
+                                                                           TenantPersistenceUnits.MAX_ENTITY_MANAGER_FACTORIES_PROPERTY_NAME,
+                                                                           TenantPersistenceUnits.DEFAULT_MAX_ENTITY_MANAGER_FACTORIES),
+                                                     UnitProperties.getLong(properties,
+                                                                            TenantPersistenceUnits.IDLE_TIMEOUT_PROPERTY_NAME,
+                                                                            TenantPersistenceUnits.DEFAULT_IDLE_TIMEOUT_MILLIS)))
+        .destroyWith((tenantPersistenceUnits, cc) -> tenantPersistenceUnits.close());
+    }
+
+    final SchemaGeneration schemaGeneration = SchemaGeneration.fromProperties(persistenceUnitName, persistenceUnitInfo);
+    if (schemaGeneration != null) {
+      event.<SchemaGeneration>addBean()
+        .types(Collections.singleton(SchemaGeneration.class))
+        .scope(Singleton.class)
+        .addQualifiers(NamedLiteral.of(persistenceUnitName))
+        .createWith(cc -> schemaGeneration);
+    }
+
+    if (persistenceUnitInfo instanceof PersistenceUnitInfoBean) {
+      final MetadataCache metadataCache = MetadataCache.fromProperties(persistenceUnitName, persistenceUnitInfo);
+      if (metadataCache != null) {
+        event.<MetadataCache>addBean()
+          .types(Collections.singleton(MetadataCache.class))
+          .scope(Singleton.class)
+          .addQualifiers(NamedLiteral.of(persistenceUnitName))
+          .createWith(cc -> metadataCache);
+      }
+    }
+
+    final CacheCoordination cacheCoordination = CacheCoordination.fromProperties(persistenceUnitName, persistenceUnitInfo);
+    if (cacheCoordination != null) {
+      event.<CacheCoordination>addBean()
+        .types(Collections.singleton(CacheCoordination.class))
+        .scope(Singleton.class)
+        .addQualifiers(NamedLiteral.of(persistenceUnitName))
+        .createWith(cc -> cacheCoordination)
+        .destroyWith((c, cc) -> c.close());
+    }
+
+    final Tracing tracing = Tracing.fromProperties(persistenceUnitName, persistenceUnitInfo);
+    if (tracing != null) {
+      event.<Tracing>addBean()
+        .types(Collections.singleton(Tracing.class))
+        .scope(Singleton.class)
+        .addQualifiers(NamedLiteral.of(persistenceUnitName))
+        .createWith(cc -> tracing)
+        .destroyWith((t, cc) -> t.close());
+    }
+
+    final PersistenceContextGuard persistenceContextGuard =
+      PersistenceContextGuard.fromProperties(persistenceUnitName,
+                                             properties,
+                                             size -> beanManager.getEvent()
+                                               .select(PersistenceContextSize.class, NamedLiteral.of(persistenceUnitName))
+                                               .fire(size));
+    if (persistenceContextGuard != null) {
+      event.<PersistenceContextGuard>addBean()
+        .types(Collections.singleton(PersistenceContextGuard.class))
+        .scope(Singleton.class)
+        .addQualifiers(NamedLiteral.of(persistenceUnitName))
+        .createWith(cc -> persistenceContextGuard);
+    }
+
+    final Deadlines deadlines = Deadlines.fromProperties(persistenceUnitName, properties);
+    if (deadlines != null) {
+      event.<Deadlines>addBean()
+        .types(Collections.singleton(Deadlines.class))
+        .scope(Singleton.class)
+        .addQualifiers(NamedLiteral.of(persistenceUnitName))
+        .createWith(cc -> {
+            deadlines.register();
+            return deadlines;
+          })
+        .destroyWith((d, cc) -> d.close());
+    }
+
+    event.<ConflictRetries>addBean()
+      .types(Collections.singleton(ConflictRetries.class))
+      .scope(Singleton.class)
+      .addQualifiers(NamedLiteral.of(persistenceUnitName))
+      .createWith(cc -> {
+          final ConflictRetries conflictRetries = new ConflictRetries(persistenceUnitName);
+          conflictRetries.register();
+          return conflictRetries;
+        })
+      .destroyWith((c, cc) -> c.close());
+
+    final long connectionLeakThresholdMillis = UnitProperties.getLong(properties, ConnectionLeaks.THRESHOLD_PROPERTY_NAME, 0L);
+    if (connectionLeakThresholdMillis > 0L) {
+      event.<ConnectionLeaks>addBean()
+        .types(Collections.singleton(ConnectionLeaks.class))
+        .scope(Singleton.class)
+        .addQualifiers(NamedLiteral.of(persistenceUnitName))
+        .createWith(cc -> {
+            final ConnectionLeaks connectionLeaks =
+              new ConnectionLeaks(persistenceUnitName,
+                                  connectionLeakThresholdMillis,
+                                  UnitProperties.getInt(properties,
+                                                        ConnectionLeaks.STACK_TRACE_SAMPLING_PROPERTY_NAME,
+                                                        ConnectionLeaks.DEFAULT_STACK_TRACE_SAMPLING),
+                                  getTransactionManager(beanManager, persistenceUnitInfo),
+                                  leak -> beanManager.getEvent()
+                                    .select(ConnectionLeak.class, NamedLiteral.of(persistenceUnitName))
+                                    .fire(leak));
+            connectionLeaks.register();
+            return connectionLeaks;
+          })
+        .destroyWith((c, cc) -> c.close());
+    }
+
+    final Bulkhead bulkhead = Bulkhead.fromProperties(persistenceUnitName, properties);
+    if (bulkhead != null) {
+      event.<Bulkhead>addBean()
+        .types(Collections.singleton(Bulkhead.class))
+        .scope(Singleton.class)
+        .addQualifiers(NamedLiteral.of(persistenceUnitName))
+        .createWith(cc -> {
+            bulkhead.register();
+            return bulkhead;
+          })
+        .destroyWith((b, cc) -> b.close());
+    }
+  }
+
+  /**
+   * Returns a contextual reference to the {@link TransactionManager}
+   * bean if the persistence unit described by the supplied {@link
+   * PersistenceUnitInfo} uses JTA transactions and such a bean
+   * exists, or {@code null} otherwise.
+   *
+   * @param beanManager the {@link BeanManager} to use; must not be
+   * {@code null}
+   *
+   * @param persistenceUnitInfo the {@link PersistenceUnitInfo}; must
+   * not be {@code null}
+   *
+   * @return a {@link TransactionManager}, or {@code null}
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   */
+  static final TransactionManager getTransactionManager(final BeanManager beanManager,
+                                                        final PersistenceUnitInfo persistenceUnitInfo) {
+    Objects.requireNonNull(beanManager);
+    final TransactionManager returnValue;
+    if (PersistenceUnitTransactionType.JTA.equals(persistenceUnitInfo.getTransactionType())) {
+      returnValue = getReference(beanManager, TransactionManager.class);
+    } else {
+      returnValue = null;
+    }
+    return returnValue;
+  }
+
+  /**
+   * Returns a contextual reference to the bean whose type is the
+   * supplied {@code type} and that bears the supplied qualifiers, or
+   * {@code null} if there is no such bean.
+   *
+   * @param <T> the type of the reference
+   *
+   * @param beanManager the {@link BeanManager} to use; must not be
+   * {@code null}
+   *
+   * @param type the type of the bean; must not be {@code null}
+   *
+   * @param qualifiers the qualifiers of the bean
+   *
+   * @return a contextual reference, or {@code null}
+   *
+   * @exception NullPointerException if {@code beanManager} or {@code
+   * type} is {@code null}
+   */
+  static final <T> T getReference(final BeanManager beanManager,
+                                  final Class<T> type,
+                                  final Annotation... qualifiers) {
+    Objects.requireNonNull(beanManager);
+    Objects.requireNonNull(type);
+    final Set<Bean<?>> beans = beanManager.getBeans(type, qualifiers);
+    final T returnValue;
+    if (beans == null || beans.isEmpty()) {
+      returnValue = null;
+    } else {
+      final Bean<?> bean = beanManager.resolve(beans);
+      if (bean == null) {
+        returnValue = null;
+      } else {
+        returnValue = type.cast(beanManager.getReference(bean, type, beanManager.createCreationalContext(bean)));
+      }
+    }
+    return returnValue;
+  }
+
+  /**
+   * Returns a contextual reference to the {@link
+   * EntityManagerFactory} bean qualified with the supplied {@code
+   * persistenceUnitName}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param beanManager the {@link BeanManager} to use; must not be
+   * {@code null}
+   *
+   * @param persistenceUnitName the name of the persistence unit; must
+   * not be {@code null}
+   *
+   * @return a non-{@code null} {@link EntityManagerFactory}
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   *
+   * @exception CreationException if there is no such bean
+   */
+  static final EntityManagerFactory getEntityManagerFactory(final BeanManager beanManager,
+                                                            final String persistenceUnitName) {
+    Objects.requireNonNull(beanManager);
+    Objects.requireNonNull(persistenceUnitName);
+    final Bean<?> bean =
+      beanManager.resolve(beanManager.getBeans(EntityManagerFactory.class, NamedLiteral.of(persistenceUnitName)));
+    if (bean == null) {
+      throw new CreationException("No EntityManagerFactory found for persistence unit " + persistenceUnitName);
+    }
+    return (EntityManagerFactory)beanManager.getReference(bean,
+                                                          EntityManagerFactory.class,
+                                                          beanManager.createCreationalContext(bean));
+  }
+
+  /**
+   * Creates a new container-managed {@link EntityManagerFactory} for
+   * the persistence unit described by the supplied {@link
+   * PersistenceUnitInfo} using the {@link PersistenceProvider} it
+   * designates.
+   *
+   * <p>The {@link javax.persistence.EntityManager}s of the returned
+   * {@link EntityManagerFactory} honor {@link ReadOnly}, if any bean
+   * uses it, and, if the
+   * persistence unit has a {@link Bulkhead}, are subject to it.  If
+   * the persistence unit has a {@link CacheCoordination}, their
+   * committed changes invalidate the shared caches of other nodes.
+   * If the persistence unit has a {@link Tracing}, their work is
+   * recorded as {@link Span}s.  If {@value
+   * IdAllocator#ENABLED_PROPERTY_NAME} is {@code true}, the {@link
+   * PooledId} identifiers of the entities they persist are assigned
+   * by shared {@link IdAllocator}s.</p>
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param beanManager the {@link BeanManager} in effect; must not be
+   * {@code null}
+   *
+   * @param persistenceUnitInfo the {@link PersistenceUnitInfo}
+   * describing the persistence unit; must not be {@code null}
+   *
+   * @return a non-{@code null} {@link EntityManagerFactory}
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   *
+   * @exception CreationException if a suitable {@link
+   * PersistenceProvider} could not be found or if it returned {@code
+   * null}
+   *
+   * @see PersistenceProvider#createContainerEntityManagerFactory(PersistenceUnitInfo,
+   * Map)
+   */
+  private static final EntityManagerFactory createEntityManagerFactory(final BeanManager beanManager,
+                                                                       final PersistenceUnitInfo persistenceUnitInfo) {
+    Objects.requireNonNull(beanManager);
+    Objects.requireNonNull(persistenceUnitInfo);
+    final PersistenceProvider persistenceProvider = getPersistenceProvider(beanManager, persistenceUnitInfo);
+    final Map<String, Object> properties = new HashMap<>();
+    // See section 3.5.1 of the JPA 2.2 specification.
+    properties.put("javax.persistence.bean.manager", beanManager);
+    String persistenceUnitName = persistenceUnitInfo.getPersistenceUnitName();
+    if (persistenceUnitName == null) {
+      persistenceUnitName = "";
+    }
+    final Map<?, ?> unitProperties = persistenceUnitInfo.getProperties();
+    final AtomicReference<EntityManagerFactory> entityManagerFactoryReference = new AtomicReference<>();
+    if (UnitProperties.getBoolean(unitProperties, StatementStatistics.ENABLED_PROPERTY_NAME, false)) {
+      addStatementStatisticsDataSources(properties, beanManager, persistenceUnitName, persistenceUnitInfo, entityManagerFactoryReference);
+    }
+    BatchWriter.addJdbcBatchingProperties(properties, unitProperties);
+    final Tracing tracing = getReference(beanManager, Tracing.class, NamedLiteral.of(persistenceUnitName));
+    if (tracing != null) {
+      tracing.apply(properties, persistenceUnitInfo);
+    }
+    final Deadlines deadlines = getReference(beanManager, Deadlines.class, NamedLiteral.of(persistenceUnitName));
+    if (deadlines != null) {
+      deadlines.apply(properties, persistenceUnitInfo);
+    }
+    final SchemaGeneration schemaGeneration =
+      getReference(beanManager, SchemaGeneration.class, NamedLiteral.of(persistenceUnitName));
+    if (schemaGeneration != null) {
+      schemaGeneration.apply(persistenceProvider, properties);
+    }
+    final CacheCoordination cacheCoordination =
+      getReference(beanManager, CacheCoordination.class, NamedLiteral.of(persistenceUnitName));
+    final MetadataCache metadataCache = getReference(beanManager, MetadataCache.class, NamedLiteral.of(persistenceUnitName));
+    if (metadataCache != null) {
+      // Last, since every other property is part of the cache key.
+      metadataCache.apply(persistenceProvider, properties);
+    }
+    EntityManagerFactory returnValue =
+      persistenceProvider.createContainerEntityManagerFactory(cacheCoordination == null ?
+                                                              persistenceUnitInfo :
+                                                              cacheCoordination.apply(persistenceUnitInfo),
+                                                              properties);
+    if (returnValue == null) {
+      throw new CreationException(persistenceProvider + " returned null for persistence unit " +
+                                  persistenceUnitInfo.getPersistenceUnitName());
+    }
+    entityManagerFactoryReference.set(returnValue);
+    final PersistenceContextGuard persistenceContextGuard =
+      getReference(beanManager, PersistenceContextGuard.class, NamedLiteral.of(persistenceUnitName));
+    if (persistenceContextGuard != null) {
+      // Innermost, so that the provider's own EntityManagers can be
+      // inspected.
+      returnValue = persistenceContextGuard.wrap(returnValue);
+    }
+    if (UnitProperties.getBoolean(unitProperties, IdAllocator.ENABLED_PROPERTY_NAME, false)) {
+      DataSource dataSource = persistenceUnitInfo.getNonJtaDataSource();
+      if (dataSource == null) {
+        dataSource = persistenceUnitInfo.getJtaDataSource();
+      }
+      if (dataSource == null) {
+        throw new CreationException("Persistence unit " + persistenceUnitName + " has no DataSource");
+      }
+      returnValue = IdAllocator.wrap(returnValue,
+                                     dataSource,
+                                     UnitProperties.getInt(unitProperties,
+                                                           IdAllocator.BLOCK_SIZE_PROPERTY_NAME,
+                                                           IdAllocator.DEFAULT_BLOCK_SIZE));
+    }
+    if (cacheCoordination != null) {
+      returnValue = cacheCoordination.wrap(returnValue, getTransactionManager(beanManager, persistenceUnitInfo));
+    }
+    if (tracing != null) {
+      returnValue = tracing.wrap(returnValue, getTransactionManager(beanManager, persistenceUnitInfo));
+    }
+    if (ReadOnlyMode.isEnabled()) {
+      returnValue = ReadOnlyMode.wrap(returnValue);
+    }
+    if (deadlines != null) {
+      returnValue = deadlines.wrap(returnValue);
+    }
+    final Bulkhead bulkhead = getReference(beanManager, Bulkhead.class, NamedLiteral.of(persistenceUnitName));
+    if (bulkhead != null) {
+      returnValue = bulkhead.wrap(returnValue);
+    }
+    return returnValue;
+  }
 
-              event.addBean()
-                .types(Collections.singleton(PersistenceUnitInfo.class))
-                .scope(Singleton.class)
-                .addQualifiers(NamedLiteral.of(persistenceUnitName))
-                .createWith(cc -> persistenceUnitInfo);
+  /**
+   * Adds {@code javax.persistence.jtaDataSource} and {@code
+   * javax.persistence.nonJtaDataSource} properties to the supplied
+   * {@link Map} whose values are {@link
+   * StatementStatisticsDataSource}s wrapping the {@link DataSource}s
+   * of the supplied {@link PersistenceUnitInfo}.
+   *
+   * <p>Each {@link StatementStatistics} produced is fired as an event
+   * qualified with the {@linkplain NamedLiteral name} of the
+   * persistence unit.</p>
+   *
+   * @param properties the {@link Map} of properties that will be
+   * supplied to the {@link
+   * PersistenceProvider#createContainerEntityManagerFactory(PersistenceUnitInfo,
+   * Map)} method; must not be {@code null}
+   *
+   * @param beanManager the {@link BeanManager} in effect; must not be
+   * {@code null}
+   *
+   * @param persistenceUnitName the name of the persistence unit; must
+   * not be {@code null}
+   *
+   * @param persistenceUnitInfo the {@link PersistenceUnitInfo}
+   * describing the persistence unit; must not be {@code null}
+   *
+   * @param entityManagerFactoryReference an {@link AtomicReference}
+   * that will hold the {@link EntityManagerFactory} once it has been
+   * created, used to map table names to entity types; must not be
+   * {@code null}
+   *
+   * @exception NullPointerException if any parameter is {@code null}
+   *
+   * @see StatementStatisticsDataSource
+   */
+  private static final void addStatementStatisticsDataSources(final Map<? super String, Object> properties,
+                                                              final BeanManager beanManager,
+                                                              final String persistenceUnitName,
+                                                              final PersistenceUnitInfo persistenceUnitInfo,
+                                                              final AtomicReference<? extends EntityManagerFactory> entityManagerFactoryReference) {
+    Objects.requireNonNull(properties);
+    Objects.requireNonNull(beanManager);
+    Objects.requireNonNull(persistenceUnitName);
+    Objects.requireNonNull(entityManagerFactoryReference);
+    final int threshold = UnitProperties.getInt(persistenceUnitInfo.getProperties(),
+                                                StatementStatistics.THRESHOLD_PROPERTY_NAME,
+                                                StatementStatistics.DEFAULT_THRESHOLD);
+    final TransactionManager transactionManager = getTransactionManager(beanManager, persistenceUnitInfo);
+    final Function<String, String> entityTypeNameResolver = tableName -> {
+      final EntityManagerFactory entityManagerFactory = entityManagerFactoryReference.get();
+      return entityManagerFactory == null ? null : getEntityTypeName(entityManagerFactory, tableName);
+    };
+    final Consumer<StatementStatistics> listener =
+      statistics -> beanManager.getEvent().select(StatementStatistics.class, NamedLiteral.of(persistenceUnitName)).fire(statistics);
+    final DataSource jtaDataSource = persistenceUnitInfo.getJtaDataSource();
+    if (jtaDataSource != null) {
+      properties.put("javax.persistence.jtaDataSource",
+                     new StatementStatisticsDataSource(jtaDataSource,
+                                                       persistenceUnitName,
+                                                       threshold,
+                                                       transactionManager,
+                                                       entityTypeNameResolver,
+                                                       listener));
+    }
+    final DataSource nonJtaDataSource = persistenceUnitInfo.getNonJtaDataSource();
+    if (nonJtaDataSource != null) {
+      properties.put("javax.persistence.nonJtaDataSource",
+                     new StatementStatisticsDataSource(nonJtaDataSource,
+                                                       persistenceUnitName,
+                                                       threshold,
+                                                       transactionManager,
+                                                       entityTypeNameResolver,
+                                                       listener));
+    }
+  }
 
-              maybeAddPersistenceProviderBean(event, persistenceUnitInfo, providers);
+  /**
+   * Returns the name of the entity class that the supplied {@link
+   * EntityManagerFactory} maps to the supplied table name, or {@code
+   * null}.
+   *
+   * <p>An entity class is considered to be mapped to a table if the
+   * table name, stripped of any schema and quotes, matches
+   * (case-insensitively) the name given by its {@link Table}
+   * annotation or, if there is no such annotation, its entity
+   * name.</p>
+   *
+   * @param entityManagerFactory the {@link EntityManagerFactory};
+   * must not be {@code null}
+   *
+   * @param tableName the table name; must not be {@code null}
+   *
+   * @return an entity class name, or {@code null}
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   */
+  static final String getEntityTypeName(final EntityManagerFactory entityManagerFactory, final String tableName) {
+    Objects.requireNonNull(entityManagerFactory);
+    final String name = tableName.substring(tableName.lastIndexOf('.') + 1).replace("\"", "").replace("`", "");
+    for (final EntityType<?> entityType : entityManagerFactory.getMetamodel().getEntities()) {
+      final Class<?> javaType = entityType.getJavaType();
+      String mappedName = entityType.getName();
+      if (javaType != null) {
+        final Table table = javaType.getAnnotation(Table.class);
+        if (table != null && !table.name().isEmpty()) {
+          mappedName = table.name();
+        }
+      }
+      if (name.equalsIgnoreCase(mappedName)) {
+        return javaType == null ? entityType.getName() : javaType.getName();
+      }
+    }
+    return null;
+  }
 
+  private static final PersistenceProvider getPersistenceProvider(final BeanManager beanManager,
+                                                                  final PersistenceUnitInfo persistenceUnitInfo) {
+    Objects.requireNonNull(beanManager);
+    Objects.requireNonNull(persistenceUnitInfo);
+    final String providerClassName = persistenceUnitInfo.getPersistenceProviderClassName();
+    if (providerClassName == null) {
+      // Per the specification, use the first provider the resolver
+      // knows about.
+      final Bean<?> resolverBean = beanManager.resolve(beanManager.getBeans(PersistenceProviderResolver.class));
+      if (resolverBean != null) {
+        final PersistenceProviderResolver resolver =
+          (PersistenceProviderResolver)beanManager.getReference(resolverBean,
+                                                                PersistenceProviderResolver.class,
+                                                                beanManager.createCreationalContext(resolverBean));
+        final Collection<? extends PersistenceProvider> providers = resolver.getPersistenceProviders();
+        if (providers != null) {
+          final Iterator<? extends PersistenceProvider> iterator = providers.iterator();
+          if (iterator.hasNext()) {
+            return iterator.next();
+          }
+        }
+      }
+    } else {
+      final Set<Bean<?>> beans = beanManager.getBeans(PersistenceProvider.class, Any.Literal.INSTANCE);
+      if (beans != null) {
+        for (final Bean<?> bean : beans) {
+          if (bean != null) {
+            final PersistenceProvider provider =
+              (PersistenceProvider)beanManager.getReference(bean,
+                                                            PersistenceProvider.class,
+                                                            beanManager.createCreationalContext(bean));
+            if (provider != null && provider.getClass().getName().equals(providerClassName)) {
+              return provider;
             }
           }
         }
       }
     }
+    throw new CreationException("No PersistenceProvider found for persistence unit " +
+                                persistenceUnitInfo.getPersistenceUnitName());
   }
 
   private static final void maybeAddPersistenceProviderBean(final AfterBeanDiscovery event,
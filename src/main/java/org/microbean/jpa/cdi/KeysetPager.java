@@ -0,0 +1,649 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+import java.sql.Timestamp;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.EntityType;
+
+/**
+ * A helper that pages through the entities of a given type in the
+ * order of a unique key by seeking past the last entity of the
+ * previous page ({@code WHERE (k) > (:last)}), rather than by
+ * skipping rows with {@link TypedQuery#setFirstResult(int)}.
+ *
+ * <p>A database must read and discard every row an {@code OFFSET}
+ * skips, so offset paging slows down linearly with page depth.  A
+ * keyset query instead starts from an index position, so every page
+ * costs the same no matter how deep it is, and rows inserted or
+ * deleted before the current position do not shift later pages.  The
+ * ordering key must be unique and its attributes must never be
+ * {@code null}; appending the identifier attribute to a non-unique
+ * ordering makes it unique.  An index covering the key, in key
+ * order, lets the database seek directly.</p>
+ *
+ * <p>The position reached is handed to clients as an opaque,
+ * URL-safe continuation token.  Tokens are tied to the entity type,
+ * ordering and filter of the {@link KeysetPager} that produced them
+ * and are rejected by others.  They are encoded, not encrypted or
+ * signed: a client can decode or forge one to start from another
+ * position, but can never widen the filter.</p>
+ *
+ * <p>Typical usage:</p>
+ *
+ * <blockquote><pre>
+ * KeysetPager&lt;Widget&gt; pager =
+ *   new KeysetPager&lt;&gt;(Widget.class, Arrays.asList("name", "id"), "e.color = :color", 50);
+ * TypedQuery&lt;Widget&gt; query = pager.createQuery(entityManager, continuationToken);
+ * query.setParameter("color", color);
+ * KeysetPager.Page&lt;Widget&gt; page = pager.getPage(query);
+ * // Hand page.getContinuationToken() to the client; it is null on the last page.</pre></blockquote>
+ *
+ * <p>{@link KeysetPager}s work with any {@link EntityManager},
+ * including those of {@link javax.persistence.EntityManagerFactory}
+ * beans added by the {@link JpaExtension}.  Instances of this class
+ * are safe for concurrent use by multiple threads.</p>
+ *
+ * @param <T> the entity type
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see #createQuery(EntityManager, String)
+ *
+ * @see #getPage(TypedQuery)
+ */
+public final class KeysetPager<T> {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  /**
+   * The identification variable by which the filter supplied to the
+   * {@link #KeysetPager(Class, List, String, int)} constructor refers
+   * to the entity ({@value}).
+   */
+  public static final String ALIAS = "e";
+
+  private static final String PARAMETER_PREFIX = "keyset";
+
+  private static final int TOKEN_VERSION = 1;
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final Class<T> entityClass;
+
+  private final List<String> attributeNames;
+
+  private final boolean[] descending;
+
+  private final String filter;
+
+  private final int pageSize;
+
+  private final int shape;
+
+  private volatile Resolved resolved;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link KeysetPager}.
+   *
+   * @param entityClass the entity type; must not be {@code null}
+   *
+   * @param orderBy the names of the singular, basic attributes making
+   * up the ordered unique key, most significant first, each
+   * optionally followed by {@code ASC} or {@code DESC}; must not be
+   * {@code null} or empty
+   *
+   * @param filter a JPQL conditional expression restricting the
+   * entities paged through, referring to the entity as {@value
+   * #ALIAS}; may be {@code null}; any parameters it uses must be set
+   * on each query {@linkplain #createQuery(EntityManager, String)
+   * created}
+   *
+   * @param pageSize the maximum number of entities per page; must be
+   * greater than {@code 0}
+   *
+   * @exception NullPointerException if {@code entityClass} or {@code
+   * orderBy} is {@code null}
+   *
+   * @exception IllegalArgumentException if {@code orderBy} is empty
+   * or malformed or if {@code pageSize} is less than {@code 1}
+   */
+  public KeysetPager(final Class<T> entityClass,
+                     final List<? extends String> orderBy,
+                     final String filter,
+                     final int pageSize) {
+    super();
+    this.entityClass = Objects.requireNonNull(entityClass);
+    Objects.requireNonNull(orderBy);
+    if (orderBy.isEmpty()) {
+      throw new IllegalArgumentException("orderBy.isEmpty()");
+    }
+    if (pageSize < 1) {
+      throw new IllegalArgumentException("pageSize < 1: " + pageSize);
+    }
+    final List<String> attributeNames = new ArrayList<>(orderBy.size());
+    this.descending = new boolean[orderBy.size()];
+    for (int i = 0; i < orderBy.size(); i++) {
+      final String[] parts = orderBy.get(i).trim().split("\\s+");
+      if (parts.length > 2 || parts[0].isEmpty() || parts[0].indexOf('.') >= 0) {
+        throw new IllegalArgumentException("Malformed orderBy element: " + orderBy.get(i));
+      }
+      if (parts.length == 2) {
+        if ("DESC".equalsIgnoreCase(parts[1])) {
+          this.descending[i] = true;
+        } else if (!"ASC".equalsIgnoreCase(parts[1])) {
+          throw new IllegalArgumentException("Malformed orderBy element: " + orderBy.get(i));
+        }
+      }
+      attributeNames.add(parts[0]);
+    }
+    this.attributeNames = Collections.unmodifiableList(attributeNames);
+    this.filter = filter == null || filter.trim().isEmpty() ? null : filter.trim();
+    this.pageSize = pageSize;
+    final StringBuilder shape = new StringBuilder(entityClass.getName());
+    for (int i = 0; i < this.descending.length; i++) {
+      shape.append(',').append(attributeNames.get(i)).append(this.descending[i] ? " DESC" : " ASC");
+    }
+    shape.append('|').append(this.filter);
+    this.shape = shape.toString().hashCode();
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns the maximum number of entities per page.
+   *
+   * @return the page size; always greater than {@code 0}
+   */
+  public final int getPageSize() {
+    return this.pageSize;
+  }
+
+  /**
+   * Creates a {@link TypedQuery} that selects the page following the
+   * position the supplied continuation token denotes, or the first
+   * page if it is {@code null}.
+   *
+   * <p>The caller must set the parameters of the filter, if any, on
+   * the returned {@link TypedQuery}, and must not change its
+   * {@linkplain TypedQuery#setFirstResult(int) first result} or
+   * {@linkplain TypedQuery#setMaxResults(int) maximum results}.  It
+   * may then be executed with {@link #getPage(TypedQuery)}.</p>
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param entityManager the {@link EntityManager} that will create
+   * the query; must not be {@code null}
+   *
+   * @param continuationToken a token previously returned by {@link
+   * Page#getContinuationToken()} or {@link
+   * #getContinuationToken(Object)} on this or an equivalent {@link
+   * KeysetPager}; may be {@code null}
+   *
+   * @return a non-{@code null} {@link TypedQuery}
+   *
+   * @exception NullPointerException if {@code entityManager} is
+   * {@code null}
+   *
+   * @exception IllegalArgumentException if {@code continuationToken}
+   * is invalid or was produced by a different kind of {@link
+   * KeysetPager}, or if an attribute named by the ordering is not a
+   * singular attribute of the entity type
+   */
+  public TypedQuery<T> createQuery(final EntityManager entityManager, final String continuationToken) {
+    Objects.requireNonNull(entityManager);
+    final Resolved resolved = this.resolve(entityManager);
+    final Object[] last = continuationToken == null ? null : this.decode(continuationToken, resolved);
+    final TypedQuery<T> returnValue =
+      entityManager.createQuery(last == null ? resolved.firstPageJpql : resolved.nextPageJpql, this.entityClass);
+    if (last != null) {
+      for (int i = 0; i < last.length; i++) {
+        returnValue.setParameter(PARAMETER_PREFIX + i, last[i]);
+      }
+    }
+    // One extra row tells whether there is a next page.
+    returnValue.setMaxResults(this.pageSize + 1);
+    return returnValue;
+  }
+
+  /**
+   * Executes a {@link TypedQuery} {@linkplain
+   * #createQuery(EntityManager, String) created} by this {@link
+   * KeysetPager} and returns the resulting {@link Page}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param query the {@link TypedQuery}; must not be {@code null}
+   *
+   * @return a non-{@code null} {@link Page}
+   *
+   * @exception NullPointerException if {@code query} is {@code null}
+   *
+   * @exception IllegalStateException if a key attribute of the last
+   * entity on the page is {@code null}
+   */
+  public Page<T> getPage(final TypedQuery<T> query) {
+    Objects.requireNonNull(query);
+    final List<T> resultList = query.getResultList();
+    if (resultList.size() <= this.pageSize) {
+      return new Page<>(resultList, null);
+    }
+    final List<T> results = new ArrayList<>(resultList.subList(0, this.pageSize));
+    return new Page<>(results, this.getContinuationToken(results.get(this.pageSize - 1)));
+  }
+
+  /**
+   * Returns a continuation token denoting the position immediately
+   * after the supplied entity, so that paging may resume from it.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param entity the entity; must not be {@code null}; must have
+   * been loaded or previously handled by this {@link KeysetPager}
+   *
+   * @return a non-{@code null} continuation token
+   *
+   * @exception NullPointerException if {@code entity} is {@code null}
+   *
+   * @exception IllegalStateException if this {@link KeysetPager} has
+   * not yet {@linkplain #createQuery(EntityManager, String) created}
+   * a query, or if a key attribute of {@code entity} is {@code null}
+   *
+   * @exception IllegalArgumentException if a key attribute is of an
+   * unsupported type
+   */
+  public String getContinuationToken(final T entity) {
+    Objects.requireNonNull(entity);
+    final Resolved resolved = this.resolved;
+    if (resolved == null) {
+      throw new IllegalStateException("No query has been created yet");
+    }
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (final DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeByte(TOKEN_VERSION);
+      out.writeInt(this.shape);
+      out.writeByte(resolved.members.length);
+      for (int i = 0; i < resolved.members.length; i++) {
+        final Object value = get(resolved.members[i], entity);
+        if (value == null) {
+          throw new IllegalStateException("Key attribute " + this.attributeNames.get(i) + " is null in " + entity);
+        }
+        write(out, value);
+      }
+    } catch (final IOException ioException) {
+      // ByteArrayOutputStream does not throw IOException.
+      throw new AssertionError(ioException.getMessage(), ioException);
+    }
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+  }
+
+  private final Object[] decode(final String continuationToken, final Resolved resolved) {
+    assert continuationToken != null;
+    assert resolved != null;
+    final Object[] returnValue = new Object[resolved.members.length];
+    try (final DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(continuationToken)))) {
+      if (in.readByte() != TOKEN_VERSION || in.readInt() != this.shape || in.readByte() != returnValue.length) {
+        throw new IllegalArgumentException("Continuation token does not belong to this pager: " + continuationToken);
+      }
+      for (int i = 0; i < returnValue.length; i++) {
+        final Object value = read(in);
+        if (!resolved.javaTypes[i].isInstance(value)) {
+          throw new IllegalArgumentException("Invalid continuation token: " + continuationToken);
+        }
+        returnValue[i] = value;
+      }
+      if (in.read() >= 0) {
+        throw new IllegalArgumentException("Invalid continuation token: " + continuationToken);
+      }
+    } catch (final IOException | RuntimeException exception) {
+      if (exception instanceof IllegalArgumentException) {
+        throw (IllegalArgumentException)exception;
+      }
+      throw new IllegalArgumentException("Invalid continuation token: " + continuationToken, exception);
+    }
+    return returnValue;
+  }
+
+  private final Resolved resolve(final EntityManager entityManager) {
+    assert entityManager != null;
+    Resolved resolved = this.resolved;
+    if (resolved == null) {
+      final EntityType<T> entityType = entityManager.getMetamodel().entity(this.entityClass);
+      final int size = this.attributeNames.size();
+      final Member[] members = new Member[size];
+      final Class<?>[] javaTypes = new Class<?>[size];
+      for (int i = 0; i < size; i++) {
+        final Attribute<? super T, ?> attribute = entityType.getSingularAttribute(this.attributeNames.get(i));
+        final Member member = attribute.getJavaMember();
+        if (!(member instanceof Field || member instanceof Method)) {
+          throw new IllegalArgumentException("Unsupported attribute: " + attribute.getName() + " (" + member + ")");
+        }
+        ((AccessibleObject)member).setAccessible(true);
+        members[i] = member;
+        javaTypes[i] = box(attribute.getJavaType());
+      }
+      final StringBuilder select = new StringBuilder("SELECT ").append(ALIAS)
+        .append(" FROM ").append(entityType.getName()).append(' ').append(ALIAS);
+      final StringBuilder orderBy = new StringBuilder(" ORDER BY ");
+      // (k1 > :keyset0) OR (k1 = :keyset0 AND k2 > :keyset1) OR ...
+      final StringBuilder seek = new StringBuilder();
+      for (int i = 0; i < size; i++) {
+        final String path = ALIAS + "." + this.attributeNames.get(i);
+        if (i > 0) {
+          orderBy.append(", ");
+          seek.append(" OR ");
+        }
+        orderBy.append(path).append(this.descending[i] ? " DESC" : " ASC");
+        seek.append('(');
+        for (int j = 0; j < i; j++) {
+          seek.append(ALIAS).append('.').append(this.attributeNames.get(j)).append(" = :").append(PARAMETER_PREFIX).append(j).append(" AND ");
+        }
+        seek.append(path).append(this.descending[i] ? " < :" : " > :").append(PARAMETER_PREFIX).append(i).append(')');
+      }
+      final String firstPageJpql =
+        select + (this.filter == null ? "" : " WHERE (" + this.filter + ")") + orderBy;
+      final String nextPageJpql =
+        select + " WHERE " + (this.filter == null ? "" : "(" + this.filter + ") AND ") + "(" + seek + ")" + orderBy;
+      resolved = new Resolved(members, javaTypes, firstPageJpql, nextPageJpql);
+      this.resolved = resolved;
+    }
+    return resolved;
+  }
+
+  @Override
+  public final String toString() {
+    return this.resolved == null ? "KeysetPager [" + this.entityClass.getName() + "]" : this.resolved.nextPageJpql;
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  private static final void write(final DataOutputStream out, final Object value) throws IOException {
+    assert out != null;
+    assert value != null;
+    if (value instanceof Long) {
+      out.writeByte('J');
+      out.writeLong(((Long)value).longValue());
+    } else if (value instanceof Integer) {
+      out.writeByte('I');
+      out.writeInt(((Integer)value).intValue());
+    } else if (value instanceof Short) {
+      out.writeByte('S');
+      out.writeShort(((Short)value).shortValue());
+    } else if (value instanceof Byte) {
+      out.writeByte('B');
+      out.writeByte(((Byte)value).byteValue());
+    } else if (value instanceof String) {
+      out.writeByte('T');
+      out.writeUTF((String)value);
+    } else if (value instanceof BigDecimal || value instanceof BigInteger || value instanceof UUID ||
+               value instanceof LocalDate || value instanceof LocalDateTime || value instanceof Instant ||
+               value instanceof OffsetDateTime) {
+      out.writeByte(tag(value.getClass()));
+      out.writeUTF(value.toString());
+    } else if (value instanceof Timestamp) {
+      out.writeByte('p');
+      out.writeUTF(((Timestamp)value).toInstant().toString());
+    } else if (value instanceof java.sql.Date) {
+      out.writeByte('q');
+      out.writeLong(((Date)value).getTime());
+    } else if (value instanceof Date) {
+      out.writeByte('w');
+      out.writeLong(((Date)value).getTime());
+    } else {
+      throw new IllegalArgumentException("Unsupported key type: " + value.getClass().getName());
+    }
+  }
+
+  private static final int tag(final Class<?> c) {
+    if (BigDecimal.class.equals(c)) {
+      return 'D';
+    } else if (BigInteger.class.equals(c)) {
+      return 'N';
+    } else if (UUID.class.equals(c)) {
+      return 'U';
+    } else if (LocalDate.class.equals(c)) {
+      return 'd';
+    } else if (LocalDateTime.class.equals(c)) {
+      return 't';
+    } else if (Instant.class.equals(c)) {
+      return 'i';
+    } else if (OffsetDateTime.class.equals(c)) {
+      return 'o';
+    }
+    throw new IllegalArgumentException("Unsupported key type: " + c.getName());
+  }
+
+  private static final Object read(final DataInputStream in) throws IOException {
+    assert in != null;
+    final int tag = in.readByte();
+    switch (tag) {
+    case 'J':
+      return Long.valueOf(in.readLong());
+    case 'I':
+      return Integer.valueOf(in.readInt());
+    case 'S':
+      return Short.valueOf(in.readShort());
+    case 'B':
+      return Byte.valueOf(in.readByte());
+    case 'T':
+      return in.readUTF();
+    case 'D':
+      return new BigDecimal(in.readUTF());
+    case 'N':
+      return new BigInteger(in.readUTF());
+    case 'U':
+      return UUID.fromString(in.readUTF());
+    case 'd':
+      return LocalDate.parse(in.readUTF());
+    case 't':
+      return LocalDateTime.parse(in.readUTF());
+    case 'i':
+      return Instant.parse(in.readUTF());
+    case 'o':
+      return OffsetDateTime.parse(in.readUTF());
+    case 'p':
+      return Timestamp.from(Instant.parse(in.readUTF()));
+    case 'q':
+      return new java.sql.Date(in.readLong());
+    case 'w':
+      return new Date(in.readLong());
+    default:
+      throw new IOException("Unknown tag: " + tag);
+    }
+  }
+
+  private static final Class<?> box(final Class<?> c) {
+    if (c == null || !c.isPrimitive()) {
+      return c == null ? Object.class : c;
+    } else if (long.class.equals(c)) {
+      return Long.class;
+    } else if (int.class.equals(c)) {
+      return Integer.class;
+    } else if (short.class.equals(c)) {
+      return Short.class;
+    } else if (byte.class.equals(c)) {
+      return Byte.class;
+    }
+    return c;
+  }
+
+  private static final Object get(final Member member, final Object entity) {
+    assert member != null;
+    try {
+      if (member instanceof Field) {
+        return ((Field)member).get(entity);
+      }
+      return ((Method)member).invoke(entity);
+    } catch (final IllegalAccessException illegalAccessException) {
+      throw new IllegalStateException(illegalAccessException.getMessage(), illegalAccessException);
+    } catch (final InvocationTargetException invocationTargetException) {
+      final Throwable cause = invocationTargetException.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      } else if (cause instanceof Error) {
+        throw (Error)cause;
+      }
+      throw new IllegalStateException(cause.getMessage(), cause);
+    }
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * One page of entities and the continuation token, if any, that
+   * denotes the next one.
+   *
+   * @param <T> the entity type
+   *
+   * @author <a href="https://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   *
+   * @see KeysetPager#getPage(TypedQuery)
+   */
+  public static final class Page<T> {
+
+    private final List<T> results;
+
+    private final String continuationToken;
+
+    private Page(final List<T> results, final String continuationToken) {
+      super();
+      this.results = Collections.unmodifiableList(results);
+      this.continuationToken = continuationToken;
+    }
+
+    /**
+     * Returns the entities on this page, in key order.
+     *
+     * <p>This method never returns {@code null}.</p>
+     *
+     * @return a non-{@code null}, unmodifiable {@link List}
+     */
+    public final List<T> getResults() {
+      return this.results;
+    }
+
+    /**
+     * Returns the continuation token denoting the next page, or
+     * {@code null} if this is the last page.
+     *
+     * @return a continuation token, or {@code null}
+     */
+    public final String getContinuationToken() {
+      return this.continuationToken;
+    }
+
+    /**
+     * Returns {@code true} if there is a page after this one.
+     *
+     * @return {@code true} if there is a page after this one
+     */
+    public final boolean hasNext() {
+      return this.continuationToken != null;
+    }
+
+  }
+
+  /**
+   * The metamodel-derived state of a {@link KeysetPager}.
+   *
+   * @author <a href="https://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   */
+  private static final class Resolved {
+
+    private final Member[] members;
+
+    private final Class<?>[] javaTypes;
+
+    private final String firstPageJpql;
+
+    private final String nextPageJpql;
+
+    private Resolved(final Member[] members,
+                     final Class<?>[] javaTypes,
+                     final String firstPageJpql,
+                     final String nextPageJpql) {
+      super();
+      this.members = members;
+      this.javaTypes = javaTypes;
+      this.firstPageJpql = firstPageJpql;
+      this.nextPageJpql = nextPageJpql;
+    }
+
+  }
+
+}
@@ -0,0 +1,429 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.io.PrintWriter;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+
+import java.util.Objects;
+
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * A {@link DataSource} that hands out {@link Connection} handles
+ * that do not {@linkplain DataSource#getConnection() check out} a
+ * real {@link Connection} from the {@link DataSource} they wrap until
+ * it is actually needed.
+ *
+ * <p>Persistence providers frequently acquire a {@link Connection} as
+ * soon as a transaction begins or an {@link
+ * javax.persistence.EntityManager} needs one, even if the work
+ * subsequently performed never reaches the database (because, for
+ * example, it is satisfied by a cache).  A {@link Connection} handle
+ * returned by this class records calls to {@link
+ * Connection#setAutoCommit(boolean)}, {@link
+ * Connection#setReadOnly(boolean)}, {@link
+ * Connection#setTransactionIsolation(int)} and the like, and only
+ * acquires a real {@link Connection}, replaying those settings on
+ * it, when a statement is created or some other operation requiring
+ * a physical {@link Connection} is performed.  {@link
+ * Connection#commit()} and {@link Connection#rollback()} are no-ops
+ * on a handle that never acquired a real {@link Connection}.  The
+ * real {@link Connection}, if any, is released when the handle is
+ * {@linkplain Connection#close() closed}.</p>
+ *
+ * <p>{@link Connection#getAutoCommit()} on a handle whose
+ * auto-commit mode has not been set reports the auto-commit mode of
+ * the real {@link Connection}s of the wrapped {@link DataSource},
+ * which is learned from the first one acquired, since pools are
+ * frequently configured not to hand out {@link Connection}s in
+ * auto-commit mode.  If no real {@link Connection} has been acquired
+ * yet, the handle acquires one.</p>
+ *
+ * <p>When wrapping a JTA-enabled {@link DataSource}, the real {@link
+ * Connection} is acquired on the thread, and therefore in the
+ * transaction, that first uses the handle, which is the thread that
+ * requested the handle in all common usage patterns.</p>
+ *
+ * <p>The {@link PersistenceUnitInfoBean} class wraps the {@link
+ * DataSource}s it returns in instances of this class when the
+ * persistence unit property named {@value #LAZY_CONNECTIONS_PROPERTY_NAME}
+ * is set to {@code true}.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see PersistenceUnitInfoBean#getJtaDataSource()
+ *
+ * @see PersistenceUnitInfoBean#getNonJtaDataSource()
+ */
+public class LazyConnectionDataSource implements DataSource {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  /**
+   * The name of the persistence unit property that, if set to {@code
+   * true}, causes the {@link DataSource}s returned by a {@link
+   * PersistenceUnitInfoBean} to be instances of this class.
+   */
+  public static final String LAZY_CONNECTIONS_PROPERTY_NAME = "org.microbean.jpa.cdi.lazyConnections";
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final DataSource delegate;
+
+  /**
+   * The auto-commit mode of the real {@link Connection}s handed out
+   * by the {@linkplain #delegate wrapped <code>DataSource</code>},
+   * learned from the first one acquired without credentials, or
+   * {@code null} if none has been acquired yet.
+   */
+  private volatile Boolean defaultAutoCommit;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link LazyConnectionDataSource}.
+   *
+   * @param delegate the {@link DataSource} from which real {@link
+   * Connection}s will be acquired; must not be {@code null}
+   *
+   * @exception NullPointerException if {@code delegate} is {@code
+   * null}
+   */
+  public LazyConnectionDataSource(final DataSource delegate) {
+    super();
+    this.delegate = Objects.requireNonNull(delegate);
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns a {@link Connection} handle that will acquire a real
+   * {@link Connection} from the wrapped {@link DataSource} only when
+   * one is needed.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link Connection} handle
+   */
+  @Override
+  public Connection getConnection() {
+    return newConnectionHandle(new LazyConnectionHandler(this, null, null));
+  }
+
+  /**
+   * Returns a {@link Connection} handle that will acquire a real
+   * {@link Connection} from the wrapped {@link DataSource}, using the
+   * supplied credentials, only when one is needed.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param username the user name to supply to the {@link
+   * DataSource#getConnection(String, String)} method of the wrapped
+   * {@link DataSource}; may be {@code null}
+   *
+   * @param password the password to supply to the {@link
+   * DataSource#getConnection(String, String)} method of the wrapped
+   * {@link DataSource}; may be {@code null}
+   *
+   * @return a non-{@code null} {@link Connection} handle
+   */
+  @Override
+  public Connection getConnection(final String username, final String password) {
+    return newConnectionHandle(new LazyConnectionHandler(this, username, password));
+  }
+
+  @Override
+  public PrintWriter getLogWriter() throws SQLException {
+    return this.delegate.getLogWriter();
+  }
+
+  @Override
+  public void setLogWriter(final PrintWriter out) throws SQLException {
+    this.delegate.setLogWriter(out);
+  }
+
+  @Override
+  public void setLoginTimeout(final int seconds) throws SQLException {
+    this.delegate.setLoginTimeout(seconds);
+  }
+
+  @Override
+  public int getLoginTimeout() throws SQLException {
+    return this.delegate.getLoginTimeout();
+  }
+
+  @Override
+  public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+    return this.delegate.getParentLogger();
+  }
+
+  @Override
+  public <T> T unwrap(final Class<T> iface) throws SQLException {
+    if (iface != null && iface.isInstance(this)) {
+      return iface.cast(this);
+    }
+    return this.delegate.unwrap(iface);
+  }
+
+  @Override
+  public boolean isWrapperFor(final Class<?> iface) throws SQLException {
+    return (iface != null && iface.isInstance(this)) || this.delegate.isWrapperFor(iface);
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  private static final Connection newConnectionHandle(final InvocationHandler handler) {
+    return Proxies.newProxyInstance(LazyConnectionDataSource.class.getClassLoader(),
+                                    Connection.class,
+                                    handler);
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * An {@link InvocationHandler} backing a lazy {@link Connection}
+   * handle.
+   *
+   * <p>Instances of this class are not safe for concurrent use by
+   * multiple threads, just as most {@link Connection}s are not.</p>
+   *
+   * @author <a href="https://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   */
+  private static final class LazyConnectionHandler implements InvocationHandler {
+
+    private final LazyConnectionDataSource owner;
+
+    private final String username;
+
+    private final String password;
+
+    private Connection connection;
+
+    private boolean closed;
+
+    private Boolean autoCommit;
+
+    private Boolean readOnly;
+
+    private Integer transactionIsolation;
+
+    private Integer holdability;
+
+    private String catalog;
+
+    private String schema;
+
+    private LazyConnectionHandler(final LazyConnectionDataSource owner, final String username, final String password) {
+      super();
+      this.owner = owner;
+      this.username = username;
+      this.password = password;
+    }
+
+    @Override
+    public final Object invoke(final Object proxy, final Method method, final Object[] arguments) throws Throwable {
+      final String name = method.getName();
+      final int parameterCount = method.getParameterCount();
+      switch (name) {
+      case "equals":
+        if (parameterCount == 1) {
+          return Boolean.valueOf(proxy == arguments[0]);
+        }
+        break;
+      case "hashCode":
+        if (parameterCount == 0) {
+          return Integer.valueOf(System.identityHashCode(proxy));
+        }
+        break;
+      case "toString":
+        if (parameterCount == 0) {
+          return "Lazy connection handle [" + (this.connection == null ? "not acquired" : this.connection) + "]";
+        }
+        break;
+      case "close":
+        this.closed = true;
+        if (this.connection != null) {
+          final Connection connection = this.connection;
+          this.connection = null;
+          connection.close();
+        }
+        return null;
+      case "isClosed":
+        return Boolean.valueOf(this.closed || (this.connection != null && this.connection.isClosed()));
+      default:
+        break;
+      }
+      if (this.closed) {
+        throw new SQLException("Connection is closed");
+      }
+      if (this.connection == null) {
+        switch (name) {
+        case "setAutoCommit":
+          this.autoCommit = (Boolean)arguments[0];
+          return null;
+        case "getAutoCommit":
+          if (this.autoCommit != null) {
+            return this.autoCommit;
+          }
+          // Pools are often configured so that their connections are
+          // not in auto-commit mode, despite section 10.1.1 of the
+          // JDBC 4.2 specification, so report what a real connection
+          // reports.  If none has been acquired yet, acquire one.
+          if (this.username == null && this.password == null) {
+            final Boolean defaultAutoCommit = this.owner.defaultAutoCommit;
+            if (defaultAutoCommit != null) {
+              return defaultAutoCommit;
+            }
+          }
+          break;
+        case "setReadOnly":
+          this.readOnly = (Boolean)arguments[0];
+          return null;
+        case "isReadOnly":
+          if (this.readOnly != null) {
+            return this.readOnly;
+          }
+          break;
+        case "setTransactionIsolation":
+          this.transactionIsolation = (Integer)arguments[0];
+          return null;
+        case "getTransactionIsolation":
+          if (this.transactionIsolation != null) {
+            return this.transactionIsolation;
+          }
+          break;
+        case "setHoldability":
+          this.holdability = (Integer)arguments[0];
+          return null;
+        case "getHoldability":
+          if (this.holdability != null) {
+            return this.holdability;
+          }
+          break;
+        case "setCatalog":
+          this.catalog = (String)arguments[0];
+          return null;
+        case "setSchema":
+          this.schema = (String)arguments[0];
+          return null;
+        case "commit":
+        case "clearWarnings":
+          // Nothing has happened, so there is nothing to commit or
+          // clear.
+          return null;
+        case "rollback":
+          if (parameterCount == 0) {
+            return null;
+          }
+          break;
+        case "getWarnings":
+          return null;
+        case "isValid":
+          return Boolean.TRUE;
+        default:
+          break;
+        }
+        this.connection = this.acquire();
+      }
+      return Proxies.invoke(this.connection, method, arguments);
+    }
+
+    private final Connection acquire() throws SQLException {
+      final boolean defaultCredentials = this.username == null && this.password == null;
+      final Connection connection;
+      if (defaultCredentials) {
+        connection = this.owner.delegate.getConnection();
+      } else {
+        connection = this.owner.delegate.getConnection(this.username, this.password);
+      }
+      if (connection == null) {
+        throw new SQLException("dataSource.getConnection() == null");
+      }
+      try {
+        if (this.autoCommit != null || (defaultCredentials && this.owner.defaultAutoCommit == null)) {
+          final boolean autoCommit = connection.getAutoCommit();
+          if (defaultCredentials && this.owner.defaultAutoCommit == null) {
+            this.owner.defaultAutoCommit = Boolean.valueOf(autoCommit);
+          }
+          if (this.autoCommit != null && autoCommit != this.autoCommit.booleanValue()) {
+            connection.setAutoCommit(this.autoCommit.booleanValue());
+          }
+        }
+        if (this.readOnly != null) {
+          connection.setReadOnly(this.readOnly.booleanValue());
+        }
+        if (this.transactionIsolation != null) {
+          connection.setTransactionIsolation(this.transactionIsolation.intValue());
+        }
+        if (this.holdability != null) {
+          connection.setHoldability(this.holdability.intValue());
+        }
+        if (this.catalog != null) {
+          connection.setCatalog(this.catalog);
+        }
+        if (this.schema != null) {
+          connection.setSchema(this.schema);
+        }
+      } catch (final SQLException | RuntimeException exception) {
+        try {
+          connection.close();
+        } catch (final SQLException closeException) {
+          exception.addSuppressed(closeException);
+        }
+        throw exception;
+      }
+      return connection;
+    }
+
+  }
+
+}
@@ -0,0 +1,119 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.util.Objects;
+import java.util.Set;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import java.util.function.Consumer;
+
+/**
+ * A {@link CacheInvalidationTransport} that delivers messages,
+ * synchronously, to every started {@link
+ * LoopbackCacheInvalidationTransport} in the same JVM that shares its
+ * channel.
+ *
+ * <p>This transport lets several {@link
+ * javax.persistence.EntityManagerFactory} instances standing in for
+ * separate nodes be tested in a single JVM.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see CacheCoordination
+ */
+public class LoopbackCacheInvalidationTransport implements CacheInvalidationTransport {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  private static final ConcurrentMap<String, Set<LoopbackCacheInvalidationTransport>> channels = new ConcurrentHashMap<>();
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final String channel;
+
+  private volatile Consumer<? super byte[]> receiver;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link LoopbackCacheInvalidationTransport}.
+   *
+   * @param channel the name of the channel this {@link
+   * LoopbackCacheInvalidationTransport} sends and receives messages
+   * on; must not be {@code null}
+   *
+   * @exception NullPointerException if {@code channel} is {@code
+   * null}
+   */
+  public LoopbackCacheInvalidationTransport(final String channel) {
+    super();
+    this.channel = Objects.requireNonNull(channel);
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  @Override
+  public void start(final Consumer<? super byte[]> receiver) {
+    this.receiver = Objects.requireNonNull(receiver);
+    channels.computeIfAbsent(this.channel, c -> new CopyOnWriteArraySet<>()).add(this);
+  }
+
+  @Override
+  public void send(final byte[] message) {
+    Objects.requireNonNull(message);
+    final Set<LoopbackCacheInvalidationTransport> members = channels.get(this.channel);
+    if (members != null) {
+      for (final LoopbackCacheInvalidationTransport member : members) {
+        final Consumer<? super byte[]> receiver = member.receiver;
+        if (receiver != null) {
+          receiver.accept(message.clone());
+        }
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    final Set<LoopbackCacheInvalidationTransport> members = channels.get(this.channel);
+    if (members != null) {
+      members.remove(this);
+    }
+    this.receiver = null;
+  }
+
+}
@@ -0,0 +1,397 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.io.IOException;
+
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.persistence.spi.PersistenceProvider;
+import javax.persistence.spi.PersistenceUnitInfo;
+
+/**
+ * A manager of the file in which a persistence provider caches the
+ * processed mapping metadata of a persistence unit, so that later
+ * deployments of an unchanged persistence unit skip annotation and
+ * mapping file processing.
+ *
+ * <p>When a {@link MetadataCache} is {@linkplain
+ * #apply(PersistenceProvider, Map) applied} to the properties with
+ * which an {@link javax.persistence.EntityManagerFactory} is about to
+ * be created, it computes the persistence unit's {@linkplain
+ * PersistenceUnitFingerprint#compute(PersistenceUnitInfo, Map)
+ * fingerprint}, which covers the bytecode of its managed classes and
+ * of any classes the provider might discover by scanning its root
+ * and jar files, its mapping files (including implicit {@code
+ * META-INF/orm.xml} files) and its properties, including those about
+ * to be supplied to the persistence provider.  The cache file is named
+ * after the persistence unit and that fingerprint, in a configurable
+ * directory, so a change to any of those inputs selects a new file;
+ * older cache files of the same persistence unit are deleted at the
+ * same time.  A {@link MetadataCacheSupport} for the persistence
+ * provider then adds the provider-specific properties that point the
+ * provider at the file.  EclipseLink is supported out of the box by
+ * {@link EclipseLinkMetadataCacheSupport}; Hibernate offers no
+ * equivalent cache, so for Hibernate (and any other provider without
+ * a {@link MetadataCacheSupport}) applying a {@link MetadataCache}
+ * does nothing.</p>
+ *
+ * <p>Because a persistence provider deserializes the cache file, a
+ * directory that another user could write to would let that user
+ * run code in this JVM.  On file systems with POSIX permissions the
+ * directory is therefore created readable and writable by its owner
+ * only, and an existing directory is refused if it is owned by
+ * another user or is writable by its group or by others.</p>
+ *
+ * <p>A cache is an optimization only: if the fingerprint cannot be
+ * computed (because, for example, the persistence unit's root is not
+ * a local file or directory and its classes could therefore change
+ * unnoticed) or the directory cannot be prepared or is refused, a
+ * warning is logged and the persistence unit is deployed as usual,
+ * without a cache.</p>
+ *
+ * <p>The {@link JpaExtension} creates a {@link MetadataCache} for
+ * every {@link PersistenceUnitInfoBean} whose properties include a
+ * property named {@value #ENABLED_PROPERTY_NAME} whose value is
+ * {@code true}, or a property named {@value
+ * #DIRECTORY_PROPERTY_NAME}, and makes it available as a bean
+ * qualified with the {@linkplain javax.inject.Named name} of the
+ * persistence unit.</p>
+ *
+ * <p>Instances of this class are safe for concurrent use by multiple
+ * threads.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see MetadataCacheSupport
+ *
+ * @see PersistenceUnitFingerprint
+ */
+public class MetadataCache {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  /**
+   * The name of the persistence unit property that, if set to {@code
+   * true}, causes a {@link MetadataCache} to be made available for
+   * that persistence unit.
+   */
+  public static final String ENABLED_PROPERTY_NAME = "org.microbean.jpa.cdi.metadataCache.enabled";
+
+  /**
+   * The name of the persistence unit property whose value, if
+   * present, is the path of the directory in which cache files are
+   * kept.
+   *
+   * <p>If this property is absent, cache files are kept in the
+   * directory {@code .microbean-jpa-cdi/metadata-cache} beneath the
+   * directory named by the {@code user.home} system property, which
+   * unlike a shared temporary directory belongs to the user running
+   * the JVM.</p>
+   */
+  public static final String DIRECTORY_PROPERTY_NAME = "org.microbean.jpa.cdi.metadataCache.directory";
+
+  /**
+   * The name of the persistence unit property whose value, if
+   * present, is the name of a class implementing {@link
+   * MetadataCacheSupport} to use instead of the built-in ones.
+   */
+  public static final String SUPPORT_PROPERTY_NAME = "org.microbean.jpa.cdi.metadataCache.support";
+
+  private static final Logger logger = Logger.getLogger(MetadataCache.class.getName());
+
+  private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rwx------");
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final String name;
+
+  private final PersistenceUnitInfo persistenceUnitInfo;
+
+  private final Path directory;
+
+  private final MetadataCacheSupport support;
+
+  private final AtomicBoolean applied;
+
+  private volatile Path cacheFile;
+
+  private volatile boolean hit;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link MetadataCache}.
+   *
+   * @param name the name of the persistence unit; must not be {@code
+   * null}
+   *
+   * @param persistenceUnitInfo the {@link PersistenceUnitInfo}
+   * describing the persistence unit; must not be {@code null}
+   *
+   * @param directory the directory in which cache files are kept;
+   * must not be {@code null}
+   *
+   * @param support the {@link MetadataCacheSupport} to use; may be
+   * {@code null} in which case {@link
+   * EclipseLinkMetadataCacheSupport} is used if it {@linkplain
+   * MetadataCacheSupport#supports(String) supports} the persistence
+   * provider
+   *
+   * @exception NullPointerException if {@code name}, {@code
+   * persistenceUnitInfo} or {@code directory} is {@code null}
+   */
+  public MetadataCache(final String name,
+                       final PersistenceUnitInfo persistenceUnitInfo,
+                       final Path directory,
+                       final MetadataCacheSupport support) {
+    super();
+    this.name = Objects.requireNonNull(name);
+    this.persistenceUnitInfo = Objects.requireNonNull(persistenceUnitInfo);
+    this.directory = Objects.requireNonNull(directory);
+    this.support = support == null ? new EclipseLinkMetadataCacheSupport() : support;
+    this.applied = new AtomicBoolean();
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns the cache file selected when this {@link MetadataCache}
+   * was {@linkplain #apply(PersistenceProvider, Map) applied}, or
+   * {@code null} if it has not been applied or no cache is in use.
+   *
+   * @return the cache file, or {@code null}
+   */
+  public final Path getCacheFile() {
+    return this.cacheFile;
+  }
+
+  /**
+   * Returns {@code true} if the {@linkplain #getCacheFile() cache
+   * file} already existed when this {@link MetadataCache} was
+   * {@linkplain #apply(PersistenceProvider, Map) applied}, meaning
+   * that the persistence provider could skip metadata processing.
+   *
+   * @return {@code true} if the cache file already existed
+   */
+  public final boolean isHit() {
+    return this.hit;
+  }
+
+  /**
+   * Selects the cache file matching the current state of the
+   * persistence unit, deletes the persistence unit's stale cache
+   * files, and adds properties to the supplied {@link Map}, which is
+   * about to be supplied to {@link
+   * PersistenceProvider#createContainerEntityManagerFactory(PersistenceUnitInfo,
+   * Map)}, that point the supplied {@link PersistenceProvider} at
+   * the cache file.
+   *
+   * <p>Only the first invocation of this method has any effect.  It
+   * should be invoked after all other changes to the properties have
+   * been made, since they are part of the fingerprint.</p>
+   *
+   * @param persistenceProvider the {@link PersistenceProvider} of the
+   * persistence unit; must not be {@code null}
+   *
+   * @param properties the mutable {@link Map} of properties to
+   * modify; must not be {@code null}
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   */
+  public void apply(final PersistenceProvider persistenceProvider, final Map<String, Object> properties) {
+    Objects.requireNonNull(persistenceProvider);
+    Objects.requireNonNull(properties);
+    if (!this.applied.compareAndSet(false, true)) {
+      return;
+    }
+    if (!this.support.supports(persistenceProvider.getClass().getName())) {
+      if (logger.isLoggable(Level.FINE)) {
+        logger.logp(Level.FINE, MetadataCache.class.getName(), "apply",
+                    "No metadata cache support for persistence unit {0} and persistence provider {1}",
+                    new Object[] { this.name, persistenceProvider.getClass().getName() });
+      }
+      return;
+    }
+    final Path cacheFile;
+    try {
+      final String fingerprint = PersistenceUnitFingerprint.compute(this.persistenceUnitInfo, properties);
+      final String prefix = (this.name.isEmpty() ? "default" : this.name.replaceAll("[^A-Za-z0-9._-]", "_")) + "-";
+      final String suffix = this.support.getFileSuffix();
+      prepareDirectory(this.directory);
+      cacheFile = this.directory.resolve(prefix + fingerprint + suffix);
+      try (final DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory, prefix + "*" + suffix)) {
+        for (final Path file : stream) {
+          final String fileName = file.getFileName().toString();
+          // Only delete files named after another fingerprint, not
+          // those of units whose names merely share this prefix.
+          if (!file.equals(cacheFile) &&
+              fileName.length() == prefix.length() + fingerprint.length() + suffix.length()) {
+            if (logger.isLoggable(Level.FINE)) {
+              logger.logp(Level.FINE, MetadataCache.class.getName(), "apply", "Deleting stale metadata cache {0}", file);
+            }
+            Files.deleteIfExists(file);
+          }
+        }
+      }
+    } catch (final IOException ioException) {
+      if (logger.isLoggable(Level.WARNING)) {
+        logger.logp(Level.WARNING, MetadataCache.class.getName(), "apply",
+                    "Not using a metadata cache for persistence unit " + this.name, ioException);
+      }
+      return;
+    }
+    this.hit = Files.isRegularFile(cacheFile);
+    this.cacheFile = cacheFile;
+    this.support.apply(cacheFile, properties);
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Returns a new {@link MetadataCache} configured by the properties
+   * of the supplied {@link PersistenceUnitInfo}, or {@code null} if
+   * they do not call for one.
+   *
+   * @param name the name of the persistence unit; must not be {@code
+   * null}
+   *
+   * @param persistenceUnitInfo the {@link PersistenceUnitInfo}; must
+   * not be {@code null}
+   *
+   * @return a new {@link MetadataCache}, or {@code null}
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   *
+   * @exception IllegalArgumentException if the value of the {@value
+   * #SUPPORT_PROPERTY_NAME} property does not name a suitable class
+   */
+  static final MetadataCache fromProperties(final String name, final PersistenceUnitInfo persistenceUnitInfo) {
+    Objects.requireNonNull(name);
+    final Map<?, ?> unitProperties = persistenceUnitInfo.getProperties();
+    final String directoryName = UnitProperties.getString(unitProperties, DIRECTORY_PROPERTY_NAME, null);
+    if (directoryName == null && !UnitProperties.getBoolean(unitProperties, ENABLED_PROPERTY_NAME, false)) {
+      return null;
+    }
+    final Path directory =
+      directoryName == null ? Paths.get(System.getProperty("user.home"), ".microbean-jpa-cdi", "metadata-cache") : Paths.get(directoryName);
+    final String supportName = UnitProperties.getString(unitProperties, SUPPORT_PROPERTY_NAME, null);
+    MetadataCacheSupport support = null;
+    if (supportName != null && !supportName.trim().isEmpty()) {
+      ClassLoader classLoader = persistenceUnitInfo.getClassLoader();
+      if (classLoader == null) {
+        classLoader = Thread.currentThread().getContextClassLoader();
+      }
+      try {
+        support = Class.forName(supportName.trim(), true, classLoader)
+          .asSubclass(MetadataCacheSupport.class)
+          .getConstructor()
+          .newInstance();
+      } catch (final ReflectiveOperationException | ClassCastException exception) {
+        throw new IllegalArgumentException(SUPPORT_PROPERTY_NAME + ": " + supportName, exception);
+      }
+    }
+    return new MetadataCache(name, persistenceUnitInfo, directory, support);
+  }
+
+  /**
+   * Creates the supplied directory, if necessary, so that only its
+   * owner may use it, and throws an {@link IOException} if it is not
+   * a directory that only the user running this JVM can write to.
+   *
+   * <p>File systems without POSIX permissions are not checked.</p>
+   */
+  static final void prepareDirectory(final Path directory) throws IOException {
+    Objects.requireNonNull(directory);
+    final boolean posix = directory.getFileSystem().supportedFileAttributeViews().contains("posix");
+    if (!Files.exists(directory, LinkOption.NOFOLLOW_LINKS)) {
+      final Path parent = directory.toAbsolutePath().getParent();
+      if (parent != null) {
+        Files.createDirectories(parent);
+      }
+      try {
+        if (posix) {
+          Files.createDirectory(directory, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+        } else {
+          Files.createDirectory(directory);
+        }
+      } catch (final FileAlreadyExistsException fileAlreadyExistsException) {
+        // Someone else created it first; it is checked below.
+      }
+    }
+    if (!Files.isDirectory(directory, LinkOption.NOFOLLOW_LINKS)) {
+      throw new IOException(directory + " is not a directory");
+    }
+    if (posix) {
+      final PosixFileAttributes attributes =
+        Files.getFileAttributeView(directory, PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS).readAttributes();
+      final UserPrincipal user =
+        directory.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+      if (!user.equals(attributes.owner())) {
+        throw new IOException(directory + " is owned by " + attributes.owner().getName() + ", not " + user.getName());
+      }
+      final Set<PosixFilePermission> permissions = attributes.permissions();
+      if (permissions.contains(PosixFilePermission.GROUP_WRITE) || permissions.contains(PosixFilePermission.OTHERS_WRITE)) {
+        throw new IOException(directory + " is writable by other users (" + PosixFilePermissions.toString(permissions) + ")");
+      }
+    }
+  }
+
+}
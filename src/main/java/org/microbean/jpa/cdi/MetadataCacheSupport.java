@@ -0,0 +1,91 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.nio.file.Path;
+
+import java.util.Map;
+
+/**
+ * A persistence provider's ability to save the mapping metadata it
+ * processes while deploying a persistence unit to a file and to load
+ * it from that file on later deployments instead of processing
+ * annotations and mapping files again.
+ *
+ * <p>A {@link MetadataCache} decides where the file lives and when it
+ * is stale; a {@link MetadataCacheSupport} only tells the persistence
+ * provider to use it.  Implementations other than the built-in
+ * {@link EclipseLinkMetadataCacheSupport} are selected by naming a
+ * class that implements this interface and has a {@code public}
+ * zero-argument constructor as the value of the {@value
+ * MetadataCache#SUPPORT_PROPERTY_NAME} persistence unit property.</p>
+ *
+ * <p>Implementations must be safe for concurrent use by multiple
+ * threads.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see MetadataCache
+ *
+ * @see EclipseLinkMetadataCacheSupport
+ */
+public interface MetadataCacheSupport {
+
+  /**
+   * Returns {@code true} if this {@link MetadataCacheSupport} can
+   * configure the persistence provider whose {@link
+   * javax.persistence.spi.PersistenceProvider} implementation has the
+   * supplied class name.
+   *
+   * @param persistenceProviderClassName the class name; must not be
+   * {@code null}
+   *
+   * @return {@code true} if this {@link MetadataCacheSupport} can
+   * configure the persistence provider
+   */
+  public boolean supports(final String persistenceProviderClassName);
+
+  /**
+   * Returns the suffix, including any leading period, of the names of
+   * the cache files this {@link MetadataCacheSupport} configures.
+   *
+   * <p>The default implementation returns {@code .metadata}.</p>
+   *
+   * @return a non-{@code null} file name suffix
+   */
+  public default String getFileSuffix() {
+    return ".metadata";
+  }
+
+  /**
+   * Adds properties to the supplied {@link Map}, which is about to be
+   * supplied to {@link
+   * javax.persistence.spi.PersistenceProvider#createContainerEntityManagerFactory(javax.persistence.spi.PersistenceUnitInfo,
+   * Map)}, that cause the persistence provider to load its mapping
+   * metadata from the supplied cache file if it exists, and to save
+   * it there otherwise.
+   *
+   * @param cacheFile the cache file, which may not exist; must not be
+   * {@code null}
+   *
+   * @param properties the mutable {@link Map} of properties to
+   * modify; must not be {@code null}
+   */
+  public void apply(final Path cacheFile, final Map<String, Object> properties);
+
+}
@@ -0,0 +1,466 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+
+import java.nio.charset.StandardCharsets;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import javax.persistence.spi.PersistenceProvider;
+import javax.persistence.spi.PersistenceProviderResolverHolder;
+import javax.persistence.spi.PersistenceUnitInfo;
+
+import javax.xml.bind.JAXBException;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.microbean.jpa.jaxb.ObjectFactory;
+
+/**
+ * A build-time tool that uses the same {@code
+ * META-INF/persistence.xml} discovery that the {@link JpaExtension}
+ * performs to generate <a
+ * href="https://www.graalvm.org/docs/reference-manual/native-image/"
+ * target="_parent">GraalVM {@code native-image}</a> reflection,
+ * resource and dynamic proxy configuration files.
+ *
+ * <p>The generated configuration covers:</p>
+ *
+ * <ul>
+ *
+ * <li>every {@linkplain PersistenceUnitInfo#getManagedClassNames()
+ * managed class} of every discovered persistence unit, together with
+ * its superclasses,</li>
+ *
+ * <li>every {@linkplain
+ * PersistenceUnitInfo#getPersistenceProviderClassName() persistence
+ * provider named by a persistence unit} and every {@link
+ * PersistenceProvider} found by the default {@link
+ * javax.persistence.spi.PersistenceProviderResolver},</li>
+ *
+ * <li>the JAXB types used to parse {@code META-INF/persistence.xml}
+ * resources and the {@link JpaExtension} itself,</li>
+ *
+ * <li>{@code META-INF/persistence.xml} resources, {@linkplain
+ * PersistenceUnitInfo#getMappingFileNames() mapping files} and
+ * {@link PersistenceProvider} service registrations, and</li>
+ *
+ * <li>every interface, such as {@link java.sql.Connection} or {@link
+ * javax.persistence.EntityManager}, for which this project creates
+ * dynamic proxies.</li>
+ *
+ * </ul>
+ *
+ * <p>Every discovered descriptor is parsed while the configuration is
+ * generated, so a malformed {@code META-INF/persistence.xml} resource
+ * fails the build rather than the native executable.</p>
+ *
+ * <p>The {@link #main(String[])} method is intended to be run during
+ * the {@code process-classes} phase of a build, for example by the
+ * {@code native-image} profile of this project's {@code pom.xml},
+ * with the build's output directory on its classpath.  Since no CDI
+ * container runs at that point, only managed classes that are listed
+ * in {@code META-INF/persistence.xml} resources or that are supplied
+ * to the {@link #NativeImageConfigurationGenerator(ClassLoader, Map)}
+ * constructor are covered.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see #generate(Path)
+ *
+ * @see JpaExtension
+ */
+public class NativeImageConfigurationGenerator {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  /**
+   * The name of the reflection configuration file written by the
+   * {@link #generate(Path)} method ({@value}).
+   */
+  public static final String REFLECTION_CONFIGURATION_FILE_NAME = "reflect-config.json";
+
+  /**
+   * The name of the resource configuration file written by the
+   * {@link #generate(Path)} method ({@value}).
+   */
+  public static final String RESOURCE_CONFIGURATION_FILE_NAME = "resource-config.json";
+
+  /**
+   * The name of the dynamic proxy configuration file written by the
+   * {@link #generate(Path)} method ({@value}).
+   */
+  public static final String PROXY_CONFIGURATION_FILE_NAME = "proxy-config.json";
+
+  private static final String JAXB_GENERATED_PACKAGE_NAME = ObjectFactory.class.getPackage().getName();
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final ClassLoader classLoader;
+
+  private final Map<? extends String, ? extends Set<? extends Class<?>>> unlistedClasses;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link NativeImageConfigurationGenerator} that
+   * discovers persistence units using the {@linkplain
+   * Thread#getContextClassLoader() context classloader}.
+   *
+   * @see #NativeImageConfigurationGenerator(ClassLoader, Map)
+   */
+  public NativeImageConfigurationGenerator() {
+    this(Thread.currentThread().getContextClassLoader(), null);
+  }
+
+  /**
+   * Creates a new {@link NativeImageConfigurationGenerator}.
+   *
+   * @param classLoader the {@link ClassLoader} used to find {@code
+   * META-INF/persistence.xml} resources and to load persistence unit
+   * classes; must not be {@code null}
+   *
+   * @param unlistedClasses a {@link Map} of managed classes indexed
+   * by persistence unit name whose values might not be explicitly
+   * listed in any persistence unit, as discovered by CDI in the
+   * {@link JpaExtension}; may be {@code null}
+   *
+   * @exception NullPointerException if {@code classLoader} is {@code
+   * null}
+   */
+  public NativeImageConfigurationGenerator(final ClassLoader classLoader,
+                                           final Map<? extends String, ? extends Set<? extends Class<?>>> unlistedClasses) {
+    super();
+    this.classLoader = Objects.requireNonNull(classLoader);
+    if (unlistedClasses == null) {
+      this.unlistedClasses = Collections.emptyMap();
+    } else {
+      this.unlistedClasses = unlistedClasses;
+    }
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Discovers all persistence units and writes {@value
+   * #REFLECTION_CONFIGURATION_FILE_NAME}, {@value
+   * #RESOURCE_CONFIGURATION_FILE_NAME} and {@value
+   * #PROXY_CONFIGURATION_FILE_NAME} files describing them into the
+   * supplied directory, creating it if necessary.
+   *
+   * <p>When the supplied directory is {@code
+   * META-INF/native-image/<groupId>/<artifactId>} within a jar file
+   * or build output directory, the {@code native-image} tool will
+   * pick the generated files up automatically.</p>
+   *
+   * @param directory the directory to write to; must not be {@code
+   * null}
+   *
+   * @exception NullPointerException if {@code directory} is {@code
+   * null}
+   *
+   * @exception IOException if an input/output error occurs
+   *
+   * @exception JAXBException if a {@code META-INF/persistence.xml}
+   * resource could not be parsed
+   *
+   * @exception XMLStreamException if a {@code META-INF/persistence.xml}
+   * resource could not be parsed
+   */
+  public void generate(final Path directory) throws IOException, JAXBException, XMLStreamException {
+    Objects.requireNonNull(directory);
+    final Collection<? extends PersistenceUnitInfo> persistenceUnitInfos =
+      JpaExtension.readPersistenceUnitInfos(this.classLoader,
+                                            this.unlistedClasses,
+                                            (jta, useDefaultJta, dataSourceName) -> null);
+    Files.createDirectories(directory);
+    try (final Writer writer = Files.newBufferedWriter(directory.resolve(REFLECTION_CONFIGURATION_FILE_NAME), StandardCharsets.UTF_8)) {
+      writeReflectionConfiguration(this.getReflectionClassNames(persistenceUnitInfos), writer);
+    }
+    try (final Writer writer = Files.newBufferedWriter(directory.resolve(RESOURCE_CONFIGURATION_FILE_NAME), StandardCharsets.UTF_8)) {
+      writeResourceConfiguration(getResourceNames(persistenceUnitInfos), writer);
+    }
+    try (final Writer writer = Files.newBufferedWriter(directory.resolve(PROXY_CONFIGURATION_FILE_NAME), StandardCharsets.UTF_8)) {
+      writeProxyConfiguration(Proxies.getProxyInterfaces(), writer);
+    }
+  }
+
+  /**
+   * Returns a sorted {@link SortedSet} of the names of the classes
+   * that must be registered for reflection in order to use the
+   * supplied persistence units in a native image.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param persistenceUnitInfos the {@link PersistenceUnitInfo}s in
+   * question; must not be {@code null}
+   *
+   * @return a non-{@code null} {@link SortedSet} of class names
+   *
+   * @exception NullPointerException if {@code persistenceUnitInfos}
+   * is {@code null}
+   */
+  final SortedSet<String> getReflectionClassNames(final Collection<? extends PersistenceUnitInfo> persistenceUnitInfos) {
+    Objects.requireNonNull(persistenceUnitInfos);
+    final SortedSet<String> returnValue = new TreeSet<>();
+    returnValue.add(JpaExtension.class.getName());
+    addJaxbClassNames(returnValue);
+    final List<PersistenceProvider> providers =
+      PersistenceProviderResolverHolder.getPersistenceProviderResolver().getPersistenceProviders();
+    if (providers != null) {
+      for (final PersistenceProvider provider : providers) {
+        if (provider != null) {
+          returnValue.add(provider.getClass().getName());
+        }
+      }
+    }
+    for (final PersistenceUnitInfo persistenceUnitInfo : persistenceUnitInfos) {
+      if (persistenceUnitInfo != null) {
+        final String providerClassName = persistenceUnitInfo.getPersistenceProviderClassName();
+        if (providerClassName != null) {
+          returnValue.add(providerClassName);
+        }
+        final Collection<? extends String> managedClassNames = persistenceUnitInfo.getManagedClassNames();
+        if (managedClassNames != null) {
+          for (final String managedClassName : managedClassNames) {
+            if (managedClassName != null) {
+              this.addClassHierarchyNames(managedClassName, returnValue);
+            }
+          }
+        }
+      }
+    }
+    return returnValue;
+  }
+
+  private final void addClassHierarchyNames(final String className, final Set<? super String> classNames) {
+    assert className != null;
+    assert classNames != null;
+    classNames.add(className);
+    Class<?> c;
+    try {
+      c = Class.forName(className, false, this.classLoader);
+    } catch (final ClassNotFoundException classNotFoundException) {
+      // The persistence provider will report this far more usefully
+      // at runtime.
+      c = null;
+    }
+    while (c != null) {
+      c = c.getSuperclass();
+      if (c == null || c.getName().startsWith("java.")) {
+        break;
+      }
+      classNames.add(c.getName());
+    }
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Generates native-image configuration for all persistence units
+   * visible to the {@linkplain Thread#getContextClassLoader() context
+   * classloader}.
+   *
+   * @param arguments the command-line arguments; the first argument,
+   * if present, is the directory to write configuration files into;
+   * if absent, the current directory is used
+   *
+   * @exception IOException if an input/output error occurs
+   *
+   * @exception JAXBException if a {@code META-INF/persistence.xml}
+   * resource could not be parsed
+   *
+   * @exception XMLStreamException if a {@code META-INF/persistence.xml}
+   * resource could not be parsed
+   *
+   * @see #generate(Path)
+   */
+  public static final void main(final String[] arguments) throws IOException, JAXBException, XMLStreamException {
+    final Path directory;
+    if (arguments == null || arguments.length <= 0) {
+      directory = Paths.get(".");
+    } else {
+      directory = Paths.get(arguments[0]);
+    }
+    new NativeImageConfigurationGenerator().generate(directory);
+  }
+
+  static final SortedSet<String> getResourceNames(final Collection<? extends PersistenceUnitInfo> persistenceUnitInfos) {
+    Objects.requireNonNull(persistenceUnitInfos);
+    final SortedSet<String> returnValue = new TreeSet<>();
+    returnValue.add("META-INF/persistence.xml");
+    returnValue.add("META-INF/orm.xml");
+    returnValue.add("META-INF/services/" + PersistenceProvider.class.getName());
+    returnValue.add(JAXB_GENERATED_PACKAGE_NAME.replace('.', '/') + "/jaxb.index");
+    for (final PersistenceUnitInfo persistenceUnitInfo : persistenceUnitInfos) {
+      if (persistenceUnitInfo != null) {
+        final Collection<? extends String> mappingFileNames = persistenceUnitInfo.getMappingFileNames();
+        if (mappingFileNames != null) {
+          for (final String mappingFileName : mappingFileNames) {
+            if (mappingFileName != null) {
+              returnValue.add(mappingFileName.startsWith("/") ? mappingFileName.substring(1) : mappingFileName);
+            }
+          }
+        }
+      }
+    }
+    return returnValue;
+  }
+
+  private static final void addJaxbClassNames(final Set<? super String> classNames) {
+    assert classNames != null;
+    final Deque<Class<?>> queue = new ArrayDeque<>();
+    final Set<Class<?>> seen = new TreeSet<>((a, b) -> a.getName().compareTo(b.getName()));
+    queue.add(ObjectFactory.class);
+    while (!queue.isEmpty()) {
+      final Class<?> c = queue.remove();
+      if (c.isArray() || c.isPrimitive() || c.getPackage() == null || !JAXB_GENERATED_PACKAGE_NAME.equals(c.getPackage().getName()) || !seen.add(c)) {
+        continue;
+      }
+      classNames.add(c.getName());
+      Collections.addAll(queue, c.getDeclaredClasses());
+      for (final Method method : c.getDeclaredMethods()) {
+        queue.add(method.getReturnType());
+      }
+      for (final Field field : c.getDeclaredFields()) {
+        queue.add(field.getType());
+        final Type genericType = field.getGenericType();
+        if (genericType instanceof ParameterizedType) {
+          for (final Type typeArgument : ((ParameterizedType)genericType).getActualTypeArguments()) {
+            if (typeArgument instanceof Class) {
+              queue.add((Class<?>)typeArgument);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private static final void writeReflectionConfiguration(final Collection<? extends String> classNames, final Writer writer)
+    throws IOException {
+    assert classNames != null;
+    assert writer != null;
+    writer.write("[");
+    final Iterator<? extends String> iterator = classNames.iterator();
+    while (iterator.hasNext()) {
+      writer.write("\n  {\n");
+      writer.write("    \"name\": " + quote(iterator.next()) + ",\n");
+      writer.write("    \"allDeclaredConstructors\": true,\n");
+      writer.write("    \"allDeclaredMethods\": true,\n");
+      writer.write("    \"allDeclaredFields\": true\n");
+      writer.write(iterator.hasNext() ? "  }," : "  }");
+    }
+    writer.write("\n]\n");
+  }
+
+  private static final void writeResourceConfiguration(final Collection<? extends String> resourceNames, final Writer writer)
+    throws IOException {
+    assert resourceNames != null;
+    assert writer != null;
+    writer.write("{\n  \"resources\": [");
+    final Iterator<? extends String> iterator = resourceNames.iterator();
+    while (iterator.hasNext()) {
+      // native-image resource patterns are regular expressions.
+      writer.write("\n    { \"pattern\": " + quote("\\Q" + iterator.next() + "\\E") + " }");
+      if (iterator.hasNext()) {
+        writer.write(",");
+      }
+    }
+    writer.write("\n  ]\n}\n");
+  }
+
+  private static final void writeProxyConfiguration(final Collection<? extends Class<?>> interfaces, final Writer writer)
+    throws IOException {
+    assert interfaces != null;
+    assert writer != null;
+    writer.write("[");
+    final Iterator<? extends Class<?>> iterator = interfaces.iterator();
+    while (iterator.hasNext()) {
+      writer.write("\n  [" + quote(iterator.next().getName()) + "]");
+      if (iterator.hasNext()) {
+        writer.write(",");
+      }
+    }
+    writer.write("\n]\n");
+  }
+
+  private static final String quote(final String s) {
+    assert s != null;
+    final StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+    for (int i = 0; i < s.length(); i++) {
+      final char c = s.charAt(i);
+      switch (c) {
+      case '"':
+      case '\\':
+        sb.append('\\').append(c);
+        break;
+      default:
+        if (c < 0x20) {
+          sb.append(String.format("\\u%04x", Integer.valueOf(c)));
+        } else {
+          sb.append(c);
+        }
+        break;
+      }
+    }
+    return sb.append('"').toString();
+  }
+
+}
@@ -0,0 +1,688 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.lang.reflect.Method;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import java.util.function.Consumer;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+import javax.persistence.Query;
+import javax.persistence.StoredProcedureQuery;
+import javax.persistence.TypedQuery;
+
+/**
+ * A guard that tracks the number of entities managed by the
+ * persistence contexts of a persistence unit and, as that number
+ * crosses configurable thresholds, logs a warning, fires a {@link
+ * PersistenceContextSize} event or, in {@linkplain Batch batch}
+ * code, flushes and clears the persistence context.
+ *
+ * <p>A persistence context that silently accumulates hundreds of
+ * thousands of managed entities makes every flush, and eventually
+ * every garbage collection, slower, and can exhaust the heap of the
+ * whole node.  The size of a persistence context is checked after
+ * every {@link EntityManager#find(Class, Object) find}, {@link
+ * EntityManager#getReference(Class, Object) getReference}, {@link
+ * EntityManager#persist(Object) persist}, {@link
+ * EntityManager#merge(Object) merge} and {@link
+ * EntityManager#refresh(Object) refresh}, and after every {@link
+ * Query#getResultList() getResultList} and {@link
+ * Query#getSingleResult() getSingleResult} of a query it
+ * created.</p>
+ *
+ * <ul>
+ *
+ * <li>When it reaches the {@value #WARN_THRESHOLD_PROPERTY_NAME}
+ * threshold, a warning listing the managed entity classes is
+ * logged.</li>
+ *
+ * <li>When it reaches the {@value #EVENT_THRESHOLD_PROPERTY_NAME}
+ * threshold, a {@link PersistenceContextSize} is handed to this
+ * guard's listener.</li>
+ *
+ * <li>When it reaches the {@value #CLEAR_THRESHOLD_PROPERTY_NAME}
+ * threshold while the current thread is executing a {@link Batch}
+ * method and the {@link EntityManager} is {@linkplain
+ * EntityManager#isJoinedToTransaction() joined to a transaction},
+ * the persistence context is {@linkplain EntityManager#flush()
+ * flushed} and {@linkplain EntityManager#clear() cleared}.</li>
+ *
+ * </ul>
+ *
+ * <p>Warnings and events happen at most once each time a persistence
+ * context crosses the relevant threshold; they happen again only
+ * after it has been cleared or has shrunk below the threshold.</p>
+ *
+ * <p>JPA offers no way to ask a persistence context for its size, so
+ * this class asks EclipseLink and Hibernate directly, using
+ * reflection.  For other persistence providers it logs a warning and
+ * does nothing.</p>
+ *
+ * <p>The {@link JpaExtension} creates a {@link
+ * PersistenceContextGuard} for every persistence unit whose
+ * properties set any of the thresholds above to a positive value,
+ * makes it available as a bean qualified with the {@linkplain
+ * javax.inject.Named name} of the persistence unit, fires its {@link
+ * PersistenceContextSize} reports as CDI events qualified the same
+ * way and {@linkplain #wrap(EntityManagerFactory) applies it} to the
+ * persistence unit's {@link EntityManagerFactory}.</p>
+ *
+ * <p>Instances of this class are safe for concurrent use by multiple
+ * threads.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see Batch
+ *
+ * @see PersistenceContextSize
+ */
+public class PersistenceContextGuard {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  /**
+   * The name of the persistence unit property whose value is the
+   * number of managed entities at which a warning is logged.
+   */
+  public static final String WARN_THRESHOLD_PROPERTY_NAME = "org.microbean.jpa.cdi.persistenceContextGuard.warnThreshold";
+
+  /**
+   * The name of the persistence unit property whose value is the
+   * number of managed entities at which a {@link
+   * PersistenceContextSize} event is fired.
+   */
+  public static final String EVENT_THRESHOLD_PROPERTY_NAME = "org.microbean.jpa.cdi.persistenceContextGuard.eventThreshold";
+
+  /**
+   * The name of the persistence unit property whose value is the
+   * number of managed entities at which the persistence context is
+   * flushed and cleared in {@linkplain Batch batch} code.
+   */
+  public static final String CLEAR_THRESHOLD_PROPERTY_NAME = "org.microbean.jpa.cdi.persistenceContextGuard.clearThreshold";
+
+  private static final Logger logger = Logger.getLogger(PersistenceContextGuard.class.getName());
+
+  private static final ThreadLocal<Boolean> batch = new ThreadLocal<>();
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final String name;
+
+  private final int warnThreshold;
+
+  private final int eventThreshold;
+
+  private final int clearThreshold;
+
+  private final Consumer<? super PersistenceContextSize> listener;
+
+  private final LongAdder warnings;
+
+  private final LongAdder events;
+
+  private final LongAdder clears;
+
+  private final LongAccumulator largestSize;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link PersistenceContextGuard}.
+   *
+   * @param name the name of the persistence unit; must not be {@code
+   * null}
+   *
+   * @param warnThreshold the number of managed entities at which a
+   * warning is logged; {@code 0} or less to disable warnings
+   *
+   * @param eventThreshold the number of managed entities at which a
+   * {@link PersistenceContextSize} is handed to the supplied {@code
+   * listener}; {@code 0} or less to disable events
+   *
+   * @param clearThreshold the number of managed entities at which the
+   * persistence context is flushed and cleared in {@linkplain Batch
+   * batch} code; {@code 0} or less to disable clearing
+   *
+   * @param listener a {@link Consumer} of {@link
+   * PersistenceContextSize} reports; may be {@code null}
+   *
+   * @exception NullPointerException if {@code name} is {@code null}
+   */
+  public PersistenceContextGuard(final String name,
+                                 final int warnThreshold,
+                                 final int eventThreshold,
+                                 final int clearThreshold,
+                                 final Consumer<? super PersistenceContextSize> listener) {
+    super();
+    this.name = Objects.requireNonNull(name);
+    this.warnThreshold = Math.max(0, warnThreshold);
+    this.eventThreshold = Math.max(0, eventThreshold);
+    this.clearThreshold = Math.max(0, clearThreshold);
+    this.listener = listener;
+    this.warnings = new LongAdder();
+    this.events = new LongAdder();
+    this.clears = new LongAdder();
+    this.largestSize = new LongAccumulator(Math::max, 0L);
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns the name of the persistence unit this {@link
+   * PersistenceContextGuard} guards.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return the non-{@code null} name of the persistence unit
+   */
+  public final String getName() {
+    return this.name;
+  }
+
+  /**
+   * Returns the number of managed entities at which a warning is
+   * logged, or {@code 0} if warnings are disabled.
+   *
+   * @return the warning threshold
+   */
+  public final int getWarnThreshold() {
+    return this.warnThreshold;
+  }
+
+  /**
+   * Returns the number of managed entities at which a {@link
+   * PersistenceContextSize} event is fired, or {@code 0} if events
+   * are disabled.
+   *
+   * @return the event threshold
+   */
+  public final int getEventThreshold() {
+    return this.eventThreshold;
+  }
+
+  /**
+   * Returns the number of managed entities at which the persistence
+   * context is flushed and cleared in {@linkplain Batch batch} code,
+   * or {@code 0} if clearing is disabled.
+   *
+   * @return the clear threshold
+   */
+  public final int getClearThreshold() {
+    return this.clearThreshold;
+  }
+
+  /**
+   * Returns the number of warnings this {@link
+   * PersistenceContextGuard} has logged.
+   *
+   * @return the number of warnings logged
+   */
+  public final long getWarningCount() {
+    return this.warnings.sum();
+  }
+
+  /**
+   * Returns the number of {@link PersistenceContextSize} events this
+   * {@link PersistenceContextGuard} has fired.
+   *
+   * @return the number of events fired
+   */
+  public final long getEventCount() {
+    return this.events.sum();
+  }
+
+  /**
+   * Returns the number of times this {@link PersistenceContextGuard}
+   * has flushed and cleared a persistence context.
+   *
+   * @return the number of automatic clears
+   */
+  public final long getClearCount() {
+    return this.clears.sum();
+  }
+
+  /**
+   * Returns the largest number of managed entities this {@link
+   * PersistenceContextGuard} has observed in a single persistence
+   * context.
+   *
+   * @return the largest persistence context size observed
+   */
+  public final long getLargestSize() {
+    return this.largestSize.get();
+  }
+
+  /**
+   * Returns an {@link EntityManagerFactory} that delegates to the
+   * supplied one but whose {@link EntityManager}s are guarded by this
+   * {@link PersistenceContextGuard}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param entityManagerFactory the {@link EntityManagerFactory} to
+   * wrap; must not be {@code null}; should be the one returned by
+   * the persistence provider, so that its {@link EntityManager}s may
+   * be inspected
+   *
+   * @return a non-{@code null} {@link EntityManagerFactory}
+   *
+   * @exception NullPointerException if {@code entityManagerFactory}
+   * is {@code null}
+   */
+  public EntityManagerFactory wrap(final EntityManagerFactory entityManagerFactory) {
+    Objects.requireNonNull(entityManagerFactory);
+    final AtomicReference<Inspector> inspectorReference = new AtomicReference<>();
+    return Proxies.newProxyInstance(PersistenceContextGuard.class.getClassLoader(),
+                                    EntityManagerFactory.class,
+                                    (proxy, method, arguments) -> {
+                                      final Object returnValue = Proxies.invoke(entityManagerFactory, method, arguments);
+                                      if (returnValue instanceof EntityManager) {
+                                        final EntityManager entityManager = (EntityManager)returnValue;
+                                        Inspector inspector = inspectorReference.get();
+                                        if (inspector == null) {
+                                          inspector = Inspector.of(entityManager);
+                                          if (inspector == Inspector.NONE) {
+                                            logger.logp(Level.WARNING,
+                                                        PersistenceContextGuard.class.getName(),
+                                                        "wrap",
+                                                        "Persistence context sizes of {0} cannot be determined; persistence unit {1} will not be guarded",
+                                                        new Object[] { entityManager.getClass().getName(), this.name });
+                                          }
+                                          inspectorReference.set(inspector);
+                                        }
+                                        if (inspector != Inspector.NONE) {
+                                          return this.guard(entityManager, inspector);
+                                        }
+                                      }
+                                      return returnValue;
+                                    });
+  }
+
+  private final EntityManager guard(final EntityManager entityManager, final Inspector inspector) {
+    assert entityManager != null;
+    assert inspector != null;
+    final State state = new State();
+    return Proxies.newProxyInstance(PersistenceContextGuard.class.getClassLoader(),
+                                    EntityManager.class,
+                                    (proxy, method, arguments) -> {
+                                      switch (method.getName()) {
+                                      case "find":
+                                      case "getReference":
+                                      case "persist":
+                                      case "merge":
+                                      case "refresh":
+                                        final Object returnValue = Proxies.invoke(entityManager, method, arguments);
+                                        this.check(entityManager, inspector, state);
+                                        return returnValue;
+                                      case "clear":
+                                        Proxies.invoke(entityManager, method, arguments);
+                                        state.reset();
+                                        return null;
+                                      case "createQuery":
+                                      case "createNamedQuery":
+                                      case "createNativeQuery":
+                                      case "createStoredProcedureQuery":
+                                      case "createNamedStoredProcedureQuery":
+                                        final Query query = (Query)Proxies.invoke(entityManager, method, arguments);
+                                        return query == null ? null : this.guard(query, method.getReturnType(), entityManager, inspector, state);
+                                      default:
+                                        return Proxies.invoke(entityManager, method, arguments);
+                                      }
+                                    });
+  }
+
+  private final Query guard(final Query query,
+                            final Class<?> interfaceType,
+                            final EntityManager entityManager,
+                            final Inspector inspector,
+                            final State state) {
+    assert query != null;
+    final Class<?> proxyType;
+    if (query instanceof StoredProcedureQuery) {
+      proxyType = StoredProcedureQuery.class;
+    } else if (query instanceof TypedQuery && TypedQuery.class.isAssignableFrom(interfaceType)) {
+      proxyType = TypedQuery.class;
+    } else {
+      proxyType = Query.class;
+    }
+    return (Query)Proxies.newProxyInstance(PersistenceContextGuard.class.getClassLoader(),
+                                           proxyType,
+                                           (proxy, method, arguments) -> {
+                                             final Object returnValue = Proxies.invoke(query, method, arguments);
+                                             switch (method.getName()) {
+                                             case "getResultList":
+                                             case "getSingleResult":
+                                               this.check(entityManager, inspector, state);
+                                               return returnValue;
+                                             default:
+                                               // Keep fluent setters on the guarded query.
+                                               return returnValue == query ? proxy : returnValue;
+                                             }
+                                           });
+  }
+
+  private final void check(final EntityManager entityManager, final Inspector inspector, final State state) {
+    assert entityManager != null;
+    assert inspector != null;
+    assert state != null;
+    final int size = inspector.size(entityManager);
+    this.largestSize.accumulate(size);
+    if (this.clearThreshold > 0 && size >= this.clearThreshold && isBatchActive() && entityManager.isJoinedToTransaction()) {
+      entityManager.flush();
+      entityManager.clear();
+      state.reset();
+      this.clears.increment();
+      if (logger.isLoggable(Level.FINE)) {
+        logger.logp(Level.FINE,
+                    PersistenceContextGuard.class.getName(),
+                    "check",
+                    "Flushed and cleared a persistence context of persistence unit {0} holding {1} entities",
+                    new Object[] { this.name, Integer.valueOf(size) });
+      }
+      return;
+    }
+    Map<String, Integer> counts = null;
+    if (this.warnThreshold > 0) {
+      if (size < this.warnThreshold) {
+        state.warned = false;
+      } else if (!state.warned) {
+        state.warned = true;
+        this.warnings.increment();
+        if (logger.isLoggable(Level.WARNING)) {
+          counts = inspector.counts(entityManager);
+          logger.logp(Level.WARNING,
+                      PersistenceContextGuard.class.getName(),
+                      "check",
+                      "A persistence context of persistence unit {0} manages {1} entities (warning threshold {2}): {3}",
+                      new Object[] { this.name, Integer.valueOf(size), Integer.valueOf(this.warnThreshold), counts });
+        }
+      }
+    }
+    if (this.eventThreshold > 0) {
+      if (size < this.eventThreshold) {
+        state.evented = false;
+      } else if (!state.evented) {
+        state.evented = true;
+        this.events.increment();
+        if (this.listener != null) {
+          if (counts == null) {
+            counts = inspector.counts(entityManager);
+          }
+          this.listener.accept(new PersistenceContextSize(this.name, size, this.eventThreshold, counts));
+        }
+      }
+    }
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Returns {@code true} if the current thread is executing a {@link
+   * Batch} method.
+   *
+   * @return {@code true} if the current thread is in batch mode
+   */
+  static final boolean isBatchActive() {
+    return Boolean.TRUE.equals(batch.get());
+  }
+
+  /**
+   * Puts the current thread into batch mode.
+   *
+   * @return whether the current thread was already in batch mode, to
+   * be supplied to a subsequent invocation of {@link
+   * #exitBatch(boolean)}
+   *
+   * @see #exitBatch(boolean)
+   */
+  static final boolean enterBatch() {
+    final boolean returnValue = isBatchActive();
+    if (!returnValue) {
+      batch.set(Boolean.TRUE);
+    }
+    return returnValue;
+  }
+
+  /**
+   * Takes the current thread out of batch mode unless it was already
+   * in batch mode when the matching invocation of {@link
+   * #enterBatch()} occurred.
+   *
+   * @param previouslyActive the value returned by the matching
+   * invocation of {@link #enterBatch()}
+   *
+   * @see #enterBatch()
+   */
+  static final void exitBatch(final boolean previouslyActive) {
+    if (!previouslyActive) {
+      batch.remove();
+    }
+  }
+
+  /**
+   * Creates and returns a new {@link PersistenceContextGuard} for the
+   * persistence unit with the supplied name, or {@code null} if none
+   * of the persistence unit properties named {@value
+   * #WARN_THRESHOLD_PROPERTY_NAME}, {@value
+   * #EVENT_THRESHOLD_PROPERTY_NAME} and {@value
+   * #CLEAR_THRESHOLD_PROPERTY_NAME} has a positive value.
+   *
+   * @param name the name of the persistence unit; must not be {@code
+   * null}
+   *
+   * @param unitProperties the properties of the persistence unit; may
+   * be {@code null}
+   *
+   * @param listener a {@link Consumer} of {@link
+   * PersistenceContextSize} reports; may be {@code null}
+   *
+   * @return a new {@link PersistenceContextGuard}, or {@code null}
+   *
+   * @exception NullPointerException if {@code name} is {@code null}
+   *
+   * @exception IllegalArgumentException if a property value is not an
+   * integer
+   */
+  static final PersistenceContextGuard fromProperties(final String name,
+                                                      final Map<?, ?> unitProperties,
+                                                      final Consumer<? super PersistenceContextSize> listener) {
+    Objects.requireNonNull(name);
+    final int warnThreshold = UnitProperties.getInt(unitProperties, WARN_THRESHOLD_PROPERTY_NAME, 0);
+    final int eventThreshold = UnitProperties.getInt(unitProperties, EVENT_THRESHOLD_PROPERTY_NAME, 0);
+    final int clearThreshold = UnitProperties.getInt(unitProperties, CLEAR_THRESHOLD_PROPERTY_NAME, 0);
+    if (warnThreshold <= 0 && eventThreshold <= 0 && clearThreshold <= 0) {
+      return null;
+    }
+    return new PersistenceContextGuard(name, warnThreshold, eventThreshold, clearThreshold, listener);
+  }
+
+  private static final Map<String, Integer> countByClassName(final Collection<?> objects,
+                                                             final Method nameMethod) throws ReflectiveOperationException {
+    assert objects != null;
+    final Map<String, Integer> counts = new HashMap<>();
+    for (final Object object : objects) {
+      final String className = nameMethod == null ? object.getClass().getName() : (String)nameMethod.invoke(object);
+      counts.merge(className, Integer.valueOf(1), (a, b) -> Integer.valueOf(a.intValue() + b.intValue()));
+    }
+    final List<Map.Entry<String, Integer>> entries = new ArrayList<>(counts.entrySet());
+    entries.sort((a, b) -> b.getValue().compareTo(a.getValue()));
+    final Map<String, Integer> returnValue = new LinkedHashMap<>();
+    for (final Map.Entry<String, Integer> entry : entries) {
+      returnValue.put(entry.getKey(), entry.getValue());
+    }
+    return returnValue;
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * The per-{@link EntityManager} record of which thresholds have
+   * already been reported.
+   *
+   * <p>Instances of this class are not safe for concurrent use by
+   * multiple threads, just as {@link EntityManager}s are not.</p>
+   */
+  private static final class State {
+
+    private boolean warned;
+
+    private boolean evented;
+
+    private State() {
+      super();
+    }
+
+    private final void reset() {
+      this.warned = false;
+      this.evented = false;
+    }
+
+  }
+
+  /**
+   * Reflective access to the persistence context of a particular
+   * persistence provider's {@link EntityManager}s.
+   */
+  private static final class Inspector {
+
+    private static final Inspector NONE = new Inspector(null, null, null, null, null);
+
+    private final Class<?> unwrapType;
+
+    // Applied to the unwrapped object; returns the object that
+    // describes the persistence context.
+    private final Method contextMethod;
+
+    // Applied to the context; returns an Integer.
+    private final Method sizeMethod;
+
+    // Applied to the context; returns a Collection of keys.
+    private final Method keysMethod;
+
+    // Applied to each key; returns its entity name; null if each key
+    // is itself an entity.
+    private final Method nameMethod;
+
+    private Inspector(final Class<?> unwrapType,
+                      final Method contextMethod,
+                      final Method sizeMethod,
+                      final Method keysMethod,
+                      final Method nameMethod) {
+      super();
+      this.unwrapType = unwrapType;
+      this.contextMethod = contextMethod;
+      this.sizeMethod = sizeMethod;
+      this.keysMethod = keysMethod;
+      this.nameMethod = nameMethod;
+    }
+
+    private final int size(final EntityManager entityManager) {
+      try {
+        return ((Integer)this.sizeMethod.invoke(this.contextMethod.invoke(entityManager.unwrap(this.unwrapType)))).intValue();
+      } catch (final ReflectiveOperationException reflectiveOperationException) {
+        throw new PersistenceException(reflectiveOperationException.getMessage(), reflectiveOperationException);
+      }
+    }
+
+    private final Map<String, Integer> counts(final EntityManager entityManager) {
+      try {
+        final Object context = this.contextMethod.invoke(entityManager.unwrap(this.unwrapType));
+        return countByClassName((Collection<?>)this.keysMethod.invoke(context), this.nameMethod);
+      } catch (final ReflectiveOperationException reflectiveOperationException) {
+        throw new PersistenceException(reflectiveOperationException.getMessage(), reflectiveOperationException);
+      }
+    }
+
+    private static final Inspector of(final EntityManager entityManager) {
+      assert entityManager != null;
+      final Class<?> entityManagerClass = entityManager.getClass();
+      final ClassLoader classLoader = entityManagerClass.getClassLoader();
+      try {
+        if (entityManagerClass.getName().startsWith("org.eclipse.persistence.")) {
+          // The clone mapping of the unit of work is keyed by every
+          // entity registered with it.
+          final Class<?> unitOfWorkClass =
+            Class.forName("org.eclipse.persistence.internal.sessions.UnitOfWorkImpl", false, classLoader);
+          return new Inspector(unitOfWorkClass,
+                               unitOfWorkClass.getMethod("getCloneMapping"),
+                               Map.class.getMethod("size"),
+                               Map.class.getMethod("keySet"),
+                               null);
+        } else if (entityManagerClass.getName().startsWith("org.hibernate.")) {
+          final Class<?> sessionClass = Class.forName("org.hibernate.Session", false, classLoader);
+          final Class<?> statisticsClass = Class.forName("org.hibernate.stat.SessionStatistics", false, classLoader);
+          final Class<?> entityKeyClass = Class.forName("org.hibernate.engine.spi.EntityKey", false, classLoader);
+          return new Inspector(sessionClass,
+                               sessionClass.getMethod("getStatistics"),
+                               statisticsClass.getMethod("getEntityCount"),
+                               statisticsClass.getMethod("getEntityKeys"),
+                               entityKeyClass.getMethod("getEntityName"));
+        }
+      } catch (final ReflectiveOperationException reflectiveOperationException) {
+        if (logger.isLoggable(Level.FINE)) {
+          logger.logp(Level.FINE, Inspector.class.getName(), "of", reflectiveOperationException.getMessage(), reflectiveOperationException);
+        }
+      }
+      return NONE;
+    }
+
+  }
+
+}
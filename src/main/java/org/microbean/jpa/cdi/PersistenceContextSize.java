@@ -0,0 +1,152 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * An immutable report that a persistence context has grown past a
+ * {@linkplain PersistenceContextGuard#EVENT_THRESHOLD_PROPERTY_NAME
+ * threshold}, together with a breakdown of the entities it manages by
+ * entity class.
+ *
+ * <p>A {@link PersistenceContextGuard} fires an instance of this
+ * class as a CDI event, qualified with the {@linkplain
+ * javax.inject.Named name} of the persistence unit, at most once each
+ * time a persistence context crosses the threshold.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see PersistenceContextGuard
+ */
+public final class PersistenceContextSize {
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final String persistenceUnitName;
+
+  private final int managedEntityCount;
+
+  private final int threshold;
+
+  private final Map<String, Integer> countsByEntityClassName;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link PersistenceContextSize}.
+   *
+   * @param persistenceUnitName the name of the persistence unit; may
+   * be {@code null}
+   *
+   * @param managedEntityCount the number of entities managed by the
+   * persistence context
+   *
+   * @param threshold the threshold that was crossed
+   *
+   * @param countsByEntityClassName a {@link Map} of managed entity
+   * counts indexed by entity class name; must not be {@code null};
+   * copied
+   *
+   * @exception NullPointerException if {@code
+   * countsByEntityClassName} is {@code null}
+   */
+  public PersistenceContextSize(final String persistenceUnitName,
+                                final int managedEntityCount,
+                                final int threshold,
+                                final Map<? extends String, ? extends Integer> countsByEntityClassName) {
+    super();
+    Objects.requireNonNull(countsByEntityClassName);
+    this.persistenceUnitName = persistenceUnitName;
+    this.managedEntityCount = managedEntityCount;
+    this.threshold = threshold;
+    this.countsByEntityClassName = Collections.unmodifiableMap(new LinkedHashMap<>(countsByEntityClassName));
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns the name of the persistence unit, or {@code null}.
+   *
+   * @return the name of the persistence unit, or {@code null}
+   */
+  public final String getPersistenceUnitName() {
+    return this.persistenceUnitName;
+  }
+
+  /**
+   * Returns the number of entities managed by the persistence context
+   * when the threshold was crossed.
+   *
+   * @return the number of managed entities
+   */
+  public final int getManagedEntityCount() {
+    return this.managedEntityCount;
+  }
+
+  /**
+   * Returns the threshold that was crossed.
+   *
+   * @return the threshold that was crossed
+   */
+  public final int getThreshold() {
+    return this.threshold;
+  }
+
+  /**
+   * Returns an unmodifiable {@link Map} of managed entity counts
+   * indexed by entity class name, in descending order of count.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null}, unmodifiable {@link Map}
+   */
+  public final Map<String, Integer> getCountsByEntityClassName() {
+    return this.countsByEntityClassName;
+  }
+
+  /**
+   * Returns a {@link String} representation of this {@link
+   * PersistenceContextSize}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link String}
+   */
+  @Override
+  public final String toString() {
+    return "Persistence unit " + this.persistenceUnitName + ": " + this.managedEntityCount +
+      " managed entities (threshold " + this.threshold + ") " + this.countsByEntityClassName;
+  }
+
+}
@@ -0,0 +1,433 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.URISyntaxException;
+import java.net.URL;
+
+import java.nio.charset.StandardCharsets;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.persistence.spi.PersistenceUnitInfo;
+
+/**
+ * A utility class that computes a fingerprint of everything about a
+ * persistence unit that can affect its mapping metadata and hence
+ * its database schema.
+ *
+ * <p>The fingerprint is a hexadecimal SHA-256 digest of the
+ * persistence unit's name, persistence provider class name,
+ * transaction type, caching and validation modes, the names
+ * <em>and bytecode</em> of its managed classes, the names and
+ * contents of its mapping files, the {@code META-INF/orm.xml} found in
+ * its root and in each of its jar files, the contents of its jar
+ * files, and its properties.  Properties whose names begin with
+ * {@value #PROPERTY_NAME_PREFIX} configure this project rather than
+ * the persistence provider and are excluded.</p>
+ *
+ * <p>Because a persistence provider may discover managed classes by
+ * scanning, every class file beneath the persistence unit's root is
+ * digested too, unless the persistence unit {@linkplain
+ * PersistenceUnitInfo#excludeUnlistedClasses() excludes unlisted
+ * classes}.  A root or jar file that is a directory is digested file
+ * by file; one that is an archive is represented by its size and
+ * modification time.  A root or jar file whose URL does not denote a
+ * local file or directory cannot be inspected, and so the
+ * fingerprint of a persistence unit that depends on one cannot be
+ * computed.</p>
+ *
+ * <p>If any of these inputs changes, the fingerprint changes.  If
+ * none of them changes, the fingerprint stays the same across JVMs
+ * and hosts, except that the modification times of archives are
+ * host-specific.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see #compute(PersistenceUnitInfo)
+ *
+ * @see SchemaGeneration
+ */
+public final class PersistenceUnitFingerprint {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  /**
+   * The prefix of the names of persistence unit properties that are
+   * excluded from fingerprints ({@value}).
+   */
+  public static final String PROPERTY_NAME_PREFIX = "org.microbean.jpa.cdi.";
+
+  private static final String DEFAULT_MAPPING_FILE_NAME = "META-INF/orm.xml";
+
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+
+  /*
+   * Constructors.
+   */
+
+
+  private PersistenceUnitFingerprint() {
+    super();
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Computes the fingerprint of the persistence unit described by
+   * the supplied {@link PersistenceUnitInfo}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param persistenceUnitInfo the {@link PersistenceUnitInfo}
+   * describing the persistence unit; must not be {@code null}
+   *
+   * @return a non-{@code null} string of 64 lowercase hexadecimal
+   * digits
+   *
+   * @exception NullPointerException if {@code persistenceUnitInfo} is
+   * {@code null}
+   *
+   * @exception IOException if a managed class, mapping file, root or
+   * jar file could not be read, or if the root or a jar file cannot
+   * be inspected
+   */
+  public static final String compute(final PersistenceUnitInfo persistenceUnitInfo) throws IOException {
+    return compute(persistenceUnitInfo, null);
+  }
+
+  /**
+   * Computes the fingerprint of the persistence unit described by
+   * the supplied {@link PersistenceUnitInfo} as it will be deployed
+   * with the supplied additional properties, such as those supplied
+   * to {@link
+   * javax.persistence.spi.PersistenceProvider#createContainerEntityManagerFactory(PersistenceUnitInfo,
+   * Map)}.
+   *
+   * <p>Only additional properties whose values are {@link String}s,
+   * {@link Number}s or {@link Boolean}s contribute to the
+   * fingerprint; others, such as {@link javax.sql.DataSource}s, are
+   * ignored, as are those whose names begin with {@value
+   * #PROPERTY_NAME_PREFIX}.  If {@code additionalProperties} is
+   * {@code null} or empty, the fingerprint is the same as that
+   * returned by {@link #compute(PersistenceUnitInfo)}.</p>
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param persistenceUnitInfo the {@link PersistenceUnitInfo}
+   * describing the persistence unit; must not be {@code null}
+   *
+   * @param additionalProperties additional properties; may be {@code
+   * null}
+   *
+   * @return a non-{@code null} string of 64 lowercase hexadecimal
+   * digits
+   *
+   * @exception NullPointerException if {@code persistenceUnitInfo} is
+   * {@code null}
+   *
+   * @exception IOException if a managed class, mapping file, root or
+   * jar file could not be read, or if the root or a jar file cannot
+   * be inspected
+   *
+   * @see MetadataCache
+   */
+  public static final String compute(final PersistenceUnitInfo persistenceUnitInfo,
+                                     final Map<?, ?> additionalProperties) throws IOException {
+    Objects.requireNonNull(persistenceUnitInfo);
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (final NoSuchAlgorithmException noSuchAlgorithmException) {
+      // Every Java platform implementation is required to support
+      // SHA-256.
+      throw new IllegalStateException(noSuchAlgorithmException.getMessage(), noSuchAlgorithmException);
+    }
+    ClassLoader classLoader = persistenceUnitInfo.getClassLoader();
+    if (classLoader == null) {
+      classLoader = Thread.currentThread().getContextClassLoader();
+    }
+
+    update(digest, persistenceUnitInfo.getPersistenceUnitName());
+    update(digest, persistenceUnitInfo.getPersistenceProviderClassName());
+    update(digest, String.valueOf(persistenceUnitInfo.getTransactionType()));
+    update(digest, String.valueOf(persistenceUnitInfo.getSharedCacheMode()));
+    update(digest, String.valueOf(persistenceUnitInfo.getValidationMode()));
+    update(digest, String.valueOf(persistenceUnitInfo.excludeUnlistedClasses()));
+
+    for (final String managedClassName : sorted(persistenceUnitInfo.getManagedClassNames())) {
+      update(digest, managedClassName);
+      update(digest, classLoader, managedClassName.replace('.', '/') + ".class");
+    }
+
+    final List<String> mappingFileNames = sorted(persistenceUnitInfo.getMappingFileNames());
+    if (!mappingFileNames.contains(DEFAULT_MAPPING_FILE_NAME)) {
+      mappingFileNames.add(0, DEFAULT_MAPPING_FILE_NAME);
+    }
+    for (final String mappingFileName : mappingFileNames) {
+      update(digest, mappingFileName);
+      update(digest, classLoader, mappingFileName);
+    }
+
+    final URL rootUrl = persistenceUnitInfo.getPersistenceUnitRootUrl();
+    update(digest, String.valueOf(rootUrl));
+    if (rootUrl != null) {
+      update(digest, rootUrl, !persistenceUnitInfo.excludeUnlistedClasses());
+    }
+
+    final Collection<? extends URL> jarFileUrls = persistenceUnitInfo.getJarFileUrls();
+    if (jarFileUrls != null) {
+      for (final URL jarFileUrl : jarFileUrls) {
+        update(digest, String.valueOf(jarFileUrl));
+        // Providers always scan jar files for managed classes.
+        update(digest, jarFileUrl, true);
+      }
+    }
+
+    final Map<?, ?> properties = persistenceUnitInfo.getProperties();
+    if (properties != null) {
+      final SortedMap<String, String> sortedProperties = new TreeMap<>();
+      for (final Map.Entry<?, ?> entry : properties.entrySet()) {
+        final String name = String.valueOf(entry.getKey());
+        if (!name.startsWith(PROPERTY_NAME_PREFIX)) {
+          sortedProperties.put(name, String.valueOf(entry.getValue()));
+        }
+      }
+      for (final Map.Entry<String, String> entry : sortedProperties.entrySet()) {
+        update(digest, entry.getKey());
+        update(digest, entry.getValue());
+      }
+    }
+
+    if (additionalProperties != null && !additionalProperties.isEmpty()) {
+      final SortedMap<String, String> sortedProperties = new TreeMap<>();
+      for (final Map.Entry<?, ?> entry : additionalProperties.entrySet()) {
+        final String name = String.valueOf(entry.getKey());
+        final Object value = entry.getValue();
+        if (!name.startsWith(PROPERTY_NAME_PREFIX) &&
+            (value instanceof String || value instanceof Number || value instanceof Boolean)) {
+          sortedProperties.put(name, String.valueOf(value));
+        }
+      }
+      if (!sortedProperties.isEmpty()) {
+        // Keep additional properties distinct from unit properties of
+        // the same name.
+        digest.update((byte)2);
+        for (final Map.Entry<String, String> entry : sortedProperties.entrySet()) {
+          update(digest, entry.getKey());
+          update(digest, entry.getValue());
+        }
+      }
+    }
+
+    final byte[] bytes = digest.digest();
+    final char[] chars = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+      chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xF];
+    }
+    return new String(chars);
+  }
+
+  private static final List<String> sorted(final Collection<? extends String> strings) {
+    final List<String> returnValue = strings == null ? new ArrayList<>() : new ArrayList<>(strings);
+    Collections.sort(returnValue);
+    return returnValue;
+  }
+
+  private static final void update(final MessageDigest digest, final String string) {
+    assert digest != null;
+    if (string == null) {
+      digest.update((byte)0);
+    } else {
+      digest.update((byte)1);
+      final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+      updateLength(digest, bytes.length);
+      digest.update(bytes);
+    }
+  }
+
+  private static final void update(final MessageDigest digest,
+                                   final ClassLoader classLoader,
+                                   final String resourceName) throws IOException {
+    assert digest != null;
+    assert resourceName != null;
+    final URL resource = classLoader == null ? null : classLoader.getResource(resourceName);
+    if (resource == null) {
+      digest.update((byte)0);
+    } else {
+      digest.update((byte)1);
+      long length = 0L;
+      final byte[] buffer = new byte[8192];
+      try (final InputStream inputStream = resource.openStream()) {
+        int bytesRead;
+        while ((bytesRead = inputStream.read(buffer)) != -1) {
+          digest.update(buffer, 0, bytesRead);
+          length += bytesRead;
+        }
+      }
+      updateLength(digest, length);
+    }
+  }
+
+  /**
+   * Digests the contents of the persistence unit root or jar file
+   * denoted by the supplied {@link URL}.
+   *
+   * <p>If {@code allClasses} is {@code true}, then every class file
+   * in it is digested, which, for an archive, means its size and
+   * modification time.  Its {@code META-INF/orm.xml} is always
+   * digested.</p>
+   */
+  private static final void update(final MessageDigest digest,
+                                   final URL location,
+                                   final boolean allClasses) throws IOException {
+    assert digest != null;
+    assert location != null;
+    final Path path = toPath(location);
+    if (Files.isDirectory(path)) {
+      digest.update((byte)1);
+      if (allClasses) {
+        final List<Path> classFiles;
+        try (final Stream<Path> stream = Files.walk(path)) {
+          classFiles = stream
+            .filter(p -> p.getFileName().toString().endsWith(".class") && Files.isRegularFile(p))
+            .sorted()
+            .collect(Collectors.toList());
+        }
+        for (final Path classFile : classFiles) {
+          update(digest, path.relativize(classFile).toString().replace('\\', '/'));
+          update(digest, Files.readAllBytes(classFile));
+        }
+      }
+      final Path mappingFile = path.resolve(DEFAULT_MAPPING_FILE_NAME);
+      update(digest, Files.isRegularFile(mappingFile) ? Files.readAllBytes(mappingFile) : null);
+    } else if (Files.isRegularFile(path)) {
+      digest.update((byte)2);
+      if (allClasses) {
+        // The archive's own size and modification time stand in for
+        // all of its entries, including its META-INF/orm.xml.
+        updateLength(digest, Files.size(path));
+        updateLength(digest, Files.getLastModifiedTime(path).toMillis());
+      } else {
+        try (final JarFile jarFile = new JarFile(path.toFile())) {
+          final ZipEntry entry = jarFile.getEntry(DEFAULT_MAPPING_FILE_NAME);
+          if (entry == null) {
+            update(digest, (byte[])null);
+          } else {
+            final byte[] bytes;
+            try (final InputStream inputStream = jarFile.getInputStream(entry)) {
+              bytes = readAllBytes(inputStream);
+            }
+            update(digest, bytes);
+          }
+        }
+      }
+    } else {
+      digest.update((byte)0);
+    }
+  }
+
+  private static final void update(final MessageDigest digest, final byte[] bytes) {
+    assert digest != null;
+    if (bytes == null) {
+      digest.update((byte)0);
+    } else {
+      digest.update((byte)1);
+      updateLength(digest, bytes.length);
+      digest.update(bytes);
+    }
+  }
+
+  private static final byte[] readAllBytes(final InputStream inputStream) throws IOException {
+    assert inputStream != null;
+    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[8192];
+    int bytesRead;
+    while ((bytesRead = inputStream.read(buffer)) != -1) {
+      outputStream.write(buffer, 0, bytesRead);
+    }
+    return outputStream.toByteArray();
+  }
+
+  /**
+   * Returns the local {@link Path} of the directory or archive
+   * denoted by the supplied {@code file:} or {@code jar:file:} {@link
+   * URL}.
+   *
+   * @exception IOException if the {@link URL} does not denote a local
+   * file or directory
+   */
+  private static final Path toPath(final URL location) throws IOException {
+    assert location != null;
+    URL url = location;
+    if ("jar".equals(url.getProtocol())) {
+      final String spec = url.getPath();
+      final int separatorIndex = spec.indexOf("!/");
+      url = new URL(separatorIndex < 0 ? spec : spec.substring(0, separatorIndex));
+    }
+    if (!"file".equals(url.getProtocol())) {
+      throw new IOException("Cannot inspect the contents of " + location);
+    }
+    try {
+      return Paths.get(url.toURI());
+    } catch (final URISyntaxException | IllegalArgumentException exception) {
+      throw new IOException("Cannot inspect the contents of " + location, exception);
+    }
+  }
+
+  private static final void updateLength(final MessageDigest digest, final long length) {
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      digest.update((byte)(length >>> shift));
+    }
+  }
+
+}
@@ -102,6 +102,10 @@ public class PersistenceUnitInfoBean implements PersistenceUnitInfo {
   
   private final ValidationMode validationMode;
 
+  private volatile DataSource jtaDataSource;
+
+  private volatile DataSource nonJtaDataSource;
+
 
   /*
    * Constructors.
@@ -469,14 +473,93 @@ public class PersistenceUnitInfoBean implements PersistenceUnitInfo {
     return this.transactionType;
   }
 
+  /**
+   * Returns the {@link DataSource} that the persistence provider
+   * should use for JTA transactions, or {@code null}.
+   *
+   * <p>If the {@linkplain #getProperties() properties} of this {@link
+   * PersistenceUnitInfoBean} contain a property named {@value
+   * LazyConnectionDataSource#LAZY_CONNECTIONS_PROPERTY_NAME} whose
+   * value is {@code true}, the {@link DataSource} is wrapped in a
+   * {@link LazyConnectionDataSource}.  If a property named {@value
+   * ReadOnlyDataSource#REPLICA_DATA_SOURCE_NAME_PROPERTY_NAME} is
+   * present, or if some bean uses {@link ReadOnly}, the {@link
+   * DataSource} is also wrapped in a {@link ReadOnlyDataSource} so
+   * that {@link ReadOnly} methods obtain read-only connections.</p>
+   *
+   * <p>The decorated {@link DataSource} is built once, on the first
+   * invocation of this method that finds one, and is returned by all
+   * subsequent invocations.</p>
+   *
+   * @return a {@link DataSource}, or {@code null}
+   *
+   * @see LazyConnectionDataSource
+   *
+   * @see ReadOnlyDataSource
+   */
   @Override
   public final DataSource getJtaDataSource() {
-    return this.dataSourceProvider.getDataSource(true, this.nonJtaDataSourceName == null, this.jtaDataSourceName);
+    DataSource returnValue = this.jtaDataSource;
+    if (returnValue == null) {
+      returnValue =
+        this.decorate(this.dataSourceProvider.getDataSource(this, true, this.nonJtaDataSourceName == null, this.jtaDataSourceName), true);
+      // A race here at worst builds equivalent wrappers twice.
+      this.jtaDataSource = returnValue;
+    }
+    return returnValue;
   }
 
+  /**
+   * Returns the {@link DataSource} that the persistence provider
+   * should use outside of JTA transactions, or {@code null}.
+   *
+   * <p>If the {@linkplain #getProperties() properties} of this {@link
+   * PersistenceUnitInfoBean} contain a property named {@value
+   * LazyConnectionDataSource#LAZY_CONNECTIONS_PROPERTY_NAME} whose
+   * value is {@code true}, the {@link DataSource} is wrapped in a
+   * {@link LazyConnectionDataSource}.  If a property named {@value
+   * ReadOnlyDataSource#REPLICA_DATA_SOURCE_NAME_PROPERTY_NAME} is
+   * present, or if some bean uses {@link ReadOnly}, the {@link
+   * DataSource} is also wrapped in a {@link ReadOnlyDataSource} so
+   * that {@link ReadOnly} methods obtain read-only connections.</p>
+   *
+   * <p>The decorated {@link DataSource} is built once, on the first
+   * invocation of this method that finds one, and is returned by all
+   * subsequent invocations.</p>
+   *
+   * @return a {@link DataSource}, or {@code null}
+   *
+   * @see LazyConnectionDataSource
+   *
+   * @see ReadOnlyDataSource
+   */
   @Override
   public final DataSource getNonJtaDataSource() {
-    return this.dataSourceProvider.getDataSource(false, false, this.nonJtaDataSourceName);
+    DataSource returnValue = this.nonJtaDataSource;
+    if (returnValue == null) {
+      returnValue = this.decorate(this.dataSourceProvider.getDataSource(this, false, false, this.nonJtaDataSourceName), false);
+      // A race here at worst builds equivalent wrappers twice.
+      this.nonJtaDataSource = returnValue;
+    }
+    return returnValue;
+  }
+
+  private final DataSource decorate(final DataSource dataSource, final boolean jta) {
+    DataSource returnValue = dataSource;
+    if (returnValue != null) {
+      final Properties properties = this.getProperties();
+      final String replicaDataSourceName =
+        UnitProperties.getString(properties, ReadOnlyDataSource.REPLICA_DATA_SOURCE_NAME_PROPERTY_NAME, null);
+      if (replicaDataSourceName != null) {
+        returnValue = new ReadOnlyDataSource(returnValue, this.dataSourceProvider.getDataSource(this, jta, false, replicaDataSourceName));
+      } else if (ReadOnlyMode.isEnabled()) {
+        returnValue = new ReadOnlyDataSource(returnValue, null);
+      }
+      if (UnitProperties.getBoolean(properties, LazyConnectionDataSource.LAZY_CONNECTIONS_PROPERTY_NAME, false)) {
+        returnValue = new LazyConnectionDataSource(returnValue);
+      }
+    }
+    return returnValue;
   }
 
   @Override
@@ -484,6 +567,60 @@ public class PersistenceUnitInfoBean implements PersistenceUnitInfo {
     return this.mappingFileNames;
   }
 
+  /**
+   * Returns a new {@link PersistenceUnitInfoBean} that is a copy of
+   * this one, treated as a template, but that has the supplied name
+   * and whose {@link DataSource} is the supplied {@link DataSource}.
+   *
+   * <p>The supplied {@link DataSource} is returned by the {@link
+   * #getJtaDataSource()} method of the new {@link
+   * PersistenceUnitInfoBean} if its {@linkplain #getTransactionType()
+   * transaction type} is {@link PersistenceUnitTransactionType#JTA},
+   * and by its {@link #getNonJtaDataSource()} method otherwise.  The
+   * new {@link PersistenceUnitInfoBean}'s {@linkplain #getProperties()
+   * properties} are a copy of this one's.</p>
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param persistenceUnitName the name of the new persistence unit;
+   * must not be {@code null}
+   *
+   * @param dataSource the {@link DataSource} of the new persistence
+   * unit; must not be {@code null}
+   *
+   * @return a new, non-{@code null} {@link PersistenceUnitInfoBean}
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   *
+   * @see TenantPersistenceUnits
+   */
+  public PersistenceUnitInfoBean withDataSource(final String persistenceUnitName, final DataSource dataSource) {
+    Objects.requireNonNull(persistenceUnitName);
+    Objects.requireNonNull(dataSource);
+    final boolean jta = PersistenceUnitTransactionType.JTA.equals(this.transactionType);
+    final Properties properties = new Properties();
+    properties.putAll(this.properties);
+    return new PersistenceUnitInfoBean(persistenceUnitName,
+                                       this.persistenceUnitRootUrl,
+                                       this.persistenceXMLSchemaVersion,
+                                       this.persistenceProviderClassName,
+                                       this.originalClassLoader,
+                                       this.tempClassLoaderSupplier,
+                                       this.classTransformerConsumer,
+                                       this.excludeUnlistedClasses,
+                                       this.jarFileUrls,
+                                       this.managedClassNames,
+                                       this.mappingFileNames,
+                                       null,
+                                       null,
+                                       (j, useDefaultJta, dataSourceName) -> j == jta ? dataSource : null,
+                                       properties,
+                                       this.sharedCacheMode,
+                                       this.transactionType,
+                                       this.validationMode);
+  }
+
   /**
    * Given a {@link Persistence} (a Java object representation of a
    * {@code META-INF/persistence.xml} resource), a {@link URL}
@@ -848,7 +985,49 @@ public class PersistenceUnitInfoBean implements PersistenceUnitInfo {
      * @see PersistenceUnitInfoBean#getNonJtaDataSource()
      */
     public DataSource getDataSource(final boolean jta, final boolean useDefaultJta, final String dataSourceName);
-    
+
+    /**
+     * Supplies a {@link DataSource} on behalf of the persistence unit
+     * described by the supplied {@link PersistenceUnitInfo}.
+     *
+     * <p>Implementations of this method are permitted to return
+     * {@code null}.</p>
+     *
+     * <p>The default implementation ignores the supplied {@link
+     * PersistenceUnitInfo} and returns the result of invoking the
+     * {@link #getDataSource(boolean, boolean, String)} method.
+     * Implementations may override this method to decorate the
+     * {@link DataSource} they return according to the persistence
+     * unit's name or properties.</p>
+     *
+     * @param persistenceUnitInfo the {@link PersistenceUnitInfo}
+     * describing the persistence unit that will use the {@link
+     * DataSource}; must not be {@code null}
+     *
+     * @param jta if {@code true}, the {@link DataSource} that is
+     * returned may be enrolled in JTA-compliant transactions
+     *
+     * @param useDefaultJta if {@code true}, and if the {@code jta}
+     * parameter value is {@code true}, the supplied {@code
+     * dataSourceName} may be ignored and a default {@link DataSource}
+     * eligible for enrolling in JTA-compliant transactions will be
+     * returned if possible
+     *
+     * @param dataSourceName the name of the {@link DataSource} to
+     * return; may be {@code null}; ignored if both {@code jta} and
+     * {@code useDefaultJta} are {@code true}
+     *
+     * @return an appropriate {@link DataSource}, or {@code null}
+     *
+     * @see #getDataSource(boolean, boolean, String)
+     */
+    public default DataSource getDataSource(final PersistenceUnitInfo persistenceUnitInfo,
+                                            final boolean jta,
+                                            final boolean useDefaultJta,
+                                            final String dataSourceName) {
+      return this.getDataSource(jta, useDefaultJta, dataSourceName);
+    }
+
   }
 
 }
@@ -0,0 +1,79 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.FIELD;
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Indicates that the annotated identifier attribute of an entity
+ * receives its value from a shared {@link IdAllocator} drawing on the
+ * named database sequence.
+ *
+ * <p>When the persistence unit property named {@value
+ * IdAllocator#ENABLED_PROPERTY_NAME} is set to {@code true}, an entity
+ * whose {@code PooledId}-annotated attribute is {@code null} (or
+ * {@code 0}) when it is passed to {@link
+ * javax.persistence.EntityManager#persist(Object)} or {@link
+ * javax.persistence.EntityManager#merge(Object)} on an {@link
+ * javax.persistence.EntityManager} created by an {@link
+ * javax.persistence.EntityManagerFactory} bean added by the {@link
+ * JpaExtension}, or that is reachable from such an entity through
+ * loaded relationships, is assigned its identifier before the
+ * persistence provider sees it.  A new entity that is only added to
+ * a relationship of an already managed entity is not, and must be
+ * persisted explicitly; see {@link IdAllocator} for details.</p>
+ *
+ * <p>The annotated attribute must be of type {@link Long}, {@code
+ * long}, {@link Integer} or {@code int}.  If the entity uses property
+ * access, the getter is annotated and a matching setter must
+ * exist.</p>
+ *
+ * <p>Persistence providers differ in whether they accept an assigned
+ * value for an attribute that is also annotated with {@link
+ * javax.persistence.GeneratedValue}: EclipseLink keeps it, while
+ * Hibernate rejects the entity as detached.  Portable entities
+ * should therefore not combine the two.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see IdAllocator
+ */
+@Documented
+@Retention(RUNTIME)
+@Target({ FIELD, METHOD })
+public @interface PooledId {
+
+  /**
+   * The name of the database sequence from which identifiers are
+   * drawn.
+   *
+   * <p>The sequence must increment by the {@linkplain
+   * IdAllocator#BLOCK_SIZE_PROPERTY_NAME block size} of the
+   * persistence unit.</p>
+   *
+   * @return the name of the database sequence
+   */
+  String sequenceName();
+
+}
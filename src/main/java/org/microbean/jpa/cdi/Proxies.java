@@ -0,0 +1,188 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Objects;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Query;
+import javax.persistence.StoredProcedureQuery;
+import javax.persistence.TypedQuery;
+
+import javax.persistence.spi.PersistenceUnitInfo;
+
+import javax.sql.DataSource;
+
+/**
+ * A utility class for the dynamic proxies with which this project
+ * decorates persistence objects, and the registry of the interfaces
+ * they implement.
+ *
+ * <p>Every proxy is created by the {@link
+ * #newProxyInstance(ClassLoader, Class, InvocationHandler)} method,
+ * which refuses an interface that is not {@linkplain
+ * #getProxyInterfaces() registered}, so that the dynamic proxy
+ * configuration written by the {@link
+ * NativeImageConfigurationGenerator} cannot fall behind the
+ * proxies actually created.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see java.lang.reflect.Proxy
+ */
+final class Proxies {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  // Each entry is commented with the classes that proxy it; a class
+  // that creates a new kind of proxy must add its interface here.
+  private static final Set<Class<?>> PROXY_INTERFACES =
+    Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.<Class<?>>asList(
+      DataSource.class, // Tracing, Deadlines, ConnectionLeaks
+      Connection.class, // LazyConnectionDataSource, StatementStatisticsDataSource, ReadOnlyDataSource, Tracing, Deadlines, ConnectionLeaks
+      Statement.class, // StatementStatisticsDataSource, Tracing, Deadlines
+      PreparedStatement.class, // StatementStatisticsDataSource, Tracing, Deadlines
+      CallableStatement.class, // StatementStatisticsDataSource, Tracing, Deadlines
+      PersistenceUnitInfo.class, // CacheCoordination
+      EntityManagerFactory.class, // Bulkhead, ReadOnlyMode, CacheCoordination, Tracing, PersistenceContextGuard, Deadlines, IdAllocator
+      EntityManager.class, // Bulkhead, TenantPersistenceUnits, ReadOnlyMode, CacheCoordination, Tracing, PersistenceContextGuard, Deadlines, IdAllocator
+      EntityTransaction.class, // CacheCoordination, Tracing
+      Query.class, // CacheCoordination, Tracing, PersistenceContextGuard, Deadlines
+      TypedQuery.class, // CacheCoordination, Tracing, PersistenceContextGuard, Deadlines
+      StoredProcedureQuery.class // CacheCoordination, Tracing, PersistenceContextGuard, Deadlines
+    )));
+
+
+  /*
+   * Constructors.
+   */
+
+
+  private Proxies() {
+    super();
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Invokes the supplied {@link Method} on the supplied target and
+   * returns its result, throwing whatever it throws rather than an
+   * {@link InvocationTargetException}, as an {@link
+   * InvocationHandler} must.
+   *
+   * @param target the object on which to invoke {@code method}; may
+   * be {@code null} only if {@code method} is {@code static}
+   *
+   * @param method the {@link Method} to invoke; must not be {@code
+   * null}
+   *
+   * @param arguments the arguments; may be {@code null}
+   *
+   * @return the result of the invocation, which may be {@code null}
+   *
+   * @exception NullPointerException if {@code method} is {@code null}
+   *
+   * @exception Throwable if the invocation failed, or whatever the
+   * invoked {@link Method} threw
+   */
+  static final Object invoke(final Object target, final Method method, final Object[] arguments) throws Throwable {
+    try {
+      return method.invoke(target, arguments);
+    } catch (final InvocationTargetException invocationTargetException) {
+      throw invocationTargetException.getCause();
+    }
+  }
+
+  /**
+   * Returns a new dynamic proxy implementing the supplied {@linkplain
+   * #getProxyInterfaces() registered} interface.
+   *
+   * @param <T> the type of the interface
+   *
+   * @param classLoader the {@link ClassLoader} in which to define the
+   * proxy class; may be {@code null}
+   *
+   * @param interfaceType the interface the proxy implements; must not
+   * be {@code null} and must be {@linkplain #getProxyInterfaces()
+   * registered}
+   *
+   * @param invocationHandler the {@link InvocationHandler}; must not
+   * be {@code null}
+   *
+   * @return a new, non-{@code null} proxy
+   *
+   * @exception NullPointerException if {@code interfaceType} or {@code
+   * invocationHandler} is {@code null}
+   *
+   * @exception IllegalArgumentException if {@code interfaceType} is
+   * not {@linkplain #getProxyInterfaces() registered}
+   *
+   * @see Proxy#newProxyInstance(ClassLoader, Class[],
+   * InvocationHandler)
+   */
+  static final <T> T newProxyInstance(final ClassLoader classLoader,
+                                      final Class<T> interfaceType,
+                                      final InvocationHandler invocationHandler) {
+    Objects.requireNonNull(interfaceType);
+    Objects.requireNonNull(invocationHandler);
+    if (!PROXY_INTERFACES.contains(interfaceType)) {
+      throw new IllegalArgumentException("Not a registered proxy interface: " + interfaceType.getName());
+    }
+    return interfaceType.cast(Proxy.newProxyInstance(classLoader, new Class<?>[] { interfaceType }, invocationHandler));
+  }
+
+  /**
+   * Returns an unmodifiable {@link Set} of every interface for which
+   * this project creates dynamic proxies.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null}, unmodifiable {@link Set} of
+   * interfaces, in a stable order
+   *
+   * @see #newProxyInstance(ClassLoader, Class, InvocationHandler)
+   */
+  static final Set<Class<?>> getProxyInterfaces() {
+    return PROXY_INTERFACES;
+  }
+
+}
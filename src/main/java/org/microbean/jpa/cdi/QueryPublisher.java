@@ -0,0 +1,324 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.util.Iterator;
+import java.util.Objects;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.util.function.Function;
+
+import java.util.stream.Stream;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * A cold <a href="http://www.reactive-streams.org/"
+ * target="_parent">Reactive Streams</a> {@link Publisher} of the
+ * results of a JPA query that fetches rows from a database cursor
+ * only as its {@link Subscriber}s {@linkplain
+ * Subscription#request(long) request} them.
+ *
+ * <p>Each {@link Subscriber} gets its own execution of the query,
+ * performed by a {@link ResultStreamer} and hence backed by a
+ * forward-only cursor whose persistence context is cleared
+ * periodically.  No more rows are read than have been requested, so
+ * memory use is bounded regardless of the size of the result set.
+ * All database work happens on the supplied {@link Executor}, never
+ * on the thread that calls {@link Subscription#request(long)}.</p>
+ *
+ * <p>The cursor, and hence its underlying JDBC connection, is
+ * released as soon as the results are exhausted, an error occurs or
+ * the {@link Subscription} is {@linkplain Subscription#cancel()
+ * cancelled}.</p>
+ *
+ * <p>On Java 9 and later, instances of this class may be adapted to
+ * {@code java.util.concurrent.Flow.Publisher} using {@code
+ * org.reactivestreams.FlowAdapters}.  The Reactive Streams API is a
+ * {@code provided}-scoped dependency of this project and must be
+ * present at runtime in order to use this class.</p>
+ *
+ * @param <T> the type of the query results
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see ResultStreamer
+ */
+public class QueryPublisher<T> implements Publisher<T> {
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final ResultStreamer resultStreamer;
+
+  private final Function<? super EntityManager, ? extends TypedQuery<T>> queryFunction;
+
+  private final Executor executor;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link QueryPublisher}.
+   *
+   * @param resultStreamer the {@link ResultStreamer} that will
+   * execute the query; must not be {@code null}
+   *
+   * @param queryFunction a {@link Function} that creates the {@link
+   * TypedQuery} to execute from an {@link EntityManager}; must not be
+   * {@code null}
+   *
+   * @param executor the {@link Executor} on which database work and
+   * {@link Subscriber} notifications will happen; must not be {@code
+   * null}
+   *
+   * @exception NullPointerException if any parameter is {@code null}
+   */
+  public QueryPublisher(final ResultStreamer resultStreamer,
+                        final Function<? super EntityManager, ? extends TypedQuery<T>> queryFunction,
+                        final Executor executor) {
+    super();
+    this.resultStreamer = Objects.requireNonNull(resultStreamer);
+    this.queryFunction = Objects.requireNonNull(queryFunction);
+    this.executor = Objects.requireNonNull(executor);
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Subscribes the supplied {@link Subscriber} to a new execution of
+   * this {@link QueryPublisher}'s query.
+   *
+   * <p>The query is not executed until the {@link Subscriber} first
+   * {@linkplain Subscription#request(long) requests} results.</p>
+   *
+   * @param subscriber the {@link Subscriber}; must not be {@code
+   * null}
+   *
+   * @exception NullPointerException if {@code subscriber} is {@code
+   * null}
+   */
+  @Override
+  public void subscribe(final Subscriber<? super T> subscriber) {
+    Objects.requireNonNull(subscriber);
+    subscriber.onSubscribe(new CursorSubscription<>(subscriber, this.resultStreamer, this.queryFunction, this.executor));
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * A {@link Subscription} that drains a cursor into a {@link
+   * Subscriber} on an {@link Executor}, honoring demand.
+   *
+   * <p>All signals to the {@link Subscriber} and all cursor
+   * operations are serialized by a work-in-progress counter: only the
+   * thread that moves it from zero runs the drain loop.</p>
+   *
+   * @author <a href="https://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   */
+  private static final class CursorSubscription<T> implements Runnable, Subscription {
+
+    private final Subscriber<? super T> subscriber;
+
+    private final ResultStreamer resultStreamer;
+
+    private final Function<? super EntityManager, ? extends TypedQuery<T>> queryFunction;
+
+    private final Executor executor;
+
+    private final AtomicLong requested;
+
+    private final AtomicInteger workInProgress;
+
+    private volatile boolean cancelled;
+
+    private volatile Throwable invalidRequest;
+
+    // Only accessed by the drain loop.
+    private Stream<T> stream;
+
+    // Only accessed by the drain loop.
+    private Iterator<T> iterator;
+
+    // Only accessed by the drain loop.
+    private boolean done;
+
+    private CursorSubscription(final Subscriber<? super T> subscriber,
+                               final ResultStreamer resultStreamer,
+                               final Function<? super EntityManager, ? extends TypedQuery<T>> queryFunction,
+                               final Executor executor) {
+      super();
+      this.subscriber = subscriber;
+      this.resultStreamer = resultStreamer;
+      this.queryFunction = queryFunction;
+      this.executor = executor;
+      this.requested = new AtomicLong();
+      this.workInProgress = new AtomicInteger();
+    }
+
+    @Override
+    public final void request(final long n) {
+      if (n <= 0L) {
+        // Reactive Streams specification rule 3.9.
+        this.invalidRequest = new IllegalArgumentException("n <= 0: " + n);
+      } else {
+        long current;
+        long next;
+        do {
+          current = this.requested.get();
+          if (current == Long.MAX_VALUE) {
+            break;
+          }
+          next = current + n;
+          if (next < 0L) {
+            next = Long.MAX_VALUE;
+          }
+        } while (!this.requested.compareAndSet(current, next));
+      }
+      this.schedule();
+    }
+
+    @Override
+    public final void cancel() {
+      this.cancelled = true;
+      this.schedule();
+    }
+
+    private final void schedule() {
+      if (this.workInProgress.getAndIncrement() == 0) {
+        try {
+          this.executor.execute(this);
+        } catch (final RejectedExecutionException rejectedExecutionException) {
+          // No drain loop is running, so it is safe to release any
+          // open cursor on this thread, which must happen whether or
+          // not the subscription was cancelled.
+          this.workInProgress.set(0);
+          final boolean wasCancelled = this.cancelled;
+          this.cancelled = true;
+          this.release();
+          if (!wasCancelled) {
+            this.subscriber.onError(rejectedExecutionException);
+          }
+        }
+      }
+    }
+
+    @Override
+    public final void run() {
+      int missed = 1;
+      do {
+        this.drain();
+        missed = this.workInProgress.addAndGet(-missed);
+      } while (missed != 0);
+    }
+
+    private final void drain() {
+      if (this.done) {
+        return;
+      }
+      if (this.cancelled) {
+        this.done = true;
+        this.release();
+        return;
+      }
+      final Throwable invalidRequest = this.invalidRequest;
+      if (invalidRequest != null) {
+        this.done = true;
+        this.release();
+        this.subscriber.onError(invalidRequest);
+        return;
+      }
+      final long requested = this.requested.get();
+      if (requested == 0L) {
+        return;
+      }
+      long emitted = 0L;
+      try {
+        if (this.iterator == null) {
+          this.stream = this.resultStreamer.stream(this.queryFunction);
+          this.iterator = this.stream.iterator();
+        }
+        while (emitted != requested) {
+          if (this.cancelled) {
+            this.done = true;
+            this.release();
+            return;
+          }
+          if (!this.iterator.hasNext()) {
+            this.done = true;
+            this.release();
+            this.subscriber.onComplete();
+            return;
+          }
+          this.subscriber.onNext(this.iterator.next());
+          emitted++;
+        }
+      } catch (final Throwable throwable) {
+        this.done = true;
+        try {
+          this.release();
+        } catch (final RuntimeException releaseException) {
+          throwable.addSuppressed(releaseException);
+        }
+        this.subscriber.onError(throwable);
+        return;
+      }
+      if (requested != Long.MAX_VALUE) {
+        // Any demand that arrived meanwhile also incremented the
+        // work-in-progress counter, so run() will drain again.
+        this.requested.addAndGet(-emitted);
+      }
+    }
+
+    private final void release() {
+      final Stream<T> stream = this.stream;
+      this.stream = null;
+      this.iterator = null;
+      if (stream != null) {
+        stream.close();
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,75 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import javax.interceptor.InterceptorBinding;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * An {@link InterceptorBinding} indicating that the annotated method,
+ * or every business method of the annotated class, only reads
+ * persistent state.
+ *
+ * <p>While such a method is executing on a given thread, {@link
+ * javax.persistence.EntityManager}s created on that thread from
+ * {@link javax.persistence.EntityManagerFactory} beans added by the
+ * {@link JpaExtension}:</p>
+ *
+ * <ul>
+ *
+ * <li>have their {@linkplain
+ * javax.persistence.EntityManager#setFlushMode(javax.persistence.FlushModeType)
+ * flush mode} set to {@link javax.persistence.FlushModeType#COMMIT
+ * COMMIT},</li>
+ *
+ * <li>apply provider-specific read-only hints to the queries and
+ * {@linkplain javax.persistence.EntityManager#find(Class, Object)
+ * finds} they perform, so that the entities they return are not
+ * snapshotted for dirty checking, and</li>
+ *
+ * <li>obtain {@linkplain java.sql.Connection#setReadOnly(boolean)
+ * read-only} JDBC connections, from the read replica named by the
+ * {@value ReadOnlyDataSource#REPLICA_DATA_SOURCE_NAME_PROPERTY_NAME}
+ * persistence unit property if it is set.</li>
+ *
+ * </ul>
+ *
+ * <p>Entities obtained in this way must not be modified.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see ReadOnlyInterceptor
+ *
+ * @see ReadOnlyDataSource
+ */
+@Documented
+@Inherited
+@InterceptorBinding
+@Retention(RUNTIME)
+@Target({ METHOD, TYPE })
+public @interface ReadOnly {
+
+}
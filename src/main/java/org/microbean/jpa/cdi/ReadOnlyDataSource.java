@@ -0,0 +1,207 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.io.PrintWriter;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+
+import java.util.Objects;
+
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * A {@link DataSource} that, on threads in read-only mode (see
+ * {@link ReadOnly}), hands out {@linkplain
+ * Connection#setReadOnly(boolean) read-only} {@link Connection}s,
+ * optionally from a read replica, and that otherwise hands out
+ * {@link Connection}s from the {@link DataSource} it wraps.
+ *
+ * <p>A read-only {@link Connection} is made writable again when it
+ * is {@linkplain Connection#close() closed}, so that it returns to
+ * its pool in the state in which it left it.</p>
+ *
+ * <p>The {@link PersistenceUnitInfoBean} class wraps the {@link
+ * DataSource}s it returns in instances of this class if the
+ * persistence unit property named {@value
+ * #REPLICA_DATA_SOURCE_NAME_PROPERTY_NAME} is set, in which case its
+ * value names the {@link DataSource} from which read-only {@link
+ * Connection}s are obtained, or if some bean uses {@link
+ * ReadOnly}.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see ReadOnly
+ *
+ * @see PersistenceUnitInfoBean#getJtaDataSource()
+ *
+ * @see PersistenceUnitInfoBean#getNonJtaDataSource()
+ */
+public class ReadOnlyDataSource implements DataSource {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  /**
+   * The name of the persistence unit property whose value, if
+   * present, is the name of the {@link DataSource}, typically
+   * connected to a read replica, from which {@link Connection}s are
+   * obtained in read-only mode.
+   */
+  public static final String REPLICA_DATA_SOURCE_NAME_PROPERTY_NAME = "org.microbean.jpa.cdi.readOnly.replicaDataSourceName";
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final DataSource delegate;
+
+  private final DataSource replica;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link ReadOnlyDataSource}.
+   *
+   * @param delegate the {@link DataSource} from which {@link
+   * Connection}s are obtained outside of read-only mode, and inside
+   * it if {@code replica} is {@code null}; must not be {@code null}
+   *
+   * @param replica the {@link DataSource} from which {@link
+   * Connection}s are obtained in read-only mode; may be {@code null}
+   *
+   * @exception NullPointerException if {@code delegate} is {@code
+   * null}
+   */
+  public ReadOnlyDataSource(final DataSource delegate, final DataSource replica) {
+    super();
+    this.delegate = Objects.requireNonNull(delegate);
+    this.replica = replica;
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  @Override
+  public Connection getConnection() throws SQLException {
+    if (ReadOnlyMode.isActive()) {
+      return readOnly((this.replica == null ? this.delegate : this.replica).getConnection());
+    }
+    return this.delegate.getConnection();
+  }
+
+  @Override
+  public Connection getConnection(final String username, final String password) throws SQLException {
+    if (ReadOnlyMode.isActive()) {
+      return readOnly((this.replica == null ? this.delegate : this.replica).getConnection(username, password));
+    }
+    return this.delegate.getConnection(username, password);
+  }
+
+  @Override
+  public PrintWriter getLogWriter() throws SQLException {
+    return this.delegate.getLogWriter();
+  }
+
+  @Override
+  public void setLogWriter(final PrintWriter out) throws SQLException {
+    this.delegate.setLogWriter(out);
+  }
+
+  @Override
+  public void setLoginTimeout(final int seconds) throws SQLException {
+    this.delegate.setLoginTimeout(seconds);
+  }
+
+  @Override
+  public int getLoginTimeout() throws SQLException {
+    return this.delegate.getLoginTimeout();
+  }
+
+  @Override
+  public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+    return this.delegate.getParentLogger();
+  }
+
+  @Override
+  public <T> T unwrap(final Class<T> iface) throws SQLException {
+    if (iface != null && iface.isInstance(this)) {
+      return iface.cast(this);
+    }
+    return this.delegate.unwrap(iface);
+  }
+
+  @Override
+  public boolean isWrapperFor(final Class<?> iface) throws SQLException {
+    return (iface != null && iface.isInstance(this)) || this.delegate.isWrapperFor(iface);
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  private static final Connection readOnly(final Connection connection) throws SQLException {
+    if (connection == null) {
+      return null;
+    }
+    if (connection.isReadOnly()) {
+      return connection;
+    }
+    try {
+      connection.setReadOnly(true);
+    } catch (final SQLException sqlException) {
+      try {
+        connection.close();
+      } catch (final SQLException closeException) {
+        sqlException.addSuppressed(closeException);
+      }
+      throw sqlException;
+    }
+    return Proxies.newProxyInstance(ReadOnlyDataSource.class.getClassLoader(),
+                                    Connection.class,
+                                    (proxy, method, arguments) -> {
+                                      if ("close".equals(method.getName()) && !connection.isClosed()) {
+                                        try {
+                                          connection.setReadOnly(false);
+                                        } catch (final SQLException sqlException) {
+                                          // The pool will reset or discard it.
+                                        }
+                                      }
+                                      return Proxies.invoke(connection, method, arguments);
+                                    });
+  }
+
+}
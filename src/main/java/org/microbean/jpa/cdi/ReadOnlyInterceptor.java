@@ -0,0 +1,93 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.io.Serializable;
+
+import javax.annotation.Priority;
+
+import javax.interceptor.AroundInvoke;
+import javax.interceptor.Interceptor;
+import javax.interceptor.InvocationContext;
+
+/**
+ * An {@link Interceptor} that puts the current thread into read-only
+ * mode for the duration of methods annotated with {@link ReadOnly}.
+ *
+ * <p>Read-only mode nests: it ends when the outermost {@link
+ * ReadOnly} method returns.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see ReadOnly
+ */
+@Interceptor
+@Priority(Interceptor.Priority.LIBRARY_BEFORE + 100)
+@ReadOnly
+public class ReadOnlyInterceptor implements Serializable {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  private static final long serialVersionUID = 1L;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link ReadOnlyInterceptor}.
+   */
+  public ReadOnlyInterceptor() {
+    super();
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Proceeds with the supplied {@link InvocationContext} in read-only
+   * mode.
+   *
+   * @param invocationContext the {@link InvocationContext}; must not
+   * be {@code null}
+   *
+   * @return the result of {@link InvocationContext#proceed()}
+   *
+   * @exception Exception if {@link InvocationContext#proceed()}
+   * throws an {@link Exception}
+   */
+  @AroundInvoke
+  public Object aroundInvoke(final InvocationContext invocationContext) throws Exception {
+    final boolean previouslyActive = ReadOnlyMode.enter();
+    try {
+      return invocationContext.proceed();
+    } finally {
+      ReadOnlyMode.exit(previouslyActive);
+    }
+  }
+
+}
@@ -0,0 +1,272 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.lang.reflect.Method;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.FlushModeType;
+import javax.persistence.PersistenceException;
+import javax.persistence.Query;
+
+/**
+ * A utility class that tracks whether the current thread is in
+ * read-only mode (see {@link ReadOnly}) and that configures {@link
+ * EntityManager}s accordingly.
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see ReadOnly
+ *
+ * @see ReadOnlyInterceptor
+ */
+final class ReadOnlyMode {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  /**
+   * Provider-specific hints, applied to queries and finds in
+   * read-only mode, that cause the entities returned not to be
+   * snapshotted for dirty checking.
+   *
+   * <p>Persistence providers ignore hints they do not
+   * recognize.</p>
+   */
+  static final Map<String, Object> HINTS;
+
+  static {
+    final Map<String, Object> hints = new HashMap<>();
+    hints.put("eclipselink.read-only", "true");
+    hints.put("org.hibernate.readOnly", Boolean.TRUE);
+    HINTS = Collections.unmodifiableMap(hints);
+  }
+
+  private static final ThreadLocal<Boolean> active = new ThreadLocal<>();
+
+  // The number of running containers with beans that use ReadOnly.
+  private static final AtomicInteger enablers = new AtomicInteger();
+
+
+  /*
+   * Constructors.
+   */
+
+
+  private ReadOnlyMode() {
+    super();
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Records that some bean in a starting container uses {@link
+   * ReadOnly}, so that the {@link EntityManagerFactory} instances and
+   * {@link javax.sql.DataSource}s created from now on must honor
+   * read-only mode.
+   *
+   * <p>The {@link JpaExtension} calls this method once per container
+   * when it discovers such a bean, and calls {@link #disable()} when
+   * that container shuts down.  Until this method is called, {@link
+   * EntityManagerFactory} instances and {@link
+   * javax.sql.DataSource}s are not wrapped for read-only mode at all,
+   * since nothing could ever {@linkplain #enter() enter} it.</p>
+   *
+   * @see #disable()
+   *
+   * @see #isEnabled()
+   */
+  static final void enable() {
+    enablers.incrementAndGet();
+  }
+
+  /**
+   * Undoes the effect of one prior invocation of {@link #enable()},
+   * so that once every container that enabled read-only mode has
+   * shut down, {@link EntityManagerFactory} instances and {@link
+   * javax.sql.DataSource}s created afterwards are no longer wrapped
+   * for it.
+   *
+   * <p>Calling this method more times than {@link #enable()} has no
+   * further effect.</p>
+   *
+   * @see #enable()
+   */
+  static final void disable() {
+    enablers.updateAndGet(count -> count > 0 ? count - 1 : 0);
+  }
+
+  /**
+   * Returns {@code true} if {@link #enable()} has been called more
+   * times than {@link #disable()}.
+   *
+   * @return {@code true} if read-only mode is enabled
+   *
+   * @see #enable()
+   *
+   * @see #disable()
+   */
+  static final boolean isEnabled() {
+    return enablers.get() > 0;
+  }
+
+  /**
+   * Returns {@code true} if the current thread is in read-only mode.
+   *
+   * @return {@code true} if the current thread is in read-only mode
+   */
+  static final boolean isActive() {
+    return Boolean.TRUE.equals(active.get());
+  }
+
+  /**
+   * Puts the current thread into read-only mode.
+   *
+   * @return whether the current thread was already in read-only
+   * mode, to be supplied to a subsequent invocation of {@link
+   * #exit(boolean)}
+   *
+   * @see #exit(boolean)
+   */
+  static final boolean enter() {
+    final boolean returnValue = isActive();
+    if (!returnValue) {
+      active.set(Boolean.TRUE);
+    }
+    return returnValue;
+  }
+
+  /**
+   * Takes the current thread out of read-only mode unless it was
+   * already in read-only mode when the matching invocation of {@link
+   * #enter()} occurred.
+   *
+   * @param previouslyActive the value returned by the matching
+   * invocation of {@link #enter()}
+   *
+   * @see #enter()
+   */
+  static final void exit(final boolean previouslyActive) {
+    if (!previouslyActive) {
+      active.remove();
+    }
+  }
+
+  /**
+   * Returns an {@link EntityManagerFactory} that delegates to the
+   * supplied one but whose {@link EntityManager}s, when created in
+   * read-only mode, are configured for reading only.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param entityManagerFactory the {@link EntityManagerFactory} to
+   * wrap; must not be {@code null}
+   *
+   * @return a non-{@code null} {@link EntityManagerFactory}
+   *
+   * @exception NullPointerException if {@code entityManagerFactory}
+   * is {@code null}
+   */
+  static final EntityManagerFactory wrap(final EntityManagerFactory entityManagerFactory) {
+    Objects.requireNonNull(entityManagerFactory);
+    return Proxies.newProxyInstance(ReadOnlyMode.class.getClassLoader(),
+                                    EntityManagerFactory.class,
+                                    (proxy, method, arguments) -> {
+                                      final Object returnValue = Proxies.invoke(entityManagerFactory, method, arguments);
+                                      if (returnValue instanceof EntityManager && isActive()) {
+                                        return readOnly((EntityManager)returnValue);
+                                      }
+                                      return returnValue;
+                                    });
+  }
+
+  private static final EntityManager readOnly(final EntityManager entityManager) {
+    assert entityManager != null;
+    entityManager.setFlushMode(FlushModeType.COMMIT);
+    if (entityManager.getClass().getName().startsWith("org.hibernate.")) {
+      setHibernateDefaultReadOnly(entityManager);
+    }
+    return Proxies.newProxyInstance(ReadOnlyMode.class.getClassLoader(),
+                                    EntityManager.class,
+                                    (proxy, method, arguments) -> {
+                                      switch (method.getName()) {
+                                      case "find":
+                                        return find(entityManager, method, arguments);
+                                      case "createQuery":
+                                      case "createNamedQuery":
+                                      case "createNativeQuery":
+                                        final Query query = (Query)Proxies.invoke(entityManager, method, arguments);
+                                        for (final Map.Entry<String, Object> hint : HINTS.entrySet()) {
+                                          query.setHint(hint.getKey(), hint.getValue());
+                                        }
+                                        return query;
+                                      default:
+                                        return Proxies.invoke(entityManager, method, arguments);
+                                      }
+                                    });
+  }
+
+  private static final Object find(final EntityManager entityManager,
+                                   final Method method,
+                                   final Object[] arguments) throws Throwable {
+    assert entityManager != null;
+    assert method != null;
+    assert arguments != null;
+    final Class<?>[] parameterTypes = method.getParameterTypes();
+    if (parameterTypes.length == 2) {
+      return entityManager.find((Class<?>)arguments[0], arguments[1], HINTS);
+    } else if (parameterTypes.length == 3 && Map.class.equals(parameterTypes[2])) {
+      @SuppressWarnings("unchecked")
+      final Map<String, Object> suppliedProperties = (Map<String, Object>)arguments[2];
+      final Map<String, Object> properties = new HashMap<>(HINTS);
+      if (suppliedProperties != null) {
+        properties.putAll(suppliedProperties);
+      }
+      return entityManager.find((Class<?>)arguments[0], arguments[1], properties);
+    }
+    // Finds that lock imply an intent to write.
+    return Proxies.invoke(entityManager, method, arguments);
+  }
+
+  private static final void setHibernateDefaultReadOnly(final EntityManager entityManager) {
+    assert entityManager != null;
+    try {
+      final Class<?> sessionClass = Class.forName("org.hibernate.Session", false, entityManager.getClass().getClassLoader());
+      final Object session = entityManager.unwrap(sessionClass);
+      sessionClass.getMethod("setDefaultReadOnly", boolean.class).invoke(session, Boolean.TRUE);
+    } catch (final ReflectiveOperationException | PersistenceException exception) {
+      // The query hints still apply.
+    }
+  }
+
+}
@@ -0,0 +1,513 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.lang.reflect.InvocationTargetException;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+
+import java.util.function.Function;
+
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+import javax.persistence.TypedQuery;
+
+/**
+ * A helper that executes {@link TypedQuery} instances against a
+ * forward-only, provider-side cursor and exposes their results as a
+ * {@link Stream} whose memory footprint does not grow with the size
+ * of the result set.
+ *
+ * <p>Every {@code clearInterval} rows, entities that have already
+ * been emitted by a {@link Stream} returned by this class are
+ * detached from the {@link EntityManager} that loaded them so that
+ * the persistence context does not grow without bound.</p>
+ *
+ * <p>{@link Stream}s returned by this class hold database resources
+ * open until they are {@linkplain Stream#close() closed} or
+ * exhausted, and so should always be used in a {@code
+ * try}-with-resources block.</p>
+ *
+ * <p>The {@link JpaExtension} makes an instance of this class
+ * available, qualified with the {@linkplain
+ * javax.inject.Named name} of the relevant persistence unit, for
+ * every persistence unit it discovers.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see #stream(String, Class)
+ *
+ * @see #stream(EntityManager, TypedQuery, int, int)
+ */
+public class ResultStreamer {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  /**
+   * The name of the persistence unit property whose value, if
+   * present, will be used as the JDBC fetch size by the {@link
+   * ResultStreamer} associated with that persistence unit.
+   *
+   * @see #DEFAULT_FETCH_SIZE
+   */
+  public static final String FETCH_SIZE_PROPERTY_NAME = "org.microbean.jpa.cdi.streaming.fetchSize";
+
+  /**
+   * The name of the persistence unit property whose value, if
+   * present, will be used as the number of rows after which
+   * processed entities are detached by the {@link ResultStreamer}
+   * associated with that persistence unit.
+   *
+   * @see #DEFAULT_CLEAR_INTERVAL
+   */
+  public static final String CLEAR_INTERVAL_PROPERTY_NAME = "org.microbean.jpa.cdi.streaming.clearInterval";
+
+  /**
+   * The default JDBC fetch size ({@value}).
+   */
+  public static final int DEFAULT_FETCH_SIZE = 500;
+
+  /**
+   * The default number of rows after which processed entities are
+   * detached ({@value}).
+   */
+  public static final int DEFAULT_CLEAR_INTERVAL = 500;
+
+  private static final String ECLIPSELINK_PACKAGE_PREFIX = "org.eclipse.persistence.";
+
+  private static final String ECLIPSELINK_JDBC_FETCH_SIZE = "eclipselink.jdbc.fetch-size";
+
+  private static final String ECLIPSELINK_SCROLLABLE_CURSOR = "eclipselink.cursor.scrollable";
+
+  private static final String ECLIPSELINK_RESULT_SET_TYPE = "eclipselink.cursor.scrollable.result-type";
+
+  private static final String HIBERNATE_FETCH_SIZE = "org.hibernate.fetchSize";
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final EntityManagerFactory entityManagerFactory;
+
+  private final int fetchSize;
+
+  private final int clearInterval;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link ResultStreamer} using {@linkplain
+   * #DEFAULT_FETCH_SIZE the default fetch size} and {@linkplain
+   * #DEFAULT_CLEAR_INTERVAL the default clear interval}.
+   *
+   * @param entityManagerFactory the {@link EntityManagerFactory}
+   * from which {@link EntityManager}s will be created; must not be
+   * {@code null}
+   *
+   * @exception NullPointerException if {@code entityManagerFactory}
+   * is {@code null}
+   *
+   * @see #ResultStreamer(EntityManagerFactory, int, int)
+   */
+  public ResultStreamer(final EntityManagerFactory entityManagerFactory) {
+    this(entityManagerFactory, DEFAULT_FETCH_SIZE, DEFAULT_CLEAR_INTERVAL);
+  }
+
+  /**
+   * Creates a new {@link ResultStreamer}.
+   *
+   * @param entityManagerFactory the {@link EntityManagerFactory}
+   * from which {@link EntityManager}s will be created; must not be
+   * {@code null}
+   *
+   * @param fetchSize the JDBC fetch size to request; if {@code 0}
+   * then the JDBC driver's default will be used; must not be
+   * negative
+   *
+   * @param clearInterval the number of rows after which the
+   * persistence context will be cleared; if {@code 0} then the
+   * persistence context will never be cleared; must not be negative
+   *
+   * @exception NullPointerException if {@code entityManagerFactory}
+   * is {@code null}
+   *
+   * @exception IllegalArgumentException if {@code fetchSize} or
+   * {@code clearInterval} is negative
+   */
+  public ResultStreamer(final EntityManagerFactory entityManagerFactory,
+                        final int fetchSize,
+                        final int clearInterval) {
+    super();
+    Objects.requireNonNull(entityManagerFactory);
+    if (fetchSize < 0) {
+      throw new IllegalArgumentException("fetchSize < 0: " + fetchSize);
+    }
+    if (clearInterval < 0) {
+      throw new IllegalArgumentException("clearInterval < 0: " + clearInterval);
+    }
+    this.entityManagerFactory = entityManagerFactory;
+    this.fetchSize = fetchSize;
+    this.clearInterval = clearInterval;
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Executes the supplied JPQL query using a new {@link
+   * EntityManager} and returns a {@link Stream} of its results.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * <p>The {@link EntityManager} used to execute the query is closed
+   * when the returned {@link Stream} is {@linkplain Stream#close()
+   * closed}.</p>
+   *
+   * @param <T> the type of the results
+   *
+   * @param jpql the JPQL query to execute; must not be {@code null}
+   *
+   * @param resultClass the type of the results; must not be {@code
+   * null}
+   *
+   * @return a non-{@code null} {@link Stream} that must be
+   * {@linkplain Stream#close() closed} when no longer needed
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   *
+   * @see #stream(Function)
+   */
+  public <T> Stream<T> stream(final String jpql, final Class<T> resultClass) {
+    Objects.requireNonNull(jpql);
+    Objects.requireNonNull(resultClass);
+    return this.stream(entityManager -> entityManager.createQuery(jpql, resultClass));
+  }
+
+  /**
+   * Creates a new {@link EntityManager}, {@linkplain
+   * Function#apply(Object) supplies it} to the supplied {@link
+   * Function} to create a {@link TypedQuery}, executes that {@link
+   * TypedQuery} and returns a {@link Stream} of its results.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * <p>The {@link EntityManager} used to execute the query is closed
+   * when the returned {@link Stream} is {@linkplain Stream#close()
+   * closed}.  Because this {@link ResultStreamer} owns that {@link
+   * EntityManager}, its persistence context is simply {@linkplain
+   * EntityManager#clear() cleared} every {@code clearInterval}
+   * rows.</p>
+   *
+   * @param <T> the type of the results
+   *
+   * @param queryFunction a {@link Function} that, when supplied with
+   * an {@link EntityManager}, returns a non-{@code null} {@link
+   * TypedQuery}; must not be {@code null}
+   *
+   * @return a non-{@code null} {@link Stream} that must be
+   * {@linkplain Stream#close() closed} when no longer needed
+   *
+   * @exception NullPointerException if {@code queryFunction} is
+   * {@code null}
+   *
+   * @exception IllegalArgumentException if {@code queryFunction}
+   * returns {@code null}
+   */
+  public <T> Stream<T> stream(final Function<? super EntityManager, ? extends TypedQuery<T>> queryFunction) {
+    Objects.requireNonNull(queryFunction);
+    final EntityManager entityManager = this.entityManagerFactory.createEntityManager();
+    assert entityManager != null;
+    try {
+      final TypedQuery<T> query = queryFunction.apply(entityManager);
+      if (query == null) {
+        throw new IllegalArgumentException("queryFunction.apply(entityManager) == null");
+      }
+      return stream(entityManager, query, this.fetchSize, this.clearInterval, true);
+    } catch (final RuntimeException runtimeException) {
+      entityManager.close();
+      throw runtimeException;
+    }
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Executes the supplied {@link TypedQuery}, which must have been
+   * created by the supplied {@link EntityManager}, and returns a
+   * {@link Stream} of its results.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * <p>Because the supplied {@link EntityManager} is not owned by
+   * this method, its persistence context is not {@linkplain
+   * EntityManager#clear() cleared}; instead, every {@code
+   * clearInterval} rows, the entities that were emitted since the
+   * last such point are {@linkplain EntityManager#detach(Object)
+   * detached}.  Entities that were already managed before the query
+   * was executed are therefore detached as well if the query
+   * returns them.  The supplied {@link EntityManager} is not closed
+   * when the returned {@link Stream} is closed.</p>
+   *
+   * @param <T> the type of the results
+   *
+   * @param entityManager the {@link EntityManager} that created the
+   * supplied {@link TypedQuery}; must not be {@code null}
+   *
+   * @param query the {@link TypedQuery} to execute; must not be
+   * {@code null}
+   *
+   * @param fetchSize the JDBC fetch size to request; if {@code 0}
+   * then the JDBC driver's default will be used; must not be
+   * negative
+   *
+   * @param clearInterval the number of rows after which emitted
+   * entities will be detached; if {@code 0} then no entities will be
+   * detached; must not be negative
+   *
+   * @return a non-{@code null} {@link Stream} that must be
+   * {@linkplain Stream#close() closed} when no longer needed
+   *
+   * @exception NullPointerException if {@code entityManager} or
+   * {@code query} is {@code null}
+   *
+   * @exception IllegalArgumentException if {@code fetchSize} or
+   * {@code clearInterval} is negative
+   */
+  public static final <T> Stream<T> stream(final EntityManager entityManager,
+                                           final TypedQuery<T> query,
+                                           final int fetchSize,
+                                           final int clearInterval) {
+    if (fetchSize < 0) {
+      throw new IllegalArgumentException("fetchSize < 0: " + fetchSize);
+    }
+    if (clearInterval < 0) {
+      throw new IllegalArgumentException("clearInterval < 0: " + clearInterval);
+    }
+    return stream(entityManager, query, fetchSize, clearInterval, false);
+  }
+
+  private static final <T> Stream<T> stream(final EntityManager entityManager,
+                                            final TypedQuery<T> query,
+                                            final int fetchSize,
+                                            final int clearInterval,
+                                            final boolean ownsEntityManager) {
+    Objects.requireNonNull(entityManager);
+    Objects.requireNonNull(query);
+
+    if (fetchSize > 0) {
+      // Unrecognized hints are ignored by providers, so it is safe
+      // to set them all.
+      query.setHint(ECLIPSELINK_JDBC_FETCH_SIZE, Integer.valueOf(fetchSize));
+      query.setHint(HIBERNATE_FETCH_SIZE, Integer.valueOf(fetchSize));
+    }
+
+    final Iterator<T> cursor;
+    final Runnable cursorCloser;
+    if (isEclipseLink(entityManager)) {
+      // EclipseLink's Query#getResultStream() implementation
+      // materializes the whole result list first, so ask for a
+      // forward-only ScrollableCursor instead.
+      query.setHint(ECLIPSELINK_SCROLLABLE_CURSOR, Boolean.TRUE);
+      query.setHint(ECLIPSELINK_RESULT_SET_TYPE, "ForwardOnly");
+      final Object result = query.getSingleResult();
+      if (!(result instanceof Iterator)) {
+        closeCursor(result);
+        throw new PersistenceException("Unexpected cursor type: " + (result == null ? "null" : result.getClass().getName()));
+      }
+      @SuppressWarnings("unchecked")
+      final Iterator<T> temp = (Iterator<T>)result;
+      cursor = temp;
+      cursorCloser = () -> closeCursor(result);
+    } else {
+      final Stream<T> resultStream = query.getResultStream();
+      assert resultStream != null;
+      cursor = resultStream.iterator();
+      cursorCloser = resultStream::close;
+    }
+
+    final DetachingIterator<T> iterator =
+      new DetachingIterator<>(cursor, cursorCloser, entityManager, clearInterval, ownsEntityManager);
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED), false)
+      .onClose(iterator::close);
+  }
+
+  private static final boolean isEclipseLink(final EntityManager entityManager) {
+    assert entityManager != null;
+    final Object delegate = entityManager.getDelegate();
+    return delegate != null && delegate.getClass().getName().startsWith(ECLIPSELINK_PACKAGE_PREFIX);
+  }
+
+  private static final void closeCursor(final Object cursor) {
+    if (cursor != null) {
+      try {
+        cursor.getClass().getMethod("close").invoke(cursor);
+      } catch (final InvocationTargetException invocationTargetException) {
+        final Throwable cause = invocationTargetException.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException)cause;
+        }
+        throw new PersistenceException(cause == null ? null : cause.getMessage(), cause);
+      } catch (final ReflectiveOperationException reflectiveOperationException) {
+        throw new PersistenceException(reflectiveOperationException.getMessage(), reflectiveOperationException);
+      }
+    }
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * An {@link Iterator} that periodically releases entities it has
+   * emitted from the persistence context that loaded them, and that
+   * releases its underlying cursor once it is exhausted or
+   * {@linkplain #close() closed}.
+   *
+   * @author <a href="https://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   */
+  private static final class DetachingIterator<T> implements Iterator<T>, AutoCloseable {
+
+    private final Iterator<? extends T> cursor;
+
+    private final Runnable cursorCloser;
+
+    private final EntityManager entityManager;
+
+    private final int clearInterval;
+
+    private final boolean ownsEntityManager;
+
+    private final Object[] emitted;
+
+    private long count;
+
+    private boolean closed;
+
+    private DetachingIterator(final Iterator<? extends T> cursor,
+                              final Runnable cursorCloser,
+                              final EntityManager entityManager,
+                              final int clearInterval,
+                              final boolean ownsEntityManager) {
+      super();
+      this.cursor = Objects.requireNonNull(cursor);
+      this.cursorCloser = Objects.requireNonNull(cursorCloser);
+      this.entityManager = Objects.requireNonNull(entityManager);
+      this.clearInterval = clearInterval;
+      this.ownsEntityManager = ownsEntityManager;
+      if (ownsEntityManager || clearInterval <= 0) {
+        this.emitted = null;
+      } else {
+        this.emitted = new Object[clearInterval];
+      }
+    }
+
+    @Override
+    public final boolean hasNext() {
+      if (this.closed) {
+        return false;
+      }
+      final boolean returnValue = this.cursor.hasNext();
+      if (!returnValue) {
+        this.close();
+      }
+      return returnValue;
+    }
+
+    @Override
+    public final T next() {
+      if (this.closed) {
+        throw new NoSuchElementException();
+      }
+      if (this.clearInterval > 0 && this.count > 0L && this.count % this.clearInterval == 0L) {
+        this.release();
+      }
+      final T returnValue = this.cursor.next();
+      if (this.emitted != null) {
+        this.emitted[(int)(this.count % this.clearInterval)] = returnValue;
+      }
+      this.count++;
+      return returnValue;
+    }
+
+    private final void release() {
+      if (this.ownsEntityManager) {
+        this.entityManager.clear();
+      } else if (this.emitted != null) {
+        for (int i = 0; i < this.emitted.length; i++) {
+          final Object entity = this.emitted[i];
+          if (entity != null) {
+            this.emitted[i] = null;
+            try {
+              if (this.entityManager.contains(entity)) {
+                this.entityManager.detach(entity);
+              }
+            } catch (final IllegalArgumentException notAnEntity) {
+              // The query returned scalars or tuples; there is
+              // nothing to detach.
+            }
+          }
+        }
+      }
+    }
+
+    @Override
+    public final void close() {
+      if (!this.closed) {
+        this.closed = true;
+        try {
+          this.cursorCloser.run();
+        } finally {
+          if (this.ownsEntityManager && this.entityManager.isOpen()) {
+            this.entityManager.close();
+          }
+        }
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,111 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import javax.enterprise.util.Nonbinding;
+
+import javax.interceptor.InterceptorBinding;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * An {@link InterceptorBinding} indicating that the annotated method,
+ * or every business method of the annotated class, should be
+ * invoked again when it fails because of a write conflict, such as an
+ * {@link javax.persistence.OptimisticLockException} or a database
+ * deadlock.
+ *
+ * <p>Each attempt runs the method from the start, so any {@link
+ * javax.persistence.EntityManager} it creates from an {@link
+ * javax.persistence.EntityManagerFactory} bean added by the {@link
+ * JpaExtension} is new and its persistence context holds no stale
+ * state.  When combined with {@code javax.transaction.Transactional},
+ * each attempt also runs in a new transaction.  A method invoked
+ * while a JTA transaction is already active is not retried, because
+ * retrying it could not undo the work already done in that
+ * transaction.</p>
+ *
+ * <p>Attempts are separated by exponentially growing, jittered
+ * delays.  Retries and give-ups are counted per {@linkplain
+ * #unitName() persistence unit}; see {@link ConflictRetriesMXBean}.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see RetryOnConflictInterceptor
+ *
+ * @see ConflictRetries
+ */
+@Documented
+@Inherited
+@InterceptorBinding
+@Retention(RUNTIME)
+@Target({ METHOD, TYPE })
+public @interface RetryOnConflict {
+
+  /**
+   * The name of the persistence unit against which retries and
+   * give-ups will be reported.
+   *
+   * <p>If empty and there is only one persistence unit, they are
+   * reported against that one; if empty and there are several, an
+   * invocation of the method fails with an {@link
+   * IllegalStateException} before it is attempted.  Retries and
+   * give-ups of a method that names no known persistence unit still
+   * happen but are not reported.</p>
+   *
+   * @return the name of the persistence unit against which retries
+   * and give-ups will be reported; never {@code null}
+   */
+  @Nonbinding
+  String unitName() default "";
+
+  /**
+   * The maximum number of times the method will be invoked,
+   * including the first invocation.
+   *
+   * @return the maximum number of attempts; values less than {@code
+   * 1} are treated as {@code 1}
+   */
+  @Nonbinding
+  int maxAttempts() default ConflictRetries.DEFAULT_MAX_ATTEMPTS;
+
+  /**
+   * The upper bound, in milliseconds, of the delay before the first
+   * retry; the bound doubles with each subsequent retry.
+   *
+   * @return the initial backoff bound in milliseconds
+   */
+  @Nonbinding
+  long initialBackoffMillis() default ConflictRetries.DEFAULT_INITIAL_BACKOFF_MILLIS;
+
+  /**
+   * The maximum delay, in milliseconds, between two attempts.
+   *
+   * @return the maximum backoff in milliseconds
+   */
+  @Nonbinding
+  long maxBackoffMillis() default ConflictRetries.DEFAULT_MAX_BACKOFF_MILLIS;
+
+}
@@ -0,0 +1,226 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.io.Serializable;
+
+import java.lang.reflect.Method;
+
+import javax.annotation.Priority;
+
+import javax.enterprise.inject.Any;
+import javax.enterprise.inject.Instance;
+
+import javax.enterprise.inject.literal.NamedLiteral;
+
+import javax.inject.Inject;
+
+import javax.interceptor.AroundInvoke;
+import javax.interceptor.Interceptor;
+import javax.interceptor.InvocationContext;
+
+import javax.transaction.SystemException;
+import javax.transaction.TransactionManager;
+
+/**
+ * An {@link Interceptor} that invokes methods annotated with {@link
+ * RetryOnConflict} again when they fail because of a write conflict.
+ *
+ * <p>This interceptor's priority places it outside the {@code
+ * javax.transaction.Transactional} interceptor (whose priority is
+ * {@link Interceptor.Priority#PLATFORM_BEFORE PLATFORM_BEFORE} {@code
+ * + 200}), so that each attempt begins and completes its own
+ * transaction.  If a JTA transaction is already active when an
+ * annotated method is invoked, the method is invoked exactly once.
+ * If an attempt fails and leaves behind a transaction that it began,
+ * that transaction is rolled back before the next attempt.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see RetryOnConflict
+ *
+ * @see ConflictRetries#call(java.util.concurrent.Callable, int, long,
+ * long)
+ */
+@Interceptor
+@Priority(Interceptor.Priority.PLATFORM_BEFORE + 100)
+@RetryOnConflict
+public class RetryOnConflictInterceptor implements Serializable {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  private static final long serialVersionUID = 1L;
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final Instance<TransactionManager> transactionManagerInstance;
+
+  private final Instance<ConflictRetries> conflictRetriesInstance;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link RetryOnConflictInterceptor}.
+   *
+   * @param transactionManagerInstance an {@link Instance} that may
+   * resolve to a {@link TransactionManager}; may be {@code null}
+   *
+   * @param conflictRetriesInstance an {@link Instance} from which the
+   * {@link ConflictRetries} bean of a persistence unit may be
+   * selected; may be {@code null}
+   */
+  @Inject
+  public RetryOnConflictInterceptor(final Instance<TransactionManager> transactionManagerInstance,
+                                    @Any final Instance<ConflictRetries> conflictRetriesInstance) {
+    super();
+    this.transactionManagerInstance = transactionManagerInstance;
+    this.conflictRetriesInstance = conflictRetriesInstance;
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Proceeds with the supplied {@link InvocationContext}, proceeding
+   * again on write conflicts as directed by the applicable {@link
+   * RetryOnConflict} annotation.
+   *
+   * @param invocationContext the {@link InvocationContext}; must not
+   * be {@code null}
+   *
+   * @return the result of the first successful invocation of {@link
+   * InvocationContext#proceed()}
+   *
+   * @exception Exception if {@link InvocationContext#proceed()}
+   * throws an {@link Exception} that is not a write conflict, or
+   * throws one on its last permitted attempt
+   */
+  @AroundInvoke
+  public Object aroundInvoke(final InvocationContext invocationContext) throws Exception {
+    final TransactionManager transactionManager = this.getTransactionManager();
+    if (Transactions.isActive(transactionManager)) {
+      return invocationContext.proceed();
+    }
+    final RetryOnConflict retryOnConflict = getRetryOnConflict(invocationContext);
+    final String unitName;
+    final int maxAttempts;
+    final long initialBackoffMillis;
+    final long maxBackoffMillis;
+    if (retryOnConflict == null) {
+      unitName = "";
+      maxAttempts = ConflictRetries.DEFAULT_MAX_ATTEMPTS;
+      initialBackoffMillis = ConflictRetries.DEFAULT_INITIAL_BACKOFF_MILLIS;
+      maxBackoffMillis = ConflictRetries.DEFAULT_MAX_BACKOFF_MILLIS;
+    } else {
+      unitName = retryOnConflict.unitName();
+      maxAttempts = retryOnConflict.maxAttempts();
+      initialBackoffMillis = retryOnConflict.initialBackoffMillis();
+      maxBackoffMillis = retryOnConflict.maxBackoffMillis();
+    }
+    return this.getConflictRetries(unitName).call(() -> {
+        try {
+          return invocationContext.proceed();
+        } catch (final Exception exception) {
+          if (Transactions.isActive(transactionManager)) {
+            try {
+              transactionManager.rollback();
+            } catch (final IllegalStateException | SecurityException | SystemException rollbackException) {
+              exception.addSuppressed(rollbackException);
+            }
+          }
+          throw exception;
+        }
+      }, maxAttempts, initialBackoffMillis, maxBackoffMillis);
+  }
+
+  /**
+   * Returns the {@link ConflictRetries} bean of the persistence unit
+   * with the supplied name, or, if the name is empty, of the only
+   * persistence unit; if there is no such bean, returns a new {@link
+   * ConflictRetries} whose metrics are not registered.
+   *
+   * @exception IllegalStateException if the name is empty and there
+   * is more than one persistence unit
+   */
+  private final ConflictRetries getConflictRetries(final String unitName) {
+    if (this.conflictRetriesInstance != null) {
+      Instance<ConflictRetries> instance = this.conflictRetriesInstance.select(NamedLiteral.of(unitName));
+      if (!instance.isResolvable() && unitName.isEmpty()) {
+        instance = this.conflictRetriesInstance;
+        if (instance.isAmbiguous()) {
+          throw new IllegalStateException("There is more than one persistence unit; set the unitName element of " +
+                                          RetryOnConflict.class.getName() + " to choose one");
+        }
+      }
+      if (instance.isResolvable()) {
+        return instance.get();
+      }
+    }
+    return new ConflictRetries(unitName);
+  }
+
+  private final TransactionManager getTransactionManager() {
+    final TransactionManager returnValue;
+    if (this.transactionManagerInstance == null || !this.transactionManagerInstance.isResolvable()) {
+      returnValue = null;
+    } else {
+      returnValue = this.transactionManagerInstance.get();
+    }
+    return returnValue;
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  private static final RetryOnConflict getRetryOnConflict(final InvocationContext invocationContext) {
+    RetryOnConflict returnValue = null;
+    final Method method = invocationContext.getMethod();
+    if (method != null) {
+      returnValue = method.getAnnotation(RetryOnConflict.class);
+      if (returnValue == null) {
+        returnValue = method.getDeclaringClass().getAnnotation(RetryOnConflict.class);
+      }
+    }
+    if (returnValue == null) {
+      final Object target = invocationContext.getTarget();
+      if (target != null) {
+        returnValue = target.getClass().getAnnotation(RetryOnConflict.class);
+      }
+    }
+    return returnValue;
+  }
+
+}
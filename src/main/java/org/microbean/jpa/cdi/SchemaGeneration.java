@@ -0,0 +1,487 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import java.util.regex.Pattern;
+
+import javax.persistence.PersistenceException;
+
+import javax.persistence.spi.PersistenceProvider;
+import javax.persistence.spi.PersistenceUnitInfo;
+
+import javax.sql.DataSource;
+
+/**
+ * A gate in front of a persistence unit's schema generation that
+ * skips it when nothing that could affect the schema has changed
+ * since it last ran, and that otherwise runs it, optionally in the
+ * background.
+ *
+ * <p>Persistence units frequently ask their persistence provider to
+ * generate their schema on every boot (using, for example, the
+ * {@code javax.persistence.schema-generation.database.action} or
+ * {@code eclipselink.ddl-generation} properties), which costs
+ * startup time even when nothing has changed.  When a {@link
+ * SchemaGeneration} is {@linkplain #apply(PersistenceProvider, Map)
+ * applied} to the properties with which an {@link
+ * javax.persistence.EntityManagerFactory} is about to be created, it
+ * computes the persistence unit's {@linkplain
+ * PersistenceUnitFingerprint fingerprint} and compares it with the
+ * one stored by the last successful schema generation, either in a
+ * file or in a table of the persistence unit's own database.  It
+ * then disables schema generation in those properties.  If the
+ * fingerprints differ, it runs schema generation separately, by way
+ * of {@link PersistenceProvider#generateSchema(PersistenceUnitInfo,
+ * Map)}, and stores the new fingerprint once that succeeds.  Unless
+ * the {@value #BACKGROUND_PROPERTY_NAME} persistence unit property is
+ * {@code false}, schema generation happens on a background thread so
+ * that it does not delay the creation of the {@link
+ * javax.persistence.EntityManagerFactory}; callers that need the
+ * schema to be in place may wait on the {@linkplain #getCompletion()
+ * completion} of this {@link SchemaGeneration}.</p>
+ *
+ * <p>The {@link JpaExtension} creates a {@link SchemaGeneration} for
+ * every persistence unit whose properties include a property named
+ * either {@value #FINGERPRINT_FILE_PROPERTY_NAME} or {@value
+ * #FINGERPRINT_TABLE_PROPERTY_NAME}, and makes it available as a
+ * bean qualified with the {@linkplain javax.inject.Named name} of the
+ * persistence unit.</p>
+ *
+ * <p>Instances of this class are safe for concurrent use by multiple
+ * threads.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see PersistenceUnitFingerprint
+ *
+ * @see #apply(PersistenceProvider, Map)
+ */
+public class SchemaGeneration {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  /**
+   * The name of the persistence unit property whose value, if
+   * present, is the path of the file in which the fingerprint of the
+   * persistence unit is stored.
+   */
+  public static final String FINGERPRINT_FILE_PROPERTY_NAME = "org.microbean.jpa.cdi.schemaGeneration.fingerprintFile";
+
+  /**
+   * The name of the persistence unit property whose value, if
+   * present, is the name of the table, in the persistence unit's own
+   * database, in which the fingerprint of the persistence unit is
+   * stored.
+   *
+   * <p>The table is created if it does not exist.  It has two
+   * columns: {@code PERSISTENCE_UNIT} and {@code FINGERPRINT}.</p>
+   */
+  public static final String FINGERPRINT_TABLE_PROPERTY_NAME = "org.microbean.jpa.cdi.schemaGeneration.fingerprintTable";
+
+  /**
+   * The name of the persistence unit property that, if set to {@code
+   * false}, causes schema generation, when it is needed, to happen
+   * before the {@link javax.persistence.EntityManagerFactory} is
+   * created rather than in the background.
+   */
+  public static final String BACKGROUND_PROPERTY_NAME = "org.microbean.jpa.cdi.schemaGeneration.background";
+
+  private static final Map<String, String> DISABLED_SCHEMA_GENERATION_PROPERTIES;
+
+  static {
+    final Map<String, String> map = new HashMap<>();
+    map.put("javax.persistence.schema-generation.database.action", "none");
+    map.put("javax.persistence.schema-generation.scripts.action", "none");
+    map.put("eclipselink.ddl-generation", "none");
+    map.put("hibernate.hbm2ddl.auto", "none");
+    DISABLED_SCHEMA_GENERATION_PROPERTIES = Collections.unmodifiableMap(map);
+  }
+
+  private static final Pattern TABLE_NAME_PATTERN = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*(\\.[A-Za-z_][A-Za-z0-9_]*)?");
+
+  private static final Logger logger = Logger.getLogger(SchemaGeneration.class.getName());
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final String name;
+
+  private final PersistenceUnitInfo persistenceUnitInfo;
+
+  private final Path fingerprintFile;
+
+  private final String fingerprintTable;
+
+  private final boolean background;
+
+  private final AtomicBoolean applied;
+
+  private final CompletableFuture<Boolean> completion;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link SchemaGeneration}.
+   *
+   * @param name the name of the persistence unit; must not be {@code
+   * null}
+   *
+   * @param persistenceUnitInfo the {@link PersistenceUnitInfo}
+   * describing the persistence unit; must not be {@code null}
+   *
+   * @param fingerprintFile the file in which the fingerprint is
+   * stored; may be {@code null} if {@code fingerprintTable} is not
+   *
+   * @param fingerprintTable the name of the table in which the
+   * fingerprint is stored; may be {@code null} if {@code
+   * fingerprintFile} is not
+   *
+   * @param background whether schema generation, when it is needed,
+   * should happen in the background
+   *
+   * @exception NullPointerException if {@code name} or {@code
+   * persistenceUnitInfo} is {@code null}
+   *
+   * @exception IllegalArgumentException if {@code fingerprintFile}
+   * and {@code fingerprintTable} are both {@code null} or both
+   * non-{@code null}, or if {@code fingerprintTable} is not a valid
+   * table name
+   */
+  public SchemaGeneration(final String name,
+                          final PersistenceUnitInfo persistenceUnitInfo,
+                          final Path fingerprintFile,
+                          final String fingerprintTable,
+                          final boolean background) {
+    super();
+    this.name = Objects.requireNonNull(name);
+    this.persistenceUnitInfo = Objects.requireNonNull(persistenceUnitInfo);
+    if ((fingerprintFile == null) == (fingerprintTable == null)) {
+      throw new IllegalArgumentException("Exactly one of fingerprintFile and fingerprintTable must be supplied");
+    }
+    if (fingerprintTable != null && !TABLE_NAME_PATTERN.matcher(fingerprintTable).matches()) {
+      throw new IllegalArgumentException("Invalid fingerprintTable: " + fingerprintTable);
+    }
+    this.fingerprintFile = fingerprintFile;
+    this.fingerprintTable = fingerprintTable;
+    this.background = background;
+    this.applied = new AtomicBoolean();
+    this.completion = new CompletableFuture<>();
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns a {@link CompletionStage} that completes with {@code
+   * true} once schema generation has run and its fingerprint has been
+   * stored, with {@code false} if schema generation was skipped
+   * because the fingerprint had not changed, or exceptionally if
+   * schema generation failed.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link CompletionStage}
+   */
+  public CompletionStage<Boolean> getCompletion() {
+    return this.completion;
+  }
+
+  /**
+   * Disables schema generation in the supplied properties, which are
+   * about to be supplied to {@link
+   * PersistenceProvider#createContainerEntityManagerFactory(PersistenceUnitInfo,
+   * Map)}, and, if the persistence unit's fingerprint differs from
+   * the stored one, runs schema generation using the supplied {@link
+   * PersistenceProvider} and the properties as they were before they
+   * were modified.
+   *
+   * <p>Only the first invocation of this method has any effect.</p>
+   *
+   * @param persistenceProvider the {@link PersistenceProvider} of the
+   * persistence unit; must not be {@code null}
+   *
+   * @param properties the mutable {@link Map} of properties to
+   * modify; must not be {@code null}
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   *
+   * @exception PersistenceException if schema generation is not to
+   * happen in the background and failed
+   */
+  public void apply(final PersistenceProvider persistenceProvider, final Map<String, Object> properties) {
+    Objects.requireNonNull(persistenceProvider);
+    Objects.requireNonNull(properties);
+    if (!this.applied.compareAndSet(false, true)) {
+      return;
+    }
+    String computedFingerprint;
+    try {
+      computedFingerprint = PersistenceUnitFingerprint.compute(this.persistenceUnitInfo);
+    } catch (final IOException ioException) {
+      // Without a trustworthy fingerprint there is no way to tell
+      // that nothing changed, so always generate the schema.
+      if (logger.isLoggable(Level.WARNING)) {
+        logger.log(Level.WARNING,
+                   "Could not compute the fingerprint of persistence unit " + this.name + "; schema generation will always run",
+                   ioException);
+      }
+      computedFingerprint = null;
+    }
+    final String fingerprint = computedFingerprint;
+    final Map<String, Object> generationProperties = new HashMap<>(properties);
+    // Let providers that key their deployments by session name (such
+    // as EclipseLink) keep the schema generation deployment separate
+    // from the real one.
+    generationProperties.putIfAbsent("eclipselink.session-name", this.name + "-schemaGeneration");
+    properties.putAll(DISABLED_SCHEMA_GENERATION_PROPERTIES);
+
+    String storedFingerprint = null;
+    try {
+      storedFingerprint = fingerprint == null ? null : this.readFingerprint();
+    } catch (final IOException | SQLException exception) {
+      if (logger.isLoggable(Level.WARNING)) {
+        logger.log(Level.WARNING, "Could not read stored fingerprint for persistence unit " + this.name, exception);
+      }
+    }
+    if (fingerprint != null && fingerprint.equals(storedFingerprint)) {
+      if (logger.isLoggable(Level.FINE)) {
+        logger.logp(Level.FINE, SchemaGeneration.class.getName(), "apply",
+                    "Skipping schema generation for persistence unit {0}; fingerprint {1} unchanged",
+                    new Object[] { this.name, fingerprint });
+      }
+      this.completion.complete(Boolean.FALSE);
+      return;
+    }
+
+    final Runnable task = () -> {
+      try {
+        persistenceProvider.generateSchema(this.persistenceUnitInfo, generationProperties);
+        if (fingerprint != null) {
+          this.writeFingerprint(fingerprint);
+        }
+        this.completion.complete(Boolean.TRUE);
+      } catch (final IOException | SQLException exception) {
+        this.completion.completeExceptionally(new PersistenceException(exception.getMessage(), exception));
+      } catch (final RuntimeException runtimeException) {
+        this.completion.completeExceptionally(runtimeException);
+      }
+    };
+    if (this.background) {
+      final Thread thread = new Thread(task, "schemaGeneration-" + this.name);
+      thread.setDaemon(true);
+      thread.start();
+      this.completion.whenComplete((generated, throwable) -> {
+          if (throwable != null && logger.isLoggable(Level.SEVERE)) {
+            logger.log(Level.SEVERE, "Schema generation failed for persistence unit " + this.name, throwable);
+          }
+        });
+    } else {
+      task.run();
+      try {
+        this.completion.join();
+      } catch (final RuntimeException runtimeException) {
+        final Throwable cause = runtimeException.getCause();
+        if (cause instanceof PersistenceException) {
+          throw (PersistenceException)cause;
+        }
+        throw new PersistenceException(cause == null ? runtimeException : cause);
+      }
+    }
+  }
+
+  private final String readFingerprint() throws IOException, SQLException {
+    String returnValue = null;
+    if (this.fingerprintFile != null) {
+      if (Files.isRegularFile(this.fingerprintFile)) {
+        final List<String> lines = Files.readAllLines(this.fingerprintFile, StandardCharsets.UTF_8);
+        if (!lines.isEmpty()) {
+          returnValue = lines.get(0).trim();
+        }
+      }
+    } else {
+      try (final Connection connection = this.getDataSource().getConnection();
+           final PreparedStatement statement =
+             connection.prepareStatement("SELECT FINGERPRINT FROM " + this.fingerprintTable + " WHERE PERSISTENCE_UNIT = ?")) {
+        statement.setString(1, this.name);
+        try (final ResultSet resultSet = statement.executeQuery()) {
+          if (resultSet.next()) {
+            returnValue = resultSet.getString(1);
+          }
+        }
+      } catch (final SQLException sqlException) {
+        // Most likely the table does not exist yet, in which case
+        // there is no stored fingerprint.
+        if (logger.isLoggable(Level.FINE)) {
+          logger.log(Level.FINE, "Could not read " + this.fingerprintTable, sqlException);
+        }
+      }
+    }
+    return returnValue;
+  }
+
+  private final void writeFingerprint(final String fingerprint) throws IOException, SQLException {
+    assert fingerprint != null;
+    if (this.fingerprintFile != null) {
+      final Path file = this.fingerprintFile.toAbsolutePath();
+      final Path directory = file.getParent();
+      if (directory != null) {
+        Files.createDirectories(directory);
+      }
+      final Path temporaryFile = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+      try {
+        Files.write(temporaryFile, Collections.singleton(fingerprint), StandardCharsets.UTF_8);
+        try {
+          Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final AtomicMoveNotSupportedException atomicMoveNotSupportedException) {
+          Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+      } finally {
+        Files.deleteIfExists(temporaryFile);
+      }
+    } else {
+      try (final Connection connection = this.getDataSource().getConnection()) {
+        int updateCount;
+        try (final PreparedStatement statement =
+               connection.prepareStatement("UPDATE " + this.fingerprintTable + " SET FINGERPRINT = ? WHERE PERSISTENCE_UNIT = ?")) {
+          statement.setString(1, fingerprint);
+          statement.setString(2, this.name);
+          updateCount = statement.executeUpdate();
+        } catch (final SQLException sqlException) {
+          // Assume the table does not exist yet.
+          try (final Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE " + this.fingerprintTable +
+                                    " (PERSISTENCE_UNIT VARCHAR(255) NOT NULL PRIMARY KEY, FINGERPRINT VARCHAR(64) NOT NULL)");
+          } catch (final SQLException createException) {
+            createException.addSuppressed(sqlException);
+            throw createException;
+          }
+          updateCount = 0;
+        }
+        if (updateCount <= 0) {
+          try (final PreparedStatement statement =
+                 connection.prepareStatement("INSERT INTO " + this.fingerprintTable + " (PERSISTENCE_UNIT, FINGERPRINT) VALUES (?, ?)")) {
+            statement.setString(1, this.name);
+            statement.setString(2, fingerprint);
+            statement.executeUpdate();
+          }
+        }
+        if (!connection.getAutoCommit()) {
+          connection.commit();
+        }
+      }
+    }
+  }
+
+  private final DataSource getDataSource() throws SQLException {
+    DataSource returnValue = this.persistenceUnitInfo.getNonJtaDataSource();
+    if (returnValue == null) {
+      returnValue = this.persistenceUnitInfo.getJtaDataSource();
+      if (returnValue == null) {
+        throw new SQLException("No DataSource for persistence unit " + this.name);
+      }
+    }
+    return returnValue;
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Returns a new {@link SchemaGeneration} configured from the
+   * supplied persistence unit properties, or {@code null} if neither
+   * {@value #FINGERPRINT_FILE_PROPERTY_NAME} nor {@value
+   * #FINGERPRINT_TABLE_PROPERTY_NAME} is among them.
+   *
+   * @param name the name of the persistence unit; must not be {@code
+   * null}
+   *
+   * @param persistenceUnitInfo the {@link PersistenceUnitInfo}
+   * describing the persistence unit; must not be {@code null}
+   *
+   * @return a new {@link SchemaGeneration}, or {@code null}
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   *
+   * @exception IllegalArgumentException if both properties are
+   * present or the table name is invalid
+   */
+  static final SchemaGeneration fromProperties(final String name, final PersistenceUnitInfo persistenceUnitInfo) {
+    Objects.requireNonNull(name);
+    final Map<?, ?> properties = persistenceUnitInfo.getProperties();
+    final String fingerprintFile = UnitProperties.getString(properties, FINGERPRINT_FILE_PROPERTY_NAME, null);
+    final String fingerprintTable = UnitProperties.getString(properties, FINGERPRINT_TABLE_PROPERTY_NAME, null);
+    if (fingerprintFile == null && fingerprintTable == null) {
+      return null;
+    }
+    return new SchemaGeneration(name,
+                                persistenceUnitInfo,
+                                fingerprintFile == null ? null : Paths.get(fingerprintFile),
+                                fingerprintTable,
+                                UnitProperties.getBoolean(properties, BACKGROUND_PROPERTY_NAME, true));
+  }
+
+}
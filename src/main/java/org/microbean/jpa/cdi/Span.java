@@ -0,0 +1,305 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import java.util.function.Consumer;
+
+/**
+ * A named, timed unit of work performed against a persistence unit,
+ * such as a transaction, a flush, a query execution or the
+ * acquisition of a JDBC connection.
+ *
+ * <p>A {@link Span} is {@linkplain Tracing#startSpan(String) started}
+ * as a child of the {@linkplain SpanContext#current() current} {@link
+ * SpanContext}, becomes current itself, and is handed to a {@link
+ * SpanExporter} when it {@linkplain #end() ends}, at which point the
+ * previously current {@link SpanContext} is restored.  Callers may
+ * start their own spans, for example one per request, so that the
+ * spans of the work done on a request's behalf are grouped under
+ * it.</p>
+ *
+ * <p>Instances of this class are safe for concurrent use by multiple
+ * threads, but a {@link Span} should be ended on the thread that
+ * started it.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see Tracing
+ *
+ * @see SpanExporter
+ */
+public final class Span implements AutoCloseable {
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final String name;
+
+  private final SpanContext context;
+
+  private final SpanContext parent;
+
+  private final Thread thread;
+
+  private final long startTimeMillis;
+
+  private final long startNanos;
+
+  private final Map<String, Object> attributes;
+
+  private final AtomicBoolean ended;
+
+  private final Consumer<? super Span> exporter;
+
+  private volatile long durationNanos;
+
+  private volatile Throwable error;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link Span}, makes it current and starts timing
+   * it.
+   *
+   * @param name the name of the span; must not be {@code null}
+   *
+   * @param parent the parent {@link SpanContext}; may be {@code null}
+   *
+   * @param exporter a {@link Consumer} to which this {@link Span} will
+   * be supplied when it ends; must not be {@code null}
+   */
+  Span(final String name, final SpanContext parent, final Consumer<? super Span> exporter) {
+    super();
+    this.name = Objects.requireNonNull(name);
+    this.parent = parent;
+    this.context = SpanContext.newChild(parent);
+    this.thread = Thread.currentThread();
+    this.exporter = Objects.requireNonNull(exporter);
+    this.attributes = new LinkedHashMap<>();
+    this.ended = new AtomicBoolean();
+    this.durationNanos = -1L;
+    this.startTimeMillis = System.currentTimeMillis();
+    this.startNanos = System.nanoTime();
+    SpanContext.setCurrent(this.context);
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns the name of this {@link Span}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return the non-{@code null} name of this {@link Span}
+   */
+  public final String getName() {
+    return this.name;
+  }
+
+  /**
+   * Returns the {@link SpanContext} identifying this {@link Span}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return the non-{@code null} {@link SpanContext} of this {@link
+   * Span}
+   */
+  public final SpanContext getContext() {
+    return this.context;
+  }
+
+  /**
+   * Returns the {@link SpanContext} of this {@link Span}'s parent, or
+   * {@code null} if this {@link Span} is the root of its trace.
+   *
+   * @return the parent {@link SpanContext}, or {@code null}
+   */
+  public final SpanContext getParent() {
+    return this.parent;
+  }
+
+  /**
+   * Returns the time at which this {@link Span} started, in
+   * milliseconds since the epoch.
+   *
+   * @return the start time in milliseconds since the epoch
+   */
+  public final long getStartTimeMillis() {
+    return this.startTimeMillis;
+  }
+
+  /**
+   * Returns the duration of this {@link Span} in nanoseconds, or
+   * {@code -1} if it has not {@linkplain #end() ended}.
+   *
+   * @return the duration in nanoseconds, or {@code -1}
+   */
+  public final long getDurationNanos() {
+    return this.durationNanos;
+  }
+
+  /**
+   * Returns {@code true} if this {@link Span} has {@linkplain #end()
+   * ended}.
+   *
+   * @return {@code true} if this {@link Span} has ended
+   */
+  public final boolean isEnded() {
+    return this.ended.get();
+  }
+
+  /**
+   * Returns an unmodifiable snapshot of the attributes of this {@link
+   * Span}, in the order in which they were first set.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} unmodifiable {@link Map}
+   */
+  public final Map<String, Object> getAttributes() {
+    synchronized (this.attributes) {
+      return Collections.unmodifiableMap(new LinkedHashMap<>(this.attributes));
+    }
+  }
+
+  /**
+   * Returns the value of the attribute with the supplied name, or
+   * {@code null} if there is no such attribute.
+   *
+   * @param name the name of the attribute; may be {@code null}
+   *
+   * @return the value of the attribute, or {@code null}
+   */
+  public final Object getAttribute(final String name) {
+    synchronized (this.attributes) {
+      return this.attributes.get(name);
+    }
+  }
+
+  /**
+   * Sets the attribute with the supplied name to the supplied value.
+   *
+   * @param name the name of the attribute; must not be {@code null}
+   *
+   * @param value the value of the attribute; if {@code null}, the
+   * attribute is removed
+   *
+   * @return this {@link Span}
+   *
+   * @exception NullPointerException if {@code name} is {@code null}
+   */
+  public final Span setAttribute(final String name, final Object value) {
+    Objects.requireNonNull(name);
+    synchronized (this.attributes) {
+      if (value == null) {
+        this.attributes.remove(name);
+      } else {
+        this.attributes.put(name, value);
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Returns the {@link Throwable} {@linkplain #setError(Throwable)
+   * recorded} as the cause of this {@link Span}'s failure, or {@code
+   * null} if it did not fail.
+   *
+   * @return a {@link Throwable}, or {@code null}
+   */
+  public final Throwable getError() {
+    return this.error;
+  }
+
+  /**
+   * Records the supplied {@link Throwable} as the cause of this
+   * {@link Span}'s failure.
+   *
+   * @param error the {@link Throwable}; may be {@code null}
+   *
+   * @return this {@link Span}
+   */
+  public final Span setError(final Throwable error) {
+    this.error = error;
+    return this;
+  }
+
+  /**
+   * Ends this {@link Span}, restores its parent {@link SpanContext}
+   * as the current one if it is ended on the thread that started it,
+   * and exports it.
+   *
+   * <p>The parent is restored even if this {@link Span} is no longer
+   * current, so a descendant that was never ended cannot leave a
+   * stale {@link SpanContext} current after its ancestor ends.  A
+   * {@link Span} ended on another thread, as a JTA transaction may be,
+   * leaves both threads' current {@link SpanContext}s alone.</p>
+   *
+   * <p>Ending a {@link Span} that has already ended has no
+   * effect.</p>
+   */
+  public final void end() {
+    if (this.ended.compareAndSet(false, true)) {
+      this.durationNanos = System.nanoTime() - this.startNanos;
+      if (this.thread == Thread.currentThread()) {
+        SpanContext.setCurrent(this.parent);
+      }
+      this.exporter.accept(this);
+    }
+  }
+
+  /**
+   * {@linkplain #end() Ends} this {@link Span}.
+   */
+  @Override
+  public final void close() {
+    this.end();
+  }
+
+  /**
+   * Returns a {@link String} representation of this {@link Span}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link String}
+   */
+  @Override
+  public final String toString() {
+    return this.name + "[" + this.context.getSpanId() + (this.parent == null ? "" : " < " + this.parent.getSpanId()) +
+      (this.durationNanos < 0L ? "" : ", " + (this.durationNanos / 1000L) + " us") + ", " + this.getAttributes() + "]";
+  }
+
+}
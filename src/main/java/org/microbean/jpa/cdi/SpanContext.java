@@ -0,0 +1,301 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.util.Objects;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The identity of a {@link Span}: a trace identifier shared by all
+ * spans of a trace, and a span identifier unique within it.
+ *
+ * <p>The {@linkplain #current() current} {@link SpanContext} of a
+ * thread becomes the parent of every {@link Span} started on that
+ * thread.  Callers link the spans of a persistence unit's work to
+ * their own trace by {@linkplain #makeCurrent() making} a {@link
+ * SpanContext} current, for example one {@linkplain
+ * #fromTraceparent(String) parsed} from the W3C {@code traceparent}
+ * header of an incoming request.</p>
+ *
+ * <p>Instances of this class are immutable and safe for concurrent
+ * use by multiple threads.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see Span
+ *
+ * @see <a href="https://www.w3.org/TR/trace-context/"
+ * target="_parent">Trace Context</a>
+ */
+public final class SpanContext {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  private static final ThreadLocal<SpanContext> current = new ThreadLocal<>();
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final String traceId;
+
+  private final String spanId;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link SpanContext}.
+   *
+   * @param traceId the trace identifier, as 32 lowercase hexadecimal
+   * digits; must not be {@code null}
+   *
+   * @param spanId the span identifier, as 16 lowercase hexadecimal
+   * digits; must not be {@code null}
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   *
+   * @exception IllegalArgumentException if either parameter is
+   * malformed
+   */
+  public SpanContext(final String traceId, final String spanId) {
+    super();
+    if (!isHex(Objects.requireNonNull(traceId), 32)) {
+      throw new IllegalArgumentException("traceId: " + traceId);
+    }
+    if (!isHex(Objects.requireNonNull(spanId), 16)) {
+      throw new IllegalArgumentException("spanId: " + spanId);
+    }
+    this.traceId = traceId;
+    this.spanId = spanId;
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns the trace identifier of this {@link SpanContext}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return the trace identifier, as 32 lowercase hexadecimal digits
+   */
+  public final String getTraceId() {
+    return this.traceId;
+  }
+
+  /**
+   * Returns the span identifier of this {@link SpanContext}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return the span identifier, as 16 lowercase hexadecimal digits
+   */
+  public final String getSpanId() {
+    return this.spanId;
+  }
+
+  /**
+   * Returns this {@link SpanContext} in the form of a W3C {@code
+   * traceparent} header value, suitable for propagating it to another
+   * process.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@code traceparent} header value
+   *
+   * @see #fromTraceparent(String)
+   */
+  public final String toTraceparent() {
+    return "00-" + this.traceId + "-" + this.spanId + "-01";
+  }
+
+  /**
+   * Makes this {@link SpanContext} the current one on the calling
+   * thread until the returned {@link Scope} is {@linkplain
+   * Scope#close() closed}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link Scope} that restores the
+   * previously current {@link SpanContext} when closed
+   */
+  public final Scope makeCurrent() {
+    final SpanContext previous = current.get();
+    current.set(this);
+    return () -> setCurrent(previous);
+  }
+
+  @Override
+  public final int hashCode() {
+    return this.traceId.hashCode() * 31 + this.spanId.hashCode();
+  }
+
+  @Override
+  public final boolean equals(final Object other) {
+    if (other == this) {
+      return true;
+    } else if (other instanceof SpanContext) {
+      final SpanContext her = (SpanContext)other;
+      return this.traceId.equals(her.traceId) && this.spanId.equals(her.spanId);
+    } else {
+      return false;
+    }
+  }
+
+  @Override
+  public final String toString() {
+    return this.toTraceparent();
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Returns the {@link SpanContext} current on the calling thread, or
+   * {@code null} if there is none.
+   *
+   * @return the current {@link SpanContext}, or {@code null}
+   */
+  public static final SpanContext current() {
+    return current.get();
+  }
+
+  static final void setCurrent(final SpanContext spanContext) {
+    if (spanContext == null) {
+      current.remove();
+    } else {
+      current.set(spanContext);
+    }
+  }
+
+  /**
+   * Parses the supplied W3C {@code traceparent} header value and
+   * returns the {@link SpanContext} it describes, or {@code null} if
+   * it is {@code null} or malformed.
+   *
+   * @param traceparent the header value; may be {@code null}
+   *
+   * @return a {@link SpanContext}, or {@code null}
+   *
+   * @see #toTraceparent()
+   */
+  public static final SpanContext fromTraceparent(final String traceparent) {
+    if (traceparent == null) {
+      return null;
+    }
+    final String[] parts = traceparent.trim().split("-");
+    if (parts.length < 4 ||
+        !isHex(parts[0], 2) ||
+        "ff".equals(parts[0]) ||
+        !isHex(parts[1], 32) ||
+        !isHex(parts[2], 16) ||
+        !isHex(parts[3], 2) ||
+        isZero(parts[1]) ||
+        isZero(parts[2])) {
+      return null;
+    }
+    return new SpanContext(parts[1], parts[2]);
+  }
+
+  /**
+   * Returns a new {@link SpanContext} that is a child of the supplied
+   * parent, or the root of a new trace if the parent is {@code null}.
+   *
+   * @param parent the parent {@link SpanContext}; may be {@code null}
+   *
+   * @return a new {@link SpanContext}; never {@code null}
+   */
+  static final SpanContext newChild(final SpanContext parent) {
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    final String traceId = parent == null ? hex(random.nextLong() | 1L) + hex(random.nextLong()) : parent.traceId;
+    return new SpanContext(traceId, hex(random.nextLong() | 1L));
+  }
+
+  private static final String hex(final long value) {
+    final String hex = Long.toHexString(value);
+    return "0000000000000000".substring(hex.length()) + hex;
+  }
+
+  private static final boolean isHex(final String s, final int length) {
+    if (s.length() != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      final char c = s.charAt(i);
+      if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static final boolean isZero(final String s) {
+    for (int i = 0; i < s.length(); i++) {
+      if (s.charAt(i) != '0') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * An {@link AutoCloseable} that restores the {@link SpanContext}
+   * that was current before it was created.
+   *
+   * @author <a href="https://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   *
+   * @see SpanContext#makeCurrent()
+   */
+  @FunctionalInterface
+  public interface Scope extends AutoCloseable {
+
+    /**
+     * Restores the {@link SpanContext} that was current before this
+     * {@link Scope} was created.
+     */
+    @Override
+    public void close();
+
+  }
+
+}
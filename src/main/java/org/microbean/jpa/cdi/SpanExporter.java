@@ -0,0 +1,62 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+/**
+ * A destination for {@link Span}s that have ended.
+ *
+ * <p>A {@link Tracing} hands each {@link Span} to its {@link
+ * SpanExporter} on the thread that ended it, so implementations that
+ * send spans to a remote collector should buffer them and send them
+ * in the background.  Implementations are selected by naming a class
+ * that implements this interface and has a {@code public}
+ * zero-argument constructor as the value of the {@value
+ * Tracing#EXPORTER_PROPERTY_NAME} persistence unit property.</p>
+ *
+ * <p>Implementations must be safe for concurrent use by multiple
+ * threads.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see Tracing
+ *
+ * @see InMemorySpanExporter
+ */
+public interface SpanExporter extends AutoCloseable {
+
+  /**
+   * Exports the supplied {@link Span}, which has ended.
+   *
+   * <p>Implementations should not throw exceptions; any that are
+   * thrown are logged and otherwise ignored.</p>
+   *
+   * @param span the {@link Span}; must not be {@code null}
+   */
+  public void export(final Span span);
+
+  /**
+   * Releases any resources held by this {@link SpanExporter}.
+   *
+   * <p>The default implementation does nothing.</p>
+   */
+  @Override
+  public default void close() {
+    // Nothing to release.
+  }
+
+}
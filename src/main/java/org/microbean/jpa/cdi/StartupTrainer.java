@@ -0,0 +1,277 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+import javax.enterprise.context.spi.CreationalContext;
+
+import javax.enterprise.inject.Any;
+
+import javax.enterprise.inject.se.SeContainer;
+import javax.enterprise.inject.se.SeContainerInitializer;
+
+import javax.enterprise.inject.spi.Bean;
+import javax.enterprise.inject.spi.BeanManager;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.NamedNativeQueries;
+import javax.persistence.NamedNativeQuery;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+
+import javax.persistence.spi.PersistenceUnitInfo;
+
+/**
+ * A program that boots a CDI SE container with the {@link
+ * JpaExtension}, builds the {@link EntityManagerFactory} of every
+ * persistence unit and prepares every named query, and then exits
+ * cleanly, for the purpose of recording the classes that startup
+ * loads into a class data sharing (AppCDS) archive.
+ *
+ * <p>JAXB, StAX, the persistence provider and entity classes account
+ * for a large share of the classes loaded while such an application
+ * starts.  Training produces an archive that a production JVM can map
+ * with {@code -XX:SharedArchiveFile=<archive>} instead of loading and
+ * verifying those classes one by one.</p>
+ *
+ * <p>Run with no arguments, this program simply performs the
+ * training workload, so it may be run under {@code
+ * -XX:DumpLoadedClassList=<file>} or, on JDK 13 and later, {@code
+ * -XX:ArchiveClassesAtExit=<archive>}.  Run with a single argument,
+ * it {@linkplain #createArchive(String, Path) creates an archive} at
+ * the path that argument denotes, using the current classpath.
+ * Application class data sharing requires JDK 10 or later, and only
+ * classes loaded from jar files (not directories) are archived.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see #train(BeanManager)
+ *
+ * @see #createArchive(String, Path)
+ */
+public final class StartupTrainer {
+
+
+  /*
+   * Constructors.
+   */
+
+
+  private StartupTrainer() {
+    super();
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Runs the training workload in a new CDI SE container or, if an
+   * archive path is supplied as the sole argument, {@linkplain
+   * #createArchive(String, Path) creates an archive} by running the
+   * training workload in child JVMs.
+   *
+   * @param arguments the command-line arguments; may be {@code null}
+   *
+   * @exception IOException if an archive could not be created
+   *
+   * @exception InterruptedException if the current thread was
+   * interrupted while waiting for a child JVM
+   */
+  public static final void main(final String[] arguments) throws IOException, InterruptedException {
+    if (arguments == null || arguments.length <= 0) {
+      final long start = System.nanoTime();
+      final int persistenceUnitCount;
+      try (final SeContainer container = SeContainerInitializer.newInstance().initialize()) {
+        persistenceUnitCount = train(container.getBeanManager());
+      }
+      System.out.println("Trained " + persistenceUnitCount + " persistence unit(s) in " +
+                         ((System.nanoTime() - start) / 1000000L) + " ms");
+    } else {
+      createArchive(System.getProperty("java.class.path"), Paths.get(arguments[0]));
+    }
+  }
+
+  /**
+   * Builds the {@link EntityManagerFactory} of every persistence unit
+   * known to the supplied {@link BeanManager}, touches its {@linkplain
+   * EntityManagerFactory#getMetamodel() metamodel}, and creates every
+   * named query declared on its managed classes.
+   *
+   * @param beanManager the {@link BeanManager} of a container in
+   * which the {@link JpaExtension} has run; must not be {@code null}
+   *
+   * @return the number of persistence units trained
+   *
+   * @exception NullPointerException if {@code beanManager} is {@code
+   * null}
+   *
+   * @exception javax.persistence.PersistenceException if a
+   * persistence unit or named query could not be built
+   */
+  public static final int train(final BeanManager beanManager) {
+    Objects.requireNonNull(beanManager);
+    int returnValue = 0;
+    final Set<Bean<?>> beans = beanManager.getBeans(PersistenceUnitInfo.class, Any.Literal.INSTANCE);
+    if (beans != null) {
+      for (final Bean<?> bean : beans) {
+        final CreationalContext<?> cc = beanManager.createCreationalContext(bean);
+        final PersistenceUnitInfo persistenceUnitInfo =
+          (PersistenceUnitInfo)beanManager.getReference(bean, PersistenceUnitInfo.class, cc);
+        String persistenceUnitName = persistenceUnitInfo.getPersistenceUnitName();
+        if (persistenceUnitName == null) {
+          persistenceUnitName = "";
+        }
+        final EntityManagerFactory entityManagerFactory = JpaExtension.getEntityManagerFactory(beanManager, persistenceUnitName);
+        entityManagerFactory.getMetamodel().getManagedTypes();
+        final EntityManager entityManager = entityManagerFactory.createEntityManager();
+        try {
+          for (final String namedQueryName : getNamedQueryNames(persistenceUnitInfo)) {
+            entityManager.createNamedQuery(namedQueryName);
+          }
+        } finally {
+          entityManager.close();
+        }
+        returnValue++;
+      }
+    }
+    return returnValue;
+  }
+
+  /**
+   * Creates an AppCDS archive at the supplied path by running the
+   * training workload in a child JVM under {@code
+   * -XX:DumpLoadedClassList} and then dumping the resulting class
+   * list with {@code -Xshare:dump}.
+   *
+   * <p>The class list is written next to the archive, with a {@code
+   * .classlist} suffix.</p>
+   *
+   * @param classpath the classpath of the child JVMs; must not be
+   * {@code null}; must contain the application, its persistence
+   * units and a CDI SE implementation
+   *
+   * @param archive the path of the archive to create; must not be
+   * {@code null}
+   *
+   * @return {@code archive}
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   *
+   * @exception IOException if a child JVM could not be started or
+   * failed
+   *
+   * @exception InterruptedException if the current thread was
+   * interrupted while waiting for a child JVM
+   */
+  public static final Path createArchive(final String classpath, final Path archive) throws IOException, InterruptedException {
+    Objects.requireNonNull(classpath);
+    Objects.requireNonNull(archive);
+    final Path absoluteArchive = archive.toAbsolutePath();
+    final Path classList = absoluteArchive.resolveSibling(absoluteArchive.getFileName() + ".classlist");
+    run(java("-XX:DumpLoadedClassList=" + classList, "-cp", classpath, StartupTrainer.class.getName()));
+    run(java("-Xshare:dump",
+             "-XX:SharedClassListFile=" + classList,
+             "-XX:SharedArchiveFile=" + absoluteArchive,
+             "-cp", classpath));
+    return absoluteArchive;
+  }
+
+  /**
+   * Returns a {@link List} consisting of the path to the {@code java}
+   * executable of the current JVM followed by the supplied arguments.
+   *
+   * @param arguments the arguments; must not be {@code null}
+   *
+   * @return a non-{@code null} {@link List} suitable for supplying
+   * to a {@link ProcessBuilder}
+   */
+  static final List<String> java(final String... arguments) {
+    final List<String> returnValue = new ArrayList<>(arguments.length + 1);
+    returnValue.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+    for (final String argument : arguments) {
+      returnValue.add(argument);
+    }
+    return returnValue;
+  }
+
+  private static final void run(final List<String> command) throws IOException, InterruptedException {
+    assert command != null;
+    final int exitValue = new ProcessBuilder(command).inheritIO().start().waitFor();
+    if (exitValue != 0) {
+      throw new IOException("Exit value " + exitValue + ": " + command);
+    }
+  }
+
+  private static final Collection<String> getNamedQueryNames(final PersistenceUnitInfo persistenceUnitInfo) {
+    assert persistenceUnitInfo != null;
+    final Collection<String> returnValue = new ArrayList<>();
+    final Collection<? extends String> managedClassNames = persistenceUnitInfo.getManagedClassNames();
+    if (managedClassNames != null) {
+      ClassLoader classLoader = persistenceUnitInfo.getClassLoader();
+      if (classLoader == null) {
+        classLoader = Thread.currentThread().getContextClassLoader();
+      }
+      for (final String managedClassName : managedClassNames) {
+        final Class<?> managedClass;
+        try {
+          managedClass = Class.forName(managedClassName, false, classLoader);
+        } catch (final ClassNotFoundException classNotFoundException) {
+          continue;
+        }
+        final NamedQuery namedQuery = managedClass.getAnnotation(NamedQuery.class);
+        if (namedQuery != null) {
+          returnValue.add(namedQuery.name());
+        }
+        final NamedQueries namedQueries = managedClass.getAnnotation(NamedQueries.class);
+        if (namedQueries != null) {
+          for (final NamedQuery q : namedQueries.value()) {
+            returnValue.add(q.name());
+          }
+        }
+        final NamedNativeQuery namedNativeQuery = managedClass.getAnnotation(NamedNativeQuery.class);
+        if (namedNativeQuery != null) {
+          returnValue.add(namedNativeQuery.name());
+        }
+        final NamedNativeQueries namedNativeQueries = managedClass.getAnnotation(NamedNativeQueries.class);
+        if (namedNativeQueries != null) {
+          for (final NamedNativeQuery q : namedNativeQueries.value()) {
+            returnValue.add(q.name());
+          }
+        }
+      }
+    }
+    return returnValue;
+  }
+
+}
@@ -0,0 +1,391 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An immutable summary of the SQL statements issued during a single
+ * transaction against a persistence unit, grouped by normalized SQL
+ * shape, together with any {@linkplain Finding findings} of likely
+ * N+1 select patterns.
+ *
+ * <p>When a persistence unit's properties contain a property named
+ * {@value #ENABLED_PROPERTY_NAME} whose value is {@code true}, the
+ * {@link JpaExtension} routes the persistence unit's {@link
+ * javax.sql.DataSource}s through a {@link
+ * StatementStatisticsDataSource}, fires an instance of this class as
+ * a CDI event qualified with the {@linkplain javax.inject.Named name}
+ * of the persistence unit when each transaction completes, and logs
+ * any findings.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see StatementStatisticsDataSource
+ */
+public final class StatementStatistics {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  /**
+   * The name of the persistence unit property that, if set to {@code
+   * true}, turns on statement statistics and N+1 detection for that
+   * persistence unit.
+   */
+  public static final String ENABLED_PROPERTY_NAME = "org.microbean.jpa.cdi.statementStatistics";
+
+  /**
+   * The name of the persistence unit property whose value is the
+   * number of times a single-row select of the same shape must be
+   * issued in one transaction before it is reported as a likely N+1
+   * pattern.
+   *
+   * @see #DEFAULT_THRESHOLD
+   */
+  public static final String THRESHOLD_PROPERTY_NAME = "org.microbean.jpa.cdi.statementStatistics.nPlusOneThreshold";
+
+  /**
+   * The default N+1 threshold ({@value}).
+   *
+   * @see #THRESHOLD_PROPERTY_NAME
+   */
+  public static final int DEFAULT_THRESHOLD = 5;
+
+  private static final Pattern STRING_LITERAL_PATTERN = Pattern.compile("'(?:[^']|'')*'");
+
+  private static final Pattern NUMERIC_LITERAL_PATTERN = Pattern.compile("\\b\\d+(?:\\.\\d+)?\\b");
+
+  private static final Pattern IN_LIST_PATTERN = Pattern.compile("(?i)\\bIN\\s*\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\)");
+
+  private static final Pattern WHITESPACE_PATTERN = Pattern.compile("\\s+");
+
+  private static final Pattern SINGLE_ROW_SELECT_PATTERN =
+    Pattern.compile("(?is)^\\s*SELECT\\b.*\\bWHERE\\b.*=\\s*\\?.*");
+
+  private static final Pattern TABLE_PATTERN = Pattern.compile("(?i)\\bFROM\\s+([\\w.\"`]+)");
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final String persistenceUnitName;
+
+  private final Map<String, Integer> countsByShape;
+
+  private final int statementCount;
+
+  private final List<Finding> findings;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link StatementStatistics}.
+   *
+   * @param persistenceUnitName the name of the persistence unit; may
+   * be {@code null}
+   *
+   * @param countsByShape a {@link Map} of statement counts indexed by
+   * normalized SQL shape; must not be {@code null}; copied
+   *
+   * @param findings a {@link List} of {@link Finding}s; must not be
+   * {@code null}; copied
+   *
+   * @exception NullPointerException if {@code countsByShape} or
+   * {@code findings} is {@code null}
+   */
+  public StatementStatistics(final String persistenceUnitName,
+                             final Map<? extends String, ? extends Integer> countsByShape,
+                             final List<? extends Finding> findings) {
+    super();
+    this.persistenceUnitName = persistenceUnitName;
+    this.countsByShape = Collections.unmodifiableMap(new LinkedHashMap<>(countsByShape));
+    int statementCount = 0;
+    for (final Integer count : this.countsByShape.values()) {
+      statementCount += count.intValue();
+    }
+    this.statementCount = statementCount;
+    this.findings = Collections.unmodifiableList(new ArrayList<>(findings));
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns the name of the persistence unit, or {@code null}.
+   *
+   * @return the name of the persistence unit, or {@code null}
+   */
+  public final String getPersistenceUnitName() {
+    return this.persistenceUnitName;
+  }
+
+  /**
+   * Returns an unmodifiable {@link Map} of statement counts indexed
+   * by normalized SQL shape, in the order in which each shape was
+   * first issued.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} unmodifiable {@link Map}
+   *
+   * @see #normalize(String)
+   */
+  public final Map<String, Integer> getCountsByShape() {
+    return this.countsByShape;
+  }
+
+  /**
+   * Returns the total number of statements issued.
+   *
+   * @return the total number of statements issued
+   */
+  public final int getStatementCount() {
+    return this.statementCount;
+  }
+
+  /**
+   * Returns an unmodifiable {@link List} of {@link Finding}s of
+   * likely N+1 select patterns.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} unmodifiable {@link List}
+   */
+  public final List<Finding> getFindings() {
+    return this.findings;
+  }
+
+  /**
+   * Returns a {@link String} representation of this {@link
+   * StatementStatistics}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link String}
+   */
+  @Override
+  public final String toString() {
+    return this.statementCount + " statement(s) in " + this.countsByShape.size() + " shape(s) against persistence unit " +
+      this.persistenceUnitName + "; " + this.findings.size() + " N+1 finding(s)";
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Returns the normalized shape of the supplied SQL statement:
+   * literals are replaced with {@code ?}, {@code IN} lists of
+   * parameters are collapsed to a single parameter and runs of
+   * whitespace are collapsed to a single space.
+   *
+   * @param sql the SQL statement; may be {@code null}
+   *
+   * @return the normalized shape, or {@code null} if {@code sql} is
+   * {@code null}
+   */
+  public static final String normalize(final String sql) {
+    if (sql == null) {
+      return null;
+    }
+    String returnValue = STRING_LITERAL_PATTERN.matcher(sql).replaceAll("?");
+    returnValue = NUMERIC_LITERAL_PATTERN.matcher(returnValue).replaceAll("?");
+    returnValue = IN_LIST_PATTERN.matcher(returnValue).replaceAll("IN (?)");
+    return WHITESPACE_PATTERN.matcher(returnValue).replaceAll(" ").trim();
+  }
+
+  /**
+   * Returns {@code true} if the supplied normalized SQL shape looks
+   * like a select of a single row (or of the rows of a single
+   * association) by key, which is the kind of statement a lazy load
+   * issues.
+   *
+   * @param shape a normalized SQL shape; may be {@code null}
+   *
+   * @return {@code true} if {@code shape} looks like a single-row
+   * select
+   */
+  static final boolean isSingleRowSelect(final String shape) {
+    return shape != null && SINGLE_ROW_SELECT_PATTERN.matcher(shape).matches() && !shape.contains("IN (?)");
+  }
+
+  /**
+   * Returns the first table named in the {@code FROM} clause of the
+   * supplied normalized SQL shape, or {@code null}.
+   *
+   * @param shape a normalized SQL shape; may be {@code null}
+   *
+   * @return a table name, or {@code null}
+   */
+  static final String getTableName(final String shape) {
+    if (shape == null) {
+      return null;
+    }
+    final Matcher matcher = TABLE_PATTERN.matcher(shape);
+    return matcher.find() ? matcher.group(1) : null;
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * A likely N+1 select pattern: a single-row select of one shape
+   * issued repeatedly within one transaction.
+   *
+   * @author <a href="https://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   */
+  public static final class Finding {
+
+    private final String shape;
+
+    private final int count;
+
+    private final String tableName;
+
+    private final String entityTypeName;
+
+    private final StackTraceElement callSite;
+
+    /**
+     * Creates a new {@link Finding}.
+     *
+     * @param shape the normalized SQL shape; must not be {@code null}
+     *
+     * @param count the number of times it was issued
+     *
+     * @param tableName the table it selects from; may be {@code null}
+     *
+     * @param entityTypeName the name of the entity type mapped to
+     * that table; may be {@code null}
+     *
+     * @param callSite the application stack frame that issued the
+     * statement; may be {@code null}
+     *
+     * @exception NullPointerException if {@code shape} is {@code
+     * null}
+     */
+    public Finding(final String shape,
+                   final int count,
+                   final String tableName,
+                   final String entityTypeName,
+                   final StackTraceElement callSite) {
+      super();
+      this.shape = Objects.requireNonNull(shape);
+      this.count = count;
+      this.tableName = tableName;
+      this.entityTypeName = entityTypeName;
+      this.callSite = callSite;
+    }
+
+    /**
+     * Returns the normalized SQL shape.
+     *
+     * <p>This method never returns {@code null}.</p>
+     *
+     * @return the non-{@code null} normalized SQL shape
+     */
+    public final String getShape() {
+      return this.shape;
+    }
+
+    /**
+     * Returns the number of times the statement was issued.
+     *
+     * @return the number of times the statement was issued
+     */
+    public final int getCount() {
+      return this.count;
+    }
+
+    /**
+     * Returns the name of the table the statement selects from, or
+     * {@code null}.
+     *
+     * @return a table name, or {@code null}
+     */
+    public final String getTableName() {
+      return this.tableName;
+    }
+
+    /**
+     * Returns the name of the entity type mapped to the table the
+     * statement selects from, or {@code null} if it could not be
+     * determined.
+     *
+     * @return an entity class name, or {@code null}
+     */
+    public final String getEntityTypeName() {
+      return this.entityTypeName;
+    }
+
+    /**
+     * Returns the first stack frame outside of persistence, JDBC and
+     * JDK infrastructure from which the statement was issued, or
+     * {@code null}.
+     *
+     * @return a {@link StackTraceElement}, or {@code null}
+     */
+    public final StackTraceElement getCallSite() {
+      return this.callSite;
+    }
+
+    /**
+     * Returns a {@link String} representation of this {@link
+     * Finding}.
+     *
+     * <p>This method never returns {@code null}.</p>
+     *
+     * @return a non-{@code null} {@link String}
+     */
+    @Override
+    public final String toString() {
+      return "Possible N+1 select: " + this.count + " x [" + this.shape + "]" +
+        (this.entityTypeName == null ? (this.tableName == null ? "" : " on table " + this.tableName) : " loading " + this.entityTypeName) +
+        (this.callSite == null ? "" : " at " + this.callSite);
+    }
+
+  }
+
+}
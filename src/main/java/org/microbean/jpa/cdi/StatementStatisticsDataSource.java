@@ -0,0 +1,540 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.io.PrintWriter;
+
+import java.lang.reflect.Method;
+
+import java.net.URL;
+
+import java.security.CodeSource;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+/**
+ * A {@link DataSource} that counts the SQL statements each
+ * transaction issues, grouped by {@linkplain
+ * StatementStatistics#normalize(String) normalized shape}, flags
+ * repeated single-row selects that indicate lazy-loading N+1
+ * patterns, and reports a {@link StatementStatistics} to a {@link
+ * Consumer} when each transaction ends.
+ *
+ * <p>A transaction ends when the JTA transaction that was active
+ * when its first statement was issued completes, or, outside of JTA,
+ * when a {@link Connection} obtained from this {@link DataSource} is
+ * {@linkplain Connection#commit() committed} or {@linkplain
+ * Connection#rollback() rolled back}, or when the last such {@link
+ * Connection} open on the current thread is closed in auto-commit
+ * mode.</p>
+ *
+ * <p>Findings are also logged at {@link Level#WARNING} to a {@link
+ * Logger} named after this class.</p>
+ *
+ * <p>This class is a diagnostic aid intended for integration tests
+ * and is not tuned for production use.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see StatementStatistics
+ */
+public class StatementStatisticsDataSource implements DataSource {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  private static final Logger logger = Logger.getLogger(StatementStatisticsDataSource.class.getName());
+
+  // Includes java.lang.reflect, com.sun.proxy and jdk.proxy.
+  private static final String[] INFRASTRUCTURE_CLASS_NAME_PREFIXES = {
+    "java.",
+    "javax.",
+    "jdk.",
+    "sun.",
+    "com.sun.",
+    "org.eclipse.persistence.",
+    "org.hibernate.",
+    "org.h2.",
+    "com.zaxxer.",
+    "com.arjuna.",
+    "org.jboss.weld.",
+    "net.bytebuddy."
+  };
+
+  private static final String LIBRARY_PACKAGE_PREFIX = StatementStatisticsDataSource.class.getPackage().getName() + ".";
+
+  private static final String LIBRARY_LOCATION = getLocation(StatementStatisticsDataSource.class);
+
+  private static final ConcurrentMap<String, Boolean> libraryClassNames = new ConcurrentHashMap<>();
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final DataSource delegate;
+
+  private final String persistenceUnitName;
+
+  private final int threshold;
+
+  private final TransactionManager transactionManager;
+
+  private final Function<? super String, ? extends String> entityTypeNameResolver;
+
+  private final Consumer<? super StatementStatistics> listener;
+
+  private final ThreadLocal<Collector> collector;
+
+  // Keyed by Transaction, not by thread: a transaction may complete,
+  // and so be reported, on a thread other than the one that issued
+  // its statements.
+  private final ConcurrentMap<Transaction, Collector> jtaCollectors;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link StatementStatisticsDataSource}.
+   *
+   * @param delegate the {@link DataSource} to wrap; must not be
+   * {@code null}
+   *
+   * @param persistenceUnitName the name of the persistence unit
+   * being observed; may be {@code null}
+   *
+   * @param threshold the number of times a single-row select of one
+   * shape must be issued in one transaction to be reported; must be
+   * greater than {@code 1}
+   *
+   * @param transactionManager the {@link TransactionManager} used to
+   * detect JTA transaction boundaries; may be {@code null}
+   *
+   * @param entityTypeNameResolver a {@link Function} that returns the
+   * name of the entity type mapped to a given table name, or {@code
+   * null}; may be {@code null}
+   *
+   * @param listener a {@link Consumer} that receives a {@link
+   * StatementStatistics} when each transaction that issued at least
+   * one statement ends; may be {@code null}
+   *
+   * @exception NullPointerException if {@code delegate} is {@code
+   * null}
+   *
+   * @exception IllegalArgumentException if {@code threshold} is less
+   * than {@code 2}
+   */
+  public StatementStatisticsDataSource(final DataSource delegate,
+                                       final String persistenceUnitName,
+                                       final int threshold,
+                                       final TransactionManager transactionManager,
+                                       final Function<? super String, ? extends String> entityTypeNameResolver,
+                                       final Consumer<? super StatementStatistics> listener) {
+    super();
+    this.delegate = Objects.requireNonNull(delegate);
+    if (threshold < 2) {
+      throw new IllegalArgumentException("threshold < 2: " + threshold);
+    }
+    this.persistenceUnitName = persistenceUnitName;
+    this.threshold = threshold;
+    this.transactionManager = transactionManager;
+    this.entityTypeNameResolver = entityTypeNameResolver;
+    this.listener = listener;
+    this.collector = new ThreadLocal<>();
+    this.jtaCollectors = new ConcurrentHashMap<>();
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  @Override
+  public Connection getConnection() throws SQLException {
+    return this.wrap(this.delegate.getConnection());
+  }
+
+  @Override
+  public Connection getConnection(final String username, final String password) throws SQLException {
+    return this.wrap(this.delegate.getConnection(username, password));
+  }
+
+  @Override
+  public PrintWriter getLogWriter() throws SQLException {
+    return this.delegate.getLogWriter();
+  }
+
+  @Override
+  public void setLogWriter(final PrintWriter out) throws SQLException {
+    this.delegate.setLogWriter(out);
+  }
+
+  @Override
+  public void setLoginTimeout(final int seconds) throws SQLException {
+    this.delegate.setLoginTimeout(seconds);
+  }
+
+  @Override
+  public int getLoginTimeout() throws SQLException {
+    return this.delegate.getLoginTimeout();
+  }
+
+  @Override
+  public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+    return this.delegate.getParentLogger();
+  }
+
+  @Override
+  public <T> T unwrap(final Class<T> iface) throws SQLException {
+    if (iface != null && iface.isInstance(this)) {
+      return iface.cast(this);
+    }
+    return this.delegate.unwrap(iface);
+  }
+
+  @Override
+  public boolean isWrapperFor(final Class<?> iface) throws SQLException {
+    return (iface != null && iface.isInstance(this)) || this.delegate.isWrapperFor(iface);
+  }
+
+  private final Connection wrap(final Connection connection) {
+    if (connection == null) {
+      return null;
+    }
+    this.getCollector().openConnections++;
+    return Proxies.newProxyInstance(StatementStatisticsDataSource.class.getClassLoader(),
+                                    Connection.class,
+                                    (proxy, method, arguments) -> {
+                                      switch (method.getName()) {
+                                      case "close":
+                                        return this.close(connection, method, arguments);
+                                      case "commit":
+                                      case "rollback":
+                                        final Object returnValue = Proxies.invoke(connection, method, arguments);
+                                        if (method.getParameterCount() == 0) {
+                                          this.endLocalTransaction();
+                                        }
+                                        return returnValue;
+                                      case "createStatement":
+                                      case "prepareStatement":
+                                      case "prepareCall":
+                                        return this.wrap((Statement)Proxies.invoke(connection, method, arguments),
+                                                         method.getReturnType(),
+                                                         arguments == null || arguments.length <= 0 ? null : (String)arguments[0]);
+                                      default:
+                                        return Proxies.invoke(connection, method, arguments);
+                                      }
+                                    });
+  }
+
+  private final Object close(final Connection connection, final Method method, final Object[] arguments) throws Throwable {
+    boolean autoCommit;
+    try {
+      autoCommit = connection.isClosed() || connection.getAutoCommit();
+    } catch (final SQLException sqlException) {
+      autoCommit = true;
+    }
+    try {
+      return Proxies.invoke(connection, method, arguments);
+    } finally {
+      final Collector collector = this.collector.get();
+      if (collector != null && --collector.openConnections <= 0 && autoCommit) {
+        this.end(collector);
+      }
+    }
+  }
+
+  private final Statement wrap(final Statement statement, final Class<?> type, final String sql) {
+    if (statement == null) {
+      return null;
+    }
+    final Class<?> interfaceType;
+    if (CallableStatement.class.isAssignableFrom(type)) {
+      interfaceType = CallableStatement.class;
+    } else if (PreparedStatement.class.isAssignableFrom(type)) {
+      interfaceType = PreparedStatement.class;
+    } else {
+      interfaceType = Statement.class;
+    }
+    return (Statement)Proxies.newProxyInstance(StatementStatisticsDataSource.class.getClassLoader(),
+                                               interfaceType,
+                                               (proxy, method, arguments) -> {
+                                                 final String name = method.getName();
+                                                 // Batched statements are counted as they are added.
+                                                 if ("addBatch".equals(name) || (name.startsWith("execute") && !"executeBatch".equals(name))) {
+                                                   if (arguments != null && arguments.length > 0 && arguments[0] instanceof String) {
+                                                     this.record((String)arguments[0]);
+                                                   } else if (sql != null) {
+                                                     this.record(sql);
+                                                   }
+                                                 }
+                                                 return Proxies.invoke(statement, method, arguments);
+                                               });
+  }
+
+  private final Collector getCollector() {
+    Collector returnValue = this.collector.get();
+    if (returnValue == null) {
+      returnValue = new Collector();
+      this.collector.set(returnValue);
+    }
+    return returnValue;
+  }
+
+  private final void record(final String sql) {
+    Collector collector = this.getJtaCollector();
+    if (collector == null) {
+      collector = this.getCollector();
+    }
+    final String shape = StatementStatistics.normalize(sql);
+    synchronized (collector) {
+      final int count = collector.countsByShape.merge(shape, Integer.valueOf(1), Integer::sum).intValue();
+      if (count == this.threshold && StatementStatistics.isSingleRowSelect(shape)) {
+        collector.callSites.put(shape, getCallSite());
+      }
+    }
+  }
+
+  /**
+   * Returns the {@link Collector} for the active JTA transaction,
+   * creating it and arranging for it to be {@linkplain
+   * #end(Collector) ended} when that transaction completes if
+   * necessary, or {@code null} if there is no active JTA transaction.
+   */
+  private final Collector getJtaCollector() {
+    if (this.transactionManager == null) {
+      return null;
+    }
+    try {
+      final Transaction transaction = this.transactionManager.getTransaction();
+      if (transaction == null || transaction.getStatus() != Status.STATUS_ACTIVE) {
+        return null;
+      }
+      Collector returnValue = this.jtaCollectors.get(transaction);
+      if (returnValue == null) {
+        final Collector collector = new Collector();
+        returnValue = this.jtaCollectors.putIfAbsent(transaction, collector);
+        if (returnValue == null) {
+          returnValue = collector;
+          try {
+            transaction.registerSynchronization(new Synchronization() {
+                @Override
+                public final void beforeCompletion() {
+                }
+
+                @Override
+                public final void afterCompletion(final int status) {
+                  // Possibly on another thread.
+                  jtaCollectors.remove(transaction, collector);
+                  end(collector);
+                }
+              });
+          } catch (final IllegalStateException | RollbackException | SystemException exception) {
+            this.jtaCollectors.remove(transaction, collector);
+            throw exception;
+          }
+        }
+      }
+      return returnValue;
+    } catch (final IllegalStateException | RollbackException | SystemException exception) {
+      logger.log(Level.FINE, exception.getMessage(), exception);
+      return null;
+    }
+  }
+
+  private final void endLocalTransaction() {
+    final Collector collector = this.collector.get();
+    if (collector != null) {
+      final int openConnections = collector.openConnections;
+      this.end(collector);
+      // The connection is still open.
+      this.getCollector().openConnections = openConnections;
+    }
+  }
+
+  private final void end(final Collector collector) {
+    assert collector != null;
+    if (this.collector.get() == collector) {
+      this.collector.remove();
+    }
+    final List<StatementStatistics.Finding> findings = new ArrayList<>();
+    final StatementStatistics statistics;
+    synchronized (collector) {
+      if (collector.countsByShape.isEmpty()) {
+        return;
+      }
+      for (final Entry<String, Integer> entry : collector.countsByShape.entrySet()) {
+        final String shape = entry.getKey();
+        final int count = entry.getValue().intValue();
+        if (count >= this.threshold && StatementStatistics.isSingleRowSelect(shape)) {
+          final String tableName = StatementStatistics.getTableName(shape);
+          final String entityTypeName =
+            tableName == null || this.entityTypeNameResolver == null ? null : this.entityTypeNameResolver.apply(tableName);
+          findings.add(new StatementStatistics.Finding(shape, count, tableName, entityTypeName, collector.callSites.get(shape)));
+        }
+      }
+      statistics = new StatementStatistics(this.persistenceUnitName, collector.countsByShape, findings);
+    }
+    if (!findings.isEmpty() && logger.isLoggable(Level.WARNING)) {
+      for (final StatementStatistics.Finding finding : findings) {
+        logger.logp(Level.WARNING, this.getClass().getName(), "end", "{0}: {1}", new Object[] { this.persistenceUnitName, finding });
+      }
+    }
+    if (this.listener != null) {
+      this.listener.accept(statistics);
+    }
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  private static final StackTraceElement getCallSite() {
+    for (final StackTraceElement element : Thread.currentThread().getStackTrace()) {
+      final String className = element.getClassName();
+      if (!isInfrastructure(className)) {
+        return element;
+      }
+    }
+    return null;
+  }
+
+  private static final boolean isInfrastructure(final String className) {
+    if (className.contains("$Proxy") || className.contains("$$Lambda$")) {
+      return true;
+    }
+    for (final String prefix : INFRASTRUCTURE_CLASS_NAME_PREFIXES) {
+      if (className.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return className.startsWith(LIBRARY_PACKAGE_PREFIX) &&
+      libraryClassNames.computeIfAbsent(className, StatementStatisticsDataSource::isLibraryClass).booleanValue();
+  }
+
+  /**
+   * Returns {@link Boolean#TRUE} if the class with the supplied name
+   * is part of this library, i.e. was loaded from the same location
+   * as this class, and so is never an application call site, no
+   * matter which feature's wrapper or lambda it is.
+   *
+   * <p>Application classes that merely share this library's package
+   * are loaded from elsewhere and are not considered part of it.</p>
+   */
+  private static final Boolean isLibraryClass(final String className) {
+    assert className != null;
+    final int nestedIndex = className.indexOf('$');
+    final String topLevelClassName = nestedIndex < 0 ? className : className.substring(0, nestedIndex);
+    ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+    if (classLoader == null) {
+      classLoader = StatementStatisticsDataSource.class.getClassLoader();
+    }
+    Class<?> c;
+    try {
+      c = Class.forName(topLevelClassName, false, classLoader);
+    } catch (final ClassNotFoundException | LinkageError error) {
+      try {
+        c = Class.forName(topLevelClassName, false, StatementStatisticsDataSource.class.getClassLoader());
+      } catch (final ClassNotFoundException | LinkageError error2) {
+        // Not loadable by name, so not an application class either.
+        return Boolean.TRUE;
+      }
+    }
+    return Boolean.valueOf(Objects.equals(LIBRARY_LOCATION, getLocation(c)));
+  }
+
+  private static final String getLocation(final Class<?> c) {
+    assert c != null;
+    final CodeSource codeSource = c.getProtectionDomain().getCodeSource();
+    final URL location = codeSource == null ? null : codeSource.getLocation();
+    // Compare URLs as strings; URL#equals() may resolve host names.
+    return location == null ? null : location.toExternalForm();
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * Statement statistics for a transaction in progress, held either
+   * per thread for a local transaction or per {@link Transaction} for
+   * a JTA transaction.
+   *
+   * @author <a href="https://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   */
+  private static final class Collector {
+
+    private final Map<String, Integer> countsByShape;
+
+    private final Map<String, StackTraceElement> callSites;
+
+    private int openConnections;
+
+    private Collector() {
+      super();
+      this.countsByShape = new LinkedHashMap<>();
+      this.callSites = new HashMap<>();
+    }
+
+  }
+
+}
@@ -0,0 +1,527 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import java.util.function.Consumer;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link CacheInvalidationTransport} that sends each message as a
+ * length-prefixed frame over a persistent TCP connection to each of a
+ * fixed set of peers.
+ *
+ * <p>{@link #send(byte[])} never blocks on the network: it places
+ * the message on a bounded queue for each peer, which a daemon thread
+ * of that peer's drains.  If a peer's queue is full, because the peer
+ * is slow or unreachable, the message is dropped for that peer and
+ * {@linkplain #getDroppedMessageCount() counted}.  A dead peer
+ * therefore never delays the transactions whose invalidations are
+ * being sent.</p>
+ *
+ * <p>Connections to peers are opened when the first message is sent,
+ * within a connect timeout, and re-opened once, per message, if they
+ * have failed.  A write that does not complete within a write timeout
+ * closes its connection.  A peer that is down when a message is sent
+ * misses that message.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see CacheCoordination
+ *
+ * @see UdpCacheInvalidationTransport
+ */
+public class TcpCacheInvalidationTransport implements CacheInvalidationTransport {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  /**
+   * The maximum length of a frame ({@value}).
+   *
+   * <p>Longer frames are assumed to be corrupt and cause the
+   * connection that carried them to be closed.</p>
+   */
+  public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+  /**
+   * The default number of milliseconds within which a connection to a
+   * peer must be established ({@value}).
+   */
+  public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 1000;
+
+  /**
+   * The default number of milliseconds within which a message must
+   * be written to a peer before its connection is closed ({@value}).
+   */
+  public static final long DEFAULT_WRITE_TIMEOUT_MILLIS = 1000L;
+
+  /**
+   * The default number of messages that may wait to be sent to each
+   * peer ({@value}).
+   */
+  public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+  private static final Logger logger = Logger.getLogger(TcpCacheInvalidationTransport.class.getName());
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final InetSocketAddress bindAddress;
+
+  private final List<Peer> peers;
+
+  private final Set<Socket> acceptedSockets;
+
+  private final int connectTimeoutMillis;
+
+  private final long writeTimeoutMillis;
+
+  private final ScheduledThreadPoolExecutor writeTimer;
+
+  private volatile ServerSocket serverSocket;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link TcpCacheInvalidationTransport} with a
+   * {@linkplain #DEFAULT_CONNECT_TIMEOUT_MILLIS default connect
+   * timeout}, a {@linkplain #DEFAULT_WRITE_TIMEOUT_MILLIS default
+   * write timeout} and a {@linkplain #DEFAULT_QUEUE_CAPACITY default
+   * queue capacity}.
+   *
+   * @param bindAddress the address on which connections from peers
+   * will be accepted; must not be {@code null}
+   *
+   * @param peers the addresses of the peers to which messages will be
+   * sent; must not be {@code null}
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   */
+  public TcpCacheInvalidationTransport(final InetSocketAddress bindAddress, final Collection<? extends InetSocketAddress> peers) {
+    this(bindAddress, peers, DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_WRITE_TIMEOUT_MILLIS, DEFAULT_QUEUE_CAPACITY);
+  }
+
+  /**
+   * Creates a new {@link TcpCacheInvalidationTransport}.
+   *
+   * @param bindAddress the address on which connections from peers
+   * will be accepted; must not be {@code null}
+   *
+   * @param peers the addresses of the peers to which messages will be
+   * sent; must not be {@code null}
+   *
+   * @param connectTimeoutMillis the number of milliseconds within
+   * which a connection to a peer must be established; must be greater
+   * than {@code 0}
+   *
+   * @param writeTimeoutMillis the number of milliseconds within which
+   * a message must be written to a peer before its connection is
+   * closed; must be greater than {@code 0}
+   *
+   * @param queueCapacity the number of messages that may wait to be
+   * sent to each peer; must be greater than {@code 0}
+   *
+   * @exception NullPointerException if {@code bindAddress} or {@code
+   * peers} is {@code null}
+   *
+   * @exception IllegalArgumentException if {@code
+   * connectTimeoutMillis}, {@code writeTimeoutMillis} or {@code
+   * queueCapacity} is less than {@code 1}
+   */
+  public TcpCacheInvalidationTransport(final InetSocketAddress bindAddress,
+                                       final Collection<? extends InetSocketAddress> peers,
+                                       final int connectTimeoutMillis,
+                                       final long writeTimeoutMillis,
+                                       final int queueCapacity) {
+    super();
+    this.bindAddress = Objects.requireNonNull(bindAddress);
+    if (connectTimeoutMillis < 1) {
+      throw new IllegalArgumentException("connectTimeoutMillis < 1: " + connectTimeoutMillis);
+    }
+    if (writeTimeoutMillis < 1L) {
+      throw new IllegalArgumentException("writeTimeoutMillis < 1: " + writeTimeoutMillis);
+    }
+    if (queueCapacity < 1) {
+      throw new IllegalArgumentException("queueCapacity < 1: " + queueCapacity);
+    }
+    this.connectTimeoutMillis = connectTimeoutMillis;
+    this.writeTimeoutMillis = writeTimeoutMillis;
+    final List<Peer> list = new ArrayList<>(peers.size());
+    for (final InetSocketAddress peer : peers) {
+      list.add(new Peer(peer, queueCapacity));
+    }
+    this.peers = Collections.unmodifiableList(list);
+    this.acceptedSockets = ConcurrentHashMap.newKeySet();
+    this.writeTimer = new ScheduledThreadPoolExecutor(1, runnable -> {
+        final Thread thread = new Thread(runnable, "TcpCacheInvalidationTransport-writeTimer-" + bindAddress);
+        thread.setDaemon(true);
+        return thread;
+      });
+    this.writeTimer.setRemoveOnCancelPolicy(true);
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Binds a {@link ServerSocket} to the bind address supplied at
+   * construction time, starts a daemon thread that accepts
+   * connections from peers, each of which is read by its own daemon
+   * thread, and starts a daemon thread for each peer that sends it
+   * queued messages.
+   *
+   * @param receiver the {@link Consumer} that will receive messages;
+   * must not be {@code null}
+   *
+   * @exception NullPointerException if {@code receiver} is {@code
+   * null}
+   *
+   * @exception IOException if the server socket could not be bound
+   */
+  @Override
+  public void start(final Consumer<? super byte[]> receiver) throws IOException {
+    Objects.requireNonNull(receiver);
+    final ServerSocket serverSocket = new ServerSocket();
+    serverSocket.setReuseAddress(true);
+    serverSocket.bind(this.bindAddress);
+    this.serverSocket = serverSocket;
+    final Thread thread = new Thread(() -> this.accept(serverSocket, receiver), "TcpCacheInvalidationTransport-" + this.bindAddress);
+    thread.setDaemon(true);
+    thread.start();
+    for (final Peer peer : this.peers) {
+      final Thread sender = new Thread(() -> this.drain(peer), "TcpCacheInvalidationTransport-" + peer.address);
+      sender.setDaemon(true);
+      peer.sender = sender;
+      sender.start();
+    }
+  }
+
+  /**
+   * Queues the supplied message for each peer without blocking.
+   *
+   * <p>If a peer's queue is full, the message is dropped for that
+   * peer and {@linkplain #getDroppedMessageCount() counted}.</p>
+   *
+   * @param message the message; must not be {@code null}
+   *
+   * @exception NullPointerException if {@code message} is {@code
+   * null}
+   *
+   * @exception IOException if this {@link
+   * TcpCacheInvalidationTransport} has not been {@linkplain
+   * #start(Consumer) started}
+   */
+  @Override
+  public void send(final byte[] message) throws IOException {
+    Objects.requireNonNull(message);
+    if (this.serverSocket == null) {
+      throw new IOException("Not started");
+    }
+    for (final Peer peer : this.peers) {
+      if (!peer.queue.offer(message)) {
+        peer.dropped.increment();
+        if (logger.isLoggable(Level.FINE)) {
+          logger.log(Level.FINE, "Dropped a cache invalidation message for " + peer.address + "; its queue is full");
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the number of messages that have been dropped, summed
+   * over all peers, because a peer's queue was full.
+   *
+   * @return the number of dropped messages; never negative
+   */
+  public final long getDroppedMessageCount() {
+    long returnValue = 0L;
+    for (final Peer peer : this.peers) {
+      returnValue += peer.dropped.sum();
+    }
+    return returnValue;
+  }
+
+  /**
+   * Returns {@value #MAX_FRAME_SIZE}.
+   *
+   * @return {@value #MAX_FRAME_SIZE}
+   */
+  @Override
+  public int getMaxMessageSize() {
+    return MAX_FRAME_SIZE;
+  }
+
+  @Override
+  public void close() throws IOException {
+    final ServerSocket serverSocket = this.serverSocket;
+    this.serverSocket = null;
+    IOException exception = null;
+    if (serverSocket != null) {
+      try {
+        serverSocket.close();
+      } catch (final IOException ioException) {
+        exception = ioException;
+      }
+    }
+    for (final Socket socket : this.acceptedSockets) {
+      closeQuietly(socket);
+    }
+    this.acceptedSockets.clear();
+    for (final Peer peer : this.peers) {
+      peer.closed = true;
+      final Thread sender = peer.sender;
+      if (sender != null) {
+        sender.interrupt();
+      }
+      peer.close();
+    }
+    this.writeTimer.shutdownNow();
+    if (exception != null) {
+      throw exception;
+    }
+  }
+
+  private final void drain(final Peer peer) {
+    assert peer != null;
+    while (!peer.closed) {
+      final byte[] message;
+      try {
+        message = peer.queue.take();
+      } catch (final InterruptedException interruptedException) {
+        // close() was called.
+        break;
+      }
+      try {
+        peer.send(message, this.connectTimeoutMillis, this.writeTimer, this.writeTimeoutMillis);
+      } catch (final IOException ioException) {
+        if (!peer.closed && logger.isLoggable(Level.FINE)) {
+          logger.log(Level.FINE, "Could not send a cache invalidation message to " + peer.address, ioException);
+        }
+      }
+    }
+  }
+
+  private final void accept(final ServerSocket serverSocket, final Consumer<? super byte[]> receiver) {
+    assert serverSocket != null;
+    assert receiver != null;
+    while (!serverSocket.isClosed()) {
+      final Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch (final IOException ioException) {
+        // The server socket was closed.
+        break;
+      }
+      this.acceptedSockets.add(socket);
+      final Thread thread = new Thread(() -> {
+          try {
+            read(socket, receiver);
+          } finally {
+            this.acceptedSockets.remove(socket);
+            closeQuietly(socket);
+          }
+        }, "TcpCacheInvalidationTransport-" + socket.getRemoteSocketAddress());
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  private static final void read(final Socket socket, final Consumer<? super byte[]> receiver) {
+    assert socket != null;
+    assert receiver != null;
+    try {
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      while (true) {
+        final int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+          throw new IOException("Invalid frame length: " + length);
+        }
+        final byte[] message = new byte[length];
+        in.readFully(message);
+        try {
+          receiver.accept(message);
+        } catch (final RuntimeException runtimeException) {
+          if (logger.isLoggable(Level.WARNING)) {
+            logger.log(Level.WARNING, "Could not process a cache invalidation message", runtimeException);
+          }
+        }
+      }
+    } catch (final EOFException eofException) {
+      // The peer closed the connection.
+    } catch (final IOException ioException) {
+      if (!socket.isClosed() && logger.isLoggable(Level.FINE)) {
+        logger.log(Level.FINE, "Connection from " + socket.getRemoteSocketAddress() + " failed", ioException);
+      }
+    }
+  }
+
+  private static final void closeQuietly(final Socket socket) {
+    try {
+      socket.close();
+    } catch (final IOException ioException) {
+      // Nothing to do.
+    }
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * A peer of a {@link TcpCacheInvalidationTransport}, the messages
+   * waiting to be sent to it and the connection, if any, to it.
+   *
+   * @author <a href="https://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   */
+  private static final class Peer {
+
+    private final InetSocketAddress address;
+
+    private final BlockingQueue<byte[]> queue;
+
+    private final LongAdder dropped;
+
+    private volatile Thread sender;
+
+    private volatile boolean closed;
+
+    // Guarded by this.
+    private Socket socket;
+
+    // Guarded by this.
+    private DataOutputStream out;
+
+    private Peer(final InetSocketAddress address, final int queueCapacity) {
+      super();
+      this.address = Objects.requireNonNull(address);
+      this.queue = new ArrayBlockingQueue<>(queueCapacity);
+      this.dropped = new LongAdder();
+    }
+
+    private final synchronized void send(final byte[] message,
+                                         final int connectTimeoutMillis,
+                                         final ScheduledThreadPoolExecutor writeTimer,
+                                         final long writeTimeoutMillis)
+      throws IOException {
+      try {
+        this.write(message, connectTimeoutMillis, writeTimer, writeTimeoutMillis);
+      } catch (final IOException ioException) {
+        // The connection may have been closed by the peer since it
+        // was last used; reconnect once.
+        this.close();
+        this.write(message, connectTimeoutMillis, writeTimer, writeTimeoutMillis);
+      }
+    }
+
+    private final void write(final byte[] message,
+                             final int connectTimeoutMillis,
+                             final ScheduledThreadPoolExecutor writeTimer,
+                             final long writeTimeoutMillis)
+      throws IOException {
+      assert Thread.holdsLock(this);
+      if (this.socket == null) {
+        final Socket socket = new Socket();
+        try {
+          socket.setTcpNoDelay(true);
+          // Closing the socket discards unsent data at once instead
+          // of lingering.
+          socket.setSoLinger(true, 0);
+          socket.connect(this.address, connectTimeoutMillis);
+          this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        } catch (final IOException ioException) {
+          closeQuietly(socket);
+          throw ioException;
+        }
+        this.socket = socket;
+      }
+      // Blocking socket writes cannot time out on their own; closing
+      // the socket from another thread makes a stuck write fail.
+      final Socket socket = this.socket;
+      final ScheduledFuture<?> timeout = writeTimer.schedule(() -> closeQuietly(socket), writeTimeoutMillis, TimeUnit.MILLISECONDS);
+      try {
+        this.out.writeInt(message.length);
+        this.out.write(message);
+        this.out.flush();
+      } finally {
+        timeout.cancel(false);
+      }
+    }
+
+    private final synchronized void close() {
+      if (this.socket != null) {
+        closeQuietly(this.socket);
+        this.socket = null;
+        this.out = null;
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,658 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import javax.persistence.spi.PersistenceUnitInfo;
+
+import javax.sql.DataSource;
+
+/**
+ * A registry of persistence units, one per tenant, that are created
+ * at runtime from a template {@link PersistenceUnitInfoBean} and a
+ * tenant-specific {@link DataSource}, and whose {@link
+ * EntityManagerFactory} instances are created lazily and kept in a
+ * bounded, least-recently-used cache.
+ *
+ * <p>In a database-per-tenant deployment there may be thousands of
+ * tenants, and keeping the metadata and connection pool of every
+ * tenant's {@link EntityManagerFactory} in memory is not feasible.
+ * Instead, a tenant is {@linkplain #register(String, Supplier)
+ * registered} with a {@link Supplier} of its {@link DataSource}.  The
+ * first time an {@link EntityManager} is {@linkplain
+ * #createEntityManager(String) requested} for that tenant, a {@link
+ * DataSource} is obtained from the {@link Supplier}, a persistence
+ * unit is {@linkplain PersistenceUnitInfoBean#withDataSource(String,
+ * DataSource) derived} from the template and its {@link
+ * EntityManagerFactory} is created.  When more than the configured
+ * number of {@link EntityManagerFactory} instances are open, or when
+ * one has not been used for longer than the configured idle timeout,
+ * it is closed, as is its {@link DataSource} if that {@link
+ * DataSource} is {@link AutoCloseable}.  It will be recreated on
+ * demand.</p>
+ *
+ * <p>An {@link EntityManagerFactory} is never evicted while an {@link
+ * EntityManager} created by this class from it is still open, so the
+ * configured maximum is a target that may be exceeded briefly under
+ * load.  Idle {@link EntityManagerFactory} instances are evicted
+ * whenever an {@link EntityManager} is created, whenever {@link
+ * #evictIdle()} is called and, so that tenants that are no longer
+ * used do not hold on to their connection pools indefinitely, by a
+ * daemon thread that calls {@link #evictIdle()} every half idle
+ * timeout until this {@link TenantPersistenceUnits} is {@linkplain
+ * #close() closed}.</p>
+ *
+ * <p>The {@link JpaExtension} makes an instance of this class
+ * available as a bean qualified with the {@linkplain
+ * javax.inject.Named name} of every persistence unit it discovers,
+ * using that persistence unit as the template.  The persistence unit
+ * properties named {@value #MAX_ENTITY_MANAGER_FACTORIES_PROPERTY_NAME}
+ * and {@value #IDLE_TIMEOUT_PROPERTY_NAME} govern its behavior.</p>
+ *
+ * <p>Instances of this class are safe for concurrent use by multiple
+ * threads.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see #register(String, Supplier)
+ *
+ * @see #createEntityManager(String)
+ *
+ * @see PersistenceUnitInfoBean#withDataSource(String, DataSource)
+ */
+public class TenantPersistenceUnits implements AutoCloseable {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  /**
+   * The name of the persistence unit property whose value is the
+   * maximum number of tenant {@link EntityManagerFactory} instances
+   * that should be open at once.
+   *
+   * @see #DEFAULT_MAX_ENTITY_MANAGER_FACTORIES
+   */
+  public static final String MAX_ENTITY_MANAGER_FACTORIES_PROPERTY_NAME =
+    "org.microbean.jpa.cdi.tenants.maxEntityManagerFactories";
+
+  /**
+   * The default maximum number of tenant {@link
+   * EntityManagerFactory} instances that should be open at once
+   * ({@value}).
+   */
+  public static final int DEFAULT_MAX_ENTITY_MANAGER_FACTORIES = 100;
+
+  /**
+   * The name of the persistence unit property whose value is the
+   * number of milliseconds after which an unused tenant {@link
+   * EntityManagerFactory} is closed.
+   *
+   * @see #DEFAULT_IDLE_TIMEOUT_MILLIS
+   */
+  public static final String IDLE_TIMEOUT_PROPERTY_NAME = "org.microbean.jpa.cdi.tenants.idleTimeoutMillis";
+
+  /**
+   * The default number of milliseconds after which an unused tenant
+   * {@link EntityManagerFactory} is closed ({@value}).
+   */
+  public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 10L * 60L * 1000L;
+
+  private static final Logger logger = Logger.getLogger(TenantPersistenceUnits.class.getName());
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final PersistenceUnitInfoBean template;
+
+  private final Function<? super PersistenceUnitInfo, ? extends EntityManagerFactory> entityManagerFactoryFunction;
+
+  private final int maxEntityManagerFactories;
+
+  private final long idleTimeoutNanos;
+
+  private final ConcurrentMap<String, Tenant> tenants;
+
+  // Guarded by itself.  Iteration order is least recently used
+  // first.
+  private final LinkedHashMap<String, Tenant> openTenants;
+
+  private final ScheduledThreadPoolExecutor sweeper;
+
+  private volatile boolean closed;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link TenantPersistenceUnits}.
+   *
+   * @param template the {@link PersistenceUnitInfoBean} from which
+   * each tenant's persistence unit will be {@linkplain
+   * PersistenceUnitInfoBean#withDataSource(String, DataSource)
+   * derived}; must not be {@code null}
+   *
+   * @param entityManagerFactoryFunction a {@link Function} that
+   * creates an {@link EntityManagerFactory} for a {@link
+   * PersistenceUnitInfo}; must not be {@code null}
+   *
+   * @param maxEntityManagerFactories the maximum number of tenant
+   * {@link EntityManagerFactory} instances that should be open at
+   * once; must be greater than zero
+   *
+   * @param idleTimeoutMillis the number of milliseconds after which
+   * an unused tenant {@link EntityManagerFactory} is closed; must be
+   * greater than zero
+   *
+   * @exception NullPointerException if {@code template} or {@code
+   * entityManagerFactoryFunction} is {@code null}
+   *
+   * @exception IllegalArgumentException if {@code
+   * maxEntityManagerFactories} or {@code idleTimeoutMillis} is less
+   * than or equal to zero
+   */
+  public TenantPersistenceUnits(final PersistenceUnitInfoBean template,
+                                final Function<? super PersistenceUnitInfo, ? extends EntityManagerFactory> entityManagerFactoryFunction,
+                                final int maxEntityManagerFactories,
+                                final long idleTimeoutMillis) {
+    super();
+    this.template = Objects.requireNonNull(template);
+    this.entityManagerFactoryFunction = Objects.requireNonNull(entityManagerFactoryFunction);
+    if (maxEntityManagerFactories <= 0) {
+      throw new IllegalArgumentException("maxEntityManagerFactories <= 0: " + maxEntityManagerFactories);
+    }
+    if (idleTimeoutMillis <= 0L) {
+      throw new IllegalArgumentException("idleTimeoutMillis <= 0: " + idleTimeoutMillis);
+    }
+    this.maxEntityManagerFactories = maxEntityManagerFactories;
+    this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+    this.tenants = new ConcurrentHashMap<>();
+    this.openTenants = new LinkedHashMap<>(16, 0.75f, true);
+    this.sweeper = new ScheduledThreadPoolExecutor(1, runnable -> {
+        final Thread thread = new Thread(runnable, "microbean-jpa-cdi-tenants-" + template.getPersistenceUnitName());
+        thread.setDaemon(true);
+        return thread;
+      });
+    final long periodMillis = Math.max(1L, idleTimeoutMillis / 2L);
+    this.sweeper.scheduleWithFixedDelay(this::sweep, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Registers a tenant.
+   *
+   * <p>No {@link DataSource} is obtained and no {@link
+   * EntityManagerFactory} is created by this method.</p>
+   *
+   * @param tenantId the identifier of the tenant; must not be {@code
+   * null}
+   *
+   * @param dataSourceSupplier a {@link Supplier} of the tenant's
+   * {@link DataSource}, which will be invoked each time the tenant's
+   * {@link EntityManagerFactory} is (re-)created; must not be {@code
+   * null} and must not return {@code null}
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   *
+   * @exception IllegalArgumentException if a tenant with the supplied
+   * identifier is already registered
+   *
+   * @exception IllegalStateException if this {@link
+   * TenantPersistenceUnits} has been {@linkplain #close() closed}
+   *
+   * @see #getPersistenceUnitName(String)
+   */
+  public void register(final String tenantId, final Supplier<? extends DataSource> dataSourceSupplier) {
+    Objects.requireNonNull(tenantId);
+    Objects.requireNonNull(dataSourceSupplier);
+    if (this.closed) {
+      throw new IllegalStateException("closed");
+    }
+    final Tenant tenant = new Tenant(this.getPersistenceUnitName(tenantId), dataSourceSupplier);
+    if (this.tenants.putIfAbsent(tenantId, tenant) != null) {
+      throw new IllegalArgumentException("Tenant already registered: " + tenantId);
+    }
+  }
+
+  /**
+   * Unregisters the tenant identified by the supplied identifier,
+   * closing its {@link EntityManagerFactory} and {@link DataSource}
+   * if they are open, whether or not any {@link EntityManager}s
+   * created from it are still open.
+   *
+   * @param tenantId the identifier of the tenant; must not be {@code
+   * null}
+   *
+   * @return {@code true} if the tenant was registered
+   *
+   * @exception NullPointerException if {@code tenantId} is {@code
+   * null}
+   */
+  public boolean unregister(final String tenantId) {
+    Objects.requireNonNull(tenantId);
+    final Tenant tenant = this.tenants.remove(tenantId);
+    if (tenant == null) {
+      return false;
+    }
+    synchronized (this.openTenants) {
+      this.openTenants.remove(tenantId);
+    }
+    tenant.unregister();
+    return true;
+  }
+
+  /**
+   * Returns an unmodifiable {@link Set} of the identifiers of all
+   * registered tenants.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null}, unmodifiable {@link Set}
+   */
+  public Set<String> getTenantIds() {
+    return Collections.unmodifiableSet(this.tenants.keySet());
+  }
+
+  /**
+   * Returns the name of the persistence unit of the tenant with the
+   * supplied identifier, which is the name of the template
+   * persistence unit followed by a hyphen and the identifier.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param tenantId the identifier of the tenant; must not be {@code
+   * null}
+   *
+   * @return a non-{@code null} persistence unit name
+   *
+   * @exception NullPointerException if {@code tenantId} is {@code
+   * null}
+   */
+  public String getPersistenceUnitName(final String tenantId) {
+    Objects.requireNonNull(tenantId);
+    return this.template.getPersistenceUnitName() + "-" + tenantId;
+  }
+
+  /**
+   * Returns the number of tenant {@link EntityManagerFactory}
+   * instances that are currently open.
+   *
+   * @return the number of open tenant {@link EntityManagerFactory}
+   * instances
+   */
+  public int getOpenEntityManagerFactoryCount() {
+    synchronized (this.openTenants) {
+      return this.openTenants.size();
+    }
+  }
+
+  /**
+   * Creates a new {@link EntityManager} for the tenant with the
+   * supplied identifier, creating the tenant's {@link
+   * EntityManagerFactory} first if necessary.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * <p>The tenant's {@link EntityManagerFactory} will not be evicted
+   * until the returned {@link EntityManager} is {@linkplain
+   * EntityManager#close() closed}.</p>
+   *
+   * @param tenantId the identifier of a {@linkplain #register(String,
+   * Supplier) registered} tenant; must not be {@code null}
+   *
+   * @return a new, non-{@code null} {@link EntityManager}
+   *
+   * @exception NullPointerException if {@code tenantId} is {@code
+   * null}
+   *
+   * @exception IllegalArgumentException if no such tenant is
+   * registered
+   *
+   * @exception IllegalStateException if this {@link
+   * TenantPersistenceUnits} has been {@linkplain #close() closed}
+   *
+   * @see #createEntityManager(String, Map)
+   */
+  public EntityManager createEntityManager(final String tenantId) {
+    return this.createEntityManager(tenantId, null);
+  }
+
+  /**
+   * Creates a new {@link EntityManager} with the supplied properties
+   * for the tenant with the supplied identifier, creating the
+   * tenant's {@link EntityManagerFactory} first if necessary.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * <p>The tenant's {@link EntityManagerFactory} will not be evicted
+   * until the returned {@link EntityManager} is {@linkplain
+   * EntityManager#close() closed}.</p>
+   *
+   * @param tenantId the identifier of a {@linkplain #register(String,
+   * Supplier) registered} tenant; must not be {@code null}
+   *
+   * @param properties properties to supply to {@link
+   * EntityManagerFactory#createEntityManager(Map)}; may be {@code
+   * null}
+   *
+   * @return a new, non-{@code null} {@link EntityManager}
+   *
+   * @exception NullPointerException if {@code tenantId} is {@code
+   * null}
+   *
+   * @exception IllegalArgumentException if no such tenant is
+   * registered
+   *
+   * @exception IllegalStateException if this {@link
+   * TenantPersistenceUnits} has been {@linkplain #close() closed}
+   */
+  public EntityManager createEntityManager(final String tenantId, final Map<?, ?> properties) {
+    Objects.requireNonNull(tenantId);
+    if (this.closed) {
+      throw new IllegalStateException("closed");
+    }
+    final Tenant tenant = this.tenants.get(tenantId);
+    if (tenant == null) {
+      throw new IllegalArgumentException("Tenant not registered: " + tenantId);
+    }
+    final EntityManager returnValue = tenant.createEntityManager(this.template, this.entityManagerFactoryFunction, properties);
+    final Collection<Tenant> evictees;
+    synchronized (this.openTenants) {
+      // Also marks the tenant as most recently used.
+      this.openTenants.put(tenantId, tenant);
+      evictees = this.removeEvictees(tenant);
+    }
+    close(evictees);
+    return returnValue;
+  }
+
+  /**
+   * Closes every tenant {@link EntityManagerFactory}, and its {@link
+   * DataSource}, that has not been used for longer than the idle
+   * timeout supplied at construction time and that has no open
+   * {@link EntityManager}s.
+   *
+   * <p>This method is called periodically on a background thread;
+   * callers that want idle {@link EntityManagerFactory} instances
+   * closed sooner may also call it directly.</p>
+   *
+   * @return the number of tenant {@link EntityManagerFactory}
+   * instances closed
+   */
+  public int evictIdle() {
+    final Collection<Tenant> evictees;
+    synchronized (this.openTenants) {
+      evictees = this.removeEvictees(null);
+    }
+    return close(evictees);
+  }
+
+  private final void sweep() {
+    try {
+      this.evictIdle();
+    } catch (final RuntimeException runtimeException) {
+      // Keep sweeping; a failure to close one tenant's
+      // EntityManagerFactory should not stop the others from being
+      // closed later.
+      if (logger.isLoggable(Level.WARNING)) {
+        logger.log(Level.WARNING, "Could not evict idle tenant EntityManagerFactory instances", runtimeException);
+      }
+    }
+  }
+
+  // Must be called while holding the openTenants lock.
+  private final Collection<Tenant> removeEvictees(final Tenant exempt) {
+    assert Thread.holdsLock(this.openTenants);
+    Collection<Tenant> returnValue = null;
+    int excess = this.openTenants.size() - this.maxEntityManagerFactories;
+    final long now = System.nanoTime();
+    final Iterator<Tenant> iterator = this.openTenants.values().iterator();
+    while (iterator.hasNext()) {
+      final Tenant tenant = iterator.next();
+      if (excess <= 0 && now - tenant.lastUsedNanos < this.idleTimeoutNanos) {
+        // Everything after this tenant was used more recently.
+        break;
+      }
+      if (tenant != exempt && tenant.leases.get() <= 0) {
+        iterator.remove();
+        excess--;
+        if (returnValue == null) {
+          returnValue = new ArrayList<>();
+        }
+        returnValue.add(tenant);
+      }
+    }
+    return returnValue;
+  }
+
+  /**
+   * Closes this {@link TenantPersistenceUnits}, stopping the thread
+   * that evicts idle {@link EntityManagerFactory} instances, and
+   * {@linkplain #unregister(String) unregisters} every tenant.
+   */
+  @Override
+  public void close() {
+    this.closed = true;
+    this.sweeper.shutdownNow();
+    for (final String tenantId : new ArrayList<>(this.tenants.keySet())) {
+      this.unregister(tenantId);
+    }
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  private static final int close(final Collection<? extends Tenant> tenants) {
+    int returnValue = 0;
+    if (tenants != null) {
+      for (final Tenant tenant : tenants) {
+        // If an EntityManager was created meanwhile, the tenant has
+        // already been put back into openTenants by the thread that
+        // created it.
+        if (tenant.closeIfUnused()) {
+          returnValue++;
+        }
+      }
+    }
+    return returnValue;
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * A registered tenant and its lazily created {@link
+   * EntityManagerFactory} and {@link DataSource}.
+   *
+   * @author <a href="https://about.me/lairdnelson"
+   * target="_parent">Laird Nelson</a>
+   */
+  private static final class Tenant {
+
+    private final String persistenceUnitName;
+
+    private final Supplier<? extends DataSource> dataSourceSupplier;
+
+    private final AtomicInteger leases;
+
+    private volatile long lastUsedNanos;
+
+    // Guarded by this.
+    private EntityManagerFactory entityManagerFactory;
+
+    // Guarded by this.
+    private DataSource dataSource;
+
+    // Guarded by this.
+    private boolean unregistered;
+
+    private Tenant(final String persistenceUnitName, final Supplier<? extends DataSource> dataSourceSupplier) {
+      super();
+      this.persistenceUnitName = persistenceUnitName;
+      this.dataSourceSupplier = dataSourceSupplier;
+      this.leases = new AtomicInteger();
+      this.lastUsedNanos = System.nanoTime();
+    }
+
+    private final synchronized EntityManager createEntityManager(final PersistenceUnitInfoBean template,
+                                                                 final Function<? super PersistenceUnitInfo, ? extends EntityManagerFactory> entityManagerFactoryFunction,
+                                                                 final Map<?, ?> properties) {
+      if (this.unregistered) {
+        throw new IllegalStateException("Tenant unregistered: " + this.persistenceUnitName);
+      }
+      if (this.entityManagerFactory == null) {
+        final DataSource dataSource = this.dataSourceSupplier.get();
+        if (dataSource == null) {
+          throw new IllegalStateException("dataSourceSupplier.get() == null");
+        }
+        final EntityManagerFactory entityManagerFactory;
+        try {
+          entityManagerFactory = entityManagerFactoryFunction.apply(template.withDataSource(this.persistenceUnitName, dataSource));
+          if (entityManagerFactory == null) {
+            throw new IllegalStateException("entityManagerFactoryFunction.apply() == null");
+          }
+        } catch (final RuntimeException runtimeException) {
+          closeDataSource(dataSource, runtimeException);
+          throw runtimeException;
+        }
+        this.dataSource = dataSource;
+        this.entityManagerFactory = entityManagerFactory;
+      }
+      final EntityManager entityManager;
+      if (properties == null) {
+        entityManager = this.entityManagerFactory.createEntityManager();
+      } else {
+        entityManager = this.entityManagerFactory.createEntityManager(properties);
+      }
+      this.leases.incrementAndGet();
+      this.lastUsedNanos = System.nanoTime();
+      final AtomicBoolean released = new AtomicBoolean();
+      return Proxies.newProxyInstance(TenantPersistenceUnits.class.getClassLoader(),
+                                      EntityManager.class,
+                                      (proxy, method, arguments) -> {
+                                        if ("close".equals(method.getName())) {
+                                          try {
+                                            return Proxies.invoke(entityManager, method, arguments);
+                                          } finally {
+                                            if (released.compareAndSet(false, true)) {
+                                              this.lastUsedNanos = System.nanoTime();
+                                              this.leases.decrementAndGet();
+                                            }
+                                          }
+                                        }
+                                        return Proxies.invoke(entityManager, method, arguments);
+                                      });
+    }
+
+    private final synchronized boolean closeIfUnused() {
+      if (this.leases.get() > 0 || this.entityManagerFactory == null) {
+        return false;
+      }
+      this.closeEntityManagerFactory();
+      return true;
+    }
+
+    private final synchronized void unregister() {
+      this.unregistered = true;
+      if (this.entityManagerFactory != null) {
+        this.closeEntityManagerFactory();
+      }
+    }
+
+    private final void closeEntityManagerFactory() {
+      assert Thread.holdsLock(this);
+      final EntityManagerFactory entityManagerFactory = this.entityManagerFactory;
+      final DataSource dataSource = this.dataSource;
+      this.entityManagerFactory = null;
+      this.dataSource = null;
+      try {
+        if (entityManagerFactory.isOpen()) {
+          entityManagerFactory.close();
+        }
+      } catch (final RuntimeException runtimeException) {
+        if (logger.isLoggable(Level.WARNING)) {
+          logger.log(Level.WARNING, "Failed to close EntityManagerFactory for " + this.persistenceUnitName, runtimeException);
+        }
+      }
+      closeDataSource(dataSource, null);
+    }
+
+    private final void closeDataSource(final DataSource dataSource, final Throwable cause) {
+      if (dataSource instanceof AutoCloseable) {
+        try {
+          ((AutoCloseable)dataSource).close();
+        } catch (final Exception exception) {
+          if (cause == null) {
+            if (logger.isLoggable(Level.WARNING)) {
+              logger.log(Level.WARNING, "Failed to close DataSource for " + this.persistenceUnitName, exception);
+            }
+          } else {
+            cause.addSuppressed(exception);
+          }
+        }
+      }
+    }
+
+  }
+
+}
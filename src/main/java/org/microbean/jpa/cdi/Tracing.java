@@ -0,0 +1,752 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.lang.reflect.Method;
+
+import java.sql.Connection;
+import java.sql.Statement;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Objects;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.PersistenceException;
+import javax.persistence.Query;
+import javax.persistence.StoredProcedureQuery;
+import javax.persistence.TypedQuery;
+
+import javax.persistence.spi.PersistenceUnitInfo;
+
+import javax.sql.DataSource;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+/**
+ * Records {@link Span}s for the work done against a persistence unit
+ * and hands them to a {@link SpanExporter}.
+ *
+ * <p>When {@linkplain #wrap(EntityManagerFactory, TransactionManager)
+ * applied} to a persistence unit's {@link EntityManagerFactory} and
+ * {@linkplain #apply(Map, PersistenceUnitInfo) to its data sources},
+ * a {@link Tracing} records:</p>
+ *
+ * <ul>
+ *
+ * <li>a {@value #TRANSACTION_SPAN_NAME} span for each resource-local
+ * transaction, from {@linkplain EntityTransaction#begin() begin} to
+ * completion, or for each JTA transaction, from the first use of an
+ * {@link EntityManager} in it to completion, with a {@value
+ * #OUTCOME_ATTRIBUTE_NAME} attribute;</li>
+ *
+ * <li>a {@value #COMMIT_SPAN_NAME} span for each resource-local
+ * commit, which includes the flush it implies;</li>
+ *
+ * <li>a {@value #FLUSH_SPAN_NAME} span for each explicit {@linkplain
+ * EntityManager#flush() flush};</li>
+ *
+ * <li>a {@value #QUERY_SPAN_NAME} span for each query execution,
+ * with the {@linkplain StatementStatistics#normalize(String)
+ * normalized} query string as its {@value #STATEMENT_ATTRIBUTE_NAME}
+ * attribute, the name of a named query as its {@value
+ * #QUERY_NAME_ATTRIBUTE_NAME} attribute, and the number of rows
+ * returned or updated as its {@value #ROWS_ATTRIBUTE_NAME}
+ * attribute;</li>
+ *
+ * <li>a {@value #CONNECTION_SPAN_NAME} span for each acquisition of
+ * a JDBC connection; and</li>
+ *
+ * <li>a {@value #STATEMENT_SPAN_NAME} span for each execution of a
+ * JDBC statement, with its normalized SQL as its {@value
+ * #STATEMENT_ATTRIBUTE_NAME} attribute and, for updates, the number
+ * of rows updated as its {@value #ROWS_ATTRIBUTE_NAME}
+ * attribute.</li>
+ *
+ * </ul>
+ *
+ * <p>Every span carries the name of the persistence unit as its
+ * {@value #UNIT_ATTRIBUTE_NAME} attribute and is a child of the span
+ * {@linkplain SpanContext#current() current} on the thread that
+ * started it, so a caller that {@linkplain #startSpan(String) starts}
+ * a span per request, or {@linkplain SpanContext#makeCurrent() makes}
+ * an incoming {@link SpanContext} current, gets a per-request
+ * breakdown of database latency.</p>
+ *
+ * <p>The {@link JpaExtension} adds an instance of this class as a
+ * bean, and applies it, for each persistence unit whose {@value
+ * #ENABLED_PROPERTY_NAME} property is {@code true}.  Its {@link
+ * SpanExporter} is an instance of the class named by the {@value
+ * #EXPORTER_PROPERTY_NAME} property or, if that property is absent,
+ * an {@link InMemorySpanExporter}.  When tracing is not enabled,
+ * nothing is wrapped, so it costs nothing.</p>
+ *
+ * <p>Instances of this class are safe for concurrent use by multiple
+ * threads.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see Span
+ *
+ * @see SpanExporter
+ */
+public class Tracing implements AutoCloseable {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  /**
+   * The name of the persistence unit property that, if set to {@code
+   * true}, enables tracing.
+   */
+  public static final String ENABLED_PROPERTY_NAME = "org.microbean.jpa.cdi.tracing.enabled";
+
+  /**
+   * The name of the persistence unit property whose value, if
+   * present, is the name of the {@link SpanExporter} class to use.
+   */
+  public static final String EXPORTER_PROPERTY_NAME = "org.microbean.jpa.cdi.tracing.exporter";
+
+  /**
+   * The name of transaction spans ({@value}).
+   */
+  public static final String TRANSACTION_SPAN_NAME = "jpa.transaction";
+
+  /**
+   * The name of commit spans ({@value}).
+   */
+  public static final String COMMIT_SPAN_NAME = "jpa.commit";
+
+  /**
+   * The name of flush spans ({@value}).
+   */
+  public static final String FLUSH_SPAN_NAME = "jpa.flush";
+
+  /**
+   * The name of query execution spans ({@value}).
+   */
+  public static final String QUERY_SPAN_NAME = "jpa.query";
+
+  /**
+   * The name of connection acquisition spans ({@value}).
+   */
+  public static final String CONNECTION_SPAN_NAME = "jdbc.connection";
+
+  /**
+   * The name of JDBC statement execution spans ({@value}).
+   */
+  public static final String STATEMENT_SPAN_NAME = "jdbc.statement";
+
+  /**
+   * The name of the attribute whose value is the name of the
+   * persistence unit ({@value}).
+   */
+  public static final String UNIT_ATTRIBUTE_NAME = "jpa.unit";
+
+  /**
+   * The name of the attribute whose value is a normalized query or
+   * SQL statement ({@value}).
+   */
+  public static final String STATEMENT_ATTRIBUTE_NAME = "db.statement";
+
+  /**
+   * The name of the attribute whose value is the name of a named
+   * query ({@value}).
+   */
+  public static final String QUERY_NAME_ATTRIBUTE_NAME = "jpa.query.name";
+
+  /**
+   * The name of the attribute whose value is the number of rows
+   * returned or updated ({@value}).
+   */
+  public static final String ROWS_ATTRIBUTE_NAME = "db.rows";
+
+  /**
+   * The name of the attribute whose value is the outcome of a
+   * transaction: {@code committed}, {@code rolled back}, {@code
+   * failed} or, for a resource-local transaction still active when
+   * its {@link EntityManager} was closed, {@code abandoned}
+   * ({@value}).
+   */
+  public static final String OUTCOME_ATTRIBUTE_NAME = "jpa.transaction.outcome";
+
+  private static final Logger logger = Logger.getLogger(Tracing.class.getName());
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final String name;
+
+  private final SpanExporter exporter;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link Tracing}.
+   *
+   * @param name the name of the persistence unit; must not be {@code
+   * null}
+   *
+   * @param exporter the {@link SpanExporter} to which ended {@link
+   * Span}s will be handed; must not be {@code null}; will be
+   * {@linkplain SpanExporter#close() closed} by this {@link Tracing}
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   */
+  public Tracing(final String name, final SpanExporter exporter) {
+    super();
+    this.name = Objects.requireNonNull(name);
+    this.exporter = Objects.requireNonNull(exporter);
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns the name of the persistence unit this {@link Tracing}
+   * traces.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return the non-{@code null} name of the persistence unit
+   */
+  public final String getName() {
+    return this.name;
+  }
+
+  /**
+   * Returns the {@link SpanExporter} to which this {@link Tracing}
+   * hands ended {@link Span}s.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return the non-{@code null} {@link SpanExporter}
+   */
+  public final SpanExporter getExporter() {
+    return this.exporter;
+  }
+
+  /**
+   * Starts a new {@link Span} with the supplied name as a child of
+   * the {@linkplain SpanContext#current() current} {@link
+   * SpanContext} and makes it current.
+   *
+   * <p>The returned {@link Span} must be {@linkplain Span#end()
+   * ended}, ideally by a {@code try}-with-resources statement.</p>
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param spanName the name of the {@link Span}; must not be {@code
+   * null}
+   *
+   * @return a new, non-{@code null} {@link Span}
+   *
+   * @exception NullPointerException if {@code spanName} is {@code
+   * null}
+   */
+  public final Span startSpan(final String spanName) {
+    return new Span(spanName, SpanContext.current(), this::export).setAttribute(UNIT_ATTRIBUTE_NAME, this.name);
+  }
+
+  private final void export(final Span span) {
+    try {
+      this.exporter.export(span);
+    } catch (final RuntimeException runtimeException) {
+      if (logger.isLoggable(Level.WARNING)) {
+        logger.log(Level.WARNING, "Could not export " + span, runtimeException);
+      }
+    }
+  }
+
+  /**
+   * Adds {@code javax.persistence.jtaDataSource} and {@code
+   * javax.persistence.nonJtaDataSource} properties to the supplied
+   * {@link Map} whose values {@linkplain #wrap(DataSource) wrap} the
+   * {@link DataSource}s already present in it or, if there are none,
+   * those of the supplied {@link PersistenceUnitInfo}.
+   *
+   * @param properties the {@link Map} of properties that will be
+   * supplied to the {@link
+   * javax.persistence.spi.PersistenceProvider#createContainerEntityManagerFactory(PersistenceUnitInfo,
+   * Map)} method; must not be {@code null}
+   *
+   * @param persistenceUnitInfo the {@link PersistenceUnitInfo}; must
+   * not be {@code null}
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   */
+  public void apply(final Map<? super String, Object> properties, final PersistenceUnitInfo persistenceUnitInfo) {
+    Objects.requireNonNull(properties);
+    Objects.requireNonNull(persistenceUnitInfo);
+    Object jtaDataSource = properties.get("javax.persistence.jtaDataSource");
+    if (!(jtaDataSource instanceof DataSource)) {
+      jtaDataSource = persistenceUnitInfo.getJtaDataSource();
+    }
+    if (jtaDataSource != null) {
+      properties.put("javax.persistence.jtaDataSource", this.wrap((DataSource)jtaDataSource));
+    }
+    Object nonJtaDataSource = properties.get("javax.persistence.nonJtaDataSource");
+    if (!(nonJtaDataSource instanceof DataSource)) {
+      nonJtaDataSource = persistenceUnitInfo.getNonJtaDataSource();
+    }
+    if (nonJtaDataSource != null) {
+      properties.put("javax.persistence.nonJtaDataSource", this.wrap((DataSource)nonJtaDataSource));
+    }
+  }
+
+  /**
+   * Returns a {@link DataSource} that records a {@value
+   * #CONNECTION_SPAN_NAME} span for each {@link Connection} it
+   * acquires from the supplied {@link DataSource}, and a {@value
+   * #STATEMENT_SPAN_NAME} span for each statement executed on such a
+   * {@link Connection}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param dataSource the {@link DataSource} to wrap; must not be
+   * {@code null}
+   *
+   * @return a non-{@code null} {@link DataSource}
+   *
+   * @exception NullPointerException if {@code dataSource} is {@code
+   * null}
+   */
+  public DataSource wrap(final DataSource dataSource) {
+    Objects.requireNonNull(dataSource);
+    return Proxies.newProxyInstance(Tracing.class.getClassLoader(),
+                                    DataSource.class,
+                                    (proxy, method, arguments) -> {
+                                      if ("getConnection".equals(method.getName())) {
+                                        final Connection connection;
+                                        final Span span = this.startSpan(CONNECTION_SPAN_NAME);
+                                        try {
+                                          connection = (Connection)Proxies.invoke(dataSource, method, arguments);
+                                        } catch (final Throwable throwable) {
+                                          span.setError(throwable);
+                                          throw throwable;
+                                        } finally {
+                                          span.end();
+                                        }
+                                        return connection == null ? null : this.trace(connection);
+                                      }
+                                      return Proxies.invoke(dataSource, method, arguments);
+                                    });
+  }
+
+  private final Connection trace(final Connection connection) {
+    assert connection != null;
+    return Proxies.newProxyInstance(Tracing.class.getClassLoader(),
+                                    Connection.class,
+                                    (proxy, method, arguments) -> {
+                                      final Object returnValue = Proxies.invoke(connection, method, arguments);
+                                      if (returnValue instanceof Statement) {
+                                        final String sql =
+                                          arguments != null && arguments.length > 0 && arguments[0] instanceof String ?
+                                          (String)arguments[0] : null;
+                                        return this.trace((Statement)returnValue, method.getReturnType(), sql);
+                                      }
+                                      return returnValue;
+                                    });
+  }
+
+  private final Statement trace(final Statement statement, final Class<?> interfaceType, final String preparedSql) {
+    assert statement != null;
+    assert Statement.class.isAssignableFrom(interfaceType);
+    final AtomicReference<String> batchSql = new AtomicReference<>();
+    return (Statement)Proxies.newProxyInstance(Tracing.class.getClassLoader(),
+                                               interfaceType,
+                                               (proxy, method, arguments) -> {
+                                                 final String name = method.getName();
+                                                 if ("addBatch".equals(name) && arguments != null && arguments.length == 1) {
+                                                   batchSql.compareAndSet(null, (String)arguments[0]);
+                                                 } else if (name.startsWith("execute")) {
+                                                   final String sql;
+                                                   if (arguments != null && arguments.length > 0 && arguments[0] instanceof String) {
+                                                     sql = (String)arguments[0];
+                                                   } else if (preparedSql != null) {
+                                                     sql = preparedSql;
+                                                   } else {
+                                                     sql = batchSql.getAndSet(null);
+                                                   }
+                                                   final Span span = this.startSpan(STATEMENT_SPAN_NAME);
+                                                   span.setAttribute(STATEMENT_ATTRIBUTE_NAME, StatementStatistics.normalize(sql));
+                                                   try {
+                                                     final Object returnValue = Proxies.invoke(statement, method, arguments);
+                                                     span.setAttribute(ROWS_ATTRIBUTE_NAME, getUpdateCount(returnValue));
+                                                     return returnValue;
+                                                   } catch (final Throwable throwable) {
+                                                     span.setError(throwable);
+                                                     throw throwable;
+                                                   } finally {
+                                                     span.end();
+                                                   }
+                                                 }
+                                                 return Proxies.invoke(statement, method, arguments);
+                                               });
+  }
+
+  /**
+   * Returns an {@link EntityManagerFactory} whose {@link
+   * EntityManager}s record transaction, commit, flush and query
+   * {@link Span}s.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param entityManagerFactory the {@link EntityManagerFactory} to
+   * wrap; must not be {@code null}
+   *
+   * @param transactionManager the {@link TransactionManager} whose
+   * transactions the {@link EntityManager}s will join; may be {@code
+   * null} if the persistence unit uses resource-local transactions
+   *
+   * @return a non-{@code null} {@link EntityManagerFactory}
+   *
+   * @exception NullPointerException if {@code entityManagerFactory}
+   * is {@code null}
+   */
+  public EntityManagerFactory wrap(final EntityManagerFactory entityManagerFactory,
+                                   final TransactionManager transactionManager) {
+    Objects.requireNonNull(entityManagerFactory);
+    return Proxies.newProxyInstance(Tracing.class.getClassLoader(),
+                                    EntityManagerFactory.class,
+                                    (proxy, method, arguments) -> {
+                                      final Object returnValue = Proxies.invoke(entityManagerFactory, method, arguments);
+                                      if (returnValue instanceof EntityManager) {
+                                        return this.trace((EntityManager)returnValue, transactionManager);
+                                      }
+                                      return returnValue;
+                                    });
+  }
+
+  private final EntityManager trace(final EntityManager entityManager, final TransactionManager transactionManager) {
+    assert entityManager != null;
+    final AtomicReference<Span> transactionSpan = new AtomicReference<>();
+    final AtomicReference<Transaction> tracedTransaction = new AtomicReference<>();
+    return Proxies.newProxyInstance(Tracing.class.getClassLoader(),
+                                    EntityManager.class,
+                                    (proxy, method, arguments) -> {
+                                      final String name = method.getName();
+                                      switch (name) {
+                                      case "close":
+                                        try {
+                                          return Proxies.invoke(entityManager, method, arguments);
+                                        } finally {
+                                          // Never leave a transaction span open, and
+                                          // current, once its EntityManager is gone.
+                                          endTransactionSpan(transactionSpan.getAndSet(null), "abandoned", null);
+                                        }
+                                      case "isOpen":
+                                        return Proxies.invoke(entityManager, method, arguments);
+                                      case "getTransaction":
+                                        return this.trace((EntityTransaction)Proxies.invoke(entityManager, method, arguments),
+                                                          transactionSpan);
+                                      default:
+                                        break;
+                                      }
+                                      if (transactionManager != null) {
+                                        this.traceJtaTransaction(transactionManager, tracedTransaction);
+                                      }
+                                      switch (name) {
+                                      case "flush":
+                                        return this.call(FLUSH_SPAN_NAME, entityManager, method, arguments);
+                                      case "createQuery":
+                                      case "createNamedQuery":
+                                      case "createNativeQuery":
+                                      case "createStoredProcedureQuery":
+                                      case "createNamedStoredProcedureQuery":
+                                        final Query query = (Query)Proxies.invoke(entityManager, method, arguments);
+                                        if (query == null) {
+                                          return null;
+                                        }
+                                        final String queryString =
+                                          arguments != null && arguments.length > 0 && arguments[0] instanceof String ?
+                                          (String)arguments[0] : null;
+                                        final boolean named = name.startsWith("createNamed");
+                                        return this.trace(query,
+                                                          method.getReturnType(),
+                                                          named ? null : StatementStatistics.normalize(queryString),
+                                                          named ? queryString : null);
+                                      default:
+                                        return Proxies.invoke(entityManager, method, arguments);
+                                      }
+                                    });
+  }
+
+  private final EntityTransaction trace(final EntityTransaction entityTransaction, final AtomicReference<Span> transactionSpan) {
+    assert entityTransaction != null;
+    assert transactionSpan != null;
+    return Proxies.newProxyInstance(Tracing.class.getClassLoader(),
+                                    EntityTransaction.class,
+                                    (proxy, method, arguments) -> {
+                                      switch (method.getName()) {
+                                      case "begin":
+                                        final Span span = this.startSpan(TRANSACTION_SPAN_NAME);
+                                        try {
+                                          Proxies.invoke(entityTransaction, method, arguments);
+                                        } catch (final Throwable throwable) {
+                                          span.setAttribute(OUTCOME_ATTRIBUTE_NAME, "failed").setError(throwable).end();
+                                          throw throwable;
+                                        }
+                                        endTransactionSpan(transactionSpan.getAndSet(span), "failed", null);
+                                        return null;
+                                      case "commit":
+                                        try {
+                                          this.call(COMMIT_SPAN_NAME, entityTransaction, method, arguments);
+                                        } catch (final Throwable throwable) {
+                                          endTransactionSpan(transactionSpan.getAndSet(null), "failed", throwable);
+                                          throw throwable;
+                                        }
+                                        endTransactionSpan(transactionSpan.getAndSet(null), "committed", null);
+                                        return null;
+                                      case "rollback":
+                                        try {
+                                          return Proxies.invoke(entityTransaction, method, arguments);
+                                        } finally {
+                                          endTransactionSpan(transactionSpan.getAndSet(null), "rolled back", null);
+                                        }
+                                      default:
+                                        return Proxies.invoke(entityTransaction, method, arguments);
+                                      }
+                                    });
+  }
+
+  /**
+   * Starts a {@value #TRANSACTION_SPAN_NAME} span for the JTA
+   * transaction associated with the current thread, if there is one
+   * and it has not already been traced on behalf of the same {@link
+   * EntityManager}, and registers a {@link Synchronization} that will
+   * end it.
+   */
+  private final void traceJtaTransaction(final TransactionManager transactionManager,
+                                         final AtomicReference<Transaction> tracedTransaction) {
+    assert transactionManager != null;
+    assert tracedTransaction != null;
+    try {
+      final Transaction transaction = transactionManager.getTransaction();
+      if (transaction != null &&
+          transaction.getStatus() == Status.STATUS_ACTIVE &&
+          !transaction.equals(tracedTransaction.get())) {
+        final Span span = this.startSpan(TRANSACTION_SPAN_NAME);
+        try {
+          transaction.registerSynchronization(new Synchronization() {
+              @Override
+              public final void beforeCompletion() {
+                // The span covers the whole completion.
+              }
+
+              @Override
+              public final void afterCompletion(final int status) {
+                endTransactionSpan(span, status == Status.STATUS_COMMITTED ? "committed" : "rolled back", null);
+              }
+            });
+        } catch (final RollbackException | RuntimeException exception) {
+          span.setError(exception).end();
+          throw exception;
+        }
+        tracedTransaction.set(transaction);
+      }
+    } catch (final RollbackException | SystemException exception) {
+      throw new PersistenceException(exception.getMessage(), exception);
+    }
+  }
+
+  private final Query trace(final Query query, final Class<?> interfaceType, final String statement, final String queryName) {
+    assert query != null;
+    final Class<?> proxyType;
+    if (query instanceof StoredProcedureQuery) {
+      proxyType = StoredProcedureQuery.class;
+    } else if (query instanceof TypedQuery && TypedQuery.class.isAssignableFrom(interfaceType)) {
+      proxyType = TypedQuery.class;
+    } else {
+      proxyType = Query.class;
+    }
+    return (Query)Proxies.newProxyInstance(Tracing.class.getClassLoader(),
+                                           proxyType,
+                                           (proxy, method, arguments) -> {
+                                             switch (method.getName()) {
+                                             case "getResultList":
+                                             case "getResultStream":
+                                             case "getSingleResult":
+                                             case "executeUpdate":
+                                             case "execute":
+                                               final Span span = this.startSpan(QUERY_SPAN_NAME);
+                                               span.setAttribute(STATEMENT_ATTRIBUTE_NAME, statement);
+                                               span.setAttribute(QUERY_NAME_ATTRIBUTE_NAME, queryName);
+                                               try {
+                                                 final Object returnValue = Proxies.invoke(query, method, arguments);
+                                                 span.setAttribute(ROWS_ATTRIBUTE_NAME, getRowCount(method.getName(), returnValue));
+                                                 return returnValue;
+                                               } catch (final Throwable throwable) {
+                                                 span.setError(throwable);
+                                                 throw throwable;
+                                               } finally {
+                                                 span.end();
+                                               }
+                                             default:
+                                               final Object returnValue = Proxies.invoke(query, method, arguments);
+                                               // Keep fluent setters on the traced query.
+                                               return returnValue == query ? proxy : returnValue;
+                                             }
+                                           });
+  }
+
+  private final Object call(final String spanName, final Object target, final Method method, final Object[] arguments)
+    throws Throwable {
+    final Span span = this.startSpan(spanName);
+    try {
+      return Proxies.invoke(target, method, arguments);
+    } catch (final Throwable throwable) {
+      span.setError(throwable);
+      throw throwable;
+    } finally {
+      span.end();
+    }
+  }
+
+  /**
+   * {@linkplain SpanExporter#close() Closes} this {@link Tracing}'s
+   * {@link SpanExporter}.
+   */
+  @Override
+  public void close() {
+    this.exporter.close();
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Creates a new {@link Tracing} configured from the properties of
+   * the supplied {@link PersistenceUnitInfo}, or returns {@code null}
+   * if its {@value #ENABLED_PROPERTY_NAME} property is not {@code
+   * true}.
+   *
+   * @param name the name of the persistence unit; must not be {@code
+   * null}
+   *
+   * @param persistenceUnitInfo the {@link PersistenceUnitInfo}; must
+   * not be {@code null}
+   *
+   * @return a new {@link Tracing}, or {@code null}
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   *
+   * @exception IllegalArgumentException if the {@value
+   * #EXPORTER_PROPERTY_NAME} property does not name a suitable class
+   */
+  static final Tracing fromProperties(final String name, final PersistenceUnitInfo persistenceUnitInfo) {
+    Objects.requireNonNull(name);
+    final Map<?, ?> unitProperties = persistenceUnitInfo.getProperties();
+    if (!UnitProperties.getBoolean(unitProperties, ENABLED_PROPERTY_NAME, false)) {
+      return null;
+    }
+    final String exporterClassName = UnitProperties.getString(unitProperties, EXPORTER_PROPERTY_NAME, null);
+    final SpanExporter exporter;
+    if (exporterClassName == null || exporterClassName.trim().isEmpty()) {
+      exporter = new InMemorySpanExporter();
+    } else {
+      ClassLoader classLoader = persistenceUnitInfo.getClassLoader();
+      if (classLoader == null) {
+        classLoader = Thread.currentThread().getContextClassLoader();
+      }
+      try {
+        exporter = Class.forName(exporterClassName.trim(), true, classLoader)
+          .asSubclass(SpanExporter.class)
+          .getConstructor()
+          .newInstance();
+      } catch (final ReflectiveOperationException | ClassCastException exception) {
+        throw new IllegalArgumentException(EXPORTER_PROPERTY_NAME + ": " + exporterClassName, exception);
+      }
+    }
+    return new Tracing(name, exporter);
+  }
+
+  private static final void endTransactionSpan(final Span span, final String outcome, final Throwable error) {
+    if (span != null) {
+      span.setAttribute(OUTCOME_ATTRIBUTE_NAME, outcome).setError(error).end();
+    }
+  }
+
+  private static final Object getRowCount(final String methodName, final Object returnValue) {
+    switch (methodName) {
+    case "getResultList":
+      return returnValue instanceof Collection ? Integer.valueOf(((Collection<?>)returnValue).size()) : null;
+    case "getSingleResult":
+      return Integer.valueOf(1);
+    case "executeUpdate":
+      return returnValue;
+    default:
+      return null;
+    }
+  }
+
+  private static final Object getUpdateCount(final Object returnValue) {
+    if (returnValue instanceof Integer || returnValue instanceof Long) {
+      return returnValue;
+    } else if (returnValue instanceof int[]) {
+      long sum = 0L;
+      for (final int count : (int[])returnValue) {
+        if (count > 0) {
+          sum += count;
+        }
+      }
+      return Long.valueOf(sum);
+    } else if (returnValue instanceof long[]) {
+      long sum = 0L;
+      for (final long count : (long[])returnValue) {
+        if (count > 0L) {
+          sum += count;
+        }
+      }
+      return Long.valueOf(sum);
+    }
+    return null;
+  }
+
+}
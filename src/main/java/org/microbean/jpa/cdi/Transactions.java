@@ -0,0 +1,241 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.util.Objects;
+
+import java.util.function.Function;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityTransaction;
+import javax.persistence.PersistenceException;
+
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.HeuristicRollbackException;
+import javax.transaction.NotSupportedException;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+import javax.transaction.TransactionManager;
+
+/**
+ * A utility class that demarcates transactions around work done with
+ * an application-managed {@link EntityManager}, using a {@link
+ * TransactionManager} when one is supplied and the {@link
+ * EntityManager}'s {@linkplain EntityManager#getTransaction()
+ * resource-local transaction} otherwise.
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ */
+final class Transactions {
+
+
+  /*
+   * Constructors.
+   */
+
+
+  private Transactions() {
+    super();
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Returns {@code true} if the supplied {@link TransactionManager}
+   * is non-{@code null} and a JTA transaction is associated with the
+   * current thread.
+   *
+   * @param transactionManager the {@link TransactionManager} to
+   * check; may be {@code null} in which case {@code false} will be
+   * returned
+   *
+   * @return {@code true} if a JTA transaction is associated with the
+   * current thread
+   *
+   * @exception PersistenceException if the {@link
+   * TransactionManager} could not report its status
+   */
+  static final boolean isActive(final TransactionManager transactionManager) {
+    boolean returnValue = false;
+    if (transactionManager != null) {
+      try {
+        returnValue = transactionManager.getStatus() != Status.STATUS_NO_TRANSACTION;
+      } catch (final SystemException systemException) {
+        throw new PersistenceException(systemException.getMessage(), systemException);
+      }
+    }
+    return returnValue;
+  }
+
+  /**
+   * Begins a new transaction and, if it is a JTA transaction,
+   * {@linkplain EntityManager#joinTransaction() joins} the supplied
+   * {@link EntityManager} to it.
+   *
+   * @param entityManager the {@link EntityManager}; must not be
+   * {@code null}
+   *
+   * @param transactionManager the {@link TransactionManager} to use;
+   * may be {@code null} in which case a resource-local transaction
+   * will be begun
+   *
+   * @exception NullPointerException if {@code entityManager} is
+   * {@code null}
+   *
+   * @exception PersistenceException if the transaction could not be
+   * begun
+   */
+  static final void begin(final EntityManager entityManager, final TransactionManager transactionManager) {
+    Objects.requireNonNull(entityManager);
+    if (transactionManager == null) {
+      entityManager.getTransaction().begin();
+    } else {
+      try {
+        transactionManager.begin();
+      } catch (final NotSupportedException | SystemException exception) {
+        throw new PersistenceException(exception.getMessage(), exception);
+      }
+      entityManager.joinTransaction();
+    }
+  }
+
+  /**
+   * Commits the transaction begun by the {@link
+   * #begin(EntityManager, TransactionManager)} method.
+   *
+   * @param entityManager the {@link EntityManager}; must not be
+   * {@code null}
+   *
+   * @param transactionManager the {@link TransactionManager} to use;
+   * may be {@code null} in which case the resource-local transaction
+   * will be committed
+   *
+   * @exception NullPointerException if {@code entityManager} is
+   * {@code null}
+   *
+   * @exception javax.persistence.RollbackException if the
+   * transaction was rolled back instead
+   *
+   * @exception PersistenceException if the transaction could not be
+   * committed
+   */
+  static final void commit(final EntityManager entityManager, final TransactionManager transactionManager) {
+    Objects.requireNonNull(entityManager);
+    if (transactionManager == null) {
+      entityManager.getTransaction().commit();
+    } else {
+      try {
+        transactionManager.commit();
+      } catch (final RollbackException rollbackException) {
+        throw new javax.persistence.RollbackException(rollbackException.getMessage(), rollbackException);
+      } catch (final HeuristicMixedException | HeuristicRollbackException | SystemException exception) {
+        throw new PersistenceException(exception.getMessage(), exception);
+      }
+    }
+  }
+
+  /**
+   * Rolls back the transaction begun by the {@link
+   * #begin(EntityManager, TransactionManager)} method, if it is still
+   * active.
+   *
+   * @param entityManager the {@link EntityManager}; must not be
+   * {@code null}
+   *
+   * @param transactionManager the {@link TransactionManager} to use;
+   * may be {@code null} in which case the resource-local transaction
+   * will be rolled back
+   *
+   * @exception NullPointerException if {@code entityManager} is
+   * {@code null}
+   *
+   * @exception PersistenceException if the transaction could not be
+   * rolled back
+   */
+  static final void rollback(final EntityManager entityManager, final TransactionManager transactionManager) {
+    Objects.requireNonNull(entityManager);
+    if (transactionManager == null) {
+      final EntityTransaction entityTransaction = entityManager.getTransaction();
+      if (entityTransaction.isActive()) {
+        entityTransaction.rollback();
+      }
+    } else {
+      try {
+        if (transactionManager.getStatus() != Status.STATUS_NO_TRANSACTION) {
+          transactionManager.rollback();
+        }
+      } catch (final SystemException systemException) {
+        throw new PersistenceException(systemException.getMessage(), systemException);
+      }
+    }
+  }
+
+  /**
+   * Applies the supplied {@link Function} to the supplied {@link
+   * EntityManager} inside a new transaction, committing it if the
+   * {@link Function} completes normally and rolling it back
+   * otherwise, and returns the {@link Function}'s result.
+   *
+   * @param <T> the type of the result
+   *
+   * @param entityManager the {@link EntityManager}; must not be
+   * {@code null}
+   *
+   * @param transactionManager the {@link TransactionManager} to use;
+   * may be {@code null} in which case a resource-local transaction
+   * will be used
+   *
+   * @param work the {@link Function} to apply; must not be {@code
+   * null}
+   *
+   * @return the result of applying {@code work}, which may be {@code
+   * null}
+   *
+   * @exception NullPointerException if {@code entityManager} or
+   * {@code work} is {@code null}
+   *
+   * @exception PersistenceException if the transaction could not be
+   * demarcated
+   */
+  static final <T> T inTransaction(final EntityManager entityManager,
+                                   final TransactionManager transactionManager,
+                                   final Function<? super EntityManager, ? extends T> work) {
+    Objects.requireNonNull(entityManager);
+    Objects.requireNonNull(work);
+    begin(entityManager, transactionManager);
+    final T returnValue;
+    try {
+      returnValue = work.apply(entityManager);
+    } catch (final RuntimeException | Error throwable) {
+      try {
+        rollback(entityManager, transactionManager);
+      } catch (final RuntimeException rollbackException) {
+        throwable.addSuppressed(rollbackException);
+      }
+      throw throwable;
+    }
+    commit(entityManager, transactionManager);
+    return returnValue;
+  }
+
+}
@@ -0,0 +1,210 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.io.IOException;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import java.util.function.Consumer;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link CacheInvalidationTransport} that sends each message as a
+ * single UDP datagram to each of a fixed set of peers.
+ *
+ * <p>Delivery is not guaranteed, so this transport suits
+ * deployments, such as several nodes on one machine, in which
+ * datagrams are rarely lost, or in which an occasional stale cache
+ * entry is tolerable until it expires.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see CacheCoordination
+ *
+ * @see TcpCacheInvalidationTransport
+ */
+public class UdpCacheInvalidationTransport implements CacheInvalidationTransport {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  /**
+   * The largest payload of a UDP datagram sent over IPv4 ({@value}).
+   */
+  public static final int MAX_DATAGRAM_SIZE = 65507;
+
+  private static final Logger logger = Logger.getLogger(UdpCacheInvalidationTransport.class.getName());
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final InetSocketAddress bindAddress;
+
+  private final List<InetSocketAddress> peers;
+
+  private volatile DatagramSocket socket;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link UdpCacheInvalidationTransport}.
+   *
+   * @param bindAddress the address on which messages will be
+   * received; must not be {@code null}
+   *
+   * @param peers the addresses to which messages will be sent; must
+   * not be {@code null}
+   *
+   * @exception NullPointerException if either parameter is {@code
+   * null}
+   */
+  public UdpCacheInvalidationTransport(final InetSocketAddress bindAddress, final Collection<? extends InetSocketAddress> peers) {
+    super();
+    this.bindAddress = Objects.requireNonNull(bindAddress);
+    this.peers = Collections.unmodifiableList(new ArrayList<>(peers));
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Binds a {@link DatagramSocket} to the bind address supplied at
+   * construction time and starts a daemon thread that delivers the
+   * datagrams it receives to the supplied {@link Consumer}.
+   *
+   * @param receiver the {@link Consumer} that will receive messages;
+   * must not be {@code null}
+   *
+   * @exception NullPointerException if {@code receiver} is {@code
+   * null}
+   *
+   * @exception IOException if the socket could not be bound
+   */
+  @Override
+  public void start(final Consumer<? super byte[]> receiver) throws IOException {
+    Objects.requireNonNull(receiver);
+    final DatagramSocket socket = new DatagramSocket(this.bindAddress);
+    this.socket = socket;
+    final Thread thread = new Thread(() -> receive(socket, receiver), "UdpCacheInvalidationTransport-" + this.bindAddress);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  @Override
+  public void send(final byte[] message) throws IOException {
+    Objects.requireNonNull(message);
+    final DatagramSocket socket = this.socket;
+    if (socket == null) {
+      throw new IOException("Not started");
+    }
+    IOException exception = null;
+    for (final InetSocketAddress peer : this.peers) {
+      try {
+        socket.send(new DatagramPacket(message, message.length, peer));
+      } catch (final IOException ioException) {
+        if (exception == null) {
+          exception = ioException;
+        } else {
+          exception.addSuppressed(ioException);
+        }
+      }
+    }
+    if (exception != null) {
+      throw exception;
+    }
+  }
+
+  /**
+   * Returns {@value #MAX_DATAGRAM_SIZE}.
+   *
+   * @return {@value #MAX_DATAGRAM_SIZE}
+   */
+  @Override
+  public int getMaxMessageSize() {
+    return MAX_DATAGRAM_SIZE;
+  }
+
+  @Override
+  public void close() {
+    final DatagramSocket socket = this.socket;
+    if (socket != null) {
+      this.socket = null;
+      socket.close();
+    }
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  private static final void receive(final DatagramSocket socket, final Consumer<? super byte[]> receiver) {
+    assert socket != null;
+    assert receiver != null;
+    final byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
+    while (!socket.isClosed()) {
+      final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+      try {
+        socket.receive(packet);
+      } catch (final SocketException socketException) {
+        // The socket was closed.
+        break;
+      } catch (final IOException ioException) {
+        if (logger.isLoggable(Level.WARNING)) {
+          logger.log(Level.WARNING, "Could not receive a datagram on " + socket.getLocalSocketAddress(), ioException);
+        }
+        continue;
+      }
+      try {
+        receiver.accept(Arrays.copyOfRange(packet.getData(), packet.getOffset(), packet.getOffset() + packet.getLength()));
+      } catch (final RuntimeException runtimeException) {
+        if (logger.isLoggable(Level.WARNING)) {
+          logger.log(Level.WARNING, "Could not process a cache invalidation message", runtimeException);
+        }
+      }
+    }
+  }
+
+}
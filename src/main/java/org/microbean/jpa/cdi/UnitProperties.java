@@ -0,0 +1,170 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.util.Map;
+
+import javax.persistence.spi.PersistenceUnitInfo;
+
+/**
+ * A utility class for reading typed values out of the {@linkplain
+ * PersistenceUnitInfo#getProperties() properties} of a persistence
+ * unit.
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see PersistenceUnitInfo#getProperties()
+ */
+final class UnitProperties {
+
+
+  /*
+   * Constructors.
+   */
+
+
+  private UnitProperties() {
+    super();
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  /**
+   * Returns the value indexed under the supplied {@code name} in the
+   * supplied {@link Map} as a {@link String}, or {@code
+   * defaultValue} if there is no such value.
+   *
+   * @param properties the {@link Map} to read; may be {@code null}
+   *
+   * @param name the name of the property; may be {@code null}
+   *
+   * @param defaultValue the value to return if there is no value
+   * indexed under {@code name}; may be {@code null}
+   *
+   * @return the value indexed under {@code name}, or {@code
+   * defaultValue}
+   */
+  static final String getString(final Map<?, ?> properties, final String name, final String defaultValue) {
+    final String returnValue;
+    if (properties == null || name == null) {
+      returnValue = defaultValue;
+    } else {
+      final Object value = properties.get(name);
+      if (value == null) {
+        returnValue = defaultValue;
+      } else {
+        final String stringValue = value.toString().trim();
+        returnValue = stringValue.isEmpty() ? defaultValue : stringValue;
+      }
+    }
+    return returnValue;
+  }
+
+  /**
+   * Returns the value indexed under the supplied {@code name} in the
+   * supplied {@link Map} as an {@code int}, or {@code defaultValue}
+   * if there is no such value.
+   *
+   * @param properties the {@link Map} to read; may be {@code null}
+   *
+   * @param name the name of the property; may be {@code null}
+   *
+   * @param defaultValue the value to return if there is no value
+   * indexed under {@code name}
+   *
+   * @return the value indexed under {@code name}, or {@code
+   * defaultValue}
+   *
+   * @exception IllegalArgumentException if the value indexed under
+   * {@code name} could not be parsed as an {@code int}
+   */
+  static final int getInt(final Map<?, ?> properties, final String name, final int defaultValue) {
+    final String value = getString(properties, name, null);
+    final int returnValue;
+    if (value == null) {
+      returnValue = defaultValue;
+    } else {
+      try {
+        returnValue = Integer.parseInt(value);
+      } catch (final NumberFormatException numberFormatException) {
+        throw new IllegalArgumentException(name + ": " + value, numberFormatException);
+      }
+    }
+    return returnValue;
+  }
+
+  /**
+   * Returns the value indexed under the supplied {@code name} in the
+   * supplied {@link Map} as a {@code long}, or {@code defaultValue}
+   * if there is no such value.
+   *
+   * @param properties the {@link Map} to read; may be {@code null}
+   *
+   * @param name the name of the property; may be {@code null}
+   *
+   * @param defaultValue the value to return if there is no value
+   * indexed under {@code name}
+   *
+   * @return the value indexed under {@code name}, or {@code
+   * defaultValue}
+   *
+   * @exception IllegalArgumentException if the value indexed under
+   * {@code name} could not be parsed as a {@code long}
+   */
+  static final long getLong(final Map<?, ?> properties, final String name, final long defaultValue) {
+    final String value = getString(properties, name, null);
+    final long returnValue;
+    if (value == null) {
+      returnValue = defaultValue;
+    } else {
+      try {
+        returnValue = Long.parseLong(value);
+      } catch (final NumberFormatException numberFormatException) {
+        throw new IllegalArgumentException(name + ": " + value, numberFormatException);
+      }
+    }
+    return returnValue;
+  }
+
+  /**
+   * Returns the value indexed under the supplied {@code name} in the
+   * supplied {@link Map} as a {@code boolean}, or {@code
+   * defaultValue} if there is no such value.
+   *
+   * @param properties the {@link Map} to read; may be {@code null}
+   *
+   * @param name the name of the property; may be {@code null}
+   *
+   * @param defaultValue the value to return if there is no value
+   * indexed under {@code name}
+   *
+   * @return the value indexed under {@code name}, or {@code
+   * defaultValue}
+   *
+   * @see Boolean#parseBoolean(String)
+   */
+  static final boolean getBoolean(final Map<?, ?> properties, final String name, final boolean defaultValue) {
+    final String value = getString(properties, name, null);
+    return value == null ? defaultValue : Boolean.parseBoolean(value);
+  }
+
+}
@@ -0,0 +1,939 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+
+import java.lang.management.ManagementFactory;
+
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import java.util.concurrent.locks.LockSupport;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.ManagedType;
+import javax.persistence.metamodel.MapAttribute;
+import javax.persistence.metamodel.Metamodel;
+import javax.persistence.metamodel.PluralAttribute;
+
+/**
+ * A bounded, lock-free queue of entities that background threads
+ * {@linkplain BatchWriter#write(Iterable) persist} in large batched
+ * transactions, so that the threads that {@linkplain #submit(Object)
+ * submit} them never wait on their inserts.
+ *
+ * <p>This suits fire-and-forget entities such as audit records and
+ * event logs, whose insertion need not be part of the transaction,
+ * or the latency, of the request that produced them.  Submitted
+ * entities are written in submission order by each worker thread,
+ * but with no ordering guarantee across worker threads, and only
+ * after {@link #submit(Object)} has returned; they must not be
+ * modified afterwards.  {@link #submit(Object)} never blocks: when
+ * the queue is full or closed, it refuses the entity and returns
+ * {@code false}.</p>
+ *
+ * <p>Durability is configurable:</p>
+ *
+ * <ul>
+ *
+ * <li>{@link #close()} stops accepting entities and lets the worker
+ * threads drain the queue for up to a configurable drain timeout,
+ * and then waits up to that timeout again for any worker thread
+ * still writing a batch to finish it.</li>
+ *
+ * <li>If a spill directory is configured, entities still queued
+ * after the drain timeout, and entities that could not be written
+ * to the database, are {@linkplain Serializable serialized} to a
+ * spill file in it instead of being lost.  Spill files are read
+ * back and queued again when a {@link WriteBehind} for the same
+ * persistence unit is next created, and each is deleted only once
+ * all of its entities have been written or spilled again, so an
+ * entity may be written twice if the process stops in between.
+ * Entities that are not {@link Serializable} cannot be spilled.</li>
+ *
+ * <li>Only the classes of the persistence unit's managed types and
+ * of their attributes, and a fixed set of JDK value and collection
+ * classes, such as {@link String}, {@link java.math.BigDecimal},
+ * {@link java.util.UUID}, {@link java.util.ArrayList} and {@link
+ * java.util.HashMap}, are deserialized from spill files.  A spill file that refers to any
+ * other class is not read; it is renamed with a {@code .rejected}
+ * suffix and left for an administrator to inspect.</li>
+ *
+ * </ul>
+ *
+ * <p>When a batch fails, its entities are retried one by one so
+ * that a single bad entity does not take the rest of its batch with
+ * it.</p>
+ *
+ * <p>The {@link JpaExtension} creates a {@link WriteBehind} for
+ * every persistence unit whose properties include a property named
+ * {@value #ENABLED_PROPERTY_NAME} whose value is {@code true}, makes
+ * it available as a bean qualified with the {@linkplain
+ * javax.inject.Named name} of the persistence unit, registers it as
+ * a {@link WriteBehindMXBean} and {@linkplain #close() closes} it when
+ * the container shuts down.</p>
+ *
+ * <p>Instances of this class are safe for concurrent use by multiple
+ * threads.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see #submit(Object)
+ *
+ * @see WriteBehindMXBean
+ */
+public class WriteBehind implements AutoCloseable, WriteBehindMXBean {
+
+
+  /*
+   * Static fields.
+   */
+
+
+  /**
+   * The name of the persistence unit property that, if set to {@code
+   * true}, causes a {@link WriteBehind} to be made available for that
+   * persistence unit.
+   */
+  public static final String ENABLED_PROPERTY_NAME = "org.microbean.jpa.cdi.writeBehind.enabled";
+
+  /**
+   * The name of the persistence unit property whose value is the
+   * maximum number of entities that may be queued.
+   *
+   * @see #DEFAULT_CAPACITY
+   */
+  public static final String CAPACITY_PROPERTY_NAME = "org.microbean.jpa.cdi.writeBehind.capacity";
+
+  /**
+   * The name of the persistence unit property whose value is the
+   * number of worker threads.
+   *
+   * @see #DEFAULT_THREADS
+   */
+  public static final String THREADS_PROPERTY_NAME = "org.microbean.jpa.cdi.writeBehind.threads";
+
+  /**
+   * The name of the persistence unit property whose value is the
+   * number of milliseconds an idle worker thread waits before
+   * checking the queue again.
+   *
+   * @see #DEFAULT_LINGER_MILLIS
+   */
+  public static final String LINGER_PROPERTY_NAME = "org.microbean.jpa.cdi.writeBehind.lingerMillis";
+
+  /**
+   * The name of the persistence unit property whose value is the
+   * number of milliseconds {@link #close()} lets the worker threads
+   * drain the queue.
+   *
+   * @see #DEFAULT_DRAIN_TIMEOUT_MILLIS
+   */
+  public static final String DRAIN_TIMEOUT_PROPERTY_NAME = "org.microbean.jpa.cdi.writeBehind.drainTimeoutMillis";
+
+  /**
+   * The name of the persistence unit property whose value, if
+   * present, is the path of the directory in which spill files are
+   * kept.
+   */
+  public static final String SPILL_DIRECTORY_PROPERTY_NAME = "org.microbean.jpa.cdi.writeBehind.spillDirectory";
+
+  /**
+   * The default queue capacity ({@value}).
+   */
+  public static final int DEFAULT_CAPACITY = 100000;
+
+  /**
+   * The default number of worker threads ({@value}).
+   */
+  public static final int DEFAULT_THREADS = 1;
+
+  /**
+   * The default number of milliseconds an idle worker thread waits
+   * ({@value}).
+   */
+  public static final long DEFAULT_LINGER_MILLIS = 20L;
+
+  /**
+   * The default number of milliseconds {@link #close()} lets the
+   * worker threads drain the queue ({@value}).
+   */
+  public static final long DEFAULT_DRAIN_TIMEOUT_MILLIS = 30000L;
+
+  private static final String SPILL_FILE_SUFFIX = ".spill";
+
+  private static final String REJECTED_FILE_SUFFIX = ".rejected";
+
+  // Concrete JDK classes whose instances commonly appear as entity
+  // attribute values.  Whole packages are not permitted, since
+  // packages such as java.util contain classes that can be abused
+  // during deserialization.
+  private static final Set<String> PERMITTED_CLASS_NAMES =
+    Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+      // Superclasses of values.
+      "java.lang.Enum",
+      "java.lang.Number",
+      // Values.
+      "java.lang.Boolean",
+      "java.lang.Byte",
+      "java.lang.Character",
+      "java.lang.Double",
+      "java.lang.Float",
+      "java.lang.Integer",
+      "java.lang.Long",
+      "java.lang.Short",
+      "java.lang.String",
+      "java.math.BigDecimal",
+      "java.math.BigInteger",
+      "java.util.Date",
+      "java.util.Locale",
+      "java.util.UUID",
+      // The serialized form of all java.time values.
+      "java.time.Ser",
+      // Collections.
+      "java.util.ArrayList",
+      "java.util.LinkedList",
+      "java.util.HashMap",
+      "java.util.LinkedHashMap",
+      "java.util.TreeMap",
+      "java.util.HashSet",
+      "java.util.LinkedHashSet",
+      "java.util.TreeSet"
+    )));
+
+  private static final Logger logger = Logger.getLogger(WriteBehind.class.getName());
+
+
+  /*
+   * Instance fields.
+   */
+
+
+  private final String name;
+
+  private final BatchWriter batchWriter;
+
+  private final int capacity;
+
+  private final long lingerNanos;
+
+  private final long drainTimeoutMillis;
+
+  private final Path spillDirectory;
+
+  private final ConcurrentLinkedQueue<Object> queue;
+
+  // The number of entities in the queue; ConcurrentLinkedQueue's own
+  // size() is linear.
+  private final AtomicInteger queueDepth;
+
+  private final List<Thread> workers;
+
+  private final LongAdder submitted;
+
+  private final LongAdder rejected;
+
+  private final LongAdder written;
+
+  private final LongAdder failed;
+
+  private final LongAdder spilled;
+
+  private final LongAdder lost;
+
+  private final AtomicLong spillSequence;
+
+  private final Object spillLock;
+
+  private volatile boolean closed;
+
+  private volatile boolean stopped;
+
+  private volatile ObjectName objectName;
+
+
+  /*
+   * Constructors.
+   */
+
+
+  /**
+   * Creates a new {@link WriteBehind}, requeues the entities in any
+   * spill files left for it in the supplied spill directory, whose
+   * classes must belong to the persistence unit, and starts its
+   * worker threads.
+   *
+   * @param name the name of the persistence unit; must not be {@code
+   * null}
+   *
+   * @param batchWriter the {@link BatchWriter} that will persist
+   * entities; must not be {@code null}; its {@linkplain
+   * BatchWriter#getBatchSize() batch size} is the largest number of
+   * entities written in one transaction
+   *
+   * @param capacity the maximum number of entities that may be
+   * queued; must be greater than {@code 0}
+   *
+   * @param threads the number of worker threads; must be greater
+   * than {@code 0}
+   *
+   * @param lingerMillis the number of milliseconds an idle worker
+   * thread waits before checking the queue again; must be greater
+   * than {@code 0}
+   *
+   * @param drainTimeoutMillis the number of milliseconds {@link
+   * #close()} lets the worker threads drain the queue; must not be
+   * negative
+   *
+   * @param spillDirectory the directory in which spill files are
+   * kept; may be {@code null} in which case nothing is spilled
+   *
+   * @exception NullPointerException if {@code name} or {@code
+   * batchWriter} is {@code null}
+   *
+   * @exception IllegalArgumentException if {@code capacity}, {@code
+   * threads} or {@code lingerMillis} is less than {@code 1}, or if
+   * {@code drainTimeoutMillis} is negative
+   *
+   * @exception IOException if spill files could not be read
+   */
+  public WriteBehind(final String name,
+                     final BatchWriter batchWriter,
+                     final int capacity,
+                     final int threads,
+                     final long lingerMillis,
+                     final long drainTimeoutMillis,
+                     final Path spillDirectory)
+    throws IOException {
+    super();
+    this.name = Objects.requireNonNull(name);
+    this.batchWriter = Objects.requireNonNull(batchWriter);
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity < 1: " + capacity);
+    }
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads < 1: " + threads);
+    }
+    if (lingerMillis < 1L) {
+      throw new IllegalArgumentException("lingerMillis < 1: " + lingerMillis);
+    }
+    if (drainTimeoutMillis < 0L) {
+      throw new IllegalArgumentException("drainTimeoutMillis < 0: " + drainTimeoutMillis);
+    }
+    this.capacity = capacity;
+    this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+    this.drainTimeoutMillis = drainTimeoutMillis;
+    this.spillDirectory = spillDirectory;
+    this.queue = new ConcurrentLinkedQueue<>();
+    this.queueDepth = new AtomicInteger();
+    this.submitted = new LongAdder();
+    this.rejected = new LongAdder();
+    this.written = new LongAdder();
+    this.failed = new LongAdder();
+    this.spilled = new LongAdder();
+    this.lost = new LongAdder();
+    this.spillSequence = new AtomicLong();
+    this.spillLock = new Object();
+    if (spillDirectory != null) {
+      this.recover();
+    }
+    final List<Thread> workers = new ArrayList<>(threads);
+    for (int i = 0; i < threads; i++) {
+      final Thread worker = new Thread(this::work, "microbean-jpa-cdi-write-behind-" + name + "-" + i);
+      worker.setDaemon(true);
+      workers.add(worker);
+    }
+    this.workers = Collections.unmodifiableList(workers);
+    for (final Thread worker : workers) {
+      worker.start();
+    }
+  }
+
+
+  /*
+   * Instance methods.
+   */
+
+
+  /**
+   * Returns the name of the persistence unit this {@link
+   * WriteBehind} writes to.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return the non-{@code null} name of the persistence unit
+   */
+  public final String getName() {
+    return this.name;
+  }
+
+  /**
+   * Queues the supplied entity for persisting by a worker thread, if
+   * there is room, and returns immediately.
+   *
+   * @param entity the entity; must not be {@code null}; must not be
+   * modified afterwards
+   *
+   * @return {@code true} if the entity was queued; {@code false} if
+   * the queue was full or this {@link WriteBehind} has been
+   * {@linkplain #close() closed}
+   *
+   * @exception NullPointerException if {@code entity} is {@code null}
+   */
+  public boolean submit(final Object entity) {
+    Objects.requireNonNull(entity);
+    if (this.closed) {
+      this.rejected.increment();
+      return false;
+    }
+    int depth;
+    do {
+      depth = this.queueDepth.get();
+      if (depth >= this.capacity) {
+        this.rejected.increment();
+        return false;
+      }
+    } while (!this.queueDepth.compareAndSet(depth, depth + 1));
+    this.queue.offer(entity);
+    this.submitted.increment();
+    return true;
+  }
+
+  @Override
+  public final int getCapacity() {
+    return this.capacity;
+  }
+
+  @Override
+  public final int getQueueDepth() {
+    return this.queueDepth.get();
+  }
+
+  @Override
+  public final long getSubmittedCount() {
+    return this.submitted.sum();
+  }
+
+  @Override
+  public final long getRejectedCount() {
+    return this.rejected.sum();
+  }
+
+  @Override
+  public final long getWrittenCount() {
+    return this.written.sum();
+  }
+
+  @Override
+  public final long getFailedCount() {
+    return this.failed.sum();
+  }
+
+  @Override
+  public final long getSpilledCount() {
+    return this.spilled.sum();
+  }
+
+  @Override
+  public final long getLostCount() {
+    return this.lost.sum();
+  }
+
+  private final void work() {
+    final int batchSize = this.batchWriter.getBatchSize();
+    final List<Object> batch = new ArrayList<>(batchSize);
+    final List<SpillFile> spillFiles = new ArrayList<>();
+    while (!this.stopped) {
+      Object entity;
+      while (batch.size() < batchSize && (entity = this.queue.poll()) != null) {
+        this.queueDepth.decrementAndGet();
+        batch.add(unwrap(entity, spillFiles));
+      }
+      if (batch.isEmpty()) {
+        if (this.closed) {
+          return;
+        }
+        LockSupport.parkNanos(this, this.lingerNanos);
+      } else {
+        final boolean kept = this.write(batch);
+        for (final SpillFile spillFile : spillFiles) {
+          spillFile.release(kept);
+        }
+        batch.clear();
+        spillFiles.clear();
+      }
+    }
+  }
+
+  /**
+   * Writes the supplied entities, isolating and spilling those that
+   * cannot be written.
+   *
+   * @param batch the entities to write; must not be {@code null}
+   *
+   * @return {@code true} if every {@link Serializable} entity was
+   * either written or spilled; {@code false} otherwise
+   */
+  private final boolean write(final List<?> batch) {
+    assert batch != null;
+    try {
+      this.written.add(this.batchWriter.write(batch).getRows());
+      return true;
+    } catch (final RuntimeException batchException) {
+      if (logger.isLoggable(Level.FINE)) {
+        logger.logp(Level.FINE, WriteBehind.class.getName(), "write", batchException.getMessage(), batchException);
+      }
+    }
+    // Isolate the entities that cannot be written.
+    final List<Object> failures = new ArrayList<>();
+    RuntimeException firstException = null;
+    for (final Object entity : batch) {
+      try {
+        this.written.add(this.batchWriter.write(Collections.singletonList(entity)).getRows());
+      } catch (final RuntimeException exception) {
+        if (firstException == null) {
+          firstException = exception;
+        }
+        failures.add(entity);
+      }
+    }
+    if (!failures.isEmpty()) {
+      this.failed.add(failures.size());
+      if (logger.isLoggable(Level.WARNING)) {
+        logger.logp(Level.WARNING,
+                    WriteBehind.class.getName(),
+                    "write",
+                    "Could not write " + failures.size() + " entities to persistence unit " + this.name,
+                    firstException);
+      }
+      return this.spill(failures);
+    }
+    return true;
+  }
+
+  /**
+   * Serializes the supplied entities to a new spill file.
+   *
+   * @param entities the entities to spill; must not be {@code null}
+   *
+   * @return {@code true} if every {@link Serializable} entity was
+   * spilled; {@code false} otherwise
+   */
+  private final boolean spill(final Collection<?> entities) {
+    assert entities != null;
+    final List<Object> serializable = new ArrayList<>(entities.size());
+    for (final Object entity : entities) {
+      if (entity instanceof Serializable) {
+        serializable.add(entity);
+      }
+    }
+    boolean kept = true;
+    int lostCount = entities.size() - serializable.size();
+    if (this.spillDirectory == null) {
+      kept = serializable.isEmpty();
+      lostCount = entities.size();
+    } else if (!serializable.isEmpty()) {
+      synchronized (this.spillLock) {
+        try {
+          Files.createDirectories(this.spillDirectory);
+          final String fileName = this.getSpillFilePrefix() + System.currentTimeMillis() + "-" + this.spillSequence.getAndIncrement();
+          final Path temporaryFile = this.spillDirectory.resolve(fileName + ".tmp");
+          try (final ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+            out.writeInt(serializable.size());
+            for (final Object entity : serializable) {
+              out.writeObject(entity);
+            }
+          }
+          Files.move(temporaryFile, this.spillDirectory.resolve(fileName + SPILL_FILE_SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+          this.spilled.add(serializable.size());
+        } catch (final IOException ioException) {
+          kept = false;
+          lostCount = entities.size();
+          if (logger.isLoggable(Level.SEVERE)) {
+            logger.logp(Level.SEVERE, WriteBehind.class.getName(), "spill", ioException.getMessage(), ioException);
+          }
+        }
+      }
+    }
+    if (lostCount > 0) {
+      this.lost.add(lostCount);
+      if (logger.isLoggable(Level.WARNING)) {
+        logger.logp(Level.WARNING,
+                    WriteBehind.class.getName(),
+                    "spill",
+                    "Lost {0} entities destined for persistence unit {1}",
+                    new Object[] { Integer.valueOf(lostCount), this.name });
+      }
+    }
+    return kept;
+  }
+
+  private final void recover() throws IOException {
+    assert this.spillDirectory != null;
+    if (!Files.isDirectory(this.spillDirectory)) {
+      return;
+    }
+    final List<Path> spillFiles = new ArrayList<>();
+    try (final DirectoryStream<Path> stream = Files.newDirectoryStream(this.spillDirectory, this.getSpillFilePrefix() + "*" + SPILL_FILE_SUFFIX)) {
+      for (final Path spillFile : stream) {
+        spillFiles.add(spillFile);
+      }
+    }
+    Collections.sort(spillFiles);
+    final Set<String> classNames = getClassNames(this.batchWriter.getEntityManagerFactory().getMetamodel());
+    for (final Path spillFile : spillFiles) {
+      final List<Object> entities = new ArrayList<>();
+      try (final ObjectInputStream in = new ContextObjectInputStream(new BufferedInputStream(Files.newInputStream(spillFile)), classNames)) {
+        final int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+          entities.add(in.readObject());
+        }
+      } catch (final ClassNotFoundException | InvalidClassException exception) {
+        final Path rejectedFile = spillFile.resolveSibling(spillFile.getFileName() + REJECTED_FILE_SUFFIX);
+        Files.move(spillFile, rejectedFile, StandardCopyOption.REPLACE_EXISTING);
+        if (logger.isLoggable(Level.SEVERE)) {
+          logger.logp(Level.SEVERE,
+                      WriteBehind.class.getName(),
+                      "recover",
+                      "Rejected spill file " + spillFile + " for persistence unit " + this.name + "; moved it to " + rejectedFile,
+                      exception);
+        }
+        continue;
+      }
+      if (entities.isEmpty()) {
+        Files.delete(spillFile);
+      } else {
+        // The spill file is deleted once the last of its entities has
+        // been written or spilled again.
+        final SpillFile source = new SpillFile(spillFile, entities.size());
+        for (final Object entity : entities) {
+          // Recovered entities were accepted once already, so they
+          // are requeued regardless of capacity.
+          this.queue.offer(new Recovered(entity, source));
+          this.queueDepth.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  private final String getSpillFilePrefix() {
+    return (this.name.isEmpty() ? "default" : this.name.replaceAll("[^A-Za-z0-9._-]", "_")) + "-";
+  }
+
+  /**
+   * Registers this {@link WriteBehind} with the {@linkplain
+   * ManagementFactory#getPlatformMBeanServer() platform MBean server}
+   * under an {@link ObjectName} of the form {@code
+   * org.microbean.jpa.cdi:type=WriteBehind,name=<name>}.
+   *
+   * @exception IllegalStateException if registration failed
+   *
+   * @see #close()
+   */
+  public final void register() {
+    final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    try {
+      final ObjectName objectName =
+        new ObjectName("org.microbean.jpa.cdi:type=WriteBehind,name=" + ObjectName.quote(this.name));
+      mBeanServer.registerMBean(this, objectName);
+      this.objectName = objectName;
+    } catch (final JMException jmException) {
+      throw new IllegalStateException(jmException.getMessage(), jmException);
+    }
+  }
+
+  /**
+   * Stops accepting entities, lets the worker threads drain the
+   * queue for up to the drain timeout, waits up to the drain timeout
+   * again for worker threads to finish the batches they are writing,
+   * spills whatever is still queued after that, and unregisters this {@link WriteBehind} from
+   * the {@linkplain ManagementFactory#getPlatformMBeanServer()
+   * platform MBean server} if it was {@linkplain #register()
+   * registered}.
+   *
+   * <p>Calling this method more than once has no further
+   * effect.</p>
+   *
+   * @see #register()
+   */
+  @Override
+  public void close() {
+    if (this.closed) {
+      return;
+    }
+    this.closed = true;
+    final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.drainTimeoutMillis);
+    boolean interrupted = false;
+    for (final Thread worker : this.workers) {
+      LockSupport.unpark(worker);
+      final long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      if (remainingMillis > 0L) {
+        try {
+          worker.join(remainingMillis);
+        } catch (final InterruptedException interruptedException) {
+          interrupted = true;
+          break;
+        }
+      }
+    }
+    this.stopped = true;
+    final long batchDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.drainTimeoutMillis);
+    for (final Thread worker : this.workers) {
+      LockSupport.unpark(worker);
+      // Let a worker in the middle of a batch finish it, so that the
+      // entities it holds are not written twice, but do not wait
+      // forever for one that is stuck.
+      final long remainingMillis = TimeUnit.NANOSECONDS.toMillis(batchDeadline - System.nanoTime());
+      if (!interrupted && remainingMillis > 0L) {
+        try {
+          worker.join(remainingMillis);
+        } catch (final InterruptedException interruptedException) {
+          interrupted = true;
+        }
+      }
+      if (worker.isAlive() && logger.isLoggable(Level.WARNING)) {
+        logger.logp(Level.WARNING,
+                    WriteBehind.class.getName(),
+                    "close",
+                    "Worker thread " + worker.getName() + " did not finish its batch within " +
+                    this.drainTimeoutMillis + " ms; its entities may be lost");
+      }
+    }
+    final List<Object> remaining = new ArrayList<>();
+    final List<SpillFile> spillFiles = new ArrayList<>();
+    Object entity;
+    while ((entity = this.queue.poll()) != null) {
+      this.queueDepth.decrementAndGet();
+      remaining.add(unwrap(entity, spillFiles));
+    }
+    if (!remaining.isEmpty()) {
+      final boolean kept = this.spill(remaining);
+      for (final SpillFile spillFile : spillFiles) {
+        spillFile.release(kept);
+      }
+    }
+    final ObjectName objectName = this.objectName;
+    if (objectName != null) {
+      this.objectName = null;
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (final JMException jmException) {
+        // Already unregistered by someone else; nothing to do.
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+
+  /*
+   * Static methods.
+   */
+
+
+  private static final Object unwrap(final Object entity, final List<? super SpillFile> spillFiles) {
+    if (entity instanceof Recovered) {
+      final Recovered recovered = (Recovered)entity;
+      spillFiles.add(recovered.spillFile);
+      return recovered.entity;
+    }
+    return entity;
+  }
+
+  /**
+   * Returns the names of the classes that may be deserialized from a
+   * spill file besides the {@linkplain #PERMITTED_CLASS_NAMES
+   * permitted JDK classes}: the classes of the supplied {@link
+   * Metamodel}'s managed types and of their attributes, together with
+   * all of their superclasses.
+   */
+  private static final Set<String> getClassNames(final Metamodel metamodel) {
+    final Set<String> classNames = new HashSet<>();
+    for (final ManagedType<?> managedType : metamodel.getManagedTypes()) {
+      addClassNames(managedType.getJavaType(), classNames);
+      for (final Attribute<?, ?> attribute : managedType.getAttributes()) {
+        addClassNames(attribute.getJavaType(), classNames);
+        if (attribute instanceof PluralAttribute) {
+          addClassNames(((PluralAttribute<?, ?, ?>)attribute).getElementType().getJavaType(), classNames);
+          if (attribute instanceof MapAttribute) {
+            addClassNames(((MapAttribute<?, ?, ?>)attribute).getKeyJavaType(), classNames);
+          }
+        }
+      }
+    }
+    return Collections.unmodifiableSet(classNames);
+  }
+
+  private static final void addClassNames(Class<?> c, final Set<? super String> classNames) {
+    while (c != null && classNames.add(c.getName())) {
+      c = c.getSuperclass();
+    }
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * A spill file whose entities have been queued again, which is
+   * deleted once the last of them has been written or spilled again.
+   *
+   * <p>If any of them could be neither written nor spilled again,
+   * the spill file is kept so that they are recovered next time.</p>
+   */
+  private static final class SpillFile {
+
+    private final Path path;
+
+    private final AtomicInteger pending;
+
+    private volatile boolean keep;
+
+    private SpillFile(final Path path, final int pending) {
+      super();
+      this.path = path;
+      this.pending = new AtomicInteger(pending);
+    }
+
+    private final void release(final boolean kept) {
+      if (!kept) {
+        this.keep = true;
+      }
+      if (this.pending.decrementAndGet() == 0 && !this.keep) {
+        try {
+          Files.deleteIfExists(this.path);
+        } catch (final IOException ioException) {
+          if (logger.isLoggable(Level.WARNING)) {
+            logger.logp(Level.WARNING, SpillFile.class.getName(), "release", ioException.getMessage(), ioException);
+          }
+        }
+      }
+    }
+
+  }
+
+  /**
+   * An entity read back from a {@link SpillFile}.
+   */
+  private static final class Recovered {
+
+    private final Object entity;
+
+    private final SpillFile spillFile;
+
+    private Recovered(final Object entity, final SpillFile spillFile) {
+      super();
+      this.entity = entity;
+      this.spillFile = spillFile;
+    }
+
+  }
+
+  /**
+   * An {@link ObjectInputStream} that resolves classes using the
+   * thread context {@link ClassLoader}, where entity classes are
+   * normally found, and that refuses to resolve any class that is
+   * neither named in a given {@link Set} nor one of the {@linkplain
+   * #PERMITTED_CLASS_NAMES permitted JDK classes}.
+   */
+  private static final class ContextObjectInputStream extends ObjectInputStream {
+
+    private final Set<String> classNames;
+
+    private ContextObjectInputStream(final InputStream in, final Set<String> classNames) throws IOException {
+      super(in);
+      this.classNames = classNames;
+    }
+
+    @Override
+    protected final Class<?> resolveClass(final ObjectStreamClass objectStreamClass) throws IOException, ClassNotFoundException {
+      if (!this.isPermitted(objectStreamClass.getName())) {
+        throw new InvalidClassException(objectStreamClass.getName(), "not a class of the persistence unit's managed types or their attributes");
+      }
+      final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+      if (classLoader != null) {
+        try {
+          return Class.forName(objectStreamClass.getName(), false, classLoader);
+        } catch (final ClassNotFoundException classNotFoundException) {
+          // Fall back to the default behavior.
+        }
+      }
+      return super.resolveClass(objectStreamClass);
+    }
+
+    @Override
+    protected final Class<?> resolveProxyClass(final String[] interfaces) throws IOException {
+      throw new InvalidClassException("Proxy classes may not be deserialized from spill files");
+    }
+
+    private final boolean isPermitted(String className) {
+      if (className.startsWith("[")) {
+        className = className.substring(className.lastIndexOf('[') + 1);
+        if (className.startsWith("L") && className.endsWith(";")) {
+          className = className.substring(1, className.length() - 1);
+        } else {
+          // An array of primitives.
+          return true;
+        }
+      }
+      if (this.classNames.contains(className)) {
+        return true;
+      }
+      return PERMITTED_CLASS_NAMES.contains(className);
+    }
+
+  }
+
+}
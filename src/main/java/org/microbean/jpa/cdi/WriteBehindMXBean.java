@@ -0,0 +1,96 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+/**
+ * A management interface exposing the metrics of a {@link
+ * WriteBehind}.
+ *
+ * <p>A {@link WriteBehind} created by the {@link JpaExtension} is
+ * registered with the {@linkplain
+ * java.lang.management.ManagementFactory#getPlatformMBeanServer()
+ * platform MBean server} under an {@link javax.management.ObjectName}
+ * of the form {@code
+ * org.microbean.jpa.cdi:type=WriteBehind,name=<persistenceUnitName>}.</p>
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see WriteBehind
+ */
+public interface WriteBehindMXBean {
+
+  /**
+   * Returns the maximum number of entities that may be queued.
+   *
+   * @return the maximum number of entities that may be queued
+   */
+  public int getCapacity();
+
+  /**
+   * Returns the number of entities currently queued.
+   *
+   * @return the number of entities currently queued
+   */
+  public int getQueueDepth();
+
+  /**
+   * Returns the total number of entities accepted for writing.
+   *
+   * @return the total number of entities accepted
+   */
+  public long getSubmittedCount();
+
+  /**
+   * Returns the total number of entities refused because the queue
+   * was full or closed.
+   *
+   * @return the total number of entities refused
+   */
+  public long getRejectedCount();
+
+  /**
+   * Returns the total number of entities written to the database.
+   *
+   * @return the total number of entities written
+   */
+  public long getWrittenCount();
+
+  /**
+   * Returns the total number of entities that could not be written
+   * to the database.
+   *
+   * @return the total number of entities that could not be written
+   */
+  public long getFailedCount();
+
+  /**
+   * Returns the total number of entities written to spill files.
+   *
+   * @return the total number of entities spilled
+   */
+  public long getSpilledCount();
+
+  /**
+   * Returns the total number of entities that were neither written
+   * to the database nor spilled.
+   *
+   * @return the total number of entities lost
+   */
+  public long getLostCount();
+
+}
@@ -0,0 +1,57 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.enterprise.context.ApplicationScoped;
+
+import javax.persistence.OptimisticLockException;
+
+@ApplicationScoped
+class ConflictingService {
+
+  private final AtomicInteger attempts;
+
+  ConflictingService() {
+    super();
+    this.attempts = new AtomicInteger();
+  }
+
+  @RetryOnConflict(maxAttempts = 5, initialBackoffMillis = 1L, maxBackoffMillis = 1L)
+  int conflictTwice() {
+    final int attempt = this.attempts.incrementAndGet();
+    if (attempt < 3) {
+      throw new OptimisticLockException("attempt " + attempt);
+    }
+    return attempt;
+  }
+
+  @RetryOnConflict(maxAttempts = 3, initialBackoffMillis = 1L, maxBackoffMillis = 1L)
+  void alwaysConflict() {
+    throw new OptimisticLockException("attempt " + this.attempts.incrementAndGet());
+  }
+
+  int getAttempts() {
+    return this.attempts.get();
+  }
+
+  void reset() {
+    this.attempts.set(0);
+  }
+
+}
@@ -0,0 +1,59 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.io.Serializable;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Version;
+
+@Entity
+public class Counter implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  @Id
+  private Long id;
+
+  private long value;
+
+  @Version
+  private long version;
+
+  protected Counter() {
+    super();
+  }
+
+  public Counter(final long id) {
+    super();
+    this.id = Long.valueOf(id);
+  }
+
+  public Long getId() {
+    return this.id;
+  }
+
+  public long getValue() {
+    return this.value;
+  }
+
+  public void increment() {
+    this.value++;
+  }
+
+}
@@ -0,0 +1,146 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.io.PrintWriter;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+final class CountingDataSource implements AutoCloseable, DataSource {
+
+  private final DataSource delegate;
+
+  final AtomicInteger acquired;
+
+  final AtomicInteger open;
+
+  final AtomicBoolean closed;
+
+  final AtomicInteger batches;
+
+  CountingDataSource(final DataSource delegate) {
+    super();
+    this.delegate = delegate;
+    this.acquired = new AtomicInteger();
+    this.open = new AtomicInteger();
+    this.closed = new AtomicBoolean();
+    this.batches = new AtomicInteger();
+  }
+
+  @Override
+  public final Connection getConnection() throws SQLException {
+    return this.count(this.delegate.getConnection());
+  }
+
+  @Override
+  public final Connection getConnection(final String username, final String password) throws SQLException {
+    return this.count(this.delegate.getConnection(username, password));
+  }
+
+  private final Connection count(final Connection connection) {
+    this.acquired.incrementAndGet();
+    this.open.incrementAndGet();
+    final AtomicInteger open = this.open;
+    return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                                              new Class<?>[] { Connection.class },
+                                              (proxy, method, arguments) -> {
+                                                if ("close".equals(method.getName()) && !connection.isClosed()) {
+                                                  open.decrementAndGet();
+                                                }
+                                                final Object returnValue;
+                                                try {
+                                                  returnValue = method.invoke(connection, arguments);
+                                                } catch (final InvocationTargetException invocationTargetException) {
+                                                  throw invocationTargetException.getCause();
+                                                }
+                                                if (returnValue instanceof Statement && method.getReturnType().isInterface()) {
+                                                  return this.count((Statement)returnValue, method.getReturnType());
+                                                }
+                                                return returnValue;
+                                              });
+  }
+
+  private final Statement count(final Statement statement, final Class<?> interfaceType) {
+    final AtomicInteger batches = this.batches;
+    return (Statement)Proxy.newProxyInstance(Statement.class.getClassLoader(),
+                                             new Class<?>[] { interfaceType },
+                                             (proxy, method, arguments) -> {
+                                               if ("executeBatch".equals(method.getName()) || "executeLargeBatch".equals(method.getName())) {
+                                                 batches.incrementAndGet();
+                                               }
+                                               try {
+                                                 return method.invoke(statement, arguments);
+                                               } catch (final InvocationTargetException invocationTargetException) {
+                                                 throw invocationTargetException.getCause();
+                                               }
+                                             });
+  }
+
+  @Override
+  public final void close() {
+    this.closed.set(true);
+  }
+
+  @Override
+  public final PrintWriter getLogWriter() throws SQLException {
+    return this.delegate.getLogWriter();
+  }
+
+  @Override
+  public final void setLogWriter(final PrintWriter out) throws SQLException {
+    this.delegate.setLogWriter(out);
+  }
+
+  @Override
+  public final void setLoginTimeout(final int seconds) throws SQLException {
+    this.delegate.setLoginTimeout(seconds);
+  }
+
+  @Override
+  public final int getLoginTimeout() throws SQLException {
+    return this.delegate.getLoginTimeout();
+  }
+
+  @Override
+  public final Logger getParentLogger() throws SQLFeatureNotSupportedException {
+    return this.delegate.getParentLogger();
+  }
+
+  @Override
+  public final <T> T unwrap(final Class<T> iface) throws SQLException {
+    return this.delegate.unwrap(iface);
+  }
+
+  @Override
+  public final boolean isWrapperFor(final Class<?> iface) throws SQLException {
+    return this.delegate.isWrapperFor(iface);
+  }
+
+}
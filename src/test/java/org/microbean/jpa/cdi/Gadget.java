@@ -0,0 +1,60 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.io.Serializable;
+
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.SequenceGenerator;
+
+// Without an IdAllocator, EclipseLink draws identifiers from
+// GADGET_SEQ; with one, they come from GADGET_POOL_SEQ and EclipseLink
+// keeps them.
+@Entity
+@SequenceGenerator(name = "gadgets", sequenceName = "GADGET_SEQ", allocationSize = 50)
+public class Gadget implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  @Id
+  @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "gadgets")
+  @PooledId(sequenceName = "GADGET_POOL_SEQ")
+  private Long id;
+
+  private String name;
+
+  protected Gadget() {
+    super();
+  }
+
+  public Gadget(final String name) {
+    super();
+    this.name = name;
+  }
+
+  public Long getId() {
+    return this.id;
+  }
+
+  public String getName() {
+    return this.name;
+  }
+
+}
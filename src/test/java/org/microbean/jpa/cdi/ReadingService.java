@@ -0,0 +1,63 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import javax.enterprise.context.ApplicationScoped;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.FlushModeType;
+
+@ApplicationScoped
+class ReadingService {
+
+  @Inject
+  @Named("test")
+  private EntityManagerFactory entityManagerFactory;
+
+  ReadingService() {
+    super();
+  }
+
+  @ReadOnly
+  boolean isReadOnly() {
+    return ReadOnlyMode.isActive();
+  }
+
+  @ReadOnly
+  FlushModeType getReadOnlyFlushMode() {
+    return this.getFlushMode();
+  }
+
+  FlushModeType getFlushMode() {
+    final EntityManager entityManager = this.entityManagerFactory.createEntityManager();
+    try {
+      return entityManager.getFlushMode();
+    } finally {
+      entityManager.close();
+    }
+  }
+
+  @ReadOnly
+  void fail() {
+    throw new IllegalStateException();
+  }
+
+}
@@ -0,0 +1,167 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestAsyncPersistence {
+
+  private EntityManagerFactory entityManagerFactory;
+
+  private AsyncPersistence asyncPersistence;
+
+  public TestAsyncPersistence() {
+    super();
+  }
+
+  @Before
+  public void startEntityManagerFactory() {
+    this.entityManagerFactory = Widgets.createEntityManagerFactory(this.getClass().getSimpleName());
+  }
+
+  @After
+  public void stopEntityManagerFactory() {
+    if (this.asyncPersistence != null) {
+      this.asyncPersistence.close();
+    }
+    if (this.entityManagerFactory != null) {
+      this.entityManagerFactory.close();
+    }
+  }
+
+  @Test
+  public void testCompletion() throws ExecutionException, InterruptedException, TimeoutException {
+    this.asyncPersistence = new AsyncPersistence("test", this.entityManagerFactory, null, 2, 4, 0L, 10000L);
+    this.asyncPersistence.inTransactionAsync(em -> {
+        em.persist(new Widget(1L, "one"));
+        return null;
+      }).toCompletableFuture().get(10L, TimeUnit.SECONDS);
+    final Widget widget = this.asyncPersistence.findAsync(Widget.class, Long.valueOf(1L)).toCompletableFuture().get(10L, TimeUnit.SECONDS);
+    assertNotNull(widget);
+    assertEquals(1, this.asyncPersistence.queryAsync("SELECT w FROM Widget w", Widget.class).toCompletableFuture().get(10L, TimeUnit.SECONDS).size());
+    assertEquals(6, this.asyncPersistence.getAvailableSlots());
+  }
+
+  @Test
+  public void testBoundedRejection() throws ExecutionException, InterruptedException, TimeoutException {
+    this.asyncPersistence = new AsyncPersistence("test", this.entityManagerFactory, null, 1, 1, 0L, 10000L);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CompletableFuture<Object> running = this.block(release);
+    final CompletableFuture<Object> queued = this.block(release);
+    final CompletableFuture<Object> rejected = this.block(release);
+    assertTrue(rejected.isDone());
+    assertRejected(rejected);
+    release.countDown();
+    running.get(10L, TimeUnit.SECONDS);
+    queued.get(10L, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testTimeoutRejection() throws ExecutionException, InterruptedException, TimeoutException {
+    this.asyncPersistence = new AsyncPersistence("test", this.entityManagerFactory, null, 1, 0, 200L, 10000L);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CompletableFuture<Object> running = this.block(release);
+    final long start = System.nanoTime();
+    final CompletableFuture<Object> rejected = this.block(release);
+    assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 200L);
+    assertRejected(rejected);
+    release.countDown();
+    running.get(10L, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testNoSpuriousRejection() throws ExecutionException, InterruptedException, TimeoutException {
+    // With one thread and no queue, an operation submitted as soon as
+    // the previous one completes must always be accepted, even though
+    // the previous one's thread may not yet be idle.
+    this.asyncPersistence = new AsyncPersistence("test", this.entityManagerFactory, null, 1, 0, 0L, 10000L);
+    for (int i = 0; i < 1000; i++) {
+      final Integer value = Integer.valueOf(i);
+      assertEquals(value, this.asyncPersistence.inTransactionAsync(em -> value).toCompletableFuture().get(10L, TimeUnit.SECONDS));
+    }
+  }
+
+  @Test
+  public void testCloseWaitsForSubmittedOperations() {
+    this.asyncPersistence = new AsyncPersistence("test", this.entityManagerFactory, null, 1, 8, 0L, 10000L);
+    final List<CompletableFuture<Object>> futures = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      final long id = i;
+      futures.add(this.asyncPersistence.inTransactionAsync(em -> {
+            sleep(50L);
+            em.persist(new Widget(id, "widget-" + id));
+            return (Object)null;
+          }).toCompletableFuture());
+    }
+    this.asyncPersistence.close();
+    for (final CompletableFuture<Object> future : futures) {
+      assertTrue(future.isDone());
+      assertTrue(!future.isCompletedExceptionally());
+    }
+    assertRejected(this.asyncPersistence.inTransactionAsync(em -> (Object)null).toCompletableFuture());
+  }
+
+  private final CompletableFuture<Object> block(final CountDownLatch release) {
+    return this.asyncPersistence.inTransactionAsync(em -> {
+        try {
+          release.await();
+        } catch (final InterruptedException interruptedException) {
+          Thread.currentThread().interrupt();
+        }
+        return (Object)null;
+      }).toCompletableFuture();
+  }
+
+  private static final void assertRejected(final CompletableFuture<?> future) {
+    try {
+      future.get(10L, TimeUnit.SECONDS);
+      fail();
+    } catch (final ExecutionException expected) {
+      assertTrue(expected.getCause() instanceof RejectedExecutionException);
+    } catch (final InterruptedException | TimeoutException unexpected) {
+      throw new AssertionError(unexpected);
+    }
+  }
+
+  private static final void sleep(final long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (final InterruptedException interruptedException) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+}
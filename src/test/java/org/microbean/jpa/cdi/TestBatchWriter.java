@@ -0,0 +1,120 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.eclipse.persistence.jpa.PersistenceProvider;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestBatchWriter {
+
+  private static final int ROWS = Integer.getInteger("widgets", 20000).intValue();
+
+  private CountingDataSource dataSource;
+
+  private EntityManagerFactory entityManagerFactory;
+
+  public TestBatchWriter() {
+    super();
+  }
+
+  @After
+  public void stopEntityManagerFactory() {
+    if (this.entityManagerFactory != null) {
+      this.entityManagerFactory.close();
+    }
+  }
+
+  @Test
+  public void testJdbcBatching() {
+    this.startEntityManagerFactory("jdbcBatching", true);
+    final BatchWriter.Result result = this.write();
+    assertEquals(ROWS, result.getRows());
+    assertTrue(result.getRowsPerSecond() > 0.0);
+    // With a batch size of 500, the provider sends its inserts to the
+    // driver in JDBC batches rather than one statement at a time.
+    assertTrue(this.dataSource.batches.get() > 0);
+    assertRows(ROWS);
+  }
+
+  @Test
+  public void testNoJdbcBatchingByDefault() {
+    this.startEntityManagerFactory("noJdbcBatching", false);
+    final BatchWriter.Result result = this.write();
+    assertEquals(ROWS, result.getRows());
+    assertEquals(0, this.dataSource.batches.get());
+    assertRows(ROWS);
+  }
+
+  private final void startEntityManagerFactory(final String name, final boolean jdbcBatching) {
+    final Properties unitProperties = new Properties();
+    unitProperties.setProperty(BatchWriter.JDBC_BATCHING_PROPERTY_NAME, String.valueOf(jdbcBatching));
+    unitProperties.setProperty(BatchWriter.BATCH_SIZE_PROPERTY_NAME, "500");
+    // What the JpaExtension passes to the provider for this unit.
+    final Map<String, Object> properties = new HashMap<>();
+    BatchWriter.addJdbcBatchingProperties(properties, unitProperties);
+    assertEquals(jdbcBatching, !properties.isEmpty());
+    this.dataSource = new CountingDataSource(Widgets.createDataSource(this.getClass().getSimpleName() + "-" + name));
+    this.entityManagerFactory =
+      new PersistenceProvider().createContainerEntityManagerFactory(Widgets.createPersistenceUnitInfo(name, this.dataSource, unitProperties),
+                                                                    properties);
+  }
+
+  private final BatchWriter.Result write() {
+    final BatchWriter batchWriter = new BatchWriter(this.entityManagerFactory, null, 500);
+    final Iterable<Widget> widgets = () -> new Iterator<Widget>() {
+        private int i;
+
+        @Override
+        public final boolean hasNext() {
+          return this.i < ROWS;
+        }
+
+        @Override
+        public final Widget next() {
+          final int id = this.i++;
+          return new Widget(id, "widget-" + id);
+        }
+      };
+    final BatchWriter.Result returnValue = batchWriter.write(widgets);
+    assertEquals(ROWS, batchWriter.getTotalRows());
+    return returnValue;
+  }
+
+  private final void assertRows(final long expected) {
+    final EntityManager verifier = this.entityManagerFactory.createEntityManager();
+    try {
+      final Long count = verifier.createQuery("SELECT COUNT(w) FROM Widget w", Long.class).getSingleResult();
+      assertEquals(expected, count.longValue());
+    } finally {
+      verifier.close();
+    }
+  }
+
+}
@@ -0,0 +1,239 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.sql.SQLException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import java.util.function.LongFunction;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.SharedCacheMode;
+
+import javax.sql.DataSource;
+
+import org.eclipse.persistence.jpa.PersistenceProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestBulkLoader {
+
+  private static final int ROWS = Integer.getInteger("widgets", 20000).intValue();
+
+  private EntityManagerFactory entityManagerFactory;
+
+  private DataSource dataSource;
+
+  public TestBulkLoader() {
+    super();
+  }
+
+  @Before
+  public void startEntityManagerFactory() {
+    final Map<String, Object> batchingProperties = new HashMap<>();
+    BatchWriter.addJdbcBatchingProperties(batchingProperties, null, 500);
+    final Properties properties = new Properties();
+    properties.putAll(batchingProperties);
+    this.entityManagerFactory = Widgets.createEntityManagerFactory(this.getClass().getSimpleName(), properties);
+    this.dataSource = Widgets.createDataSource(this.getClass().getSimpleName());
+  }
+
+  @After
+  public void stopEntityManagerFactory() {
+    if (this.entityManagerFactory != null) {
+      this.entityManagerFactory.close();
+    }
+  }
+
+  @Test
+  public void testInsertAndMerge() throws SQLException {
+    // Batched persist() calls: the baseline.
+    final BatchWriter batchWriter = new BatchWriter(this.entityManagerFactory, null, 500);
+    final BatchWriter.Result baseline = batchWriter.write(widgets(0, ROWS, id -> new Widget(-1L - id, "baseline-" + id)));
+
+    final BulkLoader bulkLoader = new BulkLoader(this.entityManagerFactory, this.dataSource, 100, 5000);
+    final long start = System.nanoTime();
+    assertEquals(ROWS, bulkLoader.insert(Widget.class, widgets(0, ROWS, id -> new Widget(id, "widget-" + id))));
+    final double rowsPerSecond = ROWS / ((System.nanoTime() - start) / 1.0E9);
+    // Multi-row statements are usually several times faster; a loader
+    // that is not even faster than batched persist() calls, which it
+    // follows and so runs with a warmer JIT, has regressed.
+    assertTrue("BulkLoader: " + Math.round(rowsPerSecond) + " rows/s; BatchWriter: " + baseline,
+               rowsPerSecond > baseline.getRowsPerSecond());
+
+    assertEquals(ROWS, this.countWidgets());
+    assertEquals("widget-42", this.findWidgetName(42L));
+
+    // Rename the first half and add a few more.
+    final int merged = ROWS / 2 + 100;
+    assertEquals(merged,
+                 bulkLoader.merge(Widget.class,
+                                  widgets(0, merged, id -> new Widget(id < ROWS / 2 ? id : ROWS + id, "merged-" + id))));
+    assertEquals(ROWS + 100, this.countWidgets());
+    assertEquals("merged-42", this.findWidgetName(42L));
+    assertEquals("widget-" + (ROWS - 1), this.findWidgetName(ROWS - 1));
+    assertEquals(ROWS + merged, bulkLoader.getTotalRows());
+  }
+
+  @Test
+  public void testVersionedEntity() throws SQLException {
+    final BulkLoader bulkLoader = new BulkLoader(this.entityManagerFactory, this.dataSource, 7, 50);
+    assertEquals(123, bulkLoader.insert(Counter.class, () -> new Iterator<Counter>() {
+        private long id;
+
+        @Override
+        public final boolean hasNext() {
+          return this.id < 123L;
+        }
+
+        @Override
+        public final Counter next() {
+          return new Counter(this.id++);
+        }
+      }));
+
+    // Rows written by the loader must be usable by the provider,
+    // version column included.
+    final EntityManager entityManager = this.entityManagerFactory.createEntityManager();
+    try {
+      entityManager.getTransaction().begin();
+      entityManager.find(Counter.class, Long.valueOf(122L)).increment();
+      entityManager.getTransaction().commit();
+      entityManager.clear();
+      assertEquals(1L, entityManager.find(Counter.class, Long.valueOf(122L)).getValue());
+      assertEquals(123L,
+                   entityManager.createQuery("SELECT COUNT(c) FROM Counter c", Long.class).getSingleResult().longValue());
+    } finally {
+      entityManager.close();
+    }
+  }
+
+  @Test
+  public void testGeneratedIdentifiers() throws SQLException {
+    final BulkLoader bulkLoader = new BulkLoader(this.entityManagerFactory, this.dataSource, 7, 50);
+    final List<Gadget> gadgets = new ArrayList<>();
+    for (int i = 0; i < 120; i++) {
+      gadgets.add(new Gadget("gadget-" + i));
+    }
+    assertEquals(120L, bulkLoader.insert(Gadget.class, gadgets));
+
+    // The provider assigned every identifier, and they are distinct.
+    final Set<Long> ids = new HashSet<>();
+    for (final Gadget gadget : gadgets) {
+      assertNotNull(gadget.getId());
+      assertTrue(ids.add(gadget.getId()));
+    }
+
+    // The provider can read the rows back, and persisting another
+    // Gadget does not collide with any identifier the loader used.
+    final EntityManager entityManager = this.entityManagerFactory.createEntityManager();
+    try {
+      assertEquals("gadget-119", entityManager.find(Gadget.class, gadgets.get(119).getId()).getName());
+      entityManager.getTransaction().begin();
+      final Gadget gadget = new Gadget("persisted");
+      entityManager.persist(gadget);
+      entityManager.getTransaction().commit();
+      assertFalse(ids.contains(gadget.getId()));
+      assertEquals(121L,
+                   entityManager.createQuery("SELECT COUNT(g) FROM Gadget g", Long.class).getSingleResult().longValue());
+    } finally {
+      entityManager.close();
+    }
+  }
+
+  @Test
+  public void testMappingFileNames() throws SQLException {
+    // The mapping file renames Widget's table and columns; the loader
+    // must write where the provider will read.
+    final String name = this.getClass().getSimpleName() + "-orm";
+    final DataSource dataSource = Widgets.createDataSource(name);
+    final EntityManagerFactory entityManagerFactory =
+      new PersistenceProvider()
+      .createContainerEntityManagerFactory(Widgets.createPersistenceUnitInfo(name,
+                                                                             dataSource,
+                                                                             null,
+                                                                             SharedCacheMode.NONE,
+                                                                             Collections.singleton(this.getClass().getSimpleName() + "/orm.xml")),
+                                           null);
+    try {
+      final BulkLoader bulkLoader = new BulkLoader(entityManagerFactory, dataSource, 10, 100);
+      assertEquals(25L, bulkLoader.insert(Widget.class, widgets(0, 25, id -> new Widget(id, "mapped-" + id))));
+      final EntityManager entityManager = entityManagerFactory.createEntityManager();
+      try {
+        assertEquals("mapped-24", entityManager.find(Widget.class, Long.valueOf(24L)).getName());
+        assertEquals(Long.valueOf(25L),
+                     entityManager.createNativeQuery("SELECT COUNT(WIDGET_NAME) FROM BULK_WIDGET").getSingleResult());
+      } finally {
+        entityManager.close();
+      }
+    } finally {
+      entityManagerFactory.close();
+    }
+  }
+
+  private final long countWidgets() {
+    final EntityManager entityManager = this.entityManagerFactory.createEntityManager();
+    try {
+      return entityManager.createQuery("SELECT COUNT(w) FROM Widget w WHERE w.id >= 0", Long.class).getSingleResult().longValue();
+    } finally {
+      entityManager.close();
+    }
+  }
+
+  private final String findWidgetName(final long id) {
+    final EntityManager entityManager = this.entityManagerFactory.createEntityManager();
+    try {
+      return entityManager.find(Widget.class, Long.valueOf(id)).getName();
+    } finally {
+      entityManager.close();
+    }
+  }
+
+  private static final Iterable<Widget> widgets(final int from, final int to, final LongFunction<Widget> factory) {
+    return () -> new Iterator<Widget>() {
+        private int i = from;
+
+        @Override
+        public final boolean hasNext() {
+          return this.i < to;
+        }
+
+        @Override
+        public final Widget next() {
+          return factory.apply(this.i++);
+        }
+      };
+  }
+
+}
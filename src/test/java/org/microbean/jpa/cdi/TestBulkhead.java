@@ -0,0 +1,149 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestBulkhead {
+
+  private EntityManagerFactory delegate;
+
+  private Bulkhead bulkhead;
+
+  private EntityManagerFactory entityManagerFactory;
+
+  public TestBulkhead() {
+    super();
+  }
+
+  @Before
+  public void startEntityManagerFactory() {
+    this.delegate = Widgets.createEntityManagerFactory(this.getClass().getSimpleName());
+    this.bulkhead = new Bulkhead(this.getClass().getSimpleName(), 2, 1, 5000L);
+    this.bulkhead.register();
+    this.entityManagerFactory = this.bulkhead.wrap(this.delegate);
+  }
+
+  @After
+  public void stopEntityManagerFactory() {
+    if (this.bulkhead != null) {
+      this.bulkhead.close();
+    }
+    if (this.entityManagerFactory != null) {
+      this.entityManagerFactory.close();
+    }
+  }
+
+  @Test
+  public void testQueueThenRejectFast() throws Exception {
+    final EntityManager first = this.entityManagerFactory.createEntityManager();
+    final EntityManager second = this.entityManagerFactory.createEntityManager();
+    assertEquals(2, this.bulkhead.getActive());
+
+    // The third caller waits in the queue.
+    final CompletableFuture<EntityManager> third =
+      CompletableFuture.supplyAsync(() -> this.entityManagerFactory.createEntityManager());
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5L);
+    while (this.bulkhead.getQueueDepth() < 1 && System.nanoTime() < deadline) {
+      Thread.sleep(10L);
+    }
+    assertEquals(1, this.bulkhead.getQueueDepth());
+
+    // The queue is full, so the fourth caller is rejected without
+    // waiting.
+    final long start = System.nanoTime();
+    try {
+      this.entityManagerFactory.createEntityManager();
+      fail();
+    } catch (final RejectedExecutionException expected) {
+      assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000L);
+    }
+    assertEquals(1L, this.bulkhead.getRejectedCount());
+
+    Thread.sleep(50L);
+    first.close();
+    first.close(); // closing twice must not release twice
+    final EntityManager thirdEntityManager = third.get(5L, TimeUnit.SECONDS);
+    assertEquals(0, this.bulkhead.getQueueDepth());
+    assertEquals(2, this.bulkhead.getActive());
+    assertTrue(this.bulkhead.getMaxWaitMillis() >= 50L);
+
+    second.close();
+    thirdEntityManager.close();
+    assertEquals(0, this.bulkhead.getActive());
+    assertEquals(3L, this.bulkhead.getAcquiredCount());
+  }
+
+  @Test
+  public void testTimeout() {
+    final Bulkhead bulkhead = new Bulkhead("timeout", 1, 1, 100L);
+    final EntityManagerFactory entityManagerFactory = bulkhead.wrap(this.delegate);
+    final EntityManager first = entityManagerFactory.createEntityManager();
+    try {
+      entityManagerFactory.createEntityManager();
+      fail();
+    } catch (final RejectedExecutionException expected) {
+      assertEquals(1L, bulkhead.getRejectedCount());
+    } finally {
+      first.close();
+    }
+    entityManagerFactory.createEntityManager().close();
+    assertEquals(0, bulkhead.getActive());
+  }
+
+  @Test
+  public void testAbandonedEntityManagerPermitIsReclaimed() throws InterruptedException {
+    final Bulkhead bulkhead = new Bulkhead("abandoned", 1, 1, 100L);
+    final EntityManagerFactory entityManagerFactory = bulkhead.wrap(this.delegate);
+    abandon(entityManagerFactory);
+    assertEquals(1, bulkhead.getActive());
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10L);
+    EntityManager entityManager = null;
+    while (entityManager == null && System.nanoTime() < deadline) {
+      System.gc();
+      try {
+        entityManager = entityManagerFactory.createEntityManager();
+      } catch (final RejectedExecutionException notYet) {
+        Thread.sleep(10L);
+      }
+    }
+    assertNotNull(entityManager);
+    assertEquals(1L, bulkhead.getReclaimedCount());
+    entityManager.close();
+    assertEquals(0, bulkhead.getActive());
+  }
+
+  private static final void abandon(final EntityManagerFactory entityManagerFactory) {
+    // Never closed.
+    entityManagerFactory.createEntityManager();
+  }
+
+}
@@ -0,0 +1,422 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.io.IOException;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import java.util.concurrent.TimeUnit;
+
+import java.util.function.Consumer;
+
+import javax.enterprise.inject.literal.NamedLiteral;
+
+import javax.enterprise.inject.se.SeContainer;
+import javax.enterprise.inject.se.SeContainerInitializer;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.SharedCacheMode;
+
+import javax.persistence.spi.PersistenceUnitInfo;
+
+import javax.transaction.TransactionManager;
+
+import org.eclipse.persistence.jpa.PersistenceProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestCacheCoordination {
+
+  private List<AutoCloseable> closeables;
+
+  public TestCacheCoordination() {
+    super();
+  }
+
+  @Before
+  public void setUp() {
+    this.closeables = new ArrayList<>();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    Collections.reverse(this.closeables);
+    for (final AutoCloseable closeable : this.closeables) {
+      closeable.close();
+    }
+  }
+
+  @Test
+  public void testNotConfigured() {
+    final PersistenceUnitInfo persistenceUnitInfo =
+      Widgets.createPersistenceUnitInfo("cacheCoordination", Widgets.createDataSource("cacheCoordination"), null);
+    assertNull(CacheCoordination.fromProperties("cacheCoordination", persistenceUnitInfo));
+  }
+
+  @Test
+  public void testLoopback() throws InterruptedException {
+    final String database = "cacheCoordination-" + System.nanoTime();
+    final Properties properties = new Properties();
+    properties.setProperty(CacheCoordination.TRANSPORT_PROPERTY_NAME, "loopback");
+    properties.setProperty(CacheCoordination.CHANNEL_PROPERTY_NAME, database);
+    this.assertCoordinated(database, properties, properties);
+  }
+
+  @Test
+  public void testUdp() throws IOException, InterruptedException {
+    final int portA;
+    final int portB;
+    try (final DatagramSocket a = new DatagramSocket(0);
+         final DatagramSocket b = new DatagramSocket(0)) {
+      portA = a.getLocalPort();
+      portB = b.getLocalPort();
+    }
+    this.assertCoordinated("cacheCoordination-" + System.nanoTime(),
+                           socketProperties("udp", portA, portB),
+                           socketProperties("udp", portB, portA));
+  }
+
+  @Test
+  public void testTcp() throws IOException, InterruptedException {
+    final int portA;
+    final int portB;
+    try (final ServerSocket a = new ServerSocket(0);
+         final ServerSocket b = new ServerSocket(0)) {
+      portA = a.getLocalPort();
+      portB = b.getLocalPort();
+    }
+    this.assertCoordinated("cacheCoordination-" + System.nanoTime(),
+                           socketProperties("tcp", portA, portB),
+                           socketProperties("tcp", portB, portA));
+  }
+
+  @Test
+  public void testUnitsMappingTheSameClassPublishOnlyTheirOwnChanges() {
+    final String database = "cacheCoordination-" + System.nanoTime();
+    final CacheCoordination[] coordinations = new CacheCoordination[2];
+    final EntityManagerFactory a =
+      this.createNode(database + "-a", database + "-a", loopbackProperties(database + "-a"), true, coordinations, 0);
+    final EntityManagerFactory b =
+      this.createNode(database + "-b", database + "-b", loopbackProperties(database + "-b"), true, coordinations, 1);
+    Widgets.insert(a, 1);
+    Widgets.insert(b, 1);
+    inTransaction(a, em -> em.find(Widget.class, Long.valueOf(0L)).setName("changed"));
+    assertEquals(1L, coordinations[0].getPublishedMessageCount());
+    assertEquals(0L, coordinations[1].getPublishedMessageCount());
+  }
+
+  @Test
+  public void testInterleavedLocalTransactions() throws InterruptedException {
+    final String database = "cacheCoordination-" + System.nanoTime();
+    final CacheCoordination[] coordinations = new CacheCoordination[2];
+    final EntityManagerFactory a = this.createNode(database, database + "-a", loopbackProperties(database), true, coordinations, 0);
+    final EntityManagerFactory b = this.createNode(database, database + "-b", loopbackProperties(database), false, coordinations, 1);
+    Widgets.insert(a, 2);
+    assertNotNull(find(b, 0L));
+    assertNotNull(find(b, 1L));
+
+    // Two transactions interleaved on one thread: the one that rolls
+    // back must neither publish nor discard the other's changes.
+    final EntityManager first = a.createEntityManager();
+    final EntityManager second = a.createEntityManager();
+    try {
+      first.getTransaction().begin();
+      second.getTransaction().begin();
+      first.find(Widget.class, Long.valueOf(0L)).setName("committed");
+      first.flush();
+      second.find(Widget.class, Long.valueOf(1L)).setName("rolled back");
+      second.flush();
+      second.getTransaction().rollback();
+      assertEquals(0L, coordinations[0].getPublishedMessageCount());
+      first.getTransaction().commit();
+    } finally {
+      second.close();
+      first.close();
+    }
+    assertEquals(1L, coordinations[0].getPublishedMessageCount());
+    awaitEviction(b, 0L);
+    assertFalse(b.getCache().contains(Widget.class, Long.valueOf(0L)));
+    assertTrue(b.getCache().contains(Widget.class, Long.valueOf(1L)));
+    assertEquals("committed", find(b, 0L).getName());
+  }
+
+  @Test
+  public void testBulkUpdateEvictsEntityClass() throws InterruptedException {
+    final String database = "cacheCoordination-" + System.nanoTime();
+    final CacheCoordination[] coordinations = new CacheCoordination[2];
+    final EntityManagerFactory a = this.createNode(database, database + "-a", loopbackProperties(database), true, coordinations, 0);
+    final EntityManagerFactory b = this.createNode(database, database + "-b", loopbackProperties(database), false, coordinations, 1);
+    Widgets.insert(a, 2);
+    assertNotNull(find(b, 0L));
+    assertNotNull(find(b, 1L));
+    inTransaction(a, em -> em.createQuery("UPDATE Widget w SET w.name = :name").setParameter("name", "bulk").executeUpdate());
+    assertEquals(1L, coordinations[0].getPublishedMessageCount());
+    awaitEviction(b, 0L);
+    awaitEviction(b, 1L);
+    assertEquals("bulk", find(b, 0L).getName());
+    assertEquals("bulk", find(b, 1L).getName());
+  }
+
+  @Test
+  public void testJta() throws Exception {
+    final String unitName = "cacheCoordinationJta";
+    final Thread currentThread = Thread.currentThread();
+    final ClassLoader oldContextClassLoader = currentThread.getContextClassLoader();
+    final URL root = oldContextClassLoader.getResource(this.getClass().getSimpleName() + "/");
+    assertNotNull(root);
+    // Make this test's META-INF/persistence.xml, which describes a JTA
+    // persistence unit with cache coordination, visible to the
+    // JpaExtension in addition to the test tree's.
+    currentThread.setContextClassLoader(new URLClassLoader(new URL[] { root }, oldContextClassLoader));
+    try (final SeContainer container = SeContainerInitializer.newInstance().initialize()) {
+      final EntityManagerFactory a = JpaExtension.getEntityManagerFactory(container.getBeanManager(), unitName);
+      final CacheCoordination coordination = container.select(CacheCoordination.class, NamedLiteral.of(unitName)).get();
+      final TransactionManager transactionManager = container.select(TransactionManager.class).get();
+      inJtaTransaction(transactionManager, a, em -> {
+          em.persist(new Widget(0L, "widget-0"));
+          em.persist(new Widget(1L, "widget-1"));
+        });
+
+      final CacheCoordination[] coordinations = new CacheCoordination[1];
+      final EntityManagerFactory b = this.createNode(unitName, unitName + "-b", loopbackProperties(unitName), false, coordinations, 0);
+      assertNotNull(find(b, 0L));
+      assertNotNull(find(b, 1L));
+
+      // A rolled back JTA transaction publishes nothing.
+      final long published = coordination.getPublishedMessageCount();
+      transactionManager.begin();
+      try {
+        final EntityManager entityManager = a.createEntityManager();
+        try {
+          entityManager.joinTransaction();
+          entityManager.find(Widget.class, Long.valueOf(0L)).setName("rolled back");
+          entityManager.flush();
+        } finally {
+          entityManager.close();
+        }
+      } finally {
+        transactionManager.rollback();
+      }
+      assertEquals(published, coordination.getPublishedMessageCount());
+
+      // The EntityManager is closed before the transaction commits,
+      // so the transaction manager flushes the changes while no
+      // EntityManager method is executing.
+      inJtaTransaction(transactionManager, a, em -> {
+          em.find(Widget.class, Long.valueOf(0L)).setName("changed");
+          em.remove(em.find(Widget.class, Long.valueOf(1L)));
+        });
+      assertEquals(published + 1L, coordination.getPublishedMessageCount());
+      awaitEviction(b, 0L);
+      awaitEviction(b, 1L);
+      assertEquals("changed", find(b, 0L).getName());
+      assertNull(find(b, 1L));
+    } finally {
+      currentThread.setContextClassLoader(oldContextClassLoader);
+    }
+  }
+
+  @Test
+  public void testTcpStalledPeerDoesNotBlockSend() throws IOException {
+    // The peer's kernel accepts the connection, but the peer never
+    // reads from it, so writes to it eventually block.
+    try (final ServerSocket stalledPeer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      final int port;
+      try (final ServerSocket s = new ServerSocket(0)) {
+        port = s.getLocalPort();
+      }
+      final TcpCacheInvalidationTransport transport =
+        new TcpCacheInvalidationTransport(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                                          Collections.singleton(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                                                                      stalledPeer.getLocalPort())),
+                                          1000,
+                                          200L,
+                                          4);
+      this.closeables.add(transport);
+      transport.start(message -> {});
+      final byte[] message = new byte[1024 * 1024];
+      final long start = System.nanoTime();
+      for (int i = 0; i < 100; i++) {
+        transport.send(message);
+      }
+      assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000L);
+      assertTrue(transport.getDroppedMessageCount() > 0L);
+    }
+  }
+
+  private final void assertCoordinated(final String database,
+                                       final Properties propertiesA,
+                                       final Properties propertiesB)
+    throws InterruptedException {
+    final CacheCoordination[] coordinations = new CacheCoordination[2];
+    final EntityManagerFactory a = this.createNode(database, database + "-a", propertiesA, true, coordinations, 0);
+    final EntityManagerFactory b = this.createNode(database, database + "-b", propertiesB, false, coordinations, 1);
+    Widgets.insert(a, 2);
+
+    // Cache both widgets on node b.
+    assertEquals("widget-0", find(b, 0L).getName());
+    assertEquals("widget-1", find(b, 1L).getName());
+    assertTrue(b.getCache().contains(Widget.class, Long.valueOf(0L)));
+    assertTrue(b.getCache().contains(Widget.class, Long.valueOf(1L)));
+
+    // A rolled back change publishes nothing.
+    final long published = coordinations[0].getPublishedMessageCount();
+    EntityManager entityManager = a.createEntityManager();
+    try {
+      entityManager.getTransaction().begin();
+      entityManager.find(Widget.class, Long.valueOf(0L)).setName("rolled back");
+      entityManager.flush();
+      entityManager.getTransaction().rollback();
+    } finally {
+      entityManager.close();
+    }
+    assertEquals(published, coordinations[0].getPublishedMessageCount());
+
+    // A committed update and removal on node a evict the affected
+    // widgets from node b's cache.
+    entityManager = a.createEntityManager();
+    try {
+      entityManager.getTransaction().begin();
+      entityManager.find(Widget.class, Long.valueOf(0L)).setName("changed");
+      entityManager.remove(entityManager.find(Widget.class, Long.valueOf(1L)));
+      entityManager.getTransaction().commit();
+    } finally {
+      entityManager.close();
+    }
+    assertEquals(published + 1L, coordinations[0].getPublishedMessageCount());
+    final long deadline = System.currentTimeMillis() + 10000L;
+    while ((b.getCache().contains(Widget.class, Long.valueOf(0L)) || b.getCache().contains(Widget.class, Long.valueOf(1L))) &&
+           System.currentTimeMillis() < deadline) {
+      Thread.sleep(10L);
+    }
+    assertFalse(b.getCache().contains(Widget.class, Long.valueOf(0L)));
+    assertFalse(b.getCache().contains(Widget.class, Long.valueOf(1L)));
+    assertEquals(1L, coordinations[1].getReceivedMessageCount());
+    assertEquals(2L, coordinations[1].getEvictionCount());
+    assertEquals("changed", find(b, 0L).getName());
+    assertNull(find(b, 1L));
+  }
+
+  private final EntityManagerFactory createNode(final String database,
+                                                final String name,
+                                                final Properties properties,
+                                                final boolean createTables,
+                                                final CacheCoordination[] coordinations,
+                                                final int index) {
+    final Properties extraProperties = new Properties();
+    extraProperties.putAll(properties);
+    if (!createTables) {
+      extraProperties.setProperty("eclipselink.ddl-generation", "none");
+    }
+    final PersistenceUnitInfo persistenceUnitInfo =
+      Widgets.createPersistenceUnitInfo(name, Widgets.createDataSource(database), extraProperties, SharedCacheMode.ALL);
+    final CacheCoordination cacheCoordination = CacheCoordination.fromProperties(name, persistenceUnitInfo);
+    this.closeables.add(cacheCoordination);
+    coordinations[index] = cacheCoordination;
+    final EntityManagerFactory entityManagerFactory =
+      new PersistenceProvider().createContainerEntityManagerFactory(cacheCoordination.apply(persistenceUnitInfo), null);
+    this.closeables.add(entityManagerFactory::close);
+    return cacheCoordination.wrap(entityManagerFactory, null);
+  }
+
+  private static final void inTransaction(final EntityManagerFactory entityManagerFactory, final Consumer<? super EntityManager> work) {
+    final EntityManager entityManager = entityManagerFactory.createEntityManager();
+    try {
+      entityManager.getTransaction().begin();
+      work.accept(entityManager);
+      entityManager.getTransaction().commit();
+    } finally {
+      entityManager.close();
+    }
+  }
+
+  private static final void inJtaTransaction(final TransactionManager transactionManager,
+                                             final EntityManagerFactory entityManagerFactory,
+                                             final Consumer<? super EntityManager> work)
+    throws Exception {
+    transactionManager.begin();
+    boolean committed = false;
+    try {
+      final EntityManager entityManager = entityManagerFactory.createEntityManager();
+      try {
+        entityManager.joinTransaction();
+        work.accept(entityManager);
+      } finally {
+        entityManager.close();
+      }
+      transactionManager.commit();
+      committed = true;
+    } finally {
+      if (!committed) {
+        transactionManager.rollback();
+      }
+    }
+  }
+
+  private static final void awaitEviction(final EntityManagerFactory entityManagerFactory, final long id) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + 10000L;
+    while (entityManagerFactory.getCache().contains(Widget.class, Long.valueOf(id)) && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10L);
+    }
+    assertFalse(entityManagerFactory.getCache().contains(Widget.class, Long.valueOf(id)));
+  }
+
+  private static final Properties loopbackProperties(final String channel) {
+    final Properties properties = new Properties();
+    properties.setProperty(CacheCoordination.TRANSPORT_PROPERTY_NAME, "loopback");
+    properties.setProperty(CacheCoordination.CHANNEL_PROPERTY_NAME, channel);
+    return properties;
+  }
+
+  private static final Widget find(final EntityManagerFactory entityManagerFactory, final long id) {
+    final EntityManager entityManager = entityManagerFactory.createEntityManager();
+    try {
+      return entityManager.find(Widget.class, Long.valueOf(id));
+    } finally {
+      entityManager.close();
+    }
+  }
+
+  private static final Properties socketProperties(final String transport, final int port, final int peerPort) {
+    final Properties properties = new Properties();
+    properties.setProperty(CacheCoordination.TRANSPORT_PROPERTY_NAME, transport);
+    properties.setProperty(CacheCoordination.BIND_ADDRESS_PROPERTY_NAME, String.valueOf(port));
+    properties.setProperty(CacheCoordination.PEERS_PROPERTY_NAME, "127.0.0.1:" + peerPort);
+    return properties;
+  }
+
+}
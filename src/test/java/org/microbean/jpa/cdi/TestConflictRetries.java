@@ -0,0 +1,254 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.lang.management.ManagementFactory;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import java.sql.SQLException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.enterprise.inject.literal.NamedLiteral;
+
+import javax.enterprise.inject.se.SeContainer;
+import javax.enterprise.inject.se.SeContainerInitializer;
+
+import javax.management.ObjectName;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.PersistenceException;
+import javax.persistence.RollbackException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestConflictRetries {
+
+  private static final int THREADS = 8;
+
+  private static final int INCREMENTS_PER_THREAD = 25;
+
+  private EntityManagerFactory entityManagerFactory;
+
+  public TestConflictRetries() {
+    super();
+  }
+
+  @Before
+  public void setUp() {
+    this.entityManagerFactory = Widgets.createEntityManagerFactory("conflictRetries-" + System.nanoTime());
+  }
+
+  @After
+  public void tearDown() {
+    if (this.entityManagerFactory != null) {
+      this.entityManagerFactory.close();
+    }
+  }
+
+  @Test
+  public void testIsConflict() {
+    assertTrue(ConflictRetries.isConflict(new RollbackException(new OptimisticLockException())));
+    assertTrue(ConflictRetries.isConflict(new PersistenceException(new SQLException("deadlock", "40P01"))));
+    assertTrue(ConflictRetries.isConflict(new SQLException("serialization failure", "40001")));
+    assertFalse(ConflictRetries.isConflict(new PersistenceException(new SQLException("syntax error", "42000"))));
+    assertFalse(ConflictRetries.isConflict(null));
+  }
+
+  @Test
+  public void testBackoff() {
+    for (int attempt = 1; attempt < 100; attempt++) {
+      final long bound = Math.min(1000L, attempt < 20 ? 10L << (attempt - 1) : 1000L);
+      final long backoff = ConflictRetries.backoffMillis(attempt, 10L, 1000L);
+      assertTrue(backoff >= bound / 2L);
+      assertTrue(backoff <= bound);
+    }
+    assertEquals(0L, ConflictRetries.backoffMillis(1, 0L, 1000L));
+  }
+
+  @Test
+  public void testCloseUnregisters() throws Exception {
+    final String name = "conflictRetries-" + System.nanoTime();
+    final ObjectName objectName = new ObjectName("org.microbean.jpa.cdi:type=ConflictRetries,name=" + ObjectName.quote(name));
+    final ConflictRetries conflictRetries = new ConflictRetries(name);
+    conflictRetries.register();
+    assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(objectName));
+    conflictRetries.close();
+    assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(objectName));
+    conflictRetries.close();
+  }
+
+  @Test
+  public void testContention() throws Exception {
+    final String name = "conflictRetries-" + System.nanoTime();
+
+    final ConflictRetries withoutRetries = new ConflictRetries(name + "-withoutRetries");
+    this.reset(1L);
+    final int succeededWithoutRetries = this.contend(withoutRetries, 1L, 1);
+    assertEquals(succeededWithoutRetries, this.value(1L));
+    assertEquals(THREADS * INCREMENTS_PER_THREAD - succeededWithoutRetries, withoutRetries.getGiveUpCount());
+    assertEquals(0L, withoutRetries.getRetryCount());
+
+    final ConflictRetries withRetries = new ConflictRetries(name + "-withRetries");
+    this.reset(2L);
+    final int succeededWithRetries = this.contend(withRetries, 2L, 1000);
+    assertEquals(succeededWithRetries, this.value(2L));
+    assertEquals(THREADS * INCREMENTS_PER_THREAD, succeededWithRetries);
+    assertEquals(0L, withRetries.getGiveUpCount());
+    assertTrue(withRetries.getRetryCount() > 0L);
+    assertTrue(withRetries.getRecoveredCount() > 0L);
+
+    assertTrue(succeededWithRetries > succeededWithoutRetries);
+    // Each recovered operation needed at least one retry.
+    assertTrue(withRetries.getRecoveredCount() <= withRetries.getRetryCount());
+  }
+
+  @Test
+  public void testInterceptor() {
+    try (final SeContainer container = SeContainerInitializer.newInstance().initialize()) {
+      final ConflictingService service = container.select(ConflictingService.class).get();
+      // With a single persistence unit, an empty unitName reports
+      // against it.
+      final ConflictRetries conflictRetries = container.select(ConflictRetries.class, NamedLiteral.of("test")).get();
+      final long retries = conflictRetries.getRetryCount();
+
+      service.reset();
+      assertEquals(3, service.conflictTwice());
+      assertEquals(3, service.getAttempts());
+      assertEquals(retries + 2L, conflictRetries.getRetryCount());
+      assertEquals(1L, conflictRetries.getRecoveredCount());
+      assertEquals(0L, conflictRetries.getGiveUpCount());
+
+      service.reset();
+      try {
+        service.alwaysConflict();
+        fail();
+      } catch (final OptimisticLockException expected) {
+        assertEquals("attempt 3", expected.getMessage());
+      }
+      assertEquals(3, service.getAttempts());
+      assertEquals(1L, conflictRetries.getGiveUpCount());
+    }
+  }
+
+  @Test
+  public void testInterceptorRejectsAmbiguousUnit() {
+    final Thread currentThread = Thread.currentThread();
+    final ClassLoader oldContextClassLoader = currentThread.getContextClassLoader();
+    final URL root = oldContextClassLoader.getResource(this.getClass().getSimpleName() + "/");
+    assertNotNull(root);
+    // Make a second persistence unit visible to the JpaExtension.
+    currentThread.setContextClassLoader(new URLClassLoader(new URL[] { root }, oldContextClassLoader));
+    try (final SeContainer container = SeContainerInitializer.newInstance().initialize()) {
+      final ConflictingService service = container.select(ConflictingService.class).get();
+      service.reset();
+      try {
+        service.conflictTwice();
+        fail();
+      } catch (final IllegalStateException expected) {
+        assertEquals(0, service.getAttempts());
+      }
+    } finally {
+      currentThread.setContextClassLoader(oldContextClassLoader);
+    }
+  }
+
+  private final int contend(final ConflictRetries conflictRetries, final long id, final int maxAttempts) throws Exception {
+    final AtomicInteger succeeded = new AtomicInteger();
+    final ExecutorService executorService = Executors.newFixedThreadPool(THREADS);
+    try {
+      final List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < THREADS; i++) {
+        futures.add(executorService.submit(() -> {
+              for (int j = 0; j < INCREMENTS_PER_THREAD; j++) {
+                try {
+                  conflictRetries.call(() -> this.increment(id), maxAttempts, 1L, 20L);
+                  succeeded.incrementAndGet();
+                } catch (final Exception exception) {
+                  assertTrue(ConflictRetries.isConflict(exception));
+                }
+              }
+              return null;
+            }));
+      }
+      for (final Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executorService.shutdown();
+    }
+    return succeeded.get();
+  }
+
+  private final Void increment(final long id) throws InterruptedException {
+    final EntityManager entityManager = this.entityManagerFactory.createEntityManager();
+    try {
+      entityManager.getTransaction().begin();
+      entityManager.find(Counter.class, Long.valueOf(id)).increment();
+      // Widen the window between read and write so that concurrent
+      // increments reliably conflict.
+      Thread.sleep(1L);
+      entityManager.getTransaction().commit();
+    } finally {
+      if (entityManager.getTransaction().isActive()) {
+        entityManager.getTransaction().rollback();
+      }
+      entityManager.close();
+    }
+    return null;
+  }
+
+  private final void reset(final long id) {
+    final EntityManager entityManager = this.entityManagerFactory.createEntityManager();
+    try {
+      entityManager.getTransaction().begin();
+      entityManager.persist(new Counter(id));
+      entityManager.getTransaction().commit();
+    } finally {
+      entityManager.close();
+    }
+  }
+
+  private final long value(final long id) {
+    final EntityManager entityManager = this.entityManagerFactory.createEntityManager();
+    try {
+      return entityManager.find(Counter.class, Long.valueOf(id)).getValue();
+    } finally {
+      entityManager.close();
+    }
+  }
+
+}
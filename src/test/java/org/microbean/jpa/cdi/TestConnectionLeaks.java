@@ -0,0 +1,163 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import javax.transaction.Status;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestConnectionLeaks {
+
+  private DataSource dataSource;
+
+  private List<ConnectionLeak> leaks;
+
+  private ConnectionLeaks connectionLeaks;
+
+  public TestConnectionLeaks() {
+    super();
+  }
+
+  @Before
+  public void createDataSource() {
+    this.dataSource = Widgets.createDataSource(this.getClass().getSimpleName());
+    this.leaks = Collections.synchronizedList(new ArrayList<>());
+  }
+
+  @After
+  public void closeConnectionLeaks() {
+    if (this.connectionLeaks != null) {
+      this.connectionLeaks.close();
+    }
+  }
+
+  @Test
+  public void testClosedConnectionsAreNotReported() throws SQLException {
+    this.connectionLeaks = new ConnectionLeaks("closed", TimeUnit.HOURS.toMillis(1L), 1, null, this.leaks::add);
+    final DataSource dataSource = this.connectionLeaks.wrap(this.dataSource);
+    try (final Connection connection = dataSource.getConnection();
+         final Statement statement = connection.createStatement();
+         final ResultSet resultSet = statement.executeQuery("SELECT 1")) {
+      assertTrue(resultSet.next());
+      assertEquals(1, this.connectionLeaks.getOpenConnectionCount());
+    }
+    assertEquals(1L, this.connectionLeaks.getCheckoutCount());
+    assertEquals(0, this.connectionLeaks.getOpenConnectionCount());
+    assertEquals(0, this.connectionLeaks.scan());
+    assertEquals(0L, this.connectionLeaks.getLeakCount());
+    assertTrue(this.leaks.isEmpty());
+  }
+
+  @Test
+  public void testHeldConnectionIsReportedOnce() throws InterruptedException, SQLException {
+    this.connectionLeaks = new ConnectionLeaks("held", 50L, 1, null, this.leaks::add);
+    final DataSource dataSource = this.connectionLeaks.wrap(this.dataSource);
+    final Connection connection = dataSource.getConnection();
+    Thread.sleep(100L);
+    this.connectionLeaks.scan();
+    assertEquals(0, this.connectionLeaks.scan());
+    assertEquals(1, this.leaks.size());
+    assertEquals(1L, this.connectionLeaks.getLeakCount());
+    assertEquals(1, this.connectionLeaks.getOutstandingLeakCount());
+    final ConnectionLeak leak = this.leaks.get(0);
+    assertEquals("held", leak.getPersistenceUnitName());
+    assertEquals(Thread.currentThread().getName(), leak.getThreadName());
+    assertEquals(Status.STATUS_NO_TRANSACTION, leak.getTransactionStatus());
+    assertEquals("NO_TRANSACTION", leak.getTransactionStatusName());
+    assertTrue(leak.getHeldMillis() >= 50L);
+    final StackTraceElement[] stackTrace = leak.getAllocationStackTrace();
+    assertNotNull(stackTrace);
+    boolean found = false;
+    for (final StackTraceElement element : stackTrace) {
+      if ("testHeldConnectionIsReportedOnce".equals(element.getMethodName())) {
+        found = true;
+        break;
+      }
+    }
+    assertTrue(found);
+    connection.close();
+    assertEquals(0, this.connectionLeaks.getOpenConnectionCount());
+    assertEquals(0, this.connectionLeaks.getOutstandingLeakCount());
+  }
+
+  @Test
+  public void testUnsampledCheckoutHasNoStackTrace() throws InterruptedException, SQLException {
+    this.connectionLeaks = new ConnectionLeaks("unsampled", 50L, 0, null, this.leaks::add);
+    try (final Connection connection = this.connectionLeaks.wrap(this.dataSource).getConnection()) {
+      Thread.sleep(100L);
+      this.connectionLeaks.scan();
+      assertEquals(1, this.leaks.size());
+      assertNull(this.leaks.get(0).getAllocationStackTrace());
+    }
+  }
+
+  @Test
+  public void testConcurrentCheckouts() throws Exception {
+    this.connectionLeaks = new ConnectionLeaks("concurrent", TimeUnit.HOURS.toMillis(1L), 10, null, this.leaks::add);
+    final DataSource dataSource = this.connectionLeaks.wrap(this.dataSource);
+    final int threads = 8;
+    final int checkoutsPerThread = 500;
+    final ExecutorService executorService = Executors.newFixedThreadPool(threads);
+    try {
+      final CountDownLatch start = new CountDownLatch(1);
+      final List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        futures.add(executorService.submit(() -> {
+              start.await();
+              for (int j = 0; j < checkoutsPerThread; j++) {
+                dataSource.getConnection().close();
+              }
+              return null;
+            }));
+      }
+      start.countDown();
+      for (final Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executorService.shutdown();
+    }
+    assertEquals((long)threads * checkoutsPerThread, this.connectionLeaks.getCheckoutCount());
+    assertEquals(0, this.connectionLeaks.getOpenConnectionCount());
+    assertTrue(this.leaks.isEmpty());
+  }
+
+}
@@ -0,0 +1,151 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+import javax.persistence.QueryTimeoutException;
+
+import javax.persistence.spi.PersistenceUnitInfo;
+
+import org.eclipse.persistence.jpa.PersistenceProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestDeadlines {
+
+  private Deadlines deadlines;
+
+  private EntityManagerFactory entityManagerFactory;
+
+  public TestDeadlines() {
+    super();
+  }
+
+  @Before
+  public void startEntityManagerFactory() {
+    final String name = this.getClass().getSimpleName();
+    this.deadlines = new Deadlines(name);
+    final PersistenceUnitInfo persistenceUnitInfo = Widgets.createPersistenceUnitInfo(name, Widgets.createDataSource(name), null);
+    final Map<String, Object> properties = new HashMap<>();
+    this.deadlines.apply(properties, persistenceUnitInfo);
+    this.entityManagerFactory =
+      this.deadlines.wrap(new PersistenceProvider().createContainerEntityManagerFactory(persistenceUnitInfo, properties));
+    Widgets.insert(this.entityManagerFactory, 10);
+  }
+
+  @After
+  public void stopEntityManagerFactory() {
+    if (this.entityManagerFactory != null) {
+      this.entityManagerFactory.close();
+    }
+    if (this.deadlines != null) {
+      this.deadlines.close();
+    }
+  }
+
+  @Test
+  public void testNestedDeadlinesOnlyShorten() {
+    assertNull(Deadline.current());
+    final Deadline outer = Deadline.after(1L, TimeUnit.SECONDS);
+    try (final Deadline.Scope outerScope = outer.makeCurrent()) {
+      assertSame(outer, Deadline.current());
+      try (final Deadline.Scope innerScope = Deadline.after(1L, TimeUnit.HOURS).makeCurrent()) {
+        assertSame(outer, Deadline.current());
+      }
+      final Deadline shorter = Deadline.after(10L, TimeUnit.MILLISECONDS);
+      try (final Deadline.Scope innerScope = shorter.makeCurrent()) {
+        assertSame(shorter, Deadline.current());
+      }
+      assertSame(outer, Deadline.current());
+      assertTrue(outer.remaining(TimeUnit.MILLISECONDS) <= 1000L);
+      assertFalse(outer.isExpired());
+    }
+    assertNull(Deadline.current());
+    assertTrue(Deadline.after(0L, TimeUnit.SECONDS).isExpired());
+  }
+
+  @Test
+  public void testQueriesWithinDeadlineSucceed() {
+    final EntityManager entityManager = this.entityManagerFactory.createEntityManager();
+    try (final Deadline.Scope scope = Deadline.after(30L, TimeUnit.SECONDS).makeCurrent()) {
+      assertEquals(10, entityManager.createQuery("SELECT w FROM Widget w", Widget.class).getResultList().size());
+      assertEquals("widget-3", entityManager.find(Widget.class, Long.valueOf(3L)).getName());
+    } finally {
+      entityManager.close();
+    }
+    assertEquals(0L, this.deadlines.getExpiredCount());
+    assertEquals(0L, this.deadlines.getTimeoutCount());
+  }
+
+  @Test
+  public void testExpiredDeadlineRefusesQueries() {
+    final EntityManager entityManager = this.entityManagerFactory.createEntityManager();
+    try (final Deadline.Scope scope = Deadline.after(0L, TimeUnit.SECONDS).makeCurrent()) {
+      try {
+        entityManager.createQuery("SELECT w FROM Widget w", Widget.class).getResultList();
+        fail();
+      } catch (final QueryTimeoutException expected) {
+        // Expected.
+      }
+      try {
+        entityManager.find(Widget.class, Long.valueOf(3L));
+        fail();
+      } catch (final QueryTimeoutException expected) {
+        // Expected.
+      }
+    } finally {
+      entityManager.close();
+    }
+    assertEquals(2L, this.deadlines.getExpiredCount());
+  }
+
+  @Test
+  public void testRunningStatementIsCancelled() {
+    final EntityManager entityManager = this.entityManagerFactory.createEntityManager();
+    final long start = System.nanoTime();
+    try (final Deadline.Scope scope = Deadline.after(300L, TimeUnit.MILLISECONDS).makeCurrent()) {
+      entityManager.createNativeQuery("SELECT COUNT(*) FROM SYSTEM_RANGE(1, 100000) a, SYSTEM_RANGE(1, 100000) b")
+        .getSingleResult();
+      fail();
+    } catch (final PersistenceException expected) {
+      // Expected.
+    } finally {
+      entityManager.close();
+    }
+    final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    System.out.println("Statement stopped after " + elapsedMillis + " ms");
+    assertTrue(elapsedMillis < 10000L);
+    assertEquals(1L, this.deadlines.getTimeoutCount());
+  }
+
+}
@@ -0,0 +1,245 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestIdAllocator {
+
+  private static final int ROWS = Integer.getInteger("gadgets", 20000).intValue();
+
+  private static final int THREADS = 4;
+
+  private static final int ROWS_PER_THREAD = ROWS / THREADS;
+
+  private static final int BLOCK_SIZE = 1000;
+
+  private static final long POOL_START = 1000000000L;
+
+  private EntityManagerFactory entityManagerFactory;
+
+  private DataSource dataSource;
+
+  public TestIdAllocator() {
+    super();
+  }
+
+  @Before
+  public void startEntityManagerFactory() {
+    final String name = this.getClass().getSimpleName();
+    this.entityManagerFactory = Widgets.createEntityManagerFactory(name);
+    this.dataSource = Widgets.createDataSource(name);
+    final EntityManager entityManager = this.entityManagerFactory.createEntityManager();
+    try {
+      entityManager.getTransaction().begin();
+      // Never dropped: shared IdAllocators outlive each test and may
+      // still hold blocks reserved from it.
+      entityManager.createNativeQuery("CREATE SEQUENCE IF NOT EXISTS GADGET_POOL_SEQ START WITH " + POOL_START +
+                                      " INCREMENT BY " + BLOCK_SIZE).executeUpdate();
+      entityManager.getTransaction().commit();
+    } finally {
+      entityManager.close();
+    }
+  }
+
+  @After
+  public void stopEntityManagerFactory() {
+    if (this.entityManagerFactory != null) {
+      this.entityManagerFactory.close();
+    }
+  }
+
+  @Test
+  public void testSharedAcrossDataSources() throws Exception {
+    final String name = this.getClass().getSimpleName();
+    final IdAllocator allocator = IdAllocator.get(Widgets.createDataSource(name), "GADGET_POOL_SEQ", BLOCK_SIZE);
+    assertSame(allocator, IdAllocator.get(Widgets.createDataSource(name), "GADGET_POOL_SEQ", BLOCK_SIZE));
+    try {
+      IdAllocator.get(this.dataSource, "GADGET_POOL_SEQ", BLOCK_SIZE / 2);
+      throw new AssertionError();
+    } catch (final IllegalArgumentException expected) {
+
+    }
+
+    final int idsPerThread = 10000;
+    final Set<Long> ids = ConcurrentHashMap.newKeySet();
+    final ExecutorService executorService = Executors.newFixedThreadPool(THREADS);
+    try {
+      final List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < THREADS; t++) {
+        futures.add(executorService.submit(() -> {
+              for (int i = 0; i < idsPerThread; i++) {
+                final long id = allocator.next();
+                assertTrue(id > POOL_START - BLOCK_SIZE);
+                assertTrue(ids.add(Long.valueOf(id)));
+              }
+            }));
+      }
+      for (final Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executorService.shutdown();
+    }
+    assertEquals(THREADS * idsPerThread, ids.size());
+  }
+
+  @Test
+  public void testEarliestDataSourceIsKept() {
+    final String name = this.getClass().getSimpleName();
+    final EntityManager entityManager = this.entityManagerFactory.createEntityManager();
+    try {
+      entityManager.getTransaction().begin();
+      entityManager.createNativeQuery("CREATE SEQUENCE IF NOT EXISTS GADGET_RELEASE_SEQ INCREMENT BY 10").executeUpdate();
+      entityManager.getTransaction().commit();
+    } finally {
+      entityManager.close();
+    }
+    final CountingDataSource first = new CountingDataSource(Widgets.createDataSource(name));
+    final CountingDataSource second = new CountingDataSource(Widgets.createDataSource(name));
+    final IdAllocator allocator = IdAllocator.get(first, "GADGET_RELEASE_SEQ", 10);
+    assertSame(allocator, IdAllocator.get(second, "GADGET_RELEASE_SEQ", 10));
+    final int secondAcquired = second.acquired.get();
+    for (int i = 0; i < 100; i++) {
+      allocator.next();
+    }
+    assertEquals(secondAcquired, second.acquired.get());
+
+    allocator.release(first);
+    final int firstAcquired = first.acquired.get();
+    for (int i = 0; i < 100; i++) {
+      allocator.next();
+    }
+    assertTrue(second.acquired.get() > secondAcquired);
+    allocator.release(second);
+    // Reservations still in flight on the background thread may
+    // have used the first DataSource before it was released.
+    assertTrue(first.acquired.get() - firstAcquired <= Runtime.getRuntime().availableProcessors() + 1);
+  }
+
+  @Test
+  public void testMergeAssignsIdentifier() {
+    final EntityManagerFactory allocating = IdAllocator.wrap(this.entityManagerFactory, this.dataSource, BLOCK_SIZE);
+    final EntityManager entityManager = allocating.createEntityManager();
+    try {
+      final Gadget gadget = new Gadget("merged");
+      entityManager.getTransaction().begin();
+      final Gadget merged = entityManager.merge(gadget);
+      entityManager.getTransaction().commit();
+      assertNotNull(merged.getId());
+      assertTrue(merged.getId().longValue() > POOL_START - BLOCK_SIZE);
+    } finally {
+      entityManager.close();
+    }
+  }
+
+  @Test
+  public void testThroughput() throws Exception {
+    // EclipseLink's own sequencing, one round trip per 50 identifiers.
+    final double baselineRowsPerSecond = this.insert(this.entityManagerFactory, "baseline");
+
+    final EntityManagerFactory allocating = IdAllocator.wrap(this.entityManagerFactory, this.dataSource, BLOCK_SIZE);
+    final EntityManager entityManager = allocating.createEntityManager();
+    try {
+      final Gadget gadget = new Gadget("probe");
+      entityManager.getTransaction().begin();
+      entityManager.persist(gadget);
+      entityManager.getTransaction().commit();
+      assertNotNull(gadget.getId());
+      assertTrue(gadget.getId().longValue() > POOL_START - BLOCK_SIZE);
+    } finally {
+      entityManager.close();
+    }
+    final IdAllocator allocator = IdAllocator.get(this.dataSource, "GADGET_POOL_SEQ", BLOCK_SIZE);
+    final long reservations = allocator.getReservationCount();
+    final double allocatorRowsPerSecond = this.insert(allocating, "pooled");
+
+    System.out.println("Provider sequencing: " + Math.round(baselineRowsPerSecond) + " rows/s");
+    System.out.println("IdAllocator: " + Math.round(allocatorRowsPerSecond) + " rows/s");
+
+    final EntityManager verifier = this.entityManagerFactory.createEntityManager();
+    try {
+      assertEquals(2L * ROWS_PER_THREAD * THREADS + 1L,
+                   verifier.createQuery("SELECT COUNT(g) FROM Gadget g", Long.class).getSingleResult().longValue());
+      assertEquals((long)ROWS_PER_THREAD * THREADS + 1L,
+                   verifier.createQuery("SELECT COUNT(g) FROM Gadget g WHERE g.id > :floor", Long.class)
+                   .setParameter("floor", Long.valueOf(POOL_START - BLOCK_SIZE))
+                   .getSingleResult().longValue());
+    } finally {
+      verifier.close();
+    }
+    // Roughly one round trip per block, plus one spare block per
+    // stripe.
+    assertTrue(allocator.getReservationCount() - reservations <= (ROWS / BLOCK_SIZE) + 4L * Runtime.getRuntime().availableProcessors() + 2L);
+  }
+
+  private final double insert(final EntityManagerFactory entityManagerFactory, final String prefix) throws Exception {
+    final ExecutorService executorService = Executors.newFixedThreadPool(THREADS);
+    final long start = System.nanoTime();
+    try {
+      final List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < THREADS; t++) {
+        final int thread = t;
+        futures.add(executorService.submit(() -> {
+              final EntityManager entityManager = entityManagerFactory.createEntityManager();
+              try {
+                for (int i = 0; i < ROWS_PER_THREAD; i++) {
+                  if (i % 100 == 0) {
+                    entityManager.getTransaction().begin();
+                  }
+                  entityManager.persist(new Gadget(prefix + "-" + thread + "-" + i));
+                  if (i % 100 == 99 || i == ROWS_PER_THREAD - 1) {
+                    entityManager.getTransaction().commit();
+                    entityManager.clear();
+                  }
+                }
+              } finally {
+                entityManager.close();
+              }
+            }));
+      }
+      for (final Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executorService.shutdown();
+    }
+    return (ROWS_PER_THREAD * THREADS) / ((System.nanoTime() - start) / 1.0E9);
+  }
+
+}
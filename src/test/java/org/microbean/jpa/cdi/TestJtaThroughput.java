@@ -0,0 +1,255 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.sql.SQLException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.enterprise.inject.literal.NamedLiteral;
+
+import javax.enterprise.inject.se.SeContainer;
+import javax.enterprise.inject.se.SeContainerInitializer;
+
+import javax.sql.DataSource;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A load harness that boots Weld, Narayana and a HikariCP-backed H2
+ * {@link DataSource} through the {@link JpaExtension} and drives
+ * concurrent JTA transactions through an injected {@link
+ * javax.persistence.EntityManagerFactory} at doubling thread counts,
+ * reporting throughput, latency percentiles and connection pool wait
+ * times for each.
+ *
+ * <p>The maximum thread count defaults to the number of available
+ * processors and may be set with the {@code jtaThroughput.maxThreads}
+ * system property; the duration of each step defaults to one second
+ * and may be set with the {@code jtaThroughput.durationMillis} system
+ * property.</p>
+ */
+public class TestJtaThroughput {
+
+  private static final int MAX_THREADS =
+    Math.max(1, Integer.getInteger("jtaThroughput.maxThreads", Runtime.getRuntime().availableProcessors()).intValue());
+
+  private static final long DURATION_MILLIS = Long.getLong("jtaThroughput.durationMillis", 1000L).longValue();
+
+  public TestJtaThroughput() {
+    super();
+  }
+
+  @Test
+  public void testJtaThroughput() throws ExecutionException, InterruptedException {
+    try (final SeContainer container = SeContainerInitializer.newInstance().initialize()) {
+      final WidgetService widgetService = container.select(WidgetService.class).get();
+      final PoolWaitTracker poolWaitTracker =
+        PoolWaitTracker.install(container.select(DataSource.class, NamedLiteral.of("test")).get());
+      final AtomicLong ids = new AtomicLong();
+
+      // Warm up the JIT, the pool and the provider's caches.
+      run(widgetService, ids, 1);
+      poolWaitTracker.reset();
+
+      System.out.println(String.format("%7s %10s %9s %9s %9s %9s %14s %14s",
+                                       "threads", "tx/s", "p50 ms", "p90 ms", "p99 ms", "max ms",
+                                       "pool avg µs", "pool max µs"));
+      for (int threads = 1; ; threads = Math.min(threads * 2, MAX_THREADS)) {
+        final long[] latencies = run(widgetService, ids, threads);
+        assertTrue(latencies.length > 0);
+        Arrays.sort(latencies);
+        final double transactionsPerSecond = latencies.length / (DURATION_MILLIS / 1000.0);
+        System.out.println(String.format("%7d %10.1f %9.3f %9.3f %9.3f %9.3f %14s %14s",
+                                         threads,
+                                         transactionsPerSecond,
+                                         percentile(latencies, 0.50) / 1000000.0,
+                                         percentile(latencies, 0.90) / 1000000.0,
+                                         percentile(latencies, 0.99) / 1000000.0,
+                                         latencies[latencies.length - 1] / 1000000.0,
+                                         poolWaitTracker.averageMicros(),
+                                         poolWaitTracker.maxMicros()));
+        poolWaitTracker.reset();
+        if (threads >= MAX_THREADS) {
+          break;
+        }
+      }
+    }
+  }
+
+  private static final long[] run(final WidgetService widgetService, final AtomicLong ids, final int threads)
+    throws ExecutionException, InterruptedException {
+    final ExecutorService executorService = Executors.newFixedThreadPool(threads);
+    try {
+      final CountDownLatch startGate = new CountDownLatch(1);
+      final List<Future<long[]>> futures = new ArrayList<>(threads);
+      for (int i = 0; i < threads; i++) {
+        futures.add(executorService.submit(new Worker(widgetService, ids, startGate)));
+      }
+      startGate.countDown();
+      final List<long[]> results = new ArrayList<>(threads);
+      int size = 0;
+      for (final Future<long[]> future : futures) {
+        final long[] result = future.get();
+        results.add(result);
+        size += result.length;
+      }
+      final long[] returnValue = new long[size];
+      int position = 0;
+      for (final long[] result : results) {
+        System.arraycopy(result, 0, returnValue, position, result.length);
+        position += result.length;
+      }
+      return returnValue;
+    } finally {
+      executorService.shutdownNow();
+      executorService.awaitTermination(DURATION_MILLIS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private static final long percentile(final long[] sortedValues, final double percentile) {
+    final int index = (int)Math.ceil(percentile * sortedValues.length) - 1;
+    return sortedValues[Math.max(0, Math.min(index, sortedValues.length - 1))];
+  }
+
+  private static final class Worker implements Callable<long[]> {
+
+    private final WidgetService widgetService;
+
+    private final AtomicLong ids;
+
+    private final CountDownLatch startGate;
+
+    private Worker(final WidgetService widgetService, final AtomicLong ids, final CountDownLatch startGate) {
+      super();
+      this.widgetService = widgetService;
+      this.ids = ids;
+      this.startGate = startGate;
+    }
+
+    @Override
+    public final long[] call() throws Exception {
+      this.startGate.await();
+      long[] latencies = new long[1024];
+      int count = 0;
+      final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DURATION_MILLIS);
+      long start;
+      while ((start = System.nanoTime()) < deadline) {
+        this.widgetService.persistAndFind(this.ids.incrementAndGet());
+        if (count == latencies.length) {
+          latencies = Arrays.copyOf(latencies, count * 2);
+        }
+        latencies[count++] = System.nanoTime() - start;
+      }
+      return Arrays.copyOf(latencies, count);
+    }
+
+  }
+
+  /**
+   * Records how long threads wait to check out a {@link
+   * java.sql.Connection} from a HikariCP pool.
+   */
+  private static final class PoolWaitTracker implements IMetricsTracker, MetricsTrackerFactory {
+
+    private final LongAdder count;
+
+    private final LongAdder totalNanos;
+
+    private final AtomicLong maxNanos;
+
+    private volatile boolean installed;
+
+    private PoolWaitTracker() {
+      super();
+      this.count = new LongAdder();
+      this.totalNanos = new LongAdder();
+      this.maxNanos = new AtomicLong();
+    }
+
+    private static final PoolWaitTracker install(final DataSource dataSource) {
+      final PoolWaitTracker returnValue = new PoolWaitTracker();
+      try {
+        if (dataSource.isWrapperFor(HikariDataSource.class)) {
+          // HikariCP permits a MetricsTrackerFactory to be installed
+          // once on a running pool.
+          dataSource.unwrap(HikariDataSource.class).setMetricsTrackerFactory(returnValue);
+          returnValue.installed = true;
+        }
+      } catch (final IllegalStateException | SQLException exception) {
+        // Pool wait times will be reported as unavailable.
+      }
+      return returnValue;
+    }
+
+    @Override
+    public final IMetricsTracker create(final String poolName, final PoolStats poolStats) {
+      return this;
+    }
+
+    @Override
+    public final void recordConnectionAcquiredNanos(final long elapsedAcquiredNanos) {
+      this.count.increment();
+      this.totalNanos.add(elapsedAcquiredNanos);
+      this.maxNanos.accumulateAndGet(elapsedAcquiredNanos, Math::max);
+    }
+
+    private final String averageMicros() {
+      final long count = this.count.sum();
+      if (!this.installed || count <= 0L) {
+        return "n/a";
+      }
+      return String.format("%.1f", this.totalNanos.sum() / (double)count / 1000.0);
+    }
+
+    private final String maxMicros() {
+      if (!this.installed || this.count.sum() <= 0L) {
+        return "n/a";
+      }
+      return String.format("%.1f", this.maxNanos.get() / 1000.0);
+    }
+
+    private final void reset() {
+      this.count.reset();
+      this.totalNanos.reset();
+      this.maxNanos.set(0L);
+    }
+
+  }
+
+}
@@ -0,0 +1,183 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.TypedQuery;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestKeysetPager {
+
+  // Large enough to check correctness at depth; run with, for
+  // example, -DkeysetRows=2000000 to see offset paging fall behind.
+  private static final int ROWS = Integer.getInteger("keysetRows", 10000).intValue();
+
+  private static final int PAGE_SIZE = 100;
+
+  private static final int ROUNDS = 3;
+
+  private EntityManagerFactory entityManagerFactory;
+
+  public TestKeysetPager() {
+    super();
+  }
+
+  @Before
+  public void startEntityManagerFactory() {
+    this.entityManagerFactory = Widgets.createEntityManagerFactory(this.getClass().getSimpleName());
+  }
+
+  @After
+  public void stopEntityManagerFactory() {
+    if (this.entityManagerFactory != null) {
+      this.entityManagerFactory.close();
+    }
+  }
+
+  @Test
+  public void testCompoundKeyAndFilter() {
+    final EntityManager entityManager = this.entityManagerFactory.createEntityManager();
+    try {
+      entityManager.getTransaction().begin();
+      for (int i = 0; i < 1000; i++) {
+        // Names repeat, so only name and id together are unique.
+        entityManager.persist(new Widget(i, "widget-" + (i % 10)));
+      }
+      entityManager.getTransaction().commit();
+      entityManager.clear();
+
+      final List<Long> expected = new ArrayList<>();
+      for (final Widget widget : entityManager.createQuery("SELECT w FROM Widget w WHERE w.name <> :excluded ORDER BY w.name DESC, w.id ASC", Widget.class)
+             .setParameter("excluded", "widget-3")
+             .getResultList()) {
+        expected.add(widget.getId());
+      }
+      assertEquals(900, expected.size());
+      entityManager.clear();
+
+      final KeysetPager<Widget> pager =
+        new KeysetPager<>(Widget.class, Arrays.asList("name DESC", "id"), "e.name <> :excluded", 33);
+      final List<Long> actual = new ArrayList<>();
+      String continuationToken = null;
+      int pages = 0;
+      do {
+        final TypedQuery<Widget> query = pager.createQuery(entityManager, continuationToken);
+        query.setParameter("excluded", "widget-3");
+        final KeysetPager.Page<Widget> page = pager.getPage(query);
+        assertTrue(page.getResults().size() <= 33);
+        for (final Widget widget : page.getResults()) {
+          actual.add(widget.getId());
+        }
+        continuationToken = page.getContinuationToken();
+        pages++;
+        entityManager.clear();
+      } while (continuationToken != null);
+      assertEquals(expected, actual);
+      assertEquals(28, pages);
+
+      // Tokens belong to the pager that made them.
+      final String token = pager.getContinuationToken(entityManager.find(Widget.class, Long.valueOf(500L)));
+      final KeysetPager<Widget> otherPager = new KeysetPager<>(Widget.class, Arrays.asList("name DESC", "id"), null, 33);
+      try {
+        otherPager.createQuery(entityManager, token);
+        fail();
+      } catch (final IllegalArgumentException expectedException) {
+
+      }
+      try {
+        pager.createQuery(entityManager, "not-a-token");
+        fail();
+      } catch (final IllegalArgumentException expectedException) {
+
+      }
+    } finally {
+      entityManager.close();
+    }
+  }
+
+  @Test
+  public void testDeepPages() {
+    final EntityManager entityManager = this.entityManagerFactory.createEntityManager();
+    try {
+      entityManager.getTransaction().begin();
+      final int chunk = 500000;
+      for (int start = 1; start <= ROWS; start += chunk) {
+        entityManager.createNativeQuery("INSERT INTO WIDGET (ID, NAME) SELECT X, CONCAT('widget-', X) FROM SYSTEM_RANGE(" +
+                                        start + ", " + Math.min(ROWS, start + chunk - 1) + ")")
+          .executeUpdate();
+      }
+      entityManager.getTransaction().commit();
+
+      final KeysetPager<Widget> pager = new KeysetPager<>(Widget.class, Collections.singletonList("id"), null, PAGE_SIZE);
+      // Resolve the pager so that it can make tokens.
+      assertFalse(pager.getPage(pager.createQuery(entityManager, null)).getResults().isEmpty());
+      entityManager.clear();
+
+      System.out.println(String.format("%-12s %12s %12s", "depth", "offset ms", "keyset ms"));
+      for (final int depth : new int[] { 0, ROWS / 100, ROWS / 10, ROWS / 2, ROWS - PAGE_SIZE }) {
+        final String continuationToken =
+          depth == 0 ? null : pager.getContinuationToken(entityManager.find(Widget.class, Long.valueOf(depth)));
+        entityManager.clear();
+        long offsetNanos = Long.MAX_VALUE;
+        long keysetNanos = Long.MAX_VALUE;
+        List<Widget> offsetPage = null;
+        KeysetPager.Page<Widget> keysetPage = null;
+        for (int round = 0; round < ROUNDS; round++) {
+          long start = System.nanoTime();
+          offsetPage = entityManager.createQuery("SELECT w FROM Widget w ORDER BY w.id", Widget.class)
+            .setFirstResult(depth)
+            .setMaxResults(PAGE_SIZE)
+            .getResultList();
+          offsetNanos = Math.min(offsetNanos, System.nanoTime() - start);
+          entityManager.clear();
+
+          start = System.nanoTime();
+          keysetPage = pager.getPage(pager.createQuery(entityManager, continuationToken));
+          keysetNanos = Math.min(keysetNanos, System.nanoTime() - start);
+          entityManager.clear();
+        }
+        System.out.println(String.format("%-12d %12.3f %12.3f", depth, offsetNanos / 1000000.0, keysetNanos / 1000000.0));
+
+        assertEquals(PAGE_SIZE, keysetPage.getResults().size());
+        for (int i = 0; i < PAGE_SIZE; i++) {
+          assertEquals(offsetPage.get(i).getId(), keysetPage.getResults().get(i).getId());
+        }
+        if (depth == ROWS - PAGE_SIZE) {
+          assertNull(keysetPage.getContinuationToken());
+        }
+      }
+    } finally {
+      entityManager.close();
+    }
+  }
+
+}
@@ -0,0 +1,144 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import java.util.Properties;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import javax.sql.DataSource;
+
+import org.eclipse.persistence.jpa.PersistenceProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestLazyConnectionDataSource {
+
+  private CountingDataSource dataSource;
+
+  public TestLazyConnectionDataSource() {
+    super();
+  }
+
+  @Before
+  public void createDataSource() {
+    this.dataSource = new CountingDataSource(Widgets.createDataSource(this.getClass().getSimpleName()));
+  }
+
+  @Test
+  public void testUnusedHandleNeverAcquiresConnection() throws SQLException {
+    final LazyConnectionDataSource lazyDataSource = new LazyConnectionDataSource(this.dataSource);
+    try (final Connection connection = lazyDataSource.getConnection()) {
+      connection.setAutoCommit(false);
+      assertFalse(connection.getAutoCommit());
+      connection.setReadOnly(true);
+      connection.commit();
+      connection.rollback();
+    }
+    assertEquals(0, this.dataSource.acquired.get());
+  }
+
+  @Test
+  public void testFirstStatementAcquiresConnectionAndReplaysSettings() throws SQLException {
+    final LazyConnectionDataSource lazyDataSource = new LazyConnectionDataSource(this.dataSource);
+    final Connection connection = lazyDataSource.getConnection();
+    connection.setAutoCommit(false);
+    connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+    assertEquals(0, this.dataSource.acquired.get());
+    try (final Statement statement = connection.createStatement();
+         final ResultSet resultSet = statement.executeQuery("SELECT 1")) {
+      assertTrue(resultSet.next());
+    }
+    assertEquals(1, this.dataSource.acquired.get());
+    assertEquals(1, this.dataSource.open.get());
+    assertFalse(connection.unwrap(Connection.class).getAutoCommit());
+    assertEquals(Connection.TRANSACTION_SERIALIZABLE, connection.getTransactionIsolation());
+    connection.commit();
+    connection.close();
+    assertTrue(connection.isClosed());
+    assertEquals(0, this.dataSource.open.get());
+  }
+
+  @Test
+  public void testAutoCommitDefaultComesFromPool() throws SQLException {
+    // Simulate a pool configured with autoCommit=false.
+    final DataSource pool =
+      (DataSource)Proxy.newProxyInstance(this.getClass().getClassLoader(),
+                                         new Class<?>[] { DataSource.class },
+                                         (proxy, method, arguments) -> {
+                                           final Object returnValue;
+                                           try {
+                                             returnValue = method.invoke(this.dataSource, arguments);
+                                           } catch (final InvocationTargetException invocationTargetException) {
+                                             throw invocationTargetException.getCause();
+                                           }
+                                           if (returnValue instanceof Connection) {
+                                             ((Connection)returnValue).setAutoCommit(false);
+                                           }
+                                           return returnValue;
+                                         });
+    final LazyConnectionDataSource lazyDataSource = new LazyConnectionDataSource(pool);
+    try (final Connection connection = lazyDataSource.getConnection()) {
+      // Nothing is known about the pool yet, so a real connection is
+      // needed to answer.
+      assertFalse(connection.getAutoCommit());
+      assertEquals(1, this.dataSource.acquired.get());
+    }
+    try (final Connection connection = lazyDataSource.getConnection()) {
+      // Now the pool's default is known.
+      assertFalse(connection.getAutoCommit());
+      assertEquals(1, this.dataSource.acquired.get());
+    }
+  }
+
+  @Test
+  public void testPersistenceUnitProperty() {
+    final Properties properties = new Properties();
+    properties.setProperty(LazyConnectionDataSource.LAZY_CONNECTIONS_PROPERTY_NAME, "true");
+    final PersistenceUnitInfoBean persistenceUnitInfo =
+      Widgets.createPersistenceUnitInfo(this.getClass().getSimpleName(), this.dataSource, properties);
+    assertTrue(persistenceUnitInfo.getNonJtaDataSource() instanceof LazyConnectionDataSource);
+    final EntityManagerFactory entityManagerFactory =
+      new PersistenceProvider().createContainerEntityManagerFactory(persistenceUnitInfo, null);
+    try {
+      Widgets.insert(entityManagerFactory, 10);
+      final EntityManager entityManager = entityManagerFactory.createEntityManager();
+      try {
+        assertEquals(10L, entityManager.createQuery("SELECT COUNT(w) FROM Widget w", Long.class).getSingleResult().longValue());
+      } finally {
+        entityManager.close();
+      }
+    } finally {
+      entityManagerFactory.close();
+    }
+  }
+
+}
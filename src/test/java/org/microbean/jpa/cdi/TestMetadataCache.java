@@ -0,0 +1,198 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.io.IOException;
+
+import java.net.URL;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.nio.file.attribute.PosixFilePermissions;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import java.util.stream.Stream;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import javax.sql.DataSource;
+
+import org.eclipse.persistence.jpa.PersistenceProvider;
+
+import org.hibernate.jpa.HibernatePersistenceProvider;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestMetadataCache {
+
+  public TestMetadataCache() {
+    super();
+  }
+
+  @Test
+  public void testEclipseLinkProjectCache() throws IOException {
+    final String name = "metadataCache";
+    final DataSource dataSource = Widgets.createDataSource(name);
+    final Path directory = Files.createTempDirectory(name);
+
+    // First boot: no cache yet, so EclipseLink processes the metadata
+    // and writes the cache file.
+    long start = System.nanoTime();
+    MetadataCache metadataCache = boot(Widgets.createPersistenceUnitInfo(name, dataSource, null), directory, null);
+    final long missNanos = System.nanoTime() - start;
+    assertFalse(metadataCache.isHit());
+    final Path cacheFile = metadataCache.getCacheFile();
+    assertNotNull(cacheFile);
+    assertTrue(Files.isRegularFile(cacheFile));
+
+    // Second boot: nothing has changed, so the same cache file is
+    // used.
+    start = System.nanoTime();
+    metadataCache = boot(Widgets.createPersistenceUnitInfo(name, dataSource, null), directory, null);
+    final long hitNanos = System.nanoTime() - start;
+    assertTrue(metadataCache.isHit());
+    assertEquals(cacheFile, metadataCache.getCacheFile());
+    System.out.println("Boot without metadata cache: " + (missNanos / 1000000L) + " ms; with: " + (hitNanos / 1000000L) + " ms");
+
+    // Third boot: a property has changed, so a new cache file is
+    // written and the stale one deleted.
+    final Properties properties = new Properties();
+    properties.setProperty("eclipselink.jdbc.batch-writing.size", "250");
+    metadataCache = boot(Widgets.createPersistenceUnitInfo(name, dataSource, properties), directory, null);
+    assertFalse(metadataCache.isHit());
+    assertNotEquals(cacheFile, metadataCache.getCacheFile());
+    assertFalse(Files.exists(cacheFile));
+    try (final Stream<Path> files = Files.list(directory)) {
+      assertEquals(1L, files.count());
+    }
+
+    // Properties supplied at deployment time count too.
+    final Path previousCacheFile = metadataCache.getCacheFile();
+    metadataCache = boot(Widgets.createPersistenceUnitInfo(name, dataSource, properties), directory, "eclipselink.jdbc.fetch-size");
+    assertFalse(metadataCache.isHit());
+    assertNotEquals(previousCacheFile, metadataCache.getCacheFile());
+  }
+
+  @Test
+  public void testDirectoryPermissions() throws IOException {
+    final Path parent = Files.createTempDirectory("metadataCacheDirectory");
+    Assume.assumeTrue(parent.getFileSystem().supportedFileAttributeViews().contains("posix"));
+
+    // A directory the cache creates is usable by its owner only.
+    final Path created = parent.resolve("created");
+    MetadataCache.prepareDirectory(created);
+    assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(created)));
+    MetadataCache.prepareDirectory(created);
+
+    // A directory others could plant cache files in is refused.
+    final Path shared = Files.createDirectory(parent.resolve("shared"));
+    Files.setPosixFilePermissions(shared, PosixFilePermissions.fromString("rwxrwxrwx"));
+    try {
+      MetadataCache.prepareDirectory(shared);
+      fail();
+    } catch (final IOException expected) {
+      assertTrue(expected.getMessage().contains("writable by other users"));
+    }
+  }
+
+  @Test
+  public void testFingerprintCoversScannedRoot() throws IOException {
+    final Path root = Files.createTempDirectory("metadataCacheRoot");
+    final PersistenceUnitInfoBean persistenceUnitInfo =
+      new PersistenceUnitInfoBean("scanned", root.toUri().toURL(), Collections.emptySet(), (jta, useDefaultJta, dataSourceName) -> null, new Properties());
+    assertFalse(persistenceUnitInfo.excludeUnlistedClasses());
+    final String empty = PersistenceUnitFingerprint.compute(persistenceUnitInfo);
+
+    final Path classFile = root.resolve("com/example/Unlisted.class");
+    Files.createDirectories(classFile.getParent());
+    Files.write(classFile, new byte[] { (byte)0xCA, (byte)0xFE, (byte)0xBA, (byte)0xBE });
+    final String withClass = PersistenceUnitFingerprint.compute(persistenceUnitInfo);
+    assertNotEquals(empty, withClass);
+
+    final Path ormXml = root.resolve("META-INF/orm.xml");
+    Files.createDirectories(ormXml.getParent());
+    Files.write(ormXml, "<entity-mappings/>".getBytes("UTF-8"));
+    final String withOrmXml = PersistenceUnitFingerprint.compute(persistenceUnitInfo);
+    assertNotEquals(withClass, withOrmXml);
+    assertEquals(withOrmXml, PersistenceUnitFingerprint.compute(persistenceUnitInfo));
+
+    final PersistenceUnitInfoBean remote =
+      new PersistenceUnitInfoBean("remote", new URL("http://example.com/app/"), Collections.emptySet(), (jta, useDefaultJta, dataSourceName) -> null, new Properties());
+    try {
+      PersistenceUnitFingerprint.compute(remote);
+      fail();
+    } catch (final IOException expected) {
+      // A root that cannot be inspected cannot be fingerprinted.
+    }
+  }
+
+  @Test
+  public void testUnsupportedProvider() throws IOException {
+    final String name = "metadataCacheUnsupported";
+    final Path directory = Files.createTempDirectory(name);
+    final MetadataCache metadataCache =
+      new MetadataCache(name, Widgets.createPersistenceUnitInfo(name, Widgets.createDataSource(name), null), directory, null);
+    final Map<String, Object> properties = new HashMap<>();
+    metadataCache.apply(new HibernatePersistenceProvider(), properties);
+    assertNull(metadataCache.getCacheFile());
+    assertTrue(properties.isEmpty());
+  }
+
+  private static final MetadataCache boot(final PersistenceUnitInfoBean persistenceUnitInfo,
+                                          final Path directory,
+                                          final String extraPropertyName) {
+    final MetadataCache metadataCache =
+      new MetadataCache(persistenceUnitInfo.getPersistenceUnitName(), persistenceUnitInfo, directory, null);
+    final PersistenceProvider persistenceProvider = new PersistenceProvider();
+    final Map<String, Object> properties = new HashMap<>();
+    if (extraPropertyName != null) {
+      properties.put(extraPropertyName, "100");
+    }
+    metadataCache.apply(persistenceProvider, properties);
+    final EntityManagerFactory entityManagerFactory = persistenceProvider.createContainerEntityManagerFactory(persistenceUnitInfo, properties);
+    try {
+      final EntityManager entityManager = entityManagerFactory.createEntityManager();
+      try {
+        entityManager.getTransaction().begin();
+        entityManager.persist(new Widget(1L, "widget-1"));
+        entityManager.getTransaction().commit();
+        assertNotNull(entityManager.find(Widget.class, Long.valueOf(1L)));
+      } finally {
+        entityManager.close();
+      }
+    } finally {
+      entityManagerFactory.close();
+    }
+    return metadataCache;
+  }
+
+}
@@ -0,0 +1,69 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.nio.charset.StandardCharsets;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+public class TestNativeImageConfigurationGenerator {
+
+  public TestNativeImageConfigurationGenerator() {
+    super();
+  }
+
+  @Test
+  public void testGenerate() throws Exception {
+    final Path directory =
+      Paths.get(System.getProperty("project.build.directory", "target"), this.getClass().getSimpleName());
+    final Map<String, Set<Class<?>>> unlistedClasses =
+      Collections.singletonMap("", Collections.<Class<?>>singleton(Widget.class));
+    new NativeImageConfigurationGenerator(Thread.currentThread().getContextClassLoader(), unlistedClasses).generate(directory);
+
+    final String reflectionConfiguration = read(directory.resolve(NativeImageConfigurationGenerator.REFLECTION_CONFIGURATION_FILE_NAME));
+    assertTrue(reflectionConfiguration.contains("\"name\": \"org.microbean.jpa.cdi.Widget\""));
+    assertTrue(reflectionConfiguration.contains("\"name\": \"org.eclipse.persistence.jpa.PersistenceProvider\""));
+    assertTrue(reflectionConfiguration.contains("\"name\": \"org.microbean.jpa.cdi.JpaExtension\""));
+    assertTrue(reflectionConfiguration.contains("\"name\": \"org.microbean.jpa.jaxb.Persistence$PersistenceUnit\""));
+    assertTrue(reflectionConfiguration.contains("\"name\": \"org.microbean.jpa.jaxb.PersistenceUnitTransactionType\""));
+
+    final String resourceConfiguration = read(directory.resolve(NativeImageConfigurationGenerator.RESOURCE_CONFIGURATION_FILE_NAME));
+    assertTrue(resourceConfiguration.contains("\"pattern\": \"\\\\QMETA-INF/persistence.xml\\\\E\""));
+    assertTrue(resourceConfiguration.contains("META-INF/services/javax.persistence.spi.PersistenceProvider"));
+
+    final String proxyConfiguration = read(directory.resolve(NativeImageConfigurationGenerator.PROXY_CONFIGURATION_FILE_NAME));
+    assertTrue(proxyConfiguration.contains("[\"java.sql.Connection\"]"));
+    for (final Class<?> proxyInterface : Proxies.getProxyInterfaces()) {
+      assertTrue(proxyInterface.getName(), proxyConfiguration.contains("[\"" + proxyInterface.getName() + "\"]"));
+    }
+  }
+
+  private static final String read(final Path path) throws Exception {
+    return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+  }
+
+}
@@ -0,0 +1,132 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestPersistenceContextGuard {
+
+  private EntityManagerFactory entityManagerFactory;
+
+  private List<PersistenceContextSize> events;
+
+  public TestPersistenceContextGuard() {
+    super();
+  }
+
+  @Before
+  public void startEntityManagerFactory() {
+    this.entityManagerFactory = Widgets.createEntityManagerFactory(this.getClass().getSimpleName());
+    this.events = new ArrayList<>();
+  }
+
+  @After
+  public void stopEntityManagerFactory() {
+    if (this.entityManagerFactory != null) {
+      this.entityManagerFactory.close();
+    }
+  }
+
+  @Test
+  public void testWarningAndEventFireOncePerCrossing() {
+    final PersistenceContextGuard guard = new PersistenceContextGuard("test", 50, 100, 0, this.events::add);
+    final EntityManagerFactory guarded = guard.wrap(this.entityManagerFactory);
+    Widgets.insert(this.entityManagerFactory, 300);
+    final EntityManager entityManager = guarded.createEntityManager();
+    try {
+      assertEquals(300, entityManager.createQuery("SELECT w FROM Widget w", Widget.class).getResultList().size());
+      entityManager.find(Widget.class, Long.valueOf(1L));
+      assertEquals(1L, guard.getWarningCount());
+      assertEquals(1, this.events.size());
+      final PersistenceContextSize size = this.events.get(0);
+      assertEquals("test", size.getPersistenceUnitName());
+      assertEquals(300, size.getManagedEntityCount());
+      assertEquals(100, size.getThreshold());
+      assertEquals(Integer.valueOf(300), size.getCountsByEntityClassName().get(Widget.class.getName()));
+
+      // Clearing rearms both thresholds.
+      entityManager.clear();
+      entityManager.createQuery("SELECT w FROM Widget w WHERE w.id < 150", Widget.class).getResultList();
+      assertEquals(2L, guard.getWarningCount());
+      assertEquals(2, this.events.size());
+      assertEquals(300L, guard.getLargestSize());
+    } finally {
+      entityManager.close();
+    }
+  }
+
+  @Test
+  public void testBatchModeFlushesAndClears() {
+    final PersistenceContextGuard guard = new PersistenceContextGuard("test", 0, 0, 50, null);
+    final EntityManagerFactory guarded = guard.wrap(this.entityManagerFactory);
+
+    // Outside batch mode nothing is cleared.
+    EntityManager entityManager = guarded.createEntityManager();
+    try {
+      entityManager.getTransaction().begin();
+      for (int i = 0; i < 100; i++) {
+        entityManager.persist(new Widget(i, "widget-" + i));
+      }
+      entityManager.getTransaction().commit();
+      assertEquals(0L, guard.getClearCount());
+      assertTrue(entityManager.contains(entityManager.find(Widget.class, Long.valueOf(0L))));
+    } finally {
+      entityManager.close();
+    }
+
+    final boolean previouslyActive = PersistenceContextGuard.enterBatch();
+    assertFalse(previouslyActive);
+    try {
+      entityManager = guarded.createEntityManager();
+      try {
+        entityManager.getTransaction().begin();
+        for (int i = 100; i < 1100; i++) {
+          entityManager.persist(new Widget(i, "widget-" + i));
+        }
+        entityManager.getTransaction().commit();
+      } finally {
+        entityManager.close();
+      }
+    } finally {
+      PersistenceContextGuard.exitBatch(previouslyActive);
+    }
+    assertFalse(PersistenceContextGuard.isBatchActive());
+    assertEquals(20L, guard.getClearCount());
+    assertEquals(100L, guard.getLargestSize());
+
+    entityManager = this.entityManagerFactory.createEntityManager();
+    try {
+      assertEquals(1100L,
+                   entityManager.createQuery("SELECT COUNT(w) FROM Widget w", Long.class).getSingleResult().longValue());
+    } finally {
+      entityManager.close();
+    }
+  }
+
+}
@@ -0,0 +1,223 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.function.Consumer;
+
+import javax.enterprise.inject.se.SeContainer;
+import javax.enterprise.inject.se.SeContainerInitializer;
+
+import javax.enterprise.inject.spi.BeanManager;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A benchmark that runs the same entity model and workload through
+ * EclipseLink and Hibernate, each bootstrapped by the {@link
+ * JpaExtension} from its own persistence unit backed by its own
+ * HikariCP-pooled H2 database.
+ *
+ * <p>The workload consists of bootstrap, single-entity CRUD, batch
+ * insert, paged query and second-level-cached reads.  Every workload
+ * but bootstrap is run {@code providerBenchmark.rounds} times
+ * (default 3) and the best time is reported.  The size of each
+ * workload is governed by the {@code providerBenchmark.iterations}
+ * system property (default 1000).</p>
+ */
+public class TestProviderBenchmark {
+
+  private static final String[] PERSISTENCE_UNIT_NAMES = { "eclipselink", "hibernate" };
+
+  private static final int ITERATIONS = Math.max(1, Integer.getInteger("providerBenchmark.iterations", 1000).intValue());
+
+  private static final int ROUNDS = Math.max(1, Integer.getInteger("providerBenchmark.rounds", 3).intValue());
+
+  private static final int BATCH_SIZE = 1000;
+
+  private static final int PAGE_SIZE = 100;
+
+  private static final long CRUD_ID_BASE = 1000000000L;
+
+  public TestProviderBenchmark() {
+    super();
+  }
+
+  @Test
+  public void testProviders() {
+    final Map<String, Map<String, Long>> results = new LinkedHashMap<>();
+    final Thread currentThread = Thread.currentThread();
+    final ClassLoader oldContextClassLoader = currentThread.getContextClassLoader();
+    final URL benchmarkRoot = oldContextClassLoader.getResource(this.getClass().getSimpleName() + "/");
+    assertNotNull(benchmarkRoot);
+    // Make this benchmark's META-INF/persistence.xml visible to the
+    // JpaExtension in addition to the test tree's.
+    currentThread.setContextClassLoader(new URLClassLoader(new URL[] { benchmarkRoot }, oldContextClassLoader));
+    try (final SeContainer container = SeContainerInitializer.newInstance().initialize()) {
+      final BeanManager beanManager = container.getBeanManager();
+      for (final String unitName : PERSISTENCE_UNIT_NAMES) {
+        final long start = System.nanoTime();
+        final EntityManagerFactory entityManagerFactory = JpaExtension.getEntityManagerFactory(beanManager, unitName);
+        entityManagerFactory.getMetamodel().getManagedTypes();
+        entityManagerFactory.createEntityManager().close();
+        record(results, "bootstrap", unitName, System.nanoTime() - start);
+
+        for (int round = 0; round < ROUNDS; round++) {
+          record(results, "single-entity CRUD (" + ITERATIONS + " x 4)", unitName, time(() -> crud(entityManagerFactory)));
+          record(results, "batch insert (" + (ITERATIONS * 10) + ")", unitName, time(() -> batchInsert(entityManagerFactory)));
+          record(results, "paged query (" + PAGE_SIZE + "/page)", unitName, time(() -> pagedQuery(entityManagerFactory)));
+          primeCache(entityManagerFactory);
+          record(results, "L2-cached read (" + ITERATIONS + ")", unitName, time(() -> cachedRead(entityManagerFactory)));
+        }
+      }
+    } finally {
+      currentThread.setContextClassLoader(oldContextClassLoader);
+    }
+
+    final StringBuilder header = new StringBuilder(String.format("%-32s", "workload (best ms)"));
+    for (final String unitName : PERSISTENCE_UNIT_NAMES) {
+      header.append(String.format(" %12s", unitName));
+    }
+    System.out.println(header);
+    for (final Map.Entry<String, Map<String, Long>> entry : results.entrySet()) {
+      final StringBuilder line = new StringBuilder(String.format("%-32s", entry.getKey()));
+      for (final String unitName : PERSISTENCE_UNIT_NAMES) {
+        line.append(String.format(" %12.3f", entry.getValue().get(unitName).longValue() / 1000000.0));
+      }
+      System.out.println(line);
+    }
+  }
+
+  private static final void crud(final EntityManagerFactory entityManagerFactory) {
+    for (int i = 0; i < ITERATIONS; i++) {
+      final Long id = Long.valueOf(CRUD_ID_BASE + i);
+      inTransaction(entityManagerFactory, em -> em.persist(new Widget(id.longValue(), "widget-" + id)));
+      final EntityManager entityManager = entityManagerFactory.createEntityManager();
+      try {
+        assertNotNull(entityManager.find(Widget.class, id));
+      } finally {
+        entityManager.close();
+      }
+      inTransaction(entityManagerFactory, em -> em.find(Widget.class, id).setName("updated-" + id));
+      inTransaction(entityManagerFactory, em -> em.remove(em.find(Widget.class, id)));
+    }
+  }
+
+  private static final void batchInsert(final EntityManagerFactory entityManagerFactory) {
+    inTransaction(entityManagerFactory, em -> em.createQuery("DELETE FROM Widget w").executeUpdate());
+    entityManagerFactory.getCache().evictAll();
+    inTransaction(entityManagerFactory, em -> {
+        final int count = ITERATIONS * 10;
+        for (int i = 0; i < count; i++) {
+          em.persist(new Widget(i, "widget-" + i));
+          if (i % BATCH_SIZE == BATCH_SIZE - 1) {
+            em.flush();
+            em.clear();
+          }
+        }
+      });
+  }
+
+  private static final void pagedQuery(final EntityManagerFactory entityManagerFactory) {
+    final EntityManager entityManager = entityManagerFactory.createEntityManager();
+    try {
+      int count = 0;
+      for (int firstResult = 0; ; firstResult += PAGE_SIZE) {
+        final List<Widget> page = entityManager.createQuery("SELECT w FROM Widget w ORDER BY w.id", Widget.class)
+          .setFirstResult(firstResult)
+          .setMaxResults(PAGE_SIZE)
+          .getResultList();
+        count += page.size();
+        entityManager.clear();
+        if (page.size() < PAGE_SIZE) {
+          break;
+        }
+      }
+      assertEquals(ITERATIONS * 10, count);
+    } finally {
+      entityManager.close();
+    }
+  }
+
+  private static final void primeCache(final EntityManagerFactory entityManagerFactory) {
+    final EntityManager entityManager = entityManagerFactory.createEntityManager();
+    try {
+      for (int i = 0; i < ITERATIONS; i++) {
+        assertNotNull(entityManager.find(Widget.class, Long.valueOf(i)));
+      }
+    } finally {
+      entityManager.close();
+    }
+    assertTrue(entityManagerFactory.getCache().contains(Widget.class, Long.valueOf(0L)));
+  }
+
+  private static final void cachedRead(final EntityManagerFactory entityManagerFactory) {
+    for (int i = 0; i < ITERATIONS; i++) {
+      final EntityManager entityManager = entityManagerFactory.createEntityManager();
+      try {
+        assertNotNull(entityManager.find(Widget.class, Long.valueOf(i)));
+      } finally {
+        entityManager.close();
+      }
+    }
+  }
+
+  private static final void inTransaction(final EntityManagerFactory entityManagerFactory,
+                                          final Consumer<? super EntityManager> work) {
+    final EntityManager entityManager = entityManagerFactory.createEntityManager();
+    final EntityTransaction transaction = entityManager.getTransaction();
+    try {
+      transaction.begin();
+      work.accept(entityManager);
+      transaction.commit();
+    } finally {
+      if (transaction.isActive()) {
+        transaction.rollback();
+      }
+      entityManager.close();
+    }
+  }
+
+  private static final long time(final Runnable runnable) {
+    final long start = System.nanoTime();
+    runnable.run();
+    return System.nanoTime() - start;
+  }
+
+  private static final void record(final Map<String, Map<String, Long>> results,
+                                   final String workload,
+                                   final String unitName,
+                                   final long nanos) {
+    results.computeIfAbsent(workload, k -> new LinkedHashMap<>())
+      .merge(unitName, Long.valueOf(nanos), (a, b) -> a.longValue() <= b.longValue() ? a : b);
+  }
+
+}
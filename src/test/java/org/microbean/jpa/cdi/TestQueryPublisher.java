@@ -0,0 +1,196 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.eclipse.persistence.jpa.PersistenceProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestQueryPublisher {
+
+  private static final int ROWS = 1000;
+
+  private CountingDataSource dataSource;
+
+  private EntityManagerFactory entityManagerFactory;
+
+  private ExecutorService executor;
+
+  private QueryPublisher<Widget> publisher;
+
+  public TestQueryPublisher() {
+    super();
+  }
+
+  @Before
+  public void startEntityManagerFactory() {
+    final String name = this.getClass().getSimpleName();
+    this.dataSource = new CountingDataSource(Widgets.createDataSource(name));
+    this.entityManagerFactory =
+      new PersistenceProvider().createContainerEntityManagerFactory(Widgets.createPersistenceUnitInfo(name, this.dataSource, null), null);
+    Widgets.insert(this.entityManagerFactory, ROWS);
+    this.executor = Executors.newSingleThreadExecutor();
+    this.publisher = new QueryPublisher<>(new ResultStreamer(this.entityManagerFactory, 10, 10),
+                                          em -> em.createQuery("SELECT w FROM Widget w ORDER BY w.id", Widget.class),
+                                          this.executor);
+  }
+
+  @After
+  public void stopEntityManagerFactory() throws InterruptedException {
+    if (this.executor != null) {
+      this.executor.shutdown();
+      this.executor.awaitTermination(10L, TimeUnit.SECONDS);
+    }
+    if (this.entityManagerFactory != null) {
+      this.entityManagerFactory.close();
+    }
+  }
+
+  @Test
+  public void testDemandIsHonored() throws InterruptedException {
+    final RecordingSubscriber subscriber = new RecordingSubscriber(5L);
+    this.publisher.subscribe(subscriber);
+    assertTrue(subscriber.firstBatch.await(10L, TimeUnit.SECONDS));
+    Thread.sleep(200L);
+    assertEquals(5, subscriber.received.get());
+    subscriber.subscription.cancel();
+    this.awaitNoOpenConnections();
+  }
+
+  @Test
+  public void testCancelReleasesConnection() throws InterruptedException {
+    final RecordingSubscriber subscriber = new RecordingSubscriber(1L);
+    this.publisher.subscribe(subscriber);
+    assertTrue(subscriber.firstBatch.await(10L, TimeUnit.SECONDS));
+    assertTrue(this.dataSource.open.get() > 0);
+    subscriber.subscription.cancel();
+    this.awaitNoOpenConnections();
+  }
+
+  @Test
+  public void testCancelOnShutDownExecutorReleasesConnection() throws InterruptedException {
+    final RecordingSubscriber subscriber = new RecordingSubscriber(1L);
+    this.publisher.subscribe(subscriber);
+    assertTrue(subscriber.firstBatch.await(10L, TimeUnit.SECONDS));
+    this.executor.shutdown();
+    assertTrue(this.executor.awaitTermination(10L, TimeUnit.SECONDS));
+    assertTrue(this.dataSource.open.get() > 0);
+    subscriber.subscription.cancel();
+    assertEquals(0, this.dataSource.open.get());
+    assertNull(subscriber.error);
+  }
+
+  @Test
+  public void testSlowSubscriberReceivesEverything()throws InterruptedException {
+    final RecordingSubscriber subscriber = new RecordingSubscriber(1L) {
+        @Override
+        public final void onNext(final Widget widget) {
+          super.onNext(widget);
+          if (this.received.get() % 100 == 0) {
+            try {
+              Thread.sleep(10L);
+            } catch (final InterruptedException interruptedException) {
+              Thread.currentThread().interrupt();
+            }
+          }
+          this.subscription.request(1L);
+        }
+      };
+    this.publisher.subscribe(subscriber);
+    assertTrue(subscriber.done.await(30L, TimeUnit.SECONDS));
+    assertNull(subscriber.error);
+    assertEquals(ROWS, subscriber.received.get());
+    this.awaitNoOpenConnections();
+  }
+
+  private final void awaitNoOpenConnections() throws InterruptedException {
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10L);
+    while (this.dataSource.open.get() > 0 && System.nanoTime() < deadline) {
+      Thread.sleep(10L);
+    }
+    assertEquals(0, this.dataSource.open.get());
+  }
+
+  private static class RecordingSubscriber implements Subscriber<Widget> {
+
+    private final long initialRequest;
+
+    final AtomicInteger received;
+
+    final CountDownLatch firstBatch;
+
+    final CountDownLatch done;
+
+    volatile Subscription subscription;
+
+    volatile Throwable error;
+
+    private RecordingSubscriber(final long initialRequest) {
+      super();
+      this.initialRequest = initialRequest;
+      this.received = new AtomicInteger();
+      this.firstBatch = new CountDownLatch(1);
+      this.done = new CountDownLatch(1);
+    }
+
+    @Override
+    public void onSubscribe(final Subscription subscription) {
+      this.subscription = subscription;
+      subscription.request(this.initialRequest);
+    }
+
+    @Override
+    public void onNext(final Widget widget) {
+      if (this.received.incrementAndGet() == this.initialRequest) {
+        this.firstBatch.countDown();
+      }
+    }
+
+    @Override
+    public void onError(final Throwable throwable) {
+      this.error = throwable;
+      this.firstBatch.countDown();
+      this.done.countDown();
+    }
+
+    @Override
+    public void onComplete() {
+      this.firstBatch.countDown();
+      this.done.countDown();
+    }
+
+  }
+
+}
@@ -0,0 +1,131 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.FlushModeType;
+import javax.persistence.TypedQuery;
+
+import javax.sql.DataSource;
+
+import org.eclipse.persistence.jpa.PersistenceProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestReadOnly {
+
+  private CountingDataSource replica;
+
+  private DataSource dataSource;
+
+  private EntityManagerFactory entityManagerFactory;
+
+  public TestReadOnly() {
+    super();
+  }
+
+  @Before
+  public void setUp() {
+    final DataSource primary = Widgets.createDataSource("readOnly");
+    // The "replica" is the same in-memory database, reached through
+    // a separate DataSource so that its use can be counted.
+    this.replica = new CountingDataSource(Widgets.createDataSource("readOnly"));
+    this.dataSource = new ReadOnlyDataSource(primary, this.replica);
+    this.entityManagerFactory =
+      ReadOnlyMode.wrap(new PersistenceProvider()
+                        .createContainerEntityManagerFactory(Widgets.createPersistenceUnitInfo("readOnly", this.dataSource, null),
+                                                             null));
+  }
+
+  @After
+  public void tearDown() {
+    if (this.entityManagerFactory != null) {
+      this.entityManagerFactory.close();
+    }
+  }
+
+  @Test
+  public void testConnections() throws SQLException {
+    try (final Connection connection = this.dataSource.getConnection()) {
+      assertFalse(connection.isReadOnly());
+    }
+    assertEquals(0, this.replica.acquired.get());
+    final boolean previouslyActive = ReadOnlyMode.enter();
+    try {
+      assertFalse(previouslyActive);
+      // Read-only mode nests.
+      assertTrue(ReadOnlyMode.enter());
+      ReadOnlyMode.exit(true);
+      assertTrue(ReadOnlyMode.isActive());
+      try (final Connection connection = this.dataSource.getConnection()) {
+        assertTrue(connection.isReadOnly());
+      }
+      assertEquals(1, this.replica.acquired.get());
+      assertEquals(0, this.replica.open.get());
+    } finally {
+      ReadOnlyMode.exit(previouslyActive);
+    }
+    assertFalse(ReadOnlyMode.isActive());
+  }
+
+  @Test
+  public void testEntityManagers() {
+    Widgets.insert(this.entityManagerFactory, 10);
+    assertEquals(0, this.replica.acquired.get());
+
+    EntityManager entityManager = this.entityManagerFactory.createEntityManager();
+    try {
+      assertNotEquals(FlushModeType.COMMIT, entityManager.getFlushMode());
+    } finally {
+      entityManager.close();
+    }
+
+    final boolean previouslyActive = ReadOnlyMode.enter();
+    try {
+      entityManager = this.entityManagerFactory.createEntityManager();
+      try {
+        assertEquals(FlushModeType.COMMIT, entityManager.getFlushMode());
+        final TypedQuery<Widget> query = entityManager.createQuery("SELECT w FROM Widget w ORDER BY w.id", Widget.class);
+        assertEquals("true", query.getHints().get("eclipselink.read-only"));
+        final List<Widget> widgets = query.getResultList();
+        assertEquals(10, widgets.size());
+        // Read-only results are not managed, so they are never dirty
+        // checked.
+        assertFalse(entityManager.contains(widgets.get(0)));
+      } finally {
+        entityManager.close();
+      }
+      assertTrue(this.replica.acquired.get() > 0);
+    } finally {
+      ReadOnlyMode.exit(previouslyActive);
+    }
+  }
+
+}
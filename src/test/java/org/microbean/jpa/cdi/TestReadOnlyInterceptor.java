@@ -0,0 +1,61 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import javax.enterprise.inject.se.SeContainer;
+import javax.enterprise.inject.se.SeContainerInitializer;
+
+import javax.persistence.FlushModeType;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestReadOnlyInterceptor {
+
+  public TestReadOnlyInterceptor() {
+    super();
+  }
+
+  @Test
+  public void testInterceptor() {
+    try (final SeContainer container = SeContainerInitializer.newInstance().initialize()) {
+      // ReadingService uses @ReadOnly.
+      assertTrue(ReadOnlyMode.isEnabled());
+      final ReadingService service = container.select(ReadingService.class).get();
+
+      assertTrue(service.isReadOnly());
+      assertFalse(ReadOnlyMode.isActive());
+
+      assertEquals(FlushModeType.COMMIT, service.getReadOnlyFlushMode());
+      assertEquals(FlushModeType.AUTO, service.getFlushMode());
+
+      try {
+        service.fail();
+        fail();
+      } catch (final IllegalStateException expected) {
+        assertFalse(ReadOnlyMode.isActive());
+      }
+    }
+    // The container that enabled read-only mode has shut down.
+    assertFalse(ReadOnlyMode.isEnabled());
+  }
+
+}
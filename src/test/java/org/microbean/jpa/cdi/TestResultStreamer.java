@@ -0,0 +1,130 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.util.Iterator;
+
+import java.util.stream.Stream;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestResultStreamer {
+
+  // Run with -Dwidgets=1000000 to stream one million rows.  The
+  // default is large enough that a persistence context holding
+  // every row grows the heap measurably.
+  private static final int ROWS = Integer.getInteger("widgets", 50000).intValue();
+
+  private EntityManagerFactory entityManagerFactory;
+
+  public TestResultStreamer() {
+    super();
+  }
+
+  @Before
+  public void startEntityManagerFactory() {
+    this.entityManagerFactory = Widgets.createEntityManagerFactory(this.getClass().getSimpleName());
+    Widgets.insert(this.entityManagerFactory, ROWS);
+  }
+
+  @After
+  public void stopEntityManagerFactory() {
+    if (this.entityManagerFactory != null) {
+      this.entityManagerFactory.close();
+    }
+  }
+
+  @Test
+  public void testStreamDetachesProcessedEntities() {
+    final EntityManager entityManager = this.entityManagerFactory.createEntityManager();
+    try {
+      Widget first = null;
+      long count = 0L;
+      try (final Stream<Widget> stream =
+           ResultStreamer.stream(entityManager,
+                                 entityManager.createQuery("SELECT w FROM Widget w ORDER BY w.id", Widget.class),
+                                 100,
+                                 100)) {
+        final Iterator<Widget> iterator = stream.iterator();
+        while (iterator.hasNext()) {
+          final Widget widget = iterator.next();
+          assertNotNull(widget);
+          if (first == null) {
+            first = widget;
+            assertTrue(entityManager.contains(first));
+          }
+          count++;
+        }
+      }
+      assertEquals(ROWS, count);
+      assertNotNull(first);
+      assertFalse(entityManager.contains(first));
+    } finally {
+      entityManager.close();
+    }
+  }
+
+  @Test
+  public void testHeapStaysFlat() {
+    // A streamer that never clears its persistence context retains
+    // every row it emits, just as getResultList() would, and serves
+    // as the baseline.
+    final long retainingGrowth = heapGrowth(new ResultStreamer(this.entityManagerFactory, 500, 0));
+    final long streamingGrowth = heapGrowth(new ResultStreamer(this.entityManagerFactory, 500, 500));
+    assertTrue("Retaining every row grew the heap by only " + retainingGrowth + " bytes",
+               retainingGrowth > 0L);
+    assertTrue("Streaming grew the heap by " + streamingGrowth + " bytes; retaining every row grew it by " + retainingGrowth + " bytes",
+               streamingGrowth < retainingGrowth / 4L);
+  }
+
+  private static final long heapGrowth(final ResultStreamer streamer) {
+    long usedAtTenPercent = 0L;
+    long usedAtNinetyPercent = 0L;
+    long count = 0L;
+    try (final Stream<Widget> stream = streamer.stream("SELECT w FROM Widget w", Widget.class)) {
+      final Iterator<Widget> iterator = stream.iterator();
+      while (iterator.hasNext()) {
+        assertNotNull(iterator.next());
+        count++;
+        if (count == ROWS / 10) {
+          usedAtTenPercent = usedHeap();
+        } else if (count == ROWS - ROWS / 10) {
+          usedAtNinetyPercent = usedHeap();
+        }
+      }
+    }
+    assertEquals(ROWS, count);
+    return usedAtNinetyPercent - usedAtTenPercent;
+  }
+
+  private static final long usedHeap() {
+    final Runtime runtime = Runtime.getRuntime();
+    System.gc();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+}
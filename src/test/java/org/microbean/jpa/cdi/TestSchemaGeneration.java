@@ -0,0 +1,143 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.io.IOException;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import javax.sql.DataSource;
+
+import org.eclipse.persistence.jpa.PersistenceProvider;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestSchemaGeneration {
+
+  public TestSchemaGeneration() {
+    super();
+  }
+
+  @Test
+  public void testFingerprintFile() throws ExecutionException, InterruptedException, IOException, TimeoutException {
+    final String name = "schemaGenerationFile";
+    final DataSource dataSource = Widgets.createDataSource(name);
+    final Path fingerprintFile = Files.createTempDirectory(name).resolve("fingerprint");
+
+    // First boot: no stored fingerprint, so the schema is generated
+    // (here, synchronously) and the fingerprint stored.
+    PersistenceUnitInfoBean persistenceUnitInfo = Widgets.createPersistenceUnitInfo(name, dataSource, null);
+    SchemaGeneration schemaGeneration = new SchemaGeneration(name, persistenceUnitInfo, fingerprintFile, null, false);
+    EntityManagerFactory entityManagerFactory = createEntityManagerFactory(schemaGeneration, persistenceUnitInfo);
+    try {
+      assertTrue(schemaGeneration.getCompletion().toCompletableFuture().get(10L, TimeUnit.SECONDS).booleanValue());
+      assertEquals(PersistenceUnitFingerprint.compute(persistenceUnitInfo), Files.readAllLines(fingerprintFile).get(0));
+      Widgets.insert(entityManagerFactory, 1);
+    } finally {
+      entityManagerFactory.close();
+    }
+
+    // Second boot: nothing has changed, so drop-and-create-tables is
+    // skipped and the row inserted above survives.
+    persistenceUnitInfo = Widgets.createPersistenceUnitInfo(name, dataSource, null);
+    schemaGeneration = new SchemaGeneration(name, persistenceUnitInfo, fingerprintFile, null, false);
+    entityManagerFactory = createEntityManagerFactory(schemaGeneration, persistenceUnitInfo);
+    try {
+      assertFalse(schemaGeneration.getCompletion().toCompletableFuture().get(10L, TimeUnit.SECONDS).booleanValue());
+      assertEquals(1L, count(entityManagerFactory));
+    } finally {
+      entityManagerFactory.close();
+    }
+
+    // Third boot: a property changed, so the schema is regenerated
+    // in the background.
+    final Properties properties = new Properties();
+    properties.setProperty("eclipselink.jdbc.native-sql", "true");
+    persistenceUnitInfo = Widgets.createPersistenceUnitInfo(name, dataSource, properties);
+    final String newFingerprint = PersistenceUnitFingerprint.compute(persistenceUnitInfo);
+    assertNotEquals(Files.readAllLines(fingerprintFile).get(0), newFingerprint);
+    schemaGeneration = new SchemaGeneration(name, persistenceUnitInfo, fingerprintFile, null, true);
+    entityManagerFactory = createEntityManagerFactory(schemaGeneration, persistenceUnitInfo);
+    try {
+      assertTrue(schemaGeneration.getCompletion().toCompletableFuture().get(10L, TimeUnit.SECONDS).booleanValue());
+      assertEquals(newFingerprint, Files.readAllLines(fingerprintFile).get(0));
+      assertEquals(0L, count(entityManagerFactory));
+    } finally {
+      entityManagerFactory.close();
+    }
+  }
+
+  @Test
+  public void testFingerprintTable() throws ExecutionException, InterruptedException, TimeoutException {
+    final String name = "schemaGenerationTable";
+    final DataSource dataSource = Widgets.createDataSource(name);
+    for (int i = 0; i < 2; i++) {
+      final PersistenceUnitInfoBean persistenceUnitInfo = Widgets.createPersistenceUnitInfo(name, dataSource, null);
+      final SchemaGeneration schemaGeneration =
+        new SchemaGeneration(name, persistenceUnitInfo, null, "SCHEMA_FINGERPRINTS", false);
+      final EntityManagerFactory entityManagerFactory = createEntityManagerFactory(schemaGeneration, persistenceUnitInfo);
+      try {
+        assertEquals(Boolean.valueOf(i == 0), schemaGeneration.getCompletion().toCompletableFuture().get(10L, TimeUnit.SECONDS));
+        if (i == 0) {
+          Widgets.insert(entityManagerFactory, 1);
+        }
+        assertEquals(1L, count(entityManagerFactory));
+      } finally {
+        entityManagerFactory.close();
+      }
+    }
+  }
+
+  private static final EntityManagerFactory createEntityManagerFactory(final SchemaGeneration schemaGeneration,
+                                                                       final PersistenceUnitInfoBean persistenceUnitInfo) {
+    final PersistenceProvider persistenceProvider = new PersistenceProvider();
+    final Map<String, Object> properties = new HashMap<>();
+    schemaGeneration.apply(persistenceProvider, properties);
+    assertEquals("none", properties.get("eclipselink.ddl-generation"));
+    final EntityManagerFactory returnValue = persistenceProvider.createContainerEntityManagerFactory(persistenceUnitInfo, properties);
+    assertNotNull(returnValue);
+    return returnValue;
+  }
+
+  private static final long count(final EntityManagerFactory entityManagerFactory) {
+    final EntityManager entityManager = entityManagerFactory.createEntityManager();
+    try {
+      return entityManager.createQuery("SELECT COUNT(w) FROM Widget w", Long.class).getSingleResult().longValue();
+    } finally {
+      entityManager.close();
+    }
+  }
+
+}
@@ -0,0 +1,125 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+public class TestStartupTrainer {
+
+  public TestStartupTrainer() {
+    super();
+  }
+
+  @Test
+  public void testChildBootUsesArchive() throws IOException, InterruptedException {
+    // Application class data sharing needs JDK 10 or later.
+    assumeFalse(System.getProperty("java.specification.version").startsWith("1."));
+
+    final Path directory = Paths.get(System.getProperty("project.build.directory", "target"), this.getClass().getSimpleName());
+    Files.createDirectories(directory);
+
+    // Only classes loaded from jar files can be archived, so package
+    // any classpath directories (target/classes, target/test-classes)
+    // first.
+    final List<String> classpathEntries = new ArrayList<>();
+    int jarCount = 0;
+    for (final String entry : System.getProperty("surefire.test.class.path", System.getProperty("java.class.path")).split(File.pathSeparator)) {
+      if (entry.isEmpty()) {
+        continue;
+      }
+      final Path path = Paths.get(entry);
+      if (Files.isDirectory(path)) {
+        final Path jar = directory.resolve("classpath-" + (jarCount++) + ".jar");
+        jar(path, jar);
+        classpathEntries.add(jar.toString());
+      } else {
+        classpathEntries.add(entry);
+      }
+    }
+    final String classpath = String.join(File.pathSeparator, classpathEntries);
+
+    final Path archive = StartupTrainer.createArchive(classpath, directory.resolve("startup.jsa"));
+    assertTrue(Files.isRegularFile(archive));
+
+    assertTrue(Files.size(archive) > 0L);
+
+    // Boot a child JVM that must map the archive (-Xshare:on fails
+    // the JVM otherwise) and log where each class came from.
+    final Path log = directory.resolve("boot.log");
+    final int exitValue =
+      new ProcessBuilder(StartupTrainer.java("-Xshare:on",
+                                             "-XX:SharedArchiveFile=" + archive,
+                                             "-Xlog:class+load=info",
+                                             "-cp", classpath,
+                                             StartupTrainer.class.getName()))
+      .redirectErrorStream(true)
+      .redirectOutput(log.toFile())
+      .start()
+      .waitFor();
+    final List<String> lines = Files.readAllLines(log, StandardCharsets.UTF_8);
+    assertEquals(String.join(System.lineSeparator(), lines), 0, exitValue);
+    boolean trained = false;
+    boolean shared = false;
+    for (final String line : lines) {
+      if (line.startsWith("Trained ")) {
+        trained = true;
+      } else if (line.contains(" " + JpaExtension.class.getName() + " source: shared objects file")) {
+        // Loaded from the archive rather than from its jar file.
+        shared = true;
+      }
+    }
+    assertTrue(trained);
+    assertTrue(shared);
+  }
+
+  private static final void jar(final Path directory, final Path jar) throws IOException {
+    final List<Path> files;
+    try (final Stream<Path> paths = Files.walk(directory)) {
+      files = paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+    }
+    try (final JarOutputStream jarOutputStream = new JarOutputStream(Files.newOutputStream(jar))) {
+      for (final Path file : files) {
+        jarOutputStream.putNextEntry(new JarEntry(directory.relativize(file).toString().replace(File.separatorChar, '/')));
+        Files.copy(file, jarOutputStream);
+        jarOutputStream.closeEntry();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,211 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.lang.reflect.Proxy;
+
+import java.sql.Connection;
+import java.sql.Statement;
+
+import java.util.List;
+import java.util.Properties;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+import org.eclipse.persistence.jpa.PersistenceProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestStatementStatistics {
+
+  private List<StatementStatistics> reports;
+
+  private EntityManagerFactory entityManagerFactory;
+
+  public TestStatementStatistics() {
+    super();
+  }
+
+  @Before
+  public void startEntityManagerFactory() {
+    final String name = this.getClass().getSimpleName();
+    this.reports = new CopyOnWriteArrayList<>();
+    final AtomicReference<EntityManagerFactory> reference = new AtomicReference<>();
+    final StatementStatisticsDataSource dataSource =
+      new StatementStatisticsDataSource(Widgets.createDataSource(name),
+                                        name,
+                                        StatementStatistics.DEFAULT_THRESHOLD,
+                                        null,
+                                        tableName -> JpaExtension.getEntityTypeName(reference.get(), tableName),
+                                        this.reports::add);
+    // Read inside a transaction on the transaction's connection so
+    // that reads and writes are grouped together.
+    final Properties properties = new Properties();
+    properties.setProperty("eclipselink.transaction.join-existing", "true");
+    this.entityManagerFactory =
+      new PersistenceProvider().createContainerEntityManagerFactory(Widgets.createPersistenceUnitInfo(name, dataSource, properties), null);
+    reference.set(this.entityManagerFactory);
+    Widgets.insert(this.entityManagerFactory, 20);
+    this.reports.clear();
+  }
+
+  @After
+  public void stopEntityManagerFactory() {
+    if (this.entityManagerFactory != null) {
+      this.entityManagerFactory.close();
+    }
+  }
+
+  @Test
+  public void testNormalize() {
+    assertEquals("SELECT ID FROM WIDGET WHERE (ID = ?) AND NAME = ?",
+                 StatementStatistics.normalize("SELECT ID\n  FROM WIDGET WHERE (ID = 12) AND NAME = 'it''s'"));
+    assertEquals("SELECT ID FROM WIDGET WHERE ID IN (?)",
+                 StatementStatistics.normalize("SELECT ID FROM WIDGET WHERE ID IN (?, ?,?)"));
+    assertTrue(StatementStatistics.isSingleRowSelect("SELECT ID, NAME FROM WIDGET WHERE (ID = ?)"));
+    assertFalse(StatementStatistics.isSingleRowSelect("SELECT ID, NAME FROM WIDGET"));
+    assertFalse(StatementStatistics.isSingleRowSelect("INSERT INTO WIDGET (ID, NAME) VALUES (?, ?)"));
+  }
+
+  @Test
+  public void testRepeatedFindsAreFlagged() {
+    final EntityManager entityManager = this.entityManagerFactory.createEntityManager();
+    try {
+      entityManager.getTransaction().begin();
+      for (long id = 0L; id < 10L; id++) {
+        assertNotNull(entityManager.find(Widget.class, Long.valueOf(id)));
+      }
+      entityManager.getTransaction().commit();
+    } finally {
+      entityManager.close();
+    }
+    assertFalse(this.reports.isEmpty());
+    StatementStatistics.Finding finding = null;
+    for (final StatementStatistics report : this.reports) {
+      if (!report.getFindings().isEmpty()) {
+        finding = report.getFindings().get(0);
+      }
+    }
+    assertNotNull(finding);
+    assertEquals(10, finding.getCount());
+    assertEquals(Widget.class.getName(), finding.getEntityTypeName());
+    assertNotNull(finding.getCallSite());
+    assertEquals(this.getClass().getName(), finding.getCallSite().getClassName());
+  }
+
+  @Test
+  public void testSingleQueryIsNotFlagged() {
+    final EntityManager entityManager = this.entityManagerFactory.createEntityManager();
+    try {
+      entityManager.getTransaction().begin();
+      assertEquals(20, entityManager.createQuery("SELECT w FROM Widget w", Widget.class).getResultList().size());
+      entityManager.getTransaction().commit();
+    } finally {
+      entityManager.close();
+    }
+    for (final StatementStatistics report : this.reports) {
+      assertTrue(report.getFindings().isEmpty());
+    }
+  }
+
+  @Test
+  public void testJtaTransactionCompletedOnAnotherThread() throws Exception {
+    final List<Synchronization> synchronizations = new CopyOnWriteArrayList<>();
+    final AtomicReference<Transaction> transaction = new AtomicReference<>();
+    final TransactionManager transactionManager =
+      (TransactionManager)Proxy.newProxyInstance(this.getClass().getClassLoader(),
+                                                 new Class<?>[] { TransactionManager.class },
+                                                 (proxy, method, arguments) -> "getTransaction".equals(method.getName()) ? transaction.get() : null);
+    final StatementStatisticsDataSource dataSource =
+      new StatementStatisticsDataSource(Widgets.createDataSource(this.getClass().getSimpleName() + "Jta"),
+                                        "jta",
+                                        StatementStatistics.DEFAULT_THRESHOLD,
+                                        transactionManager,
+                                        null,
+                                        this.reports::add);
+
+    transaction.set(newTransaction(synchronizations));
+    execute(dataSource, 3);
+    assertTrue(this.reports.isEmpty());
+    final Thread completer = new Thread(() -> {
+        for (final Synchronization synchronization : synchronizations) {
+          synchronization.afterCompletion(Status.STATUS_COMMITTED);
+        }
+      });
+    completer.start();
+    completer.join();
+    assertEquals(1, this.reports.size());
+    assertEquals(3, this.reports.get(0).getStatementCount());
+
+    // The next transaction on this thread is collected, and reported,
+    // on its own.
+    synchronizations.clear();
+    transaction.set(newTransaction(synchronizations));
+    execute(dataSource, 1);
+    assertEquals(1, synchronizations.size());
+    synchronizations.get(0).afterCompletion(Status.STATUS_COMMITTED);
+    assertEquals(2, this.reports.size());
+    assertEquals(1, this.reports.get(1).getStatementCount());
+  }
+
+  private static final void execute(final StatementStatisticsDataSource dataSource, final int times) throws Exception {
+    try (final Connection connection = dataSource.getConnection();
+         final Statement statement = connection.createStatement()) {
+      for (int i = 0; i < times; i++) {
+        statement.executeQuery("SELECT 1").close();
+      }
+    }
+  }
+
+  private static final Transaction newTransaction(final List<? super Synchronization> synchronizations) {
+    return (Transaction)Proxy.newProxyInstance(TestStatementStatistics.class.getClassLoader(),
+                                               new Class<?>[] { Transaction.class },
+                                               (proxy, method, arguments) -> {
+                                                 switch (method.getName()) {
+                                                 case "getStatus":
+                                                   return Integer.valueOf(Status.STATUS_ACTIVE);
+                                                 case "registerSynchronization":
+                                                   synchronizations.add((Synchronization)arguments[0]);
+                                                   return null;
+                                                 case "hashCode":
+                                                   return Integer.valueOf(System.identityHashCode(proxy));
+                                                 case "equals":
+                                                   return Boolean.valueOf(proxy == arguments[0]);
+                                                 default:
+                                                   return null;
+                                                 }
+                                               });
+  }
+
+}
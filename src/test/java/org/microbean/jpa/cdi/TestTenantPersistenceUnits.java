@@ -0,0 +1,180 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.util.Map;
+import java.util.Properties;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.persistence.EntityManager;
+
+import org.eclipse.persistence.jpa.PersistenceProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestTenantPersistenceUnits {
+
+  private Map<String, CountingDataSource> dataSources;
+
+  private TenantPersistenceUnits tenantPersistenceUnits;
+
+  public TestTenantPersistenceUnits() {
+    super();
+  }
+
+  @Before
+  public void setUp() {
+    this.dataSources = new ConcurrentHashMap<>();
+    final Properties properties = new Properties();
+    // Keep existing tables when a tenant's EntityManagerFactory is
+    // recreated.
+    properties.setProperty("eclipselink.ddl-generation", "create-tables");
+    final PersistenceUnitInfoBean template =
+      Widgets.createPersistenceUnitInfo("tenants", Widgets.createDataSource("tenants"), properties);
+    this.tenantPersistenceUnits =
+      new TenantPersistenceUnits(template,
+                                 pui -> new PersistenceProvider().createContainerEntityManagerFactory(pui, null),
+                                 2,
+                                 60000L);
+    // In-memory databases outlive each test, so name them uniquely.
+    final String databaseNamePrefix = "tenant-" + System.nanoTime() + "-";
+    for (final String tenantId : new String[] { "a", "b", "c" }) {
+      this.tenantPersistenceUnits.register(tenantId, () -> {
+          final CountingDataSource dataSource = new CountingDataSource(Widgets.createDataSource(databaseNamePrefix + tenantId));
+          this.dataSources.put(tenantId, dataSource);
+          return dataSource;
+        });
+    }
+  }
+
+  @After
+  public void tearDown() {
+    if (this.tenantPersistenceUnits != null) {
+      this.tenantPersistenceUnits.close();
+    }
+  }
+
+  @Test
+  public void testLazyCreationAndLruEviction() {
+    assertEquals(0, this.tenantPersistenceUnits.getOpenEntityManagerFactoryCount());
+    assertTrue(this.dataSources.isEmpty());
+
+    persist("a", 1L);
+    persist("b", 2L);
+    assertEquals(2, this.tenantPersistenceUnits.getOpenEntityManagerFactoryCount());
+
+    // Tenants do not see each other's data.
+    EntityManager entityManager = this.tenantPersistenceUnits.createEntityManager("b");
+    try {
+      assertEquals(null, entityManager.find(Widget.class, Long.valueOf(1L)));
+      assertNotNull(entityManager.find(Widget.class, Long.valueOf(2L)));
+    } finally {
+      entityManager.close();
+    }
+
+    // "a" is now the least recently used, so creating "c" evicts it
+    // and closes its pool.
+    final CountingDataSource a = this.dataSources.get("a");
+    persist("c", 3L);
+    assertEquals(2, this.tenantPersistenceUnits.getOpenEntityManagerFactoryCount());
+    assertTrue(a.closed.get());
+    assertFalse(this.dataSources.get("b").closed.get());
+
+    // "a" is recreated on demand; its in-memory database survived.
+    entityManager = this.tenantPersistenceUnits.createEntityManager("a");
+    try {
+      assertNotNull(entityManager.find(Widget.class, Long.valueOf(1L)));
+    } finally {
+      entityManager.close();
+    }
+    assertFalse(this.dataSources.get("a").closed.get());
+  }
+
+  @Test
+  public void testOpenEntityManagerPreventsEviction() {
+    final EntityManager entityManager = this.tenantPersistenceUnits.createEntityManager("a");
+    try {
+      persist("b", 1L);
+      persist("c", 2L);
+      assertFalse(this.dataSources.get("a").closed.get());
+      assertTrue(this.dataSources.get("b").closed.get());
+    } finally {
+      entityManager.close();
+    }
+  }
+
+  @Test
+  public void testIdleSweep() throws InterruptedException {
+    final TenantPersistenceUnits tenantPersistenceUnits =
+      new TenantPersistenceUnits(Widgets.createPersistenceUnitInfo("idleTenants", Widgets.createDataSource("idleTenants"), null),
+                                 pui -> new PersistenceProvider().createContainerEntityManagerFactory(pui, null),
+                                 2,
+                                 100L);
+    try {
+      final CountingDataSource dataSource = new CountingDataSource(Widgets.createDataSource("idleTenant-" + System.nanoTime()));
+      tenantPersistenceUnits.register("a", () -> dataSource);
+      tenantPersistenceUnits.createEntityManager("a").close();
+      assertEquals(1, tenantPersistenceUnits.getOpenEntityManagerFactoryCount());
+      // No other EntityManager is ever created, so only the sweep can
+      // close the idle tenant.
+      final long deadline = System.currentTimeMillis() + 10000L;
+      while (!dataSource.closed.get() && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10L);
+      }
+      assertTrue(dataSource.closed.get());
+      assertEquals(0, tenantPersistenceUnits.getOpenEntityManagerFactoryCount());
+    } finally {
+      tenantPersistenceUnits.close();
+    }
+  }
+
+  @Test
+  public void testUnregister() {
+    persist("a", 1L);
+    assertTrue(this.tenantPersistenceUnits.unregister("a"));
+    assertTrue(this.dataSources.get("a").closed.get());
+    assertEquals(0, this.tenantPersistenceUnits.getOpenEntityManagerFactoryCount());
+    assertFalse(this.tenantPersistenceUnits.getTenantIds().contains("a"));
+    try {
+      this.tenantPersistenceUnits.createEntityManager("a");
+      fail();
+    } catch (final IllegalArgumentException expected) {
+
+    }
+  }
+
+  private final void persist(final String tenantId, final long id) {
+    final EntityManager entityManager = this.tenantPersistenceUnits.createEntityManager(tenantId);
+    try {
+      entityManager.getTransaction().begin();
+      entityManager.persist(new Widget(id, "widget-" + id));
+      entityManager.getTransaction().commit();
+    } finally {
+      entityManager.close();
+    }
+  }
+
+}
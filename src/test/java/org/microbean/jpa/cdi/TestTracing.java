@@ -0,0 +1,175 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import javax.persistence.spi.PersistenceUnitInfo;
+
+import org.eclipse.persistence.jpa.PersistenceProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestTracing {
+
+  private InMemorySpanExporter exporter;
+
+  private EntityManagerFactory entityManagerFactory;
+
+  public TestTracing() {
+    super();
+  }
+
+  @Before
+  public void setUp() {
+    final String name = "tracing-" + System.nanoTime();
+    this.exporter = new InMemorySpanExporter();
+    final Tracing tracing = new Tracing(name, this.exporter);
+    final PersistenceUnitInfo persistenceUnitInfo = Widgets.createPersistenceUnitInfo(name, Widgets.createDataSource(name), null);
+    final Map<String, Object> properties = new HashMap<>();
+    tracing.apply(properties, persistenceUnitInfo);
+    this.entityManagerFactory =
+      tracing.wrap(new PersistenceProvider().createContainerEntityManagerFactory(persistenceUnitInfo, properties), null);
+    Widgets.insert(this.entityManagerFactory, 10);
+    this.exporter.reset();
+  }
+
+  @After
+  public void tearDown() {
+    if (this.entityManagerFactory != null) {
+      this.entityManagerFactory.close();
+    }
+  }
+
+  @Test
+  public void testNotEnabled() {
+    assertNull(Tracing.fromProperties("tracing", Widgets.createPersistenceUnitInfo("tracing", Widgets.createDataSource("tracing"), null)));
+  }
+
+  @Test
+  public void testTraceparent() {
+    final SpanContext spanContext = SpanContext.fromTraceparent("00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01");
+    assertEquals("4bf92f3577b34da6a3ce929d0e0e4736", spanContext.getTraceId());
+    assertEquals("00f067aa0ba902b7", spanContext.getSpanId());
+    assertEquals(spanContext, SpanContext.fromTraceparent(spanContext.toTraceparent()));
+    assertNull(SpanContext.fromTraceparent("00-00000000000000000000000000000000-00f067aa0ba902b7-01"));
+    assertNull(SpanContext.fromTraceparent("garbage"));
+  }
+
+  @Test
+  public void testSpanTree() {
+    final SpanContext parent = SpanContext.fromTraceparent("00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01");
+    try (final SpanContext.Scope scope = parent.makeCurrent()) {
+      final EntityManager entityManager = this.entityManagerFactory.createEntityManager();
+      try {
+        entityManager.getTransaction().begin();
+        final List<Widget> widgets =
+          entityManager.createQuery("SELECT w FROM Widget w WHERE w.id < 5 ORDER BY w.id", Widget.class)
+          .setMaxResults(100)
+          .getResultList();
+        assertEquals(5, widgets.size());
+        widgets.get(0).setName("renamed");
+        entityManager.flush();
+        entityManager.getTransaction().commit();
+      } finally {
+        entityManager.close();
+      }
+      assertEquals(parent, SpanContext.current());
+    }
+    assertNull(SpanContext.current());
+
+    final List<Span> transactions = this.exporter.getFinishedSpans(Tracing.TRANSACTION_SPAN_NAME);
+    assertEquals(1, transactions.size());
+    final Span transaction = transactions.get(0);
+    assertEquals(parent, transaction.getParent());
+    assertEquals(parent.getTraceId(), transaction.getContext().getTraceId());
+    assertEquals("committed", transaction.getAttribute(Tracing.OUTCOME_ATTRIBUTE_NAME));
+
+    final List<Span> queries = this.exporter.getFinishedSpans(Tracing.QUERY_SPAN_NAME);
+    assertEquals(1, queries.size());
+    final Span query = queries.get(0);
+    assertEquals(transaction.getContext(), query.getParent());
+    assertEquals("SELECT w FROM Widget w WHERE w.id < ? ORDER BY w.id", query.getAttribute(Tracing.STATEMENT_ATTRIBUTE_NAME));
+    assertEquals(Integer.valueOf(5), query.getAttribute(Tracing.ROWS_ATTRIBUTE_NAME));
+    assertTrue(query.getDurationNanos() >= 0L);
+
+    final List<Span> flushes = this.exporter.getFinishedSpans(Tracing.FLUSH_SPAN_NAME);
+    assertEquals(1, flushes.size());
+    assertEquals(transaction.getContext(), flushes.get(0).getParent());
+
+    final List<Span> commits = this.exporter.getFinishedSpans(Tracing.COMMIT_SPAN_NAME);
+    assertEquals(1, commits.size());
+    assertEquals(transaction.getContext(), commits.get(0).getParent());
+
+    assertFalse(this.exporter.getFinishedSpans(Tracing.CONNECTION_SPAN_NAME).isEmpty());
+    boolean sawUpdate = false;
+    for (final Span statement : this.exporter.getFinishedSpans(Tracing.STATEMENT_SPAN_NAME)) {
+      assertEquals(parent.getTraceId(), statement.getContext().getTraceId());
+      final String sql = (String)statement.getAttribute(Tracing.STATEMENT_ATTRIBUTE_NAME);
+      if (sql != null && sql.startsWith("UPDATE")) {
+        sawUpdate = true;
+        assertEquals(Integer.valueOf(1), statement.getAttribute(Tracing.ROWS_ATTRIBUTE_NAME));
+        assertEquals(flushes.get(0).getContext(), statement.getParent());
+      }
+    }
+    assertTrue(sawUpdate);
+    for (final Span span : this.exporter.getFinishedSpans()) {
+      assertTrue(span.isEnded());
+      assertEquals(parent.getTraceId(), span.getContext().getTraceId());
+    }
+  }
+
+  @Test
+  public void testCloseEndsOpenTransactionSpan() {
+    final SpanContext parent = SpanContext.fromTraceparent("00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01");
+    try (final SpanContext.Scope scope = parent.makeCurrent()) {
+      final EntityManager entityManager = this.entityManagerFactory.createEntityManager();
+      entityManager.getTransaction().begin();
+      assertFalse(parent.equals(SpanContext.current()));
+      entityManager.close();
+      assertEquals(parent, SpanContext.current());
+    }
+    final List<Span> transactions = this.exporter.getFinishedSpans(Tracing.TRANSACTION_SPAN_NAME);
+    assertEquals(1, transactions.size());
+    assertTrue(transactions.get(0).isEnded());
+    assertEquals("abandoned", transactions.get(0).getAttribute(Tracing.OUTCOME_ATTRIBUTE_NAME));
+  }
+
+  @Test
+  public void testEndingSpanRestoresParentEvenIfChildWasNotEnded() {
+    final Tracing tracing = new Tracing("tracing", new InMemorySpanExporter());
+    final Span outer = tracing.startSpan("outer");
+    final Span inner = tracing.startSpan("inner");
+    assertEquals(inner.getContext(), SpanContext.current());
+    // The inner span is never ended.
+    outer.end();
+    assertNull(SpanContext.current());
+  }
+
+}
@@ -0,0 +1,213 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.Collections;
+import java.util.PriorityQueue;
+
+import java.util.stream.Stream;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestWriteBehind {
+
+  private static final int ROWS = Integer.getInteger("widgets", 20000).intValue();
+
+  private EntityManagerFactory entityManagerFactory;
+
+  private Path spillDirectory;
+
+  public TestWriteBehind() {
+    super();
+  }
+
+  @Before
+  public void startEntityManagerFactory() throws IOException {
+    this.entityManagerFactory = Widgets.createEntityManagerFactory(this.getClass().getSimpleName());
+    this.spillDirectory = Files.createTempDirectory("write-behind");
+  }
+
+  @After
+  public void stopEntityManagerFactory() throws IOException {
+    if (this.entityManagerFactory != null) {
+      this.entityManagerFactory.close();
+    }
+    if (this.spillDirectory != null) {
+      try (final Stream<Path> files = Files.list(this.spillDirectory)) {
+        files.forEach(f -> f.toFile().delete());
+      }
+      Files.deleteIfExists(this.spillDirectory);
+    }
+  }
+
+  @Test
+  public void testSubmitNeverWaitsAndCloseDrains() throws IOException {
+    final WriteBehind writeBehind = this.newWriteBehind(ROWS);
+    final long start = System.nanoTime();
+    for (int i = 0; i < ROWS; i++) {
+      assertTrue(writeBehind.submit(new Widget(i, "widget-" + i)));
+    }
+    final long elapsedNanos = System.nanoTime() - start;
+    System.out.println("Average submit: " + (elapsedNanos / ROWS) + " ns");
+    writeBehind.close();
+
+    assertFalse(writeBehind.submit(new Widget(-1L, "too late")));
+    assertEquals(ROWS, writeBehind.getSubmittedCount());
+    assertEquals(1L, writeBehind.getRejectedCount());
+    assertEquals(ROWS, writeBehind.getWrittenCount());
+    assertEquals(0, writeBehind.getQueueDepth());
+    assertEquals(0L, writeBehind.getLostCount());
+    assertEquals(ROWS, this.count());
+  }
+
+  @Test
+  public void testFullQueueRejects() throws IOException {
+    // A long linger keeps the worker asleep while the queue fills.
+    final WriteBehind writeBehind =
+      new WriteBehind(this.getClass().getSimpleName(), new BatchWriter(this.entityManagerFactory, null, 100), 10, 1, 60000L, 10000L, null);
+    int accepted = 0;
+    try {
+      // The worker may take a few entities before it first parks, so
+      // submit until the queue is full rather than exactly ten times.
+      while (writeBehind.submit(new Widget(accepted, "widget-" + accepted))) {
+        accepted++;
+        assertTrue(accepted < 1000);
+      }
+      assertTrue(accepted >= 10);
+      assertEquals(1L, writeBehind.getRejectedCount());
+    } finally {
+      writeBehind.close();
+    }
+    assertEquals(accepted, writeBehind.getWrittenCount());
+    assertEquals(accepted, this.count());
+  }
+
+  @Test
+  public void testFailuresAreSpilledAndRecovered() throws IOException {
+    Widgets.insert(this.entityManagerFactory, 1);
+    final EntityManager entityManager = this.entityManagerFactory.createEntityManager();
+    final long existingId;
+    try {
+      existingId = entityManager.createQuery("SELECT w.id FROM Widget w", Long.class).getSingleResult().longValue();
+    } finally {
+      entityManager.close();
+    }
+
+    WriteBehind writeBehind = this.newWriteBehind(100);
+    for (int i = 0; i < 10; i++) {
+      assertTrue(writeBehind.submit(new Widget(existingId + 1000L + i, "good-" + i)));
+    }
+    assertTrue(writeBehind.submit(new Widget(existingId, "duplicate")));
+    writeBehind.close();
+    assertEquals(10L, writeBehind.getWrittenCount());
+    assertEquals(1L, writeBehind.getFailedCount());
+    assertEquals(1L, writeBehind.getSpilledCount());
+    assertEquals(0L, writeBehind.getLostCount());
+
+    // Remove the conflict; the spilled entity is written on the next
+    // start.
+    final EntityManager remover = this.entityManagerFactory.createEntityManager();
+    try {
+      remover.getTransaction().begin();
+      remover.remove(remover.find(Widget.class, Long.valueOf(existingId)));
+      remover.getTransaction().commit();
+    } finally {
+      remover.close();
+    }
+    this.entityManagerFactory.getCache().evictAll();
+
+    writeBehind = this.newWriteBehind(100);
+    writeBehind.close();
+    assertEquals(1L, writeBehind.getWrittenCount());
+    assertEquals(11L, this.count());
+    try (final Stream<Path> files = Files.list(this.spillDirectory)) {
+      assertEquals(0L, files.count());
+    }
+  }
+
+  @Test
+  public void testSpillFileWithForeignClassIsRejected() throws IOException {
+    final Path spillFile = this.spillDirectory.resolve(this.getClass().getSimpleName() + "-0-0.spill");
+    try (final ObjectOutputStream out = new ObjectOutputStream(Files.newOutputStream(spillFile))) {
+      out.writeInt(2);
+      out.writeObject(new Widget(1L, "good"));
+      // java.io.File is Serializable but is neither a class of the
+      // persistence unit nor a permitted JDK class.
+      out.writeObject(new File("foreign"));
+    }
+    final WriteBehind writeBehind = this.newWriteBehind(100);
+    writeBehind.close();
+    assertEquals(0L, writeBehind.getWrittenCount());
+    assertEquals(0L, this.count());
+    assertFalse(Files.exists(spillFile));
+    assertTrue(Files.exists(this.spillDirectory.resolve(spillFile.getFileName() + ".rejected")));
+  }
+
+  @Test
+  public void testSpillFileWithUnlistedJdkClassIsRejected() throws IOException {
+    final Path spillFile = this.spillDirectory.resolve(this.getClass().getSimpleName() + "-0-1.spill");
+    try (final ObjectOutputStream out = new ObjectOutputStream(Files.newOutputStream(spillFile))) {
+      out.writeInt(2);
+      out.writeObject(new Widget(1L, "good"));
+      // Only specific java.util classes are permitted, not the whole
+      // package.
+      out.writeObject(new PriorityQueue<>(Collections.singleton("foreign")));
+    }
+    final WriteBehind writeBehind = this.newWriteBehind(100);
+    writeBehind.close();
+    assertEquals(0L, writeBehind.getWrittenCount());
+    assertEquals(0L, this.count());
+    assertFalse(Files.exists(spillFile));
+    assertTrue(Files.exists(this.spillDirectory.resolve(spillFile.getFileName() + ".rejected")));
+  }
+
+  private final WriteBehind newWriteBehind(final int capacity) throws IOException {
+    return new WriteBehind(this.getClass().getSimpleName(),
+                           new BatchWriter(this.entityManagerFactory, null, 500),
+                           capacity,
+                           1,
+                           1L,
+                           30000L,
+                           this.spillDirectory);
+  }
+
+  private final long count() {
+    final EntityManager entityManager = this.entityManagerFactory.createEntityManager();
+    try {
+      return entityManager.createQuery("SELECT COUNT(w) FROM Widget w", Long.class).getSingleResult().longValue();
+    } finally {
+      entityManager.close();
+    }
+  }
+
+}
@@ -0,0 +1,74 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import javax.enterprise.context.ApplicationScoped;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.HeuristicRollbackException;
+import javax.transaction.NotSupportedException;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+import javax.transaction.TransactionManager;
+
+@ApplicationScoped
+class WidgetService {
+
+  @Inject
+  @Named("test")
+  private EntityManagerFactory entityManagerFactory;
+
+  @Inject
+  private TransactionManager transactionManager;
+
+  WidgetService() {
+    super();
+  }
+
+  void persistAndFind(final long id)
+    throws HeuristicMixedException, HeuristicRollbackException, NotSupportedException, RollbackException, SystemException {
+    this.transactionManager.begin();
+    boolean committed = false;
+    try {
+      final EntityManager entityManager = this.entityManagerFactory.createEntityManager();
+      try {
+        entityManager.joinTransaction();
+        entityManager.persist(new Widget(id, "widget-" + id));
+        entityManager.flush();
+        if (entityManager.find(Widget.class, Long.valueOf(id)) == null) {
+          throw new IllegalStateException("Widget " + id + " not found");
+        }
+      } finally {
+        entityManager.close();
+      }
+      this.transactionManager.commit();
+      committed = true;
+    } finally {
+      if (!committed && this.transactionManager.getStatus() != Status.STATUS_NO_TRANSACTION) {
+        this.transactionManager.rollback();
+      }
+    }
+  }
+
+}
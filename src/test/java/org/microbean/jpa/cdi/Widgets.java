@@ -0,0 +1,125 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.cdi;
+
+import java.net.URL;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Properties;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.SharedCacheMode;
+import javax.persistence.ValidationMode;
+
+import javax.persistence.spi.PersistenceUnitTransactionType;
+
+import javax.sql.DataSource;
+
+import org.eclipse.persistence.jpa.PersistenceProvider;
+
+import org.h2.jdbcx.JdbcDataSource;
+
+final class Widgets {
+
+  private Widgets() {
+    super();
+  }
+
+  static final DataSource createDataSource(final String name) {
+    final JdbcDataSource dataSource = new JdbcDataSource();
+    dataSource.setURL("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+    dataSource.setUser("sa");
+    dataSource.setPassword("");
+    return dataSource;
+  }
+
+  static final PersistenceUnitInfoBean createPersistenceUnitInfo(final String name,
+                                                                 final DataSource dataSource,
+                                                                 final Properties extraProperties) {
+    return createPersistenceUnitInfo(name, dataSource, extraProperties, SharedCacheMode.NONE);
+  }
+
+  static final PersistenceUnitInfoBean createPersistenceUnitInfo(final String name,
+                                                                 final DataSource dataSource,
+                                                                 final Properties extraProperties,
+                                                                 final SharedCacheMode sharedCacheMode) {
+    return createPersistenceUnitInfo(name, dataSource, extraProperties, sharedCacheMode, null);
+  }
+
+  static final PersistenceUnitInfoBean createPersistenceUnitInfo(final String name,
+                                                                 final DataSource dataSource,
+                                                                 final Properties extraProperties,
+                                                                 final SharedCacheMode sharedCacheMode,
+                                                                 final Collection<? extends String> mappingFileNames) {
+    final URL rootUrl = Widgets.class.getProtectionDomain().getCodeSource().getLocation();
+    final Properties properties = new Properties();
+    properties.setProperty("eclipselink.ddl-generation", "drop-and-create-tables");
+    properties.setProperty("eclipselink.ddl-generation.output-mode", "database");
+    properties.setProperty("eclipselink.logging.level", "WARNING");
+    properties.setProperty("eclipselink.weaving", "false");
+    if (extraProperties != null) {
+      properties.putAll(extraProperties);
+    }
+    return new PersistenceUnitInfoBean(name,
+                                       rootUrl,
+                                       "2.2",
+                                       PersistenceProvider.class.getName(),
+                                       Thread.currentThread().getContextClassLoader(),
+                                       null,
+                                       null,
+                                       true,
+                                       null,
+                                       Arrays.asList(Widget.class.getName(), Counter.class.getName(), Gadget.class.getName()),
+                                       mappingFileNames,
+                                       null,
+                                       name,
+                                       (jta, useDefaultJta, dataSourceName) -> jta ? null : dataSource,
+                                       properties,
+                                       sharedCacheMode,
+                                       PersistenceUnitTransactionType.RESOURCE_LOCAL,
+                                       ValidationMode.NONE);
+  }
+
+  static final EntityManagerFactory createEntityManagerFactory(final String name) {
+    return createEntityManagerFactory(name, null);
+  }
+
+  static final EntityManagerFactory createEntityManagerFactory(final String name, final Properties extraProperties) {
+    return new PersistenceProvider()
+      .createContainerEntityManagerFactory(createPersistenceUnitInfo(name, createDataSource(name), extraProperties), null);
+  }
+
+  static final void insert(final EntityManagerFactory entityManagerFactory, final int count) {
+    final EntityManager entityManager = entityManagerFactory.createEntityManager();
+    try {
+      entityManager.getTransaction().begin();
+      for (int i = 0; i < count; i++) {
+        entityManager.persist(new Widget(i, "widget-" + i));
+        if (i % 1000 == 999) {
+          entityManager.flush();
+          entityManager.clear();
+        }
+      }
+      entityManager.getTransaction().commit();
+    } finally {
+      entityManager.close();
+    }
+  }
+
+}
@@ -0,0 +1,69 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.org.eclipse.persistence.platform.server.cdi;
+
+import javax.enterprise.inject.spi.CDI;
+
+import javax.transaction.TransactionManager;
+
+import org.eclipse.persistence.platform.server.ServerPlatformBase;
+
+import org.eclipse.persistence.sessions.DatabaseSession;
+
+import org.eclipse.persistence.transaction.JTATransactionController;
+
+/**
+ * A {@link ServerPlatformBase} that lets EclipseLink take part in
+ * JTA transactions managed by whatever {@link TransactionManager} is
+ * available as a bean in the current CDI SE container.
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ */
+public class CDISEPlatform extends ServerPlatformBase {
+
+  public CDISEPlatform(final DatabaseSession session) {
+    super(session);
+  }
+
+  @Override
+  public Class<?> getExternalTransactionControllerClass() {
+    if (this.externalTransactionControllerClass == null) {
+      this.externalTransactionControllerClass = TransactionController.class;
+    }
+    return this.externalTransactionControllerClass;
+  }
+
+  @Override
+  public boolean isRuntimeServicesEnabledDefault() {
+    return false;
+  }
+
+  public static final class TransactionController extends JTATransactionController {
+
+    public TransactionController() {
+      super();
+    }
+
+    @Override
+    protected TransactionManager acquireTransactionManager() {
+      return CDI.current().select(TransactionManager.class).get();
+    }
+
+  }
+
+}
@@ -0,0 +1,68 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright © 2019 microBean.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.microbean.jpa.org.hibernate.engine.transaction.jta.platform;
+
+import javax.enterprise.inject.spi.CDI;
+
+import javax.transaction.TransactionManager;
+import javax.transaction.UserTransaction;
+
+import org.hibernate.engine.transaction.jta.platform.internal.AbstractJtaPlatform;
+
+import org.hibernate.engine.transaction.jta.platform.spi.JtaPlatform;
+import org.hibernate.engine.transaction.jta.platform.spi.JtaPlatformProvider;
+
+/**
+ * A {@link JtaPlatformProvider} that lets Hibernate take part in JTA
+ * transactions managed by whatever {@link TransactionManager} is
+ * available as a bean in the current CDI SE container.
+ *
+ * @author <a href="https://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ */
+public class CDISEJtaPlatformProvider implements JtaPlatformProvider {
+
+  public CDISEJtaPlatformProvider() {
+    super();
+  }
+
+  @Override
+  public JtaPlatform getProvidedJtaPlatform() {
+    return new CDISEJtaPlatform();
+  }
+
+  private static final class CDISEJtaPlatform extends AbstractJtaPlatform {
+
+    private static final long serialVersionUID = 1L;
+
+    private CDISEJtaPlatform() {
+      super();
+    }
+
+    @Override
+    protected TransactionManager locateTransactionManager() {
+      return CDI.current().select(TransactionManager.class).get();
+    }
+
+    @Override
+    protected UserTransaction locateUserTransaction() {
+      return CDI.current().select(UserTransaction.class).get();
+    }
+
+  }
+
+}